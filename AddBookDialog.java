@@ -19,6 +19,7 @@ public class AddBookDialog extends JDialog {
     private JTextField titleField;
     private JTextField authorField;
     private JComboBox<String> genreComboBox;
+    private JComboBox<String> branchComboBox;
     private JButton addButton;
     private JButton cancelButton;
     
@@ -53,6 +54,7 @@ public class AddBookDialog extends JDialog {
         titleField = new JTextField(20);
         authorField = new JTextField(20);
         genreComboBox = new JComboBox<>(new String[] {"Класика", "Фентъзи", "Научна фантастика", "Романтика", "Приключенска", "Сатира", "Детска литература"});
+        branchComboBox = new JComboBox<>(bookService.getBranchNames().toArray(new String[0]));
         addButton = new JButton("Добави");
         cancelButton = new JButton("Отказ");
     }
@@ -67,13 +69,19 @@ public class AddBookDialog extends JDialog {
         mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
         
         // Панел за формата
-        JPanel formPanel = new JPanel(new GridLayout(3, 2, 10, 10));
+        // Филиалът се избира само когато има повече от един
+        boolean multiBranch = branchComboBox.getItemCount() > 1;
+        JPanel formPanel = new JPanel(new GridLayout(multiBranch ? 4 : 3, 2, 10, 10));
         formPanel.add(new JLabel("Заглавие:"));
         formPanel.add(titleField);
         formPanel.add(new JLabel("Автор:"));
         formPanel.add(authorField);
         formPanel.add(new JLabel("Жанр:"));
         formPanel.add(genreComboBox);
+        if (multiBranch) {
+            formPanel.add(new JLabel("Филиал:"));
+            formPanel.add(branchComboBox);
+        }
         mainPanel.add(formPanel);
         
         mainPanel.add(Box.createRigidArea(new Dimension(0, 20)));
@@ -129,7 +137,7 @@ public class AddBookDialog extends JDialog {
         }
         
         // Добавяне на книгата
-        int bookId = bookService.addBook(title, author, genre);
+        int bookId = bookService.addBook(title, author, genre, Math.max(0, branchComboBox.getSelectedIndex()));
         
         if (bookId > 0) {
             JOptionPane.showMessageDialog(this,
@@ -1,16 +1,25 @@
 package library.ui.main.panels;
 
+import library.metrics.MetricsRegistry;
+import library.model.AuditEvent;
 import library.model.Book;
+import library.model.ChangeSet;
+import library.model.CirculationCount;
+import library.model.LoanOutcome;
 import library.model.User;
 import library.service.AuthenticationService;
 import library.service.BookService;
+import library.service.CirculationStats;
 import library.service.LoanService;
+import library.service.ServiceRegistry;
 import library.service.UserService;
 import library.ui.main.MainFrame;
 import library.ui.main.dialogs.AddBookDialog;
 import library.ui.main.dialogs.AddUserDialog;
+import library.ui.main.dialogs.AuditHistoryDialog;
 import library.ui.main.dialogs.EditBookDialog;
 import library.ui.main.dialogs.EditUserDialog;
+import library.ui.main.dialogs.ImportUsersDialog;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableCellRenderer;
@@ -18,6 +27,7 @@ import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -30,6 +40,12 @@ public class AdminPanel extends JPanel {
     private UserService userService;
     private BookService bookService;
     private LoanService loanService;
+    private final MetricsRegistry.Timer refreshTimer = MetricsRegistry.getInstance()
+            .timer("library_ui_refresh_seconds", "Време за обновяване на панел", "panel", "admin");
+    
+    // Версии на показаните данни; при обновяване се изтеглят само промените след тях
+    private long usersVersion;
+    private long booksVersion;
     
     // Компоненти на интерфейса
     private JTabbedPane tabbedPane;
@@ -40,6 +56,8 @@ public class AdminPanel extends JPanel {
     private JButton addUserButton;
     private JButton editUserButton;
     private JButton deleteUserButton;
+    private JButton importUsersButton;
+    private JButton userHistoryButton;
     
     // Компоненти за управление на книги
     private JTable booksTable;
@@ -47,6 +65,15 @@ public class AdminPanel extends JPanel {
     private JButton addBookButton;
     private JButton editBookButton;
     private JButton deleteBookButton;
+    private JButton borrowBooksButton;
+    private JButton transferBookButton;
+    private JButton bookHistoryButton;
+    
+    // Компоненти за статистика
+    private JComboBox<CirculationStats.Period> statsPeriodComboBox;
+    private DefaultTableModel topBooksTableModel;
+    private DefaultTableModel topUsersTableModel;
+    private JLabel statsSummaryLabel;
     
     /**
      * Конструктор
@@ -56,9 +83,9 @@ public class AdminPanel extends JPanel {
     public AdminPanel(MainFrame mainFrame, AuthenticationService authService) {
         this.mainFrame = mainFrame;
         this.authService = authService;
-        this.userService = new UserService();
-        this.bookService = new BookService();
-        this.loanService = new LoanService();
+        this.userService = ServiceRegistry.getInstance().getUserService();
+        this.bookService = ServiceRegistry.getInstance().getBookService();
+        this.loanService = ServiceRegistry.getInstance().getLoanService();
         
         // Проверка дали текущият потребител е администратор
         if (!authService.isAdmin()) {
@@ -119,6 +146,8 @@ public class AdminPanel extends JPanel {
         addUserButton = new JButton("Добави потребител");
         editUserButton = new JButton("Редактирай потребител");
         deleteUserButton = new JButton("Изтрий потребител");
+        importUsersButton = new JButton("Импорт от CSV");
+        userHistoryButton = new JButton("История");
         
         // Инициализация на компонентите за управление на книги
         String[] bookColumns = {"ID", "Заглавие", "Автор", "Жанр", "Наличност"};
@@ -130,7 +159,8 @@ public class AdminPanel extends JPanel {
         };
         
         booksTable = new JTable(booksTableModel);
-        booksTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // Няколко книги могат да се заемат наведнъж (напр. комплект за клас)
+        booksTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         booksTable.setRowHeight(25);
         booksTable.getTableHeader().setReorderingAllowed(false);
         
@@ -148,6 +178,27 @@ public class AdminPanel extends JPanel {
         addBookButton = new JButton("Добави книга");
         editBookButton = new JButton("Редактирай книга");
         deleteBookButton = new JButton("Изтрий книга");
+        borrowBooksButton = new JButton("Заеми избраните...");
+        transferBookButton = new JButton("Прехвърли към филиал...");
+        transferBookButton.setVisible(bookService.getBranchNames().size() > 1);
+        bookHistoryButton = new JButton("История");
+        
+        // Инициализация на компонентите за статистика
+        statsPeriodComboBox = new JComboBox<>(CirculationStats.Period.values());
+        statsPeriodComboBox.setSelectedItem(CirculationStats.Period.MONTH);
+        topBooksTableModel = new DefaultTableModel(new String[] {"#", "Заглавие", "Заемания"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false; // Правим таблицата нередактируема
+            }
+        };
+        topUsersTableModel = new DefaultTableModel(new String[] {"#", "Читател", "Заемания"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false; // Правим таблицата нередактируема
+            }
+        };
+        statsSummaryLabel = new JLabel();
     }
     
     /**
@@ -164,6 +215,8 @@ public class AdminPanel extends JPanel {
         userButtonsPanel.add(addUserButton);
         userButtonsPanel.add(editUserButton);
         userButtonsPanel.add(deleteUserButton);
+        userButtonsPanel.add(importUsersButton);
+        userButtonsPanel.add(userHistoryButton);
         usersPanel.add(userButtonsPanel, BorderLayout.SOUTH);
         
         // Панел за управление на книги
@@ -174,11 +227,33 @@ public class AdminPanel extends JPanel {
         bookButtonsPanel.add(addBookButton);
         bookButtonsPanel.add(editBookButton);
         bookButtonsPanel.add(deleteBookButton);
+        bookButtonsPanel.add(borrowBooksButton);
+        bookButtonsPanel.add(transferBookButton);
+        bookButtonsPanel.add(bookHistoryButton);
         booksPanel.add(bookButtonsPanel, BorderLayout.SOUTH);
         
+        // Панел за статистика
+        JPanel statsPanel = new JPanel(new BorderLayout());
+        
+        JPanel statsFilterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        statsFilterPanel.add(new JLabel("Период:"));
+        statsFilterPanel.add(statsPeriodComboBox);
+        statsFilterPanel.add(statsSummaryLabel);
+        statsPanel.add(statsFilterPanel, BorderLayout.NORTH);
+        
+        JPanel statsTablesPanel = new JPanel(new GridLayout(1, 2, 10, 10));
+        JScrollPane topBooksScrollPane = new JScrollPane(new JTable(topBooksTableModel));
+        topBooksScrollPane.setBorder(BorderFactory.createTitledBorder("Най-заемани книги"));
+        statsTablesPanel.add(topBooksScrollPane);
+        JScrollPane topUsersScrollPane = new JScrollPane(new JTable(topUsersTableModel));
+        topUsersScrollPane.setBorder(BorderFactory.createTitledBorder("Най-активни читатели"));
+        statsTablesPanel.add(topUsersScrollPane);
+        statsPanel.add(statsTablesPanel, BorderLayout.CENTER);
+        
         // Добавяне на панелите към tabbedPane
         tabbedPane.addTab("Потребители", usersPanel);
         tabbedPane.addTab("Книги", booksPanel);
+        tabbedPane.addTab("Статистика", statsPanel);
         
         // Добавяне на tabbedPane към панела
         add(tabbedPane, BorderLayout.CENTER);
@@ -196,6 +271,13 @@ public class AdminPanel extends JPanel {
             }
         });
         
+        importUsersButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                importUsers();
+            }
+        });
+        
         editUserButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
@@ -231,31 +313,79 @@ public class AdminPanel extends JPanel {
                 deleteBook();
             }
         });
+        
+        borrowBooksButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                borrowSelectedBooks();
+            }
+        });
+        
+        transferBookButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                transferBook();
+            }
+        });
+        
+        bookHistoryButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showHistory(booksTable, AuditEvent.BOOK);
+            }
+        });
+        
+        userHistoryButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showHistory(usersTable, AuditEvent.USER);
+            }
+        });
+        
+        // Слушател за избора на период на статистиката
+        statsPeriodComboBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refreshStats();
+            }
+        });
     }
     
     /**
      * Зарежда данните в таблиците
      */
     public void refreshData() {
-        // Изчистване на таблиците
-        usersTableModel.setRowCount(0);
-        booksTableModel.setRowCount(0);
-        
-        // Зареждане на всички потребители
-        List<User> users = userService.getAllUsers();
-        for (User user : users) {
-            usersTableModel.addRow(new Object[] {
+        long start = refreshTimer.start();
+        
+        // Зареждане на промените в потребителите
+        ChangeSet<User> users = usersVersion == 0
+                ? mainFrame.getStartup().take("admin.users", () -> userService.getUsersChangedSince(0))
+                : userService.getUsersChangedSince(usersVersion);
+        if (users == null) {
+            users = ChangeSet.full(userService.getAllUsers(), usersVersion);
+        }
+        List<Object[]> userRows = new ArrayList<>();
+        for (User user : users.getChanged()) {
+            userRows.add(new Object[] {
                     user.getUserId(),
                     user.getName(),
                     user.getEmail(),
                     user.getRole()
             });
         }
+        TableDelta.apply(usersTableModel, userRows, users.getDeletedIds(), users.isFull(), false);
+        usersVersion = users.getVersion();
         
-        // Зареждане на всички книги
-        List<Book> books = bookService.getAllBooks();
-        for (Book book : books) {
-            booksTableModel.addRow(new Object[] {
+        // Зареждане на промените в книгите
+        ChangeSet<Book> books = booksVersion == 0
+                ? mainFrame.getStartup().take("admin.books", () -> bookService.getBooksChangedSince(0))
+                : bookService.getBooksChangedSince(booksVersion);
+        if (books == null) {
+            books = ChangeSet.full(bookService.getAllBooks(), booksVersion);
+        }
+        List<Object[]> bookRows = new ArrayList<>();
+        for (Book book : books.getChanged()) {
+            bookRows.add(new Object[] {
                     book.getBookId(),
                     book.getTitle(),
                     book.getAuthor(),
@@ -263,9 +393,42 @@ public class AdminPanel extends JPanel {
                     book.getAvailability()
             });
         }
+        TableDelta.apply(booksTableModel, bookRows, books.getDeletedIds(), books.isFull(), false);
+        booksVersion = books.getVersion();
+        
+        // Обновяване на статистиката
+        refreshStats();
         
         // Обновяване на статус съобщението
-        mainFrame.setStatusMessage("Заредени " + users.size() + " потребители и " + books.size() + " книги");
+        mainFrame.setStatusMessage("Заредени " + usersTableModel.getRowCount() + " потребители и "
+                + booksTableModel.getRowCount() + " книги");
+        
+        refreshTimer.stop(start);
+    }
+    
+    /**
+     * Показва статистиката за избрания период; данните идват от броячите в паметта,
+     * затова времето не зависи от броя на натрупаните заемания
+     */
+    private void refreshStats() {
+        CirculationStats stats = mainFrame.getStartup().take("admin.stats", CirculationStats::getInstance);
+        CirculationStats.Period period = (CirculationStats.Period) statsPeriodComboBox.getSelectedItem();
+        
+        topBooksTableModel.setRowCount(0);
+        int rank = 1;
+        for (CirculationCount count : stats.getTopBooks(period)) {
+            topBooksTableModel.addRow(new Object[] {rank++, count.getName(), count.getCount()});
+        }
+        
+        topUsersTableModel.setRowCount(0);
+        rank = 1;
+        for (CirculationCount count : stats.getTopUsers(period)) {
+            topUsersTableModel.addRow(new Object[] {rank++, count.getName(), count.getCount()});
+        }
+        
+        statsSummaryLabel.setText("Заемания: " + stats.getBorrowCount(period)
+                + " | Връщания: " + stats.getReturnCount(period)
+                + " | Активни в момента: " + stats.getActiveLoans());
     }
     
     /**
@@ -279,6 +442,17 @@ public class AdminPanel extends JPanel {
         refreshData();
     }
     
+    /**
+     * Добавя потребители от CSV файл
+     */
+    private void importUsers() {
+        ImportUsersDialog dialog = new ImportUsersDialog(mainFrame, userService);
+        dialog.setVisible(true);
+        
+        // Обновяване на данните след затваряне на диалога
+        refreshData();
+    }
+    
     /**
      * Редактира избран потребител
      */
@@ -335,6 +509,16 @@ public class AdminPanel extends JPanel {
                 return;
             }
             
+            // Проверка дали потребителят може да бъде изтрит (заемания, последен администратор)
+            String blocker = userService.getDeleteBlocker(userId);
+            if (blocker != null) {
+                JOptionPane.showMessageDialog(this,
+                        blocker,
+                        "Грешка",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            
             // Потвърждение от потребителя
             int choice = JOptionPane.showConfirmDialog(this,
                     "Сигурни ли сте, че искате да изтриете потребителя '" + userName + "'?",
@@ -355,7 +539,7 @@ public class AdminPanel extends JPanel {
                     refreshData();
                 } else {
                     JOptionPane.showMessageDialog(this,
-                            "Грешка при изтриване на потребителя! Възможно е потребителят да има активни заемания.",
+                            "Грешка при изтриване на потребителя!",
                             "Грешка",
                             JOptionPane.ERROR_MESSAGE);
                 }
@@ -379,6 +563,160 @@ public class AdminPanel extends JPanel {
         refreshData();
     }
     
+    /**
+     * Показва историята на промените по избрания ред от таблица с книги или потребители
+     * @param table таблицата (ID в колона 0, име в колона 1)
+     * @param entityType AuditEvent.BOOK или AuditEvent.USER
+     */
+    private void showHistory(JTable table, char entityType) {
+        int selectedRow = table.getSelectedRow();
+        if (selectedRow == -1) {
+            JOptionPane.showMessageDialog(this,
+                    "Моля, изберете ред от списъка!",
+                    "Няма избран ред",
+                    JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        
+        int entityId = (int) table.getValueAt(selectedRow, 0);
+        String name = String.valueOf(table.getValueAt(selectedRow, 1));
+        new AuditHistoryDialog(mainFrame, userService, entityType, entityId, name).setVisible(true);
+    }
+    
+    /**
+     * Изпраща избраната книга към друг филиал, по желание запазена за читател
+     */
+    private void transferBook() {
+        int selectedRow = booksTable.getSelectedRow();
+        if (selectedRow == -1) {
+            JOptionPane.showMessageDialog(this,
+                    "Моля, изберете книга от списъка!",
+                    "Няма избрана книга",
+                    JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        int bookId = (int) booksTable.getValueAt(selectedRow, 0);
+        String bookTitle = (String) booksTable.getValueAt(selectedRow, 1);
+        
+        // Приемащ филиал - всички освен текущия на книгата
+        List<String> branchNames = bookService.getBranchNames();
+        int sourceBranch = bookService.getBranchOf(bookId);
+        JComboBox<String> branchComboBox = new JComboBox<>();
+        List<Integer> branches = new ArrayList<>();
+        for (int branch = 0; branch < branchNames.size(); branch++) {
+            if (branch != sourceBranch) {
+                branches.add(branch);
+                branchComboBox.addItem(branchNames.get(branch));
+            }
+        }
+        
+        // По желание книгата се запазва за читател в приемащия филиал
+        JComboBox<String> usersComboBox = new JComboBox<>();
+        List<Integer> userIds = new ArrayList<>();
+        userIds.add(0);
+        usersComboBox.addItem("(без запазване)");
+        for (int row = 0; row < usersTableModel.getRowCount(); row++) {
+            userIds.add((Integer) usersTableModel.getValueAt(row, 0));
+            usersComboBox.addItem(usersTableModel.getValueAt(row, 1) + " (" + usersTableModel.getValueAt(row, 2) + ")");
+        }
+        
+        int choice = JOptionPane.showConfirmDialog(this,
+                new Object[] {"Книга '" + bookTitle + "' от " + branchNames.get(sourceBranch) + " към:", branchComboBox,
+                        "Запази за читател:", usersComboBox},
+                "Прехвърляне към филиал",
+                JOptionPane.OK_CANCEL_OPTION);
+        if (choice != JOptionPane.OK_OPTION || branchComboBox.getSelectedIndex() < 0) {
+            return;
+        }
+        int targetBranch = branches.get(branchComboBox.getSelectedIndex());
+        int userId = userIds.get(Math.max(0, usersComboBox.getSelectedIndex()));
+        
+        mainFrame.setStatusMessage("Прехвърляне на книгата...");
+        new SwingWorker<Integer, Void>() {
+            @Override
+            protected Integer doInBackground() {
+                return bookService.transferBook(bookId, targetBranch, userId);
+            }
+            
+            @Override
+            protected void done() {
+                int transferId;
+                try {
+                    transferId = get();
+                } catch (Exception e) {
+                    transferId = -1;
+                }
+                
+                if (transferId > 0) {
+                    JOptionPane.showMessageDialog(AdminPanel.this,
+                            "Книгата е изпратена към " + branchNames.get(targetBranch) + "!",
+                            "Успех",
+                            JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(AdminPanel.this,
+                            "Книгата не може да бъде прехвърлена - трябва да е налична и да няма чакащи читатели!",
+                            "Грешка",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+                refreshData();
+            }
+        }.execute();
+    }
+    
+    /**
+     * Заема всички избрани книги на един потребител наведнъж, в една транзакция
+     */
+    private void borrowSelectedBooks() {
+        int[] selectedRows = booksTable.getSelectedRows();
+        if (selectedRows.length == 0) {
+            JOptionPane.showMessageDialog(this,
+                    "Моля, изберете книги от списъка!",
+                    "Няма избрани книги",
+                    JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        
+        List<Integer> bookIds = new ArrayList<>();
+        for (int row : selectedRows) {
+            bookIds.add((Integer) booksTable.getValueAt(row, 0));
+        }
+        
+        // Избор на потребител от таблицата с потребители
+        JComboBox<String> usersComboBox = new JComboBox<>();
+        List<Integer> userIds = new ArrayList<>();
+        for (int row = 0; row < usersTableModel.getRowCount(); row++) {
+            userIds.add((Integer) usersTableModel.getValueAt(row, 0));
+            usersComboBox.addItem(usersTableModel.getValueAt(row, 1) + " (" + usersTableModel.getValueAt(row, 2) + ")");
+        }
+        
+        int choice = JOptionPane.showConfirmDialog(this,
+                new Object[] {"Заемане на " + bookIds.size() + " книги на:", usersComboBox},
+                "Заемане на избраните книги",
+                JOptionPane.OK_CANCEL_OPTION);
+        if (choice != JOptionPane.OK_OPTION || usersComboBox.getSelectedIndex() < 0) {
+            return;
+        }
+        int userId = userIds.get(usersComboBox.getSelectedIndex());
+        
+        mainFrame.setStatusMessage("Заемане на " + bookIds.size() + " книги...");
+        new SwingWorker<List<LoanOutcome>, Void>() {
+            @Override
+            protected List<LoanOutcome> doInBackground() {
+                return loanService.borrowBooks(bookIds, userId);
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    LoanOutcomeReport.show(AdminPanel.this, "Заети", get());
+                } catch (Exception e) {
+                    mainFrame.setStatusMessage("Грешка при заемане на книгите");
+                }
+                refreshData();
+            }
+        }.execute();
+    }
+    
     /**
      * Редактира избрана книга
      */
@@ -417,10 +755,11 @@ public class AdminPanel extends JPanel {
             int bookId = (int) booksTable.getValueAt(selectedRow, 0);
             String bookTitle = (String) booksTable.getValueAt(selectedRow, 1);
             
-            // Проверка дали книгата е заета
-            if (loanService.isBookLoaned(bookId)) {
+            // Проверка дали книгата може да бъде изтрита (заета или с неархивирана история)
+            String blocker = bookService.getDeleteBlocker(bookId);
+            if (blocker != null) {
                 JOptionPane.showMessageDialog(this,
-                        "Не можете да изтриете книга, която е заета!",
+                        blocker,
                         "Грешка",
                         JOptionPane.ERROR_MESSAGE);
                 return;
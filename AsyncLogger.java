@@ -0,0 +1,376 @@
+package library.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Асинхронен структуриран дневник. Нишките, които записват, само попълват
+ * предварително създаден слот в ограничен пръстеновиден буфер; форматирането
+ * и записът във файла се извършват от една фонова нишка чрез NIO канал с
+ * ротация на файловете. Еднакви съобщения над определена честота се потискат,
+ * а при препълнен буфер събитията се отхвърлят и се броят, вместо да блокират.
+ *
+ * Настройки (системни свойства):
+ * library.log.dir - директория на файловете (по подразбиране ~/.library/logs)
+ * library.log.maxBytes - размер, при който файлът се ротира (по подразбиране 10 MB)
+ * library.log.files - брой пазени файлове (по подразбиране 5)
+ * library.log.console - дублира грешките в System.err (по подразбиране false)
+ */
+public class AsyncLogger {
+    
+    /**
+     * Ниво на събитието
+     */
+    public enum Level {
+        INFO, WARN, ERROR
+    }
+    
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final long SUPPRESS_WINDOW_NANOS = 10_000_000_000L;
+    private static final int SUPPRESS_BURST = 3;
+    private static final int MAX_SUPPRESSION_KEYS = 1024;
+    
+    private static final Path DIR = Paths.get(System.getProperty("library.log.dir",
+            System.getProperty("user.home") + "/.library/logs"));
+    private static final long MAX_BYTES = Long.getLong("library.log.maxBytes", 10L * 1024 * 1024);
+    private static final int MAX_FILES = Math.max(1, Integer.getInteger("library.log.files", 5));
+    private static final boolean CONSOLE = Boolean.getBoolean("library.log.console");
+    private static final String FILE_NAME = "library.log";
+    
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    
+    private static final AsyncLogger INSTANCE = new AsyncLogger();
+    
+    private final Event[] slots = new Event[CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    
+    private final Map<String, Suppression> suppressions = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private long reportedDropped;
+    
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final StringBuilder line = new StringBuilder(256);
+    private FileChannel channel;
+    private long fileSize;
+    
+    /**
+     * Слот в буфера; полетата се попълват на място, без създаване на нови обекти
+     */
+    private static class Event {
+        long timeMillis;
+        Level level;
+        String message;
+        String source;
+        String method;
+        String sqlState;
+        long elapsedMicros;
+        String error;
+        long suppressedBefore;
+    }
+    
+    /**
+     * Брояч за потискане на повтарящо се съобщение
+     */
+    private static class Suppression {
+        long windowStart;
+        int count;
+        long suppressed;
+    }
+    
+    private AsyncLogger() {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Event();
+            published.set(i, -1);
+        }
+        
+        writer = new Thread(this::runWriter, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "async-logger-shutdown"));
+    }
+    
+    /**
+     * Записва събитие без допълнителни полета
+     * @param level ниво
+     * @param message съобщение
+     */
+    public static void log(Level level, String message) {
+        log(level, message, null, null, null, -1, null);
+    }
+    
+    /**
+     * Записва структурирано събитие. Не блокира - при препълнен буфер събитието се отхвърля.
+     * @param level ниво
+     * @param message съобщение (използва се и като ключ за потискане на повторенията)
+     * @param source източник, напр. "BookDAO"
+     * @param method метод на източника
+     * @param sqlState SQLState на грешката или null
+     * @param elapsedMicros продължителност на операцията в микросекунди или -1
+     * @param error текст на грешката или null
+     */
+    public static void log(Level level, String message, String source, String method,
+                           String sqlState, long elapsedMicros, String error) {
+        INSTANCE.publish(level, message, source, method, sqlState, elapsedMicros, error);
+    }
+    
+    /**
+     * Връща броя отхвърлени събития поради препълнен буфер
+     * @return брой събития
+     */
+    public static long getDroppedCount() {
+        return INSTANCE.dropped.sum();
+    }
+    
+    /**
+     * Връща броя потиснати повтарящи се събития
+     * @return брой събития
+     */
+    public static long getSuppressedCount() {
+        return INSTANCE.suppressed.sum();
+    }
+    
+    private void publish(Level level, String message, String source, String method,
+                         String sqlState, long elapsedMicros, String error) {
+        long suppressedBefore = admit(message);
+        if (suppressedBefore < 0) {
+            suppressed.increment();
+            return;
+        }
+        
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        
+        int index = (int) (seq & MASK);
+        Event event = slots[index];
+        event.timeMillis = System.currentTimeMillis();
+        event.level = level;
+        event.message = message;
+        event.source = source;
+        event.method = method;
+        event.sqlState = sqlState;
+        event.elapsedMicros = elapsedMicros;
+        event.error = error;
+        event.suppressedBefore = suppressedBefore;
+        published.set(index, seq);
+        
+        LockSupport.unpark(writer);
+    }
+    
+    /**
+     * Решава дали събитието да бъде записано
+     * @return броя потиснати повторения преди него или -1, ако и то трябва да бъде потиснато
+     */
+    private long admit(String key) {
+        if (key == null) {
+            return 0;
+        }
+        if (suppressions.size() > MAX_SUPPRESSION_KEYS) {
+            suppressions.clear();
+        }
+        
+        Suppression s = suppressions.computeIfAbsent(key, k -> new Suppression());
+        long now = System.nanoTime();
+        synchronized (s) {
+            if (s.count == 0 || now - s.windowStart > SUPPRESS_WINDOW_NANOS) {
+                s.windowStart = now;
+                s.count = 0;
+            }
+            if (++s.count > SUPPRESS_BURST) {
+                s.suppressed++;
+                return -1;
+            }
+            long before = s.suppressed;
+            s.suppressed = 0;
+            return before;
+        }
+    }
+    
+    private void runWriter() {
+        openFile();
+        long next = 0;
+        
+        while (running || published.get((int) (next & MASK)) == next) {
+            int index = (int) (next & MASK);
+            if (published.get(index) == next) {
+                format(slots[index]);
+                slots[index].error = null;
+                consumed = ++next;
+                write();
+                continue;
+            }
+            
+            reportDropped();
+            flush();
+            LockSupport.parkNanos(this, 50_000_000L);
+        }
+        
+        reportDropped();
+        flush();
+        closeFile();
+    }
+    
+    private void format(Event event) {
+        line.setLength(0);
+        line.append(TIME_FORMAT.format(Instant.ofEpochMilli(event.timeMillis)))
+                .append(' ').append(event.level);
+        if (event.source != null) {
+            line.append(" dao=").append(event.source);
+        }
+        if (event.method != null) {
+            line.append(" method=").append(event.method);
+        }
+        if (event.sqlState != null) {
+            line.append(" sqlState=").append(event.sqlState);
+        }
+        if (event.elapsedMicros >= 0) {
+            line.append(" elapsed_us=").append(event.elapsedMicros);
+        }
+        if (event.suppressedBefore > 0) {
+            line.append(" suppressed=").append(event.suppressedBefore);
+        }
+        line.append(" msg=\"").append(event.message).append('"');
+        if (event.error != null) {
+            line.append(" error=\"").append(event.error.replace('"', '\'').replace('\n', ' ')).append('"');
+        }
+        line.append('\n');
+        
+        if (CONSOLE && event.level == Level.ERROR) {
+            System.err.print(line);
+        }
+    }
+    
+    private void reportDropped() {
+        long total = dropped.sum();
+        if (total > reportedDropped) {
+            line.setLength(0);
+            line.append(TIME_FORMAT.format(Instant.now())).append(" WARN msg=\"Препълнен буфер на дневника\" dropped=")
+                    .append(total - reportedDropped).append('\n');
+            reportedDropped = total;
+            write();
+        }
+    }
+    
+    private void write() {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > buffer.remaining()) {
+            flush();
+        }
+        if (bytes.length > buffer.remaining()) {
+            buffer.put(bytes, 0, buffer.remaining());
+        } else {
+            buffer.put(bytes);
+        }
+    }
+    
+    private void flush() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        
+        buffer.flip();
+        try {
+            if (channel == null) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                System.err.print(new String(bytes, StandardCharsets.UTF_8));
+            } else {
+                while (buffer.hasRemaining()) {
+                    fileSize += channel.write(buffer);
+                }
+                if (fileSize >= MAX_BYTES) {
+                    rotate();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Грешка при запис в дневника: " + e.getMessage());
+            closeFile();
+        } finally {
+            buffer.clear();
+        }
+    }
+    
+    private void openFile() {
+        try {
+            Files.createDirectories(DIR);
+            channel = FileChannel.open(DIR.resolve(FILE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = channel.size();
+        } catch (IOException e) {
+            System.err.println("Грешка при отваряне на дневника, записите отиват в System.err: " + e.getMessage());
+            channel = null;
+        }
+    }
+    
+    /**
+     * Ротира файловете: library.log -> library.log.1 -> ... -> library.log.N
+     */
+    private void rotate() throws IOException {
+        closeFile();
+        
+        Files.deleteIfExists(DIR.resolve(FILE_NAME + "." + (MAX_FILES - 1)));
+        for (int i = MAX_FILES - 2; i >= 1; i--) {
+            Path from = DIR.resolve(FILE_NAME + "." + i);
+            if (Files.exists(from)) {
+                Files.move(from, DIR.resolve(FILE_NAME + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (MAX_FILES > 1) {
+            Files.move(DIR.resolve(FILE_NAME), DIR.resolve(FILE_NAME + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(DIR.resolve(FILE_NAME));
+        }
+        
+        openFile();
+    }
+    
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Грешка при затваряне на дневника: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+    
+    private void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,114 @@
+package library.model;
+
+import java.util.Date;
+
+/**
+ * Клас, представящ запис в одиторския дневник - кой, кога и какво е променил
+ */
+public class AuditEvent {
+    
+    // Вид на обекта, който е променен
+    public static final char BOOK = 'B';
+    public static final char USER = 'U';
+    public static final char LOAN = 'L';
+    public static final char HOLD = 'H';
+    
+    private Date time;
+    private int actorId; // 0, ако промяната не е направена от влязъл потребител
+    private char entityType;
+    private int entityId;
+    private String action;
+    private String details;
+    
+    /**
+     * Конструктор по подразбиране
+     */
+    public AuditEvent() {
+    }
+    
+    /**
+     * Конструктор с параметри
+     */
+    public AuditEvent(Date time, int actorId, char entityType, int entityId, String action, String details) {
+        this.time = time;
+        this.actorId = actorId;
+        this.entityType = entityType;
+        this.entityId = entityId;
+        this.action = action;
+        this.details = details;
+    }
+    
+    // Getters и Setters
+    public Date getTime() {
+        return time;
+    }
+    
+    public void setTime(Date time) {
+        this.time = time;
+    }
+    
+    public int getActorId() {
+        return actorId;
+    }
+    
+    public void setActorId(int actorId) {
+        this.actorId = actorId;
+    }
+    
+    public char getEntityType() {
+        return entityType;
+    }
+    
+    public void setEntityType(char entityType) {
+        this.entityType = entityType;
+    }
+    
+    public int getEntityId() {
+        return entityId;
+    }
+    
+    public void setEntityId(int entityId) {
+        this.entityId = entityId;
+    }
+    
+    public String getAction() {
+        return action;
+    }
+    
+    public void setAction(String action) {
+        this.action = action;
+    }
+    
+    public String getDetails() {
+        return details;
+    }
+    
+    public void setDetails(String details) {
+        this.details = details;
+    }
+    
+    /**
+     * Връща името на вида обект на български
+     * @return "книга", "потребител", "заемане" или "запазване"
+     */
+    public String getEntityName() {
+        switch (entityType) {
+            case BOOK:
+                return "книга";
+            case USER:
+                return "потребител";
+            case LOAN:
+                return "заемане";
+            case HOLD:
+                return "запазване";
+            default:
+                return String.valueOf(entityType);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return time + " " + getEntityName() + " #" + entityId + ": " + action
+                + (details != null && !details.isEmpty() ? " (" + details + ")" : "");
+    }
+}
\ No newline at end of file
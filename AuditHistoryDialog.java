@@ -0,0 +1,186 @@
+package library.ui.main.dialogs;
+
+import library.model.AuditEvent;
+import library.model.User;
+import library.service.AuditLog;
+import library.service.UserService;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Диалог с историята на промените по книга или потребител от одиторския дневник
+ */
+public class AuditHistoryDialog extends JDialog {
+    
+    // Период на търсене в дни; 0 означава цялата история
+    private static final int[] PERIOD_DAYS = {7, 30, 365, 0};
+    private static final String[] PERIOD_NAMES = {"Последните 7 дни", "Последните 30 дни", "Последната година", "Цялата история"};
+    
+    private final UserService userService;
+    private final char entityType;
+    private final int entityId;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
+    
+    // Компоненти на диалога
+    private JComboBox<String> periodComboBox;
+    private DefaultTableModel eventsModel;
+    private JTable eventsTable;
+    private JLabel summaryLabel;
+    private JButton closeButton;
+    
+    /**
+     * Конструктор
+     * @param parent родителският компонент
+     * @param userService сервиз за потребители (за имената на извършилите промените)
+     * @param entityType вид на обекта (AuditEvent.BOOK или AuditEvent.USER)
+     * @param entityId ID на обекта
+     * @param name име на обекта за заглавието
+     */
+    public AuditHistoryDialog(Window parent, UserService userService, char entityType, int entityId, String name) {
+        super(parent, "История на промените - " + name, ModalityType.APPLICATION_MODAL);
+        this.userService = userService;
+        this.entityType = entityType;
+        this.entityId = entityId;
+        
+        // Настройки на диалога
+        setSize(750, 450);
+        setLocationRelativeTo(parent);
+        
+        // Инициализация на компонентите
+        initComponents();
+        
+        // Разположение на компонентите
+        layoutComponents();
+        
+        // Добавяне на слушатели за събития
+        addEventListeners();
+        
+        loadEvents();
+    }
+    
+    /**
+     * Инициализира компонентите на диалога
+     */
+    private void initComponents() {
+        periodComboBox = new JComboBox<>(PERIOD_NAMES);
+        periodComboBox.setSelectedIndex(1);
+        
+        String[] columns = {"Време", "Извършил", "Действие", "Подробности"};
+        eventsModel = new DefaultTableModel(columns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        eventsTable = new JTable(eventsModel);
+        eventsTable.getColumnModel().getColumn(0).setPreferredWidth(130);
+        eventsTable.getColumnModel().getColumn(3).setPreferredWidth(350);
+        
+        summaryLabel = new JLabel(" ");
+        closeButton = new JButton("Затвори");
+    }
+    
+    /**
+     * Разполага компонентите в диалога
+     */
+    private void layoutComponents() {
+        JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
+        mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        
+        JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        topPanel.add(new JLabel("Период:"));
+        topPanel.add(periodComboBox);
+        mainPanel.add(topPanel, BorderLayout.NORTH);
+        
+        mainPanel.add(new JScrollPane(eventsTable), BorderLayout.CENTER);
+        
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(summaryLabel, BorderLayout.CENTER);
+        bottomPanel.add(closeButton, BorderLayout.EAST);
+        mainPanel.add(bottomPanel, BorderLayout.SOUTH);
+        
+        getContentPane().add(mainPanel);
+    }
+    
+    /**
+     * Добавя слушатели за събития към компонентите
+     */
+    private void addEventListeners() {
+        periodComboBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                loadEvents();
+            }
+        });
+        
+        // Слушател за бутона "Затвори"
+        closeButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+    }
+    
+    /**
+     * Чете записите за избрания период във фонов режим
+     */
+    private void loadEvents() {
+        int days = PERIOD_DAYS[periodComboBox.getSelectedIndex()];
+        Date from = days > 0 ? new Date(System.currentTimeMillis() - days * 24L * 60 * 60 * 1000) : null;
+        summaryLabel.setText("Зареждане...");
+        
+        new SwingWorker<List<Object[]>, Void>() {
+            @Override
+            protected List<Object[]> doInBackground() {
+                List<AuditEvent> events = AuditLog.query(entityType, entityId, from, null);
+                Map<Integer, String> actors = new HashMap<>();
+                List<Object[]> rows = new ArrayList<>();
+                
+                // Най-новите промени са най-отгоре
+                for (int i = events.size() - 1; i >= 0; i--) {
+                    AuditEvent event = events.get(i);
+                    rows.add(new Object[] {
+                            dateFormat.format(event.getTime()),
+                            actors.computeIfAbsent(event.getActorId(), id -> actorName(id)),
+                            event.getAction(),
+                            event.getDetails() != null ? event.getDetails() : ""
+                    });
+                }
+                return rows;
+            }
+            
+            @Override
+            protected void done() {
+                eventsModel.setRowCount(0);
+                try {
+                    List<Object[]> rows = get();
+                    for (Object[] row : rows) {
+                        eventsModel.addRow(row);
+                    }
+                    summaryLabel.setText(rows.size() + " записа");
+                } catch (Exception e) {
+                    summaryLabel.setText("Грешка при четене на историята");
+                }
+            }
+        }.execute();
+    }
+    
+    private String actorName(int userId) {
+        if (userId <= 0) {
+            return "система";
+        }
+        User user = userService.getUserById(userId);
+        return user != null ? user.getName() : "потребител #" + userId;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,491 @@
+package library.service;
+
+import library.metrics.MetricsRegistry;
+import library.model.AuditEvent;
+import library.utils.AsyncLogger;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Одиторски дневник на промените по книги, потребители, заемания и запазвания.
+ * Сервизите извикват record след всяка успешна промяна; извикването само
+ * попълва слот в ограничен пръстеновиден буфер без заключване, а една фонова
+ * нишка записва събитията в сегменти, картографирани в паметта. При препълнен
+ * буфер извикването изчаква до секунда и едва тогава отхвърля събитието.
+ * Дневникът само се допълва - записите не се променят и не се изтриват.
+ *
+ * Формат на записа: дължина (int), CRC32 (int), данни. Дължината се записва
+ * последна, така че недописан запис се разпознава като край на сегмента.
+ * Нов сегмент започва при запълване на текущия или след изтичане на периода
+ * му; името на сегмента съдържа времето на първия запис, така че търсенето
+ * по период чете само сегментите, които го покриват.
+ *
+ * Настройки (системни свойства):
+ * library.audit.dir - директория на дневника (по подразбиране ~/.library/audit)
+ * library.audit.segmentBytes - размер на сегмент (по подразбиране 4 MB)
+ * library.audit.rollMinutes - период на сегмент в минути (по подразбиране 1440)
+ */
+public class AuditLog {
+    
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_TEXT = 500;
+    private static final long FULL_WAIT_NANOS = 1_000_000_000L;
+    
+    private static final Path DIR = Paths.get(System.getProperty("library.audit.dir",
+            System.getProperty("user.home") + "/.library/audit"));
+    private static final int SEGMENT_BYTES = Math.max(64 * 1024, Integer.getInteger("library.audit.segmentBytes", 4 * 1024 * 1024));
+    private static final long ROLL_MILLIS = Math.max(1, Integer.getInteger("library.audit.rollMinutes", 1440)) * 60_000L;
+    private static final String SEGMENT_PREFIX = "audit-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    
+    // време (8) + потребител (4) + вид (1) + обект (4) + две дължини на текст (2 + 2)
+    private static final int FIXED_PAYLOAD_BYTES = 21;
+    
+    private static final MetricsRegistry.Counter RECORDED = MetricsRegistry.getInstance()
+            .counter("library_audit_events_total", "Записани събития в одиторския дневник");
+    private static final MetricsRegistry.Counter DROPPED = MetricsRegistry.getInstance()
+            .counter("library_audit_dropped_total", "Отхвърлени събития поради препълнен буфер или грешка при запис");
+    
+    // Създава се след метриките, които фоновата нишка използва
+    private static final AuditLog INSTANCE = new AuditLog();
+    
+    private final Slot[] slots = new Slot[CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private volatile int actorId;
+    
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final CRC32 crc = new CRC32();
+    private FileChannel activeChannel;
+    private MappedByteBuffer active;
+    private long activeStart;
+    private boolean dirty;
+    
+    /**
+     * Слот в буфера; полетата се попълват на място, без създаване на нови обекти
+     */
+    private static class Slot {
+        long timeMillis;
+        int actorId;
+        char entityType;
+        int entityId;
+        String action;
+        String details;
+    }
+    
+    private AuditLog() {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1);
+        }
+        
+        writer = new Thread(this::runWriter, "audit-log");
+        writer.setDaemon(true);
+        writer.start();
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "audit-log-shutdown"));
+    }
+    
+    /**
+     * Задава потребителя, на когото се приписват следващите промени
+     * @param userId ID на влезлия потребител или 0 при изход
+     */
+    public static void setActor(int userId) {
+        INSTANCE.actorId = userId;
+    }
+    
+    /**
+     * Записва промяна. Обикновено само попълва слот в буфера; при препълнен буфер
+     * изчаква фоновата нишка до секунда и едва тогава отхвърля събитието и го брои,
+     * така че при продължително претоварване извикващата нишка може да бъде забавена.
+     * @param entityType вид на обекта (AuditEvent.BOOK, USER, LOAN или HOLD)
+     * @param entityId ID на обекта
+     * @param action действие, напр. "добавяне"
+     * @param details подробности или null
+     */
+    public static void record(char entityType, int entityId, String action, String details) {
+        INSTANCE.publish(entityType, entityId, action, details);
+    }
+    
+    /**
+     * Описва промяната на едно поле за подробностите на запис
+     * @param field име на полето
+     * @param oldValue старата стойност
+     * @param newValue новата стойност
+     * @return "поле: старо → ново; " или празен низ, ако стойността не е променена
+     */
+    public static String change(String field, String oldValue, String newValue) {
+        if (oldValue == null ? newValue == null : oldValue.equals(newValue)) {
+            return "";
+        }
+        return field + ": " + oldValue + " → " + newValue + "; ";
+    }
+    
+    /**
+     * Търси записи по обект и период. Чете само сегментите, които покриват периода.
+     * @param entityType вид на обекта или 0 за всички видове
+     * @param entityId ID на обекта или 0 за всички обекти от вида
+     * @param from начало на периода (включително) или null
+     * @param to край на периода (без него) или null
+     * @return записите в реда на записване
+     */
+    public static List<AuditEvent> query(char entityType, int entityId, Date from, Date to) {
+        long fromMillis = from != null ? from.getTime() : Long.MIN_VALUE;
+        long toMillis = to != null ? to.getTime() : Long.MAX_VALUE;
+        
+        List<AuditEvent> events = new ArrayList<>();
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            // Сегментът покрива времето от своето начало до началото на следващия
+            long start = segmentStart(segments.get(i));
+            long end = i + 1 < segments.size() ? segmentStart(segments.get(i + 1)) : Long.MAX_VALUE;
+            if (start >= toMillis || end <= fromMillis) {
+                continue;
+            }
+            
+            for (AuditEvent event : readSegment(segments.get(i))) {
+                long time = event.getTime().getTime();
+                if (time >= fromMillis && time < toMillis
+                        && (entityType == 0 || event.getEntityType() == entityType)
+                        && (entityId == 0 || event.getEntityId() == entityId)) {
+                    events.add(event);
+                }
+            }
+        }
+        return events;
+    }
+    
+    /**
+     * Връща броя отхвърлени събития
+     * @return брой събития
+     */
+    public static long getDroppedCount() {
+        return INSTANCE.dropped.sum();
+    }
+    
+    private void publish(char entityType, int entityId, String action, String details) {
+        long seq;
+        long deadline = 0;
+        while (true) {
+            seq = claimed.get();
+            if (seq - consumed < CAPACITY) {
+                if (claimed.compareAndSet(seq, seq + 1)) {
+                    break;
+                }
+                continue;
+            }
+            
+            // За разлика от дневника на грешките одиторските записи не се губят при кратък пик -
+            // изчакваме фоновата нишка да освободи място, но не повече от FULL_WAIT_NANOS
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + FULL_WAIT_NANOS;
+            } else if (now - deadline > 0) {
+                drop();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000L);
+        }
+        
+        int index = (int) (seq & MASK);
+        Slot slot = slots[index];
+        slot.timeMillis = System.currentTimeMillis();
+        slot.actorId = actorId;
+        slot.entityType = entityType;
+        slot.entityId = entityId;
+        slot.action = action;
+        slot.details = details;
+        published.set(index, seq);
+        
+        LockSupport.unpark(writer);
+    }
+    
+    private void drop() {
+        dropped.increment();
+        DROPPED.increment();
+    }
+    
+    private void runWriter() {
+        open();
+        long next = 0;
+        
+        while (running || published.get((int) (next & MASK)) == next) {
+            int index = (int) (next & MASK);
+            if (published.get(index) == next) {
+                Slot slot = slots[index];
+                write(slot);
+                slot.action = null;
+                slot.details = null;
+                consumed = ++next;
+                continue;
+            }
+            
+            // Няма нови събития - записаното се синхронизира с диска
+            force();
+            LockSupport.parkNanos(this, 50_000_000L);
+        }
+        
+        force();
+    }
+    
+    private void write(Slot slot) {
+        if (active == null) {
+            drop();
+            return;
+        }
+        
+        byte[] action = text(slot.action);
+        byte[] details = text(slot.details);
+        int length = FIXED_PAYLOAD_BYTES + action.length + details.length;
+        
+        try {
+            if (active.remaining() < 8 + length || slot.timeMillis - activeStart >= ROLL_MILLIS) {
+                rotate(slot.timeMillis);
+                if (active == null) {
+                    drop();
+                    return;
+                }
+            }
+            
+            int start = active.position();
+            active.position(start + 8);
+            active.putLong(slot.timeMillis);
+            active.putInt(slot.actorId);
+            active.put((byte) slot.entityType);
+            active.putInt(slot.entityId);
+            active.putShort((short) action.length);
+            active.put(action);
+            active.putShort((short) details.length);
+            active.put(details);
+            
+            ByteBuffer payload = active.duplicate();
+            payload.position(start + 8).limit(start + 8 + length);
+            crc.reset();
+            crc.update(payload);
+            active.putInt(start + 4, (int) crc.getValue());
+            // Дължината се записва последна - недописаният запис остава с дължина 0
+            active.putInt(start, length);
+            
+            dirty = true;
+            RECORDED.increment();
+        } catch (RuntimeException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при запис в одиторския дневник",
+                    "AuditLog", "write", null, -1, e.toString());
+            drop();
+        }
+    }
+    
+    private static byte[] text(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        return (value.length() > MAX_TEXT ? value.substring(0, MAX_TEXT) : value).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Продължава последния сегмент, ако периодът му не е изтекъл и в него има
+     * място; иначе започва нов. Така всяко стартиране не оставя отделен сегмент.
+     */
+    private void open() {
+        try {
+            Files.createDirectories(DIR);
+            long now = System.currentTimeMillis();
+            List<Path> segments = segments();
+            if (!segments.isEmpty()) {
+                Path last = segments.get(segments.size() - 1);
+                long start = segmentStart(last);
+                if (now >= start && now - start < ROLL_MILLIS && reopen(last, start)) {
+                    return;
+                }
+            }
+            mapActive(now);
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при отваряне на одиторския дневник",
+                    "AuditLog", "open", null, -1, e.toString());
+            active = null;
+        }
+    }
+    
+    private void rotate(long startMillis) {
+        try {
+            active.force();
+            activeChannel.close();
+            mapActive(Math.max(startMillis, activeStart + 1));
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при смяна на сегмента на одиторския дневник",
+                    "AuditLog", "rotate", null, -1, e.toString());
+            active = null;
+        }
+    }
+    
+    private void mapActive(long startMillis) throws IOException {
+        // Името е уникално - при съвпадение на времето се взима следващата милисекунда
+        Path path = segmentPath(startMillis);
+        while (Files.exists(path)) {
+            path = segmentPath(++startMillis);
+        }
+        activeStart = startMillis;
+        activeChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+    }
+    
+    /**
+     * Отваря съществуващ сегмент за добавяне след последния валиден запис
+     * @return false, ако в сегмента няма място
+     */
+    private boolean reopen(Path path, long startMillis) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), SEGMENT_BYTES));
+        int end = recordsEnd(data);
+        if (data.capacity() - end < 8 + FIXED_PAYLOAD_BYTES) {
+            channel.close();
+            return false;
+        }
+        
+        // Недописан запис след последния валиден се презаписва
+        data.putInt(end, 0);
+        data.position(end);
+        activeChannel = channel;
+        active = data;
+        activeStart = startMillis;
+        return true;
+    }
+    
+    /**
+     * Връща позицията след последния валиден запис в сегмента
+     */
+    private static int recordsEnd(ByteBuffer data) {
+        CRC32 check = new CRC32();
+        int position = 0;
+        while (data.capacity() - position >= 8) {
+            int length = data.getInt(position);
+            if (length < FIXED_PAYLOAD_BYTES || data.capacity() - position - 8 < length) {
+                break;
+            }
+            
+            ByteBuffer payload = data.duplicate();
+            payload.position(position + 8).limit(position + 8 + length);
+            check.reset();
+            check.update(payload);
+            if ((int) check.getValue() != data.getInt(position + 4)) {
+                break;
+            }
+            position += 8 + length;
+        }
+        return position;
+    }
+    
+    private void force() {
+        if (dirty && active != null) {
+            active.force();
+            dirty = false;
+        }
+    }
+    
+    private void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Връща всички сегменти, подредени по време
+     */
+    private static List<Path> segments() {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(DIR)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(DIR, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при четене на одиторския дневник",
+                    "AuditLog", "segments", null, -1, e.toString());
+        }
+        segments.sort((a, b) -> Long.compare(segmentStart(a), segmentStart(b)));
+        return segments;
+    }
+    
+    /**
+     * Прочита валидните записи от сегмент, включително от активния
+     */
+    private static List<AuditEvent> readSegment(Path segment) {
+        List<AuditEvent> events = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 check = new CRC32();
+            while (data.remaining() >= 8) {
+                int length = data.getInt();
+                int crcValue = data.getInt();
+                if (length < FIXED_PAYLOAD_BYTES || data.remaining() < length) {
+                    break;
+                }
+                
+                ByteBuffer payload = data.slice();
+                payload.limit(length);
+                check.reset();
+                check.update(payload.duplicate());
+                if ((int) check.getValue() != crcValue) {
+                    break;
+                }
+                data.position(data.position() + length);
+                
+                long time = payload.getLong();
+                int actor = payload.getInt();
+                char type = (char) payload.get();
+                int entityId = payload.getInt();
+                String action = readText(payload);
+                String details = readText(payload);
+                events.add(new AuditEvent(new Date(time), actor, type, entityId, action, details.isEmpty() ? null : details));
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при четене на сегмент от одиторския дневник",
+                    "AuditLog", "readSegment", null, -1, e.toString());
+        }
+        return events;
+    }
+    
+    private static String readText(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getShort() & 0xFFFF];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static Path segmentPath(long startMillis) {
+        return DIR.resolve(String.format("%s%013d%s", SEGMENT_PREFIX, startMillis, SEGMENT_SUFFIX));
+    }
+    
+    private static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
\ No newline at end of file
@@ -1,6 +1,8 @@
 package library.service;
 
 import library.dao.UserDAO;
+import library.metrics.MetricsRegistry;
+import library.model.AuditEvent;
 import library.model.User;
 import library.utils.ValidationUtils;
 
@@ -12,11 +14,17 @@ public class AuthenticationService {
     private UserDAO userDAO;
     private User currentUser;
     
+    private static final MetricsRegistry.Counter LOGINS = MetricsRegistry.getInstance()
+            .counter("library_logins_total", "Опити за вход по резултат", "result", "success");
+    private static final MetricsRegistry.Counter LOGIN_FAILURES = MetricsRegistry.getInstance()
+            .counter("library_logins_total", "Опити за вход по резултат", "result", "failure");
+    
     /**
      * Конструктор
+     * @param userDAO споделеното DAO за потребители
      */
-    public AuthenticationService() {
-        this.userDAO = new UserDAO();
+    AuthenticationService(UserDAO userDAO) {
+        this.userDAO = userDAO;
         this.currentUser = null;
     }
     
@@ -28,15 +36,19 @@ public class AuthenticationService {
      */
     public boolean login(String email, String password) {
         if (!ValidationUtils.isValidEmail(email) || !ValidationUtils.isNotEmpty(password)) {
+            LOGIN_FAILURES.increment();
             return false;
         }
         
         User user = userDAO.login(email, password);
         if (user != null) {
             this.currentUser = user;
+            AuditLog.setActor(user.getUserId());
+            LOGINS.increment();
             return true;
         }
         
+        LOGIN_FAILURES.increment();
         return false;
     }
     
@@ -45,6 +57,7 @@ public class AuthenticationService {
      */
     public void logout() {
         this.currentUser = null;
+        AuditLog.setActor(0);
     }
     
     /**
@@ -115,7 +128,11 @@ public class AuthenticationService {
         }
         
         // Запазване на потребителя в базата данни
-        return userDAO.addUser(user);
+        int userId = userDAO.addUser(user);
+        if (userId > 0) {
+            AuditLog.record(AuditEvent.USER, userId, "регистрация", name + " <" + email + ">, " + user.getRole());
+        }
+        return userId;
     }
     
     /**
@@ -150,6 +167,10 @@ public class AuthenticationService {
         }
         
         // Променяне на паролата
-        return userDAO.updatePassword(currentUser.getUserId(), newPassword);
+        if (!userDAO.updatePassword(currentUser.getUserId(), newPassword)) {
+            return false;
+        }
+        AuditLog.record(AuditEvent.USER, currentUser.getUserId(), "смяна на парола", null);
+        return true;
     }
 }
\ No newline at end of file
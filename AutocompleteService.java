@@ -0,0 +1,324 @@
+package library.service;
+
+import library.dao.LoanDAO;
+import library.metrics.MetricsRegistry;
+import library.model.Book;
+import library.model.CirculationCount;
+import library.utils.RadixTrie;
+import library.utils.TextNormalizer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Подсказки при търсене на книги - заглавия, автори и жанрове, започващи с
+ * въведения текст, подредени по популярност (брой книги и брой заемания).
+ * Подсказките се пазят в компресирано префиксно дърво, построено веднъж от
+ * каталога и обновявано при всяка промяна на книга или ново заемане.
+ * Всяка подсказка е достъпна и от началото на всяка своя дума, така че
+ * "вазов" намира "Иван Вазов", а транслитерацията позволява и "vazov".
+ */
+public class AutocompleteService {
+    
+    /**
+     * Вид на подсказката
+     */
+    public enum Kind {
+        TITLE("заглавие"),
+        AUTHOR("автор"),
+        GENRE("жанр");
+        
+        private final String label;
+        
+        Kind(String label) {
+            this.label = label;
+        }
+        
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+    
+    // От началото на колко думи най-много е достъпна една подсказка
+    private static final int MAX_WORD_STARTS = 4;
+    
+    private static final AutocompleteService INSTANCE = new AutocompleteService();
+    
+    private final LoanDAO loanDAO;
+    private final MetricsRegistry.Timer suggestTimer = MetricsRegistry.getInstance()
+            .timer("library_autocomplete_seconds", "Време за намиране на подсказки при търсене");
+    
+    // Текущите подсказки; null, докато каталогът не бъде зареден
+    private Index index;
+    
+    // Промени, получени докато се строи нов индекс; прилагат се към него след построяването
+    private List<Consumer<Index>> pending;
+    
+    /**
+     * Конструктор
+     */
+    private AutocompleteService() {
+        this.loanDAO = ServiceRegistry.getInstance().getLoanDAO();
+    }
+    
+    /**
+     * Връща споделения сервиз за подсказки
+     * @return инстанцията на сервиза
+     */
+    public static AutocompleteService getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Построява подсказките наново от целия каталог. Извиква се извън нишката
+     * на потребителския интерфейс; междувременно се използват старите подсказки.
+     * @param catalog всички книги
+     */
+    public void load(Collection<Book> catalog) {
+        synchronized (this) {
+            pending = new ArrayList<>();
+        }
+        
+        // Броят на заеманията за всяка книга (за цялото време)
+        Map<Integer, Long> borrows = new HashMap<>();
+        for (CirculationCount count : loanDAO.getBorrowCountsByBookSince(new Date(0))) {
+            borrows.put(count.getId(), count.getCount());
+        }
+        
+        Index built = new Index(borrows);
+        for (Book book : catalog) {
+            built.put(copyOf(book));
+        }
+        
+        synchronized (this) {
+            for (Consumer<Index> change : pending) {
+                change.accept(built);
+            }
+            pending = null;
+            index = built;
+        }
+    }
+    
+    /**
+     * Отразява добавена или променена книга
+     * @param book книгата
+     */
+    public synchronized void put(Book book) {
+        Book copy = copyOf(book);
+        apply(target -> target.put(copy));
+    }
+    
+    /**
+     * Отразява изтрита книга
+     * @param bookId ID на книгата
+     */
+    public synchronized void remove(int bookId) {
+        apply(target -> target.remove(bookId));
+    }
+    
+    /**
+     * Отразява ново заемане - подсказките за книгата стават по-популярни
+     * @param bookId ID на заетата книга
+     */
+    public synchronized void recordBorrow(int bookId) {
+        if (index != null) {
+            index.borrow(bookId);
+        }
+    }
+    
+    /**
+     * Проверява дали подсказките са построени
+     * @return true, ако каталогът вече е зареден
+     */
+    public synchronized boolean isLoaded() {
+        return index != null;
+    }
+    
+    /**
+     * Връща най-популярните подсказки за въведения текст
+     * @param prefix въведеният текст
+     * @param limit максимален брой подсказки
+     * @return подсказките, подредени по намаляваща популярност
+     */
+    public synchronized List<Suggestion> suggest(String prefix, int limit) {
+        String key = TextNormalizer.normalize(prefix);
+        if (key.isEmpty() || index == null) {
+            return Collections.emptyList();
+        }
+        
+        long start = suggestTimer.start();
+        List<Suggestion> result = index.trie.complete(key, limit);
+        suggestTimer.stop(start);
+        return result;
+    }
+    
+    /**
+     * Прилага промяна към текущия индекс и я запомня за индекса, който се строи в момента
+     */
+    private void apply(Consumer<Index> change) {
+        if (index != null) {
+            change.accept(index);
+        }
+        if (pending != null) {
+            pending.add(change);
+        }
+    }
+    
+    private static Book copyOf(Book book) {
+        return new Book(book.getBookId(), book.getTitle(), book.getAuthor(), book.getGenre(), book.getAvailability());
+    }
+    
+    /**
+     * Връща ключовете на текст - нормализираният текст от началото на всяка от първите му думи
+     */
+    private static List<String> keys(String text) {
+        String normalized = TextNormalizer.normalize(text);
+        List<String> keys = new ArrayList<>(MAX_WORD_STARTS);
+        if (normalized.isEmpty()) {
+            return keys;
+        }
+        
+        keys.add(normalized);
+        int space = normalized.indexOf(' ');
+        while (space >= 0 && keys.size() < MAX_WORD_STARTS) {
+            keys.add(normalized.substring(space + 1));
+            space = normalized.indexOf(' ', space + 1);
+        }
+        return keys;
+    }
+    
+    /**
+     * Подсказките за един каталог - дървото и данните, от които се изчислява популярността
+     */
+    private static final class Index {
+        private final RadixTrie<Suggestion> trie = new RadixTrie<>();
+        private final Map<String, Suggestion> suggestions = new HashMap<>();
+        private final Map<Integer, Book> books = new HashMap<>();
+        private final Map<Integer, Long> borrows;
+        
+        Index(Map<Integer, Long> borrows) {
+            this.borrows = borrows;
+        }
+        
+        /**
+         * Добавя книга или заменя предишните ѝ данни
+         */
+        void put(Book book) {
+            remove(book.getBookId());
+            books.put(book.getBookId(), book);
+            long borrowCount = borrows.getOrDefault(book.getBookId(), 0L);
+            
+            add(Kind.TITLE, book.getTitle(), 1, borrowCount);
+            add(Kind.AUTHOR, book.getAuthor(), 1, borrowCount);
+            add(Kind.GENRE, book.getGenre(), 1, borrowCount);
+        }
+        
+        /**
+         * Премахва книга (ако е била добавена)
+         */
+        void remove(int bookId) {
+            Book book = books.remove(bookId);
+            if (book == null) {
+                return;
+            }
+            long borrowCount = borrows.getOrDefault(bookId, 0L);
+            
+            add(Kind.TITLE, book.getTitle(), -1, -borrowCount);
+            add(Kind.AUTHOR, book.getAuthor(), -1, -borrowCount);
+            add(Kind.GENRE, book.getGenre(), -1, -borrowCount);
+        }
+        
+        /**
+         * Отчита заемане на книга
+         */
+        void borrow(int bookId) {
+            Book book = books.get(bookId);
+            borrows.merge(bookId, 1L, Long::sum);
+            if (book == null) {
+                return;
+            }
+            
+            add(Kind.TITLE, book.getTitle(), 0, 1);
+            add(Kind.AUTHOR, book.getAuthor(), 0, 1);
+            add(Kind.GENRE, book.getGenre(), 0, 1);
+        }
+        
+        /**
+         * Променя броячите на подсказка и я записва в дървото с новата популярност;
+         * подсказка без нито една книга се премахва
+         */
+        private void add(Kind kind, String text, int bookDelta, long borrowDelta) {
+            if (text == null || text.trim().isEmpty()) {
+                return;
+            }
+            
+            String id = kind.name() + ":" + text.trim();
+            Suggestion suggestion = suggestions.get(id);
+            if (suggestion == null) {
+                if (bookDelta <= 0) {
+                    return;
+                }
+                suggestion = new Suggestion(text.trim(), kind);
+                suggestions.put(id, suggestion);
+            }
+            
+            suggestion.bookCount += bookDelta;
+            suggestion.borrowCount += borrowDelta;
+            
+            List<String> keys = keys(suggestion.text);
+            if (suggestion.bookCount > 0) {
+                for (String key : keys) {
+                    trie.put(key, suggestion, suggestion.getWeight());
+                }
+            } else {
+                suggestions.remove(id);
+                for (String key : keys) {
+                    trie.remove(key, suggestion);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Подсказка - заглавие, автор или жанр
+     */
+    public static final class Suggestion {
+        private final String text;
+        private final Kind kind;
+        private int bookCount;
+        private long borrowCount;
+        
+        private Suggestion(String text, Kind kind) {
+            this.text = text;
+            this.kind = kind;
+        }
+        
+        public String getText() {
+            return text;
+        }
+        
+        public Kind getKind() {
+            return kind;
+        }
+        
+        /**
+         * Популярност - всяка книга и всяко заемане носят по една точка
+         * @return теглото на подсказката
+         */
+        public long getWeight() {
+            return bookCount + borrowCount;
+        }
+        
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
\ No newline at end of file
@@ -8,7 +8,8 @@ public class Book {
     private String title;
     private String author;
     private String genre;
-    private String availability; // "налична", "заета", "върната"
+    private String availability; // "налична", "заета", "запазена", "върната"
+    private long rowVersion; // версия на реда при зареждане, 0 ако не е известна
     
     /**
      * Конструктор по подразбиране
@@ -78,6 +79,14 @@ public class Book {
         this.availability = availability;
     }
     
+    public long getRowVersion() {
+        return rowVersion;
+    }
+    
+    public void setRowVersion(long rowVersion) {
+        this.rowVersion = rowVersion;
+    }
+    
     @Override
     public String toString() {
         return "Книга{" +
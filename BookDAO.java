@@ -1,34 +1,53 @@
 package library.dao;
 
 import library.model.Book;
+import library.model.ChangeSet;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * DAO клас за операции с книги в базата данни
+ * DAO клас за операции с книги в базата данни.
+ * При зададени филиали заявките по ID отиват в базата на филиала на книгата,
+ * а списъците и търсенията се изпълняват във всички филиали (виж ShardRouter).
  */
 public class BookDAO {
     
+    // Резултати от обновяване с проверка на версията (updateBook)
+    public static final int UPDATE_FAILED = -1;
+    public static final int UPDATE_MISSING = 0;
+    public static final int UPDATE_APPLIED = 1;
+    public static final int UPDATE_CONFLICT = 2;
+    
+    // Книга, прехвърлена в друг филиал, която остава в изпращащия само заради историята
+    // на заеманията - не се показва в каталога, търсенето и броенето (виж TransferDAO)
+    static final String TRANSFERRED = "прехвърлена";
+    private static final String LISTED = "availability <> '" + TRANSFERRED + "'";
+    
     /**
      * Добавя нова книга в базата данни
      * @param book книгата, която трябва да бъде добавена
      * @return ID на добавената книга или -1 при неуспех
      */
     public int addBook(Book book) {
-        String sql = "INSERT INTO books (title, author, genre, availability) VALUES (?, ?, ?, ?)";
+        String sql = "INSERT INTO books (title, author, genre, availability, row_version) VALUES (?, ?, ?, ?, ?)";
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         
         try {
             conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
             pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
             pstmt.setString(1, book.getTitle());
             pstmt.setString(2, book.getAuthor());
             pstmt.setString(3, book.getGenre());
             pstmt.setString(4, book.getAvailability());
+            pstmt.setLong(5, ChangeTracker.nextVersion(conn));
             
             int affectedRows = pstmt.executeUpdate();
             if (affectedRows == 0) {
@@ -37,43 +56,83 @@ public class BookDAO {
             
             rs = pstmt.getGeneratedKeys();
             if (rs.next()) {
-                return rs.getInt(1);
+                int bookId = rs.getInt(1);
+                conn.commit();
+                return bookId;
             } else {
                 throw new SQLException("Добавянето на книга не бе успешно, не е генериран ID");
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при добавяне на книга: " + e.getMessage());
+            rollback(conn);
+            DaoLog.error("Грешка при добавяне на книга", e);
             return -1;
         } finally {
+            restoreAutoCommit(conn);
             closeResources(conn, pstmt, rs);
         }
     }
     
     /**
-     * Обновява информация за книга в базата данни
+     * Добавя нова книга в базата на даден филиал
+     * @param book книгата, която трябва да бъде добавена
+     * @param branch номерът на филиала (ShardRouter.MAIN за основния)
+     * @return ID на добавената книга или -1 при неуспех
+     */
+    public int addBook(Book book, int branch) {
+        return ShardRouter.on(branch, () -> addBook(book));
+    }
+    
+    /**
+     * Обновява информация за книга в базата данни.
+     * Ако книгата носи версия (row_version от зареждането си), редът се обновява
+     * само докато версията в базата съвпада с нея; иначе някой друг е променил
+     * книгата междувременно и се връща UPDATE_CONFLICT, без да се записва нищо.
+     * При успех на книгата се задава новата версия.
      * @param book книгата с обновената информация
-     * @return true при успех, false при неуспех
+     * @return UPDATE_APPLIED, UPDATE_CONFLICT, UPDATE_MISSING или UPDATE_FAILED при грешка в базата
      */
-    public boolean updateBook(Book book) {
-        String sql = "UPDATE books SET title = ?, author = ?, genre = ?, availability = ? WHERE book_id = ?";
+    public int updateBook(Book book) {
+        if (ShardRouter.routes(book.getBookId())) {
+            return ShardRouter.on(ShardRouter.branchOf(book.getBookId()), () -> updateBook(book));
+        }
+        boolean versioned = book.getRowVersion() > 0;
+        String sql = "UPDATE books SET title = ?, author = ?, genre = ?, availability = ?, row_version = ? WHERE book_id = ?"
+                + (versioned ? " AND row_version = ?" : "");
         Connection conn = null;
         PreparedStatement pstmt = null;
         
         try {
             conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            long version = ChangeTracker.nextVersion(conn);
             pstmt = conn.prepareStatement(sql);
             pstmt.setString(1, book.getTitle());
             pstmt.setString(2, book.getAuthor());
             pstmt.setString(3, book.getGenre());
             pstmt.setString(4, book.getAvailability());
-            pstmt.setInt(5, book.getBookId());
+            pstmt.setLong(5, version);
+            pstmt.setInt(6, book.getBookId());
+            if (versioned) {
+                pstmt.setLong(7, book.getRowVersion());
+            }
             
             int affectedRows = pstmt.executeUpdate();
-            return affectedRows > 0;
+            if (affectedRows == 0) {
+                // Различаваме изтрита книга от книга с по-нова версия
+                int result = versioned && bookExists(conn, book.getBookId()) ? UPDATE_CONFLICT : UPDATE_MISSING;
+                conn.rollback();
+                return result;
+            }
+            conn.commit();
+            book.setRowVersion(version);
+            return UPDATE_APPLIED;
         } catch (SQLException e) {
-            System.err.println("Грешка при обновяване на книга: " + e.getMessage());
-            return false;
+            rollback(conn);
+            DaoLog.error("Грешка при обновяване на книга", e);
+            return UPDATE_FAILED;
         } finally {
+            restoreAutoCommit(conn);
             closeResources(conn, pstmt, null);
         }
     }
@@ -84,21 +143,32 @@ public class BookDAO {
      * @return true при успех, false при неуспех
      */
     public boolean deleteBook(int bookId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> deleteBook(bookId));
+        }
         String sql = "DELETE FROM books WHERE book_id = ?";
         Connection conn = null;
         PreparedStatement pstmt = null;
         
         try {
             conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
             pstmt = conn.prepareStatement(sql);
             pstmt.setInt(1, bookId);
             
             int affectedRows = pstmt.executeUpdate();
+            if (affectedRows > 0) {
+                ChangeTracker.addTombstones(conn, ChangeTracker.BOOKS, Collections.singletonList(bookId), ChangeTracker.nextVersion(conn));
+            }
+            conn.commit();
             return affectedRows > 0;
         } catch (SQLException e) {
-            System.err.println("Грешка при изтриване на книга: " + e.getMessage());
+            rollback(conn);
+            DaoLog.error("Грешка при изтриване на книга", e);
             return false;
         } finally {
+            restoreAutoCommit(conn);
             closeResources(conn, pstmt, null);
         }
     }
@@ -109,6 +179,9 @@ public class BookDAO {
      * @return книгата или null, ако не е намерена
      */
     public Book getBookById(int bookId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> getBookById(bookId));
+        }
         String sql = "SELECT * FROM books WHERE book_id = ?";
         Connection conn = null;
         PreparedStatement pstmt = null;
@@ -124,7 +197,7 @@ public class BookDAO {
                 return extractBookFromResultSet(rs);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при търсене на книга по ID: " + e.getMessage());
+            DaoLog.error("Грешка при търсене на книга по ID", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -138,7 +211,10 @@ public class BookDAO {
      * @return списък от книги, отговарящи на критерия
      */
     public List<Book> searchBooksByTitle(String title) {
-        String sql = "SELECT * FROM books WHERE title LIKE ?";
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(() -> searchBooksByTitle(title));
+        }
+        String sql = "SELECT * FROM books WHERE title LIKE ? AND " + LISTED;
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -155,7 +231,7 @@ public class BookDAO {
                 books.add(extractBookFromResultSet(rs));
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при търсене на книги по заглавие: " + e.getMessage());
+            DaoLog.error("Грешка при търсене на книги по заглавие", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -169,7 +245,10 @@ public class BookDAO {
      * @return списък от книги, отговарящи на критерия
      */
     public List<Book> searchBooksByAuthor(String author) {
-        String sql = "SELECT * FROM books WHERE author LIKE ?";
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(() -> searchBooksByAuthor(author));
+        }
+        String sql = "SELECT * FROM books WHERE author LIKE ? AND " + LISTED;
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -186,7 +265,7 @@ public class BookDAO {
                 books.add(extractBookFromResultSet(rs));
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при търсене на книги по автор: " + e.getMessage());
+            DaoLog.error("Грешка при търсене на книги по автор", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -200,7 +279,10 @@ public class BookDAO {
      * @return списък от книги, отговарящи на критерия
      */
     public List<Book> searchBooksByGenre(String genre) {
-        String sql = "SELECT * FROM books WHERE genre LIKE ?";
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(() -> searchBooksByGenre(genre));
+        }
+        String sql = "SELECT * FROM books WHERE genre LIKE ? AND " + LISTED;
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -217,7 +299,7 @@ public class BookDAO {
                 books.add(extractBookFromResultSet(rs));
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при търсене на книги по жанр: " + e.getMessage());
+            DaoLog.error("Грешка при търсене на книги по жанр", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -230,7 +312,10 @@ public class BookDAO {
      * @return списък с всички книги в базата данни
      */
     public List<Book> getAllBooks() {
-        String sql = "SELECT * FROM books";
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(this::getAllBooks);
+        }
+        String sql = "SELECT * FROM books WHERE " + LISTED;
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -238,7 +323,7 @@ public class BookDAO {
         List<Book> books = new ArrayList<>();
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getReadConnection();
             pstmt = conn.prepareStatement(sql);
             
             rs = pstmt.executeQuery();
@@ -246,7 +331,7 @@ public class BookDAO {
                 books.add(extractBookFromResultSet(rs));
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при извличане на всички книги: " + e.getMessage());
+            DaoLog.error("Грешка при извличане на всички книги", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -261,23 +346,138 @@ public class BookDAO {
      * @return true при успех, false при неуспех
      */
     public boolean updateBookAvailability(int bookId, String availability) {
-        String sql = "UPDATE books SET availability = ? WHERE book_id = ?";
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> updateBookAvailability(bookId, availability));
+        }
+        Connection conn = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            boolean updated = updateBookAvailability(conn, bookId, availability);
+            conn.commit();
+            return updated;
+        } catch (SQLException e) {
+            rollback(conn);
+            DaoLog.error("Грешка при обновяване на наличността на книга", e);
+            return false;
+        } finally {
+            restoreAutoCommit(conn);
+            closeResources(conn, null, null);
+        }
+    }
+    
+    /**
+     * Обновява статуса на наличност на книга в рамките на текуща транзакция
+     * @param conn връзка с активна транзакция
+     * @param bookId ID на книгата
+     * @param availability новият статус на наличност
+     * @return true при успех, false ако книгата не съществува
+     * @throws SQLException при грешка в базата данни
+     */
+    boolean updateBookAvailability(Connection conn, int bookId, String availability) throws SQLException {
+        String sql = "UPDATE books SET availability = ?, row_version = ? WHERE book_id = ?";
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, availability);
+            pstmt.setLong(2, ChangeTracker.nextVersion(conn));
+            pstmt.setInt(3, bookId);
+            return pstmt.executeUpdate() > 0;
+        }
+    }
+    
+    /**
+     * Задава един и същ статус на наличност на много книги с пакетна заявка в рамките на текуща транзакция
+     * @param conn връзка с активна транзакция
+     * @param bookIds ID-тата на книгите
+     * @param availability новият статус на наличност
+     * @throws SQLException при грешка в базата данни
+     */
+    void updateBooksAvailability(Connection conn, Collection<Integer> bookIds, String availability) throws SQLException {
+        if (bookIds.isEmpty()) {
+            return;
+        }
+        String sql = "UPDATE books SET availability = ?, row_version = ? WHERE book_id = ?";
+        
+        // Всички книги от пакета получават една и съща версия
+        long version = ChangeTracker.nextVersion(conn);
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int bookId : bookIds) {
+                pstmt.setString(1, availability);
+                pstmt.setLong(2, version);
+                pstmt.setInt(3, bookId);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+    
+    /**
+     * Връща книгите, добавени, променени или изтрити след дадена версия
+     * @param since последната версия, известна на клиента (0 за всички книги)
+     * @return промените или null при грешка
+     */
+    public ChangeSet<Book> getBooksChangedSince(long since) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gatherChanges(since, this::getBooksChangedSince);
+        }
+        // Прехвърлените книги идват като изтрити (TransferDAO записва надгробен запис)
+        String sql = "SELECT * FROM books WHERE row_version > ? AND row_version <= ? AND " + LISTED;
         Connection conn = null;
         PreparedStatement pstmt = null;
+        ResultSet rs = null;
         
         try {
             conn = DatabaseConnection.getConnection();
+            long upTo = ChangeTracker.currentVersion(conn);
+            if (upTo == since) {
+                return ChangeSet.empty(since);
+            }
+            if (upTo < since) {
+                // Версията на клиента е от друга база (напр. възстановена от архив) - зарежда се всичко
+                since = 0;
+            }
+            
             pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, availability);
-            pstmt.setInt(2, bookId);
+            pstmt.setLong(1, since);
+            pstmt.setLong(2, upTo);
             
-            int affectedRows = pstmt.executeUpdate();
-            return affectedRows > 0;
+            List<Book> books = new ArrayList<>();
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                books.add(extractBookFromResultSet(rs));
+            }
+            
+            if (since <= 0) {
+                return ChangeSet.full(books, upTo);
+            }
+            return new ChangeSet<>(books, ChangeTracker.getDeletedIds(conn, ChangeTracker.BOOKS, since, upTo), upTo);
         } catch (SQLException e) {
-            System.err.println("Грешка при обновяване на наличността на книга: " + e.getMessage());
-            return false;
+            DaoLog.error("Грешка при извличане на променените книги", e);
+            return null;
         } finally {
-            closeResources(conn, pstmt, null);
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Проверява дали книга съществува
+     * @param conn връзката на текущата транзакция
+     * @param bookId ID на книгата
+     * @return true, ако книгата съществува
+     * @throws SQLException при грешка в базата
+     */
+    private boolean bookExists(Connection conn, int bookId) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement("SELECT 1 FROM books WHERE book_id = ?");
+            pstmt.setInt(1, bookId);
+            rs = pstmt.executeQuery();
+            return rs.next();
+        } finally {
+            closeResources(null, pstmt, rs);
         }
     }
     
@@ -294,9 +494,38 @@ public class BookDAO {
         book.setAuthor(rs.getString("author"));
         book.setGenre(rs.getString("genre"));
         book.setAvailability(rs.getString("availability"));
+        book.setRowVersion(rs.getLong("row_version"));
         return book;
     }
     
+    /**
+     * Отменя текущата транзакция, ако има такава
+     * @param conn Connection обект
+     */
+    private void rollback(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.rollback();
+            }
+        } catch (SQLException ex) {
+            DaoLog.error("Грешка при rollback", ex);
+        }
+    }
+    
+    /**
+     * Възстановява autoCommit режима на връзката
+     * @param conn Connection обект
+     */
+    private void restoreAutoCommit(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при възстановяване на autoCommit", e);
+        }
+    }
+    
     /**
      * Затваря ресурсите за връзка с базата данни
      * @param conn Connection обект
@@ -315,7 +544,7 @@ public class BookDAO {
                 conn.close();
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при затваряне на ресурсите: " + e.getMessage());
+            DaoLog.error("Грешка при затваряне на ресурсите", e);
         }
     }
 }
\ No newline at end of file
@@ -1,24 +1,35 @@
 package library.ui.main.dialogs;
 
 import library.model.Book;
+import library.model.CirculationCount;
+import library.model.Hold;
 import library.service.AuthenticationService;
 import library.service.BookService;
+import library.service.HoldService;
 import library.service.LoanService;
+import library.service.RecommendationEngine;
+import library.service.ServiceRegistry;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
 
 /**
  * Диалог за показване на детайли за книга
  */
 public class BookDetailsDialog extends JDialog {
     
+    private static final int RELATED_LIMIT = 5;
+    
     private Book book;
     private AuthenticationService authService;
     private BookService bookService;
     private LoanService loanService;
+    private HoldService holdService;
     
     // Компоненти за показване на информация
     private JLabel idLabel;
@@ -26,9 +37,13 @@ public class BookDetailsDialog extends JDialog {
     private JLabel authorLabel;
     private JLabel genreLabel;
     private JLabel availabilityLabel;
+    private JLabel queueLabel;
+    private DefaultListModel<CirculationCount> relatedModel;
+    private JList<CirculationCount> relatedList;
     
     // Компоненти за действия
     private JButton borrowButton;
+    private JButton holdButton;
     private JButton editButton;
     private JButton deleteButton;
     private JButton closeButton;
@@ -47,9 +62,10 @@ public class BookDetailsDialog extends JDialog {
         this.authService = authService;
         this.bookService = bookService;
         this.loanService = loanService;
+        this.holdService = ServiceRegistry.getInstance().getHoldService();
         
         // Настройки на диалога
-        setSize(500, 400);
+        setSize(500, 520);
         setLocationRelativeTo(parent);
         setResizable(false);
         
@@ -75,8 +91,25 @@ public class BookDetailsDialog extends JDialog {
         authorLabel = new JLabel();
         genreLabel = new JLabel();
         availabilityLabel = new JLabel();
+        queueLabel = new JLabel();
+        
+        relatedModel = new DefaultListModel<>();
+        relatedList = new JList<>(relatedModel);
+        relatedList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        relatedList.setVisibleRowCount(RELATED_LIMIT);
+        relatedList.setToolTipText("Двойно кликване показва детайлите на книгата");
+        relatedList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                CirculationCount related = (CirculationCount) value;
+                String text = related.getName() + " (" + related.getCount() + " общи читатели)";
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
         
         borrowButton = new JButton("Заеми книгата");
+        holdButton = new JButton("Запази");
         editButton = new JButton("Редактирай");
         deleteButton = new JButton("Изтрий");
         closeButton = new JButton("Затвори");
@@ -100,7 +133,7 @@ public class BookDetailsDialog extends JDialog {
         mainPanel.add(titleHeaderLabel, BorderLayout.NORTH);
         
         // Панел за информация
-        JPanel infoPanel = new JPanel(new GridLayout(5, 2, 10, 10));
+        JPanel infoPanel = new JPanel(new GridLayout(6, 2, 10, 10));
         infoPanel.setBorder(BorderFactory.createEmptyBorder(20, 0, 20, 0));
         
         infoPanel.add(new JLabel("ID:"));
@@ -118,12 +151,24 @@ public class BookDetailsDialog extends JDialog {
         infoPanel.add(new JLabel("Наличност:"));
         infoPanel.add(availabilityLabel);
         
-        mainPanel.add(infoPanel, BorderLayout.CENTER);
+        infoPanel.add(new JLabel("Чакащи:"));
+        infoPanel.add(queueLabel);
+        
+        // Панел за препоръките
+        JPanel relatedPanel = new JPanel(new BorderLayout());
+        relatedPanel.setBorder(BorderFactory.createTitledBorder("Читателите на тази книга заеха и"));
+        relatedPanel.add(new JScrollPane(relatedList), BorderLayout.CENTER);
+        
+        JPanel centerPanel = new JPanel(new BorderLayout());
+        centerPanel.add(infoPanel, BorderLayout.NORTH);
+        centerPanel.add(relatedPanel, BorderLayout.CENTER);
+        mainPanel.add(centerPanel, BorderLayout.CENTER);
         
         // Панел за бутоните
         JPanel buttonPanel = new JPanel();
         buttonPanel.setLayout(new FlowLayout(FlowLayout.RIGHT));
         buttonPanel.add(borrowButton);
+        buttonPanel.add(holdButton);
         buttonPanel.add(editButton);
         buttonPanel.add(deleteButton);
         buttonPanel.add(closeButton);
@@ -144,11 +189,56 @@ public class BookDetailsDialog extends JDialog {
             genreLabel.setText(book.getGenre());
             availabilityLabel.setText(book.getAvailability());
             
-            // Деактивиране на бутона за заемане, ако книгата не е налична
-            borrowButton.setEnabled("налична".equals(book.getAvailability()));
+            int userId = authService.getCurrentUser().getUserId();
+            boolean canBorrow = holdService.canBorrow(book, userId);
+            Hold userHold = holdService.getUserHold(book.getBookId(), userId);
+            
+            // Информация за опашката от запазвания
+            int queueLength = holdService.getQueueLength(book.getBookId());
+            if (userHold != null && userHold.isAssigned()) {
+                queueLabel.setText(queueLength + " (книгата ви очаква)");
+            } else if (userHold != null) {
+                queueLabel.setText(queueLength + " (вие сте №" + holdService.getQueuePosition(book.getBookId(), userId) + ")");
+            } else {
+                queueLabel.setText(String.valueOf(queueLength));
+            }
+            
+            // Деактивиране на бутона за заемане, ако книгата не е налична за потребителя
+            borrowButton.setEnabled(canBorrow);
+            
+            // Заета книга може да бъде запазена с едно натискане вместо с многократни опити
+            holdButton.setVisible(!canBorrow);
+            holdButton.setText(userHold != null ? "Откажи запазването" : "Запази");
+            
+            loadRelated();
         }
     }
     
+    /**
+     * Зарежда препоръките за книгата във фонов режим (заглавията се четат от базата)
+     */
+    private void loadRelated() {
+        int bookId = book.getBookId();
+        new SwingWorker<List<CirculationCount>, Void>() {
+            @Override
+            protected List<CirculationCount> doInBackground() {
+                return RecommendationEngine.getInstance().getRelated(bookId, RELATED_LIMIT);
+            }
+            
+            @Override
+            protected void done() {
+                relatedModel.clear();
+                try {
+                    for (CirculationCount related : get()) {
+                        relatedModel.addElement(related);
+                    }
+                } catch (Exception e) {
+                    // Препоръките не са задължителни - списъкът остава празен
+                }
+            }
+        }.execute();
+    }
+    
     /**
      * Добавя слушатели за събития към компонентите
      */
@@ -161,6 +251,14 @@ public class BookDetailsDialog extends JDialog {
             }
         });
         
+        // Слушател за бутона "Запази"
+        holdButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                toggleHold();
+            }
+        });
+        
         // Слушател за бутона "Редактирай"
         editButton.addActionListener(new ActionListener() {
             @Override
@@ -177,6 +275,16 @@ public class BookDetailsDialog extends JDialog {
             }
         });
         
+        // Двойно кликване върху препоръка показва нейните детайли
+        relatedList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && relatedList.getSelectedValue() != null) {
+                    showRelated(relatedList.getSelectedValue().getId());
+                }
+            }
+        });
+        
         // Слушател за бутона "Затвори"
         closeButton.addActionListener(new ActionListener() {
             @Override
@@ -186,20 +294,38 @@ public class BookDetailsDialog extends JDialog {
         });
     }
     
+    /**
+     * Показва детайлите на препоръчана книга
+     * @param bookId ID на книгата
+     */
+    private void showRelated(int bookId) {
+        Book related = bookService.getBookById(bookId);
+        if (related == null) {
+            JOptionPane.showMessageDialog(this,
+                    "Книгата вече не съществува!",
+                    "Грешка",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        BookDetailsDialog dialog = new BookDetailsDialog(this, related, authService, bookService, loanService);
+        dialog.setVisible(true);
+    }
+    
     /**
      * Заема книга
      */
     private void borrowBook() {
-        if (!"налична".equals(book.getAvailability())) {
+        int userId = authService.getCurrentUser().getUserId();
+        
+        if (!holdService.canBorrow(book, userId)) {
             JOptionPane.showMessageDialog(this,
-                    "Тази книга не е налична за заемане!",
+                    "Тази книга не е налична за заемане! Можете да я запазите.",
                     "Информация",
                     JOptionPane.INFORMATION_MESSAGE);
             return;
         }
         
-        int userId = authService.getCurrentUser().getUserId();
-        
         // Проверка дали потребителят има активни заемания
         int activeLoans = loanService.getActiveLoansCountByUser(userId);
         if (activeLoans >= 5) {
@@ -220,7 +346,12 @@ public class BookDetailsDialog extends JDialog {
             // Заемане на книгата
             int loanId = loanService.borrowBook(book.getBookId(), userId);
             
-            if (loanId > 0) {
+            if (loanId == LoanService.QUEUED_OFFLINE) {
+                JOptionPane.showMessageDialog(this,
+                        "Няма връзка с базата данни. Заемането е записано и ще бъде потвърдено при възстановяване на връзката.",
+                        "Офлайн режим",
+                        JOptionPane.WARNING_MESSAGE);
+            } else if (loanId > 0) {
                 JOptionPane.showMessageDialog(this,
                         "Книгата е заета успешно!",
                         "Успех",
@@ -238,6 +369,47 @@ public class BookDetailsDialog extends JDialog {
         }
     }
     
+    /**
+     * Запазва заетата книга или отказва съществуващото запазване
+     */
+    private void toggleHold() {
+        int userId = authService.getCurrentUser().getUserId();
+        Hold userHold = holdService.getUserHold(book.getBookId(), userId);
+        
+        if (userHold != null) {
+            int choice = JOptionPane.showConfirmDialog(this,
+                    "Искате ли да откажете запазването на книгата \"" + book.getTitle() + "\"?",
+                    "Потвърждение",
+                    JOptionPane.YES_NO_OPTION);
+            
+            if (choice == JOptionPane.YES_OPTION && !holdService.cancelHold(userHold.getHoldId(), userId)) {
+                JOptionPane.showMessageDialog(this,
+                        "Грешка при отказване на запазването!",
+                        "Грешка",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        } else {
+            int holdId = holdService.placeHold(book.getBookId(), userId);
+            
+            if (holdId > 0) {
+                JOptionPane.showMessageDialog(this,
+                        "Книгата е запазена! Вие сте №" + holdService.getQueuePosition(book.getBookId(), userId)
+                                + " в опашката. Ще я получите автоматично при връщане.",
+                        "Успех",
+                        JOptionPane.INFORMATION_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(this,
+                        "Книгата не може да бъде запазена! Възможно е вече да сте в опашката или да я държите.",
+                        "Грешка",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        }
+        
+        // Обновяване на данните
+        book = bookService.getBookById(book.getBookId());
+        loadBookData();
+    }
+    
     /**
      * Редактира книга
      */
@@ -271,10 +443,11 @@ public class BookDetailsDialog extends JDialog {
             return;
         }
         
-        // Проверка дали книгата е заета
-        if (loanService.isBookLoaned(book.getBookId())) {
+        // Проверка дали книгата може да бъде изтрита (заета или с неархивирана история)
+        String blocker = bookService.getDeleteBlocker(book.getBookId());
+        if (blocker != null) {
             JOptionPane.showMessageDialog(this,
-                    "Не можете да изтриете книга, която е заета!",
+                    blocker,
                     "Грешка",
                     JOptionPane.ERROR_MESSAGE);
             return;
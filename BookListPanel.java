@@ -1,26 +1,41 @@
 package library.ui.main.panels;
 
+import library.metrics.MetricsRegistry;
 import library.model.Book;
+import library.model.ChangeSet;
 import library.service.AuthenticationService;
+import library.service.AutocompleteService;
 import library.service.BookService;
+import library.service.CatalogSnapshot;
+import library.service.LastKnownCache;
 import library.service.LoanService;
+import library.service.ServiceRegistry;
 import library.ui.main.MainFrame;
 import library.ui.main.dialogs.AddBookDialog;
 import library.ui.main.dialogs.BookDetailsDialog;
+import library.utils.TextNormalizer;
+import library.utils.TrigramIndex;
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
-import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Панел за показване на списък с книги
@@ -31,6 +46,20 @@ public class BookListPanel extends JPanel {
     private AuthenticationService authService;
     private BookService bookService;
     private LoanService loanService;
+    private final MetricsRegistry.Timer refreshTimer = MetricsRegistry.getInstance()
+            .timer("library_ui_refresh_seconds", "Време за обновяване на панел", "panel", "books");
+    
+    // Показаният каталог и версията му; при обновяване се изтеглят само промените след нея
+    private final Map<Integer, Book> catalog = new LinkedHashMap<>();
+    private long catalogVersion;
+    // Дали последно изтеглените промени са от кеша (изтеглят се във фонова нишка)
+    private volatile boolean fetchedStale;
+    
+    // Размито търсене по заглавие и автор и подсказки; индексът се построява наново във фонов режим при промяна на каталога
+    private static final int MAX_SEARCH_RESULTS = Integer.getInteger("library.search.maxResults", 200);
+    private static final int MAX_SUGGESTIONS = Integer.getInteger("library.search.suggestions", 8);
+    private volatile TrigramIndex searchIndex;
+    private int searchIndexGeneration;
     
     // Компоненти за търсене и филтриране
     private JTextField searchField;
@@ -41,7 +70,7 @@ public class BookListPanel extends JPanel {
     // Компоненти за списъка с книги
     private JTable booksTable;
     private DefaultTableModel tableModel;
-    private TableRowSorter<DefaultTableModel> sorter;
+    private CollatedRowSorter<DefaultTableModel> sorter;
     
     // Компоненти за управление на книги
     private JButton addBookButton;
@@ -56,8 +85,8 @@ public class BookListPanel extends JPanel {
     public BookListPanel(MainFrame mainFrame, AuthenticationService authService) {
         this.mainFrame = mainFrame;
         this.authService = authService;
-        this.bookService = new BookService();
-        this.loanService = new LoanService();
+        this.bookService = ServiceRegistry.getInstance().getBookService();
+        this.loanService = ServiceRegistry.getInstance().getLoanService();
         
         // Инициализация на компонентите
         initComponents();
@@ -68,8 +97,8 @@ public class BookListPanel extends JPanel {
         // Добавяне на слушатели за събития
         addEventListeners();
         
-        // Зареждане на данните
-        refreshData();
+        // Зареждане на данните - първо от локалното копие, след това от базата
+        loadInitialData();
     }
     
     /**
@@ -112,8 +141,10 @@ public class BookListPanel extends JPanel {
         booksTable.getColumnModel().getColumn(0).setMaxWidth(0);
         booksTable.getColumnModel().getColumn(0).setWidth(0);
         
-        // Настройка на сортирането
-        sorter = new TableRowSorter<>(tableModel);
+        // Настройка на сортирането - по правилата на българския език, във фонова нишка
+        sorter = new CollatedRowSorter<>(tableModel);
+        sorter.setPrecomputedColumns(1, 2);
+        sorter.setSortKeys(Collections.singletonList(new RowSorter.SortKey(1, SortOrder.ASCENDING)));
         booksTable.setRowSorter(sorter);
         
         // Компоненти за управление на книги
@@ -182,6 +213,14 @@ public class BookListPanel extends JPanel {
             }
         });
         
+        // Подсказки при търсене; избран жанр се прилага като филтър по жанр
+        SearchSuggestions.attach(searchField, MAX_SUGGESTIONS, suggestion -> {
+            if (suggestion.getKind() == AutocompleteService.Kind.GENRE) {
+                genreComboBox.setSelectedItem(suggestion.getText());
+                searchField.setText("");
+            }
+        });
+        
         // Слушател за combo box-а с жанрове
         genreComboBox.addActionListener(new ActionListener() {
             @Override
@@ -244,32 +283,236 @@ public class BookListPanel extends JPanel {
         });
     }
     
+    /**
+     * Показва веднага локалното копие на каталога и зарежда актуалните данни във фонов режим
+     */
+    private void loadInitialData() {
+        List<Book> snapshot = CatalogSnapshot.getInstance().load();
+        if (snapshot != null) {
+            for (Book book : snapshot) {
+                catalog.put(book.getBookId(), book);
+            }
+            catalogVersion = CatalogSnapshot.getInstance().getCatalogVersion();
+            applyBooks(snapshot);
+            rebuildSearchIndex();
+            loadSuggestions();
+            mainFrame.setStatusMessage("Заредени " + snapshot.size() + " книги от локалното копие, обновяване...");
+        } else {
+            mainFrame.setStatusMessage("Зареждане на книгите...");
+        }
+        
+        long since = catalogVersion;
+        new SwingWorker<ChangeSet<Book>, Void>() {
+            @Override
+            protected ChangeSet<Book> doInBackground() {
+                return fetchChanges(since);
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    showChanges(get());
+                    mainFrame.getStartup().mark("каталогът е зареден");
+                } catch (Exception e) {
+                    mainFrame.setStatusMessage("Грешка при зареждане на книгите");
+                }
+            }
+        }.execute();
+    }
+    
     /**
      * Зарежда данните в таблицата
      */
     public void refreshData() {
-        // Изчистване на таблицата
-        tableModel.setRowCount(0);
+        long start = refreshTimer.start();
+        
+        // Зареждане само на промените след последното обновяване
+        showChanges(fetchChanges(catalogVersion));
+        
+        refreshTimer.stop(start);
+    }
+    
+    /**
+     * Изтегля промените в каталога след дадена версия
+     * @param since последната показана версия
+     * @return промените; ако базата е недостъпна - последният известен пълен списък
+     */
+    private ChangeSet<Book> fetchChanges(long since) {
+        ChangeSet<Book> changes = bookService.getBooksChangedSince(since);
+        if (changes == null) {
+            // Версията не се променя, така че след възстановяване ще се изтеглят всички пропуснати промени
+            List<Book> books = bookService.getAllBooks();
+            fetchedStale = LastKnownCache.getInstance().isServingStale();
+            return ChangeSet.full(books, since);
+        }
+        fetchedStale = false;
+        return changes;
+    }
+    
+    /**
+     * Прилага промените към показания каталог и го запомня в локалното копие
+     * @param changes промените от базата данни
+     */
+    private void showChanges(ChangeSet<Book> changes) {
+        // Индексът зависи само от заглавието и автора - промени в наличността не го засягат
+        boolean searchTextChanged = changes.isFull() || !changes.getDeletedIds().isEmpty();
+        if (changes.isFull()) {
+            catalog.clear();
+        }
+        for (int bookId : changes.getDeletedIds()) {
+            catalog.remove(bookId);
+        }
+        for (Book book : changes.getChanged()) {
+            Book previous = catalog.put(book.getBookId(), book);
+            if (previous == null || !Objects.equals(previous.getTitle(), book.getTitle())
+                    || !Objects.equals(previous.getAuthor(), book.getAuthor())) {
+                searchTextChanged = true;
+            }
+        }
+        catalogVersion = changes.getVersion();
+        
+        if (!changes.isEmpty()) {
+            if (!fetchedStale) {
+                CatalogSnapshot.getInstance().update(catalog.values(), catalogVersion);
+            }
+            if (searchTextChanged) {
+                rebuildSearchIndex();
+            }
+            
+            // Подсказките се обновяват поотделно за всяка книга; изцяло - само при пълно презареждане
+            if (changes.isFull()) {
+                loadSuggestions();
+            } else {
+                for (int bookId : changes.getDeletedIds()) {
+                    AutocompleteService.getInstance().remove(bookId);
+                }
+                for (Book book : changes.getChanged()) {
+                    AutocompleteService.getInstance().put(book);
+                }
+            }
+            
+            if (changes.isFull()) {
+                applyBooks(new ArrayList<>(catalog.values()));
+            } else {
+                List<Object[]> rows = new ArrayList<>();
+                for (Book book : changes.getChanged()) {
+                    rows.add(toRow(book));
+                }
+                TableDelta.apply(tableModel, rows, changes.getDeletedIds(), false, false);
+                filterTable();
+            }
+        }
         
-        // Зареждане на всички книги
-        List<Book> books = bookService.getAllBooks();
+        // Обновяване на статус съобщението
+        mainFrame.setStatusMessage("Заредени " + catalog.size() + " книги");
+    }
+    
+    /**
+     * Построява наново индекса за търсене във фонов режим; дотогава се използва предишният
+     */
+    private void rebuildSearchIndex() {
+        int generation = ++searchIndexGeneration;
+        List<Book> books = new ArrayList<>(catalog.values());
+        
+        new SwingWorker<TrigramIndex, Void>() {
+            @Override
+            protected TrigramIndex doInBackground() {
+                int[] ids = new int[books.size()];
+                String[] texts = new String[books.size()];
+                for (int i = 0; i < books.size(); i++) {
+                    Book book = books.get(i);
+                    ids[i] = book.getBookId();
+                    texts[i] = book.getTitle() + " " + book.getAuthor();
+                }
+                return TrigramIndex.build(ids, texts);
+            }
+            
+            @Override
+            protected void done() {
+                // Резултатът от по-стар строеж се пренебрегва
+                if (generation != searchIndexGeneration) {
+                    return;
+                }
+                try {
+                    searchIndex = get();
+                    if (!searchField.getText().trim().isEmpty()) {
+                        filterTable();
+                    }
+                } catch (Exception e) {
+                    mainFrame.setStatusMessage("Грешка при построяване на индекса за търсене");
+                }
+            }
+        }.execute();
+    }
+    
+    /**
+     * Построява подсказките за търсене от показания каталог във фонов режим
+     */
+    private void loadSuggestions() {
+        List<Book> books = new ArrayList<>(catalog.values());
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                AutocompleteService.getInstance().load(books);
+                return null;
+            }
+        }.execute();
+    }
+    
+    /**
+     * Връща стойностите на реда в таблицата за дадена книга
+     * @param book книгата
+     * @return стойностите по колони
+     */
+    private Object[] toRow(Book book) {
+        return new Object[] {
+                book.getBookId(),
+                book.getTitle(),
+                book.getAuthor(),
+                book.getGenre(),
+                book.getAvailability()
+        };
+    }
+    
+    /**
+     * Привежда таблицата в съответствие със списъка, като променя само разликите,
+     * така че избраният ред и позицията на превъртане се запазват
+     * @param books списъкът с книги
+     */
+    private void applyBooks(List<Book> books) {
+        Map<Integer, Book> byId = new HashMap<>();
+        for (Book book : books) {
+            byId.put(book.getBookId(), book);
+        }
+        
+        // Обновяване или премахване на съществуващите редове
+        Set<Integer> present = new HashSet<>();
+        for (int row = tableModel.getRowCount() - 1; row >= 0; row--) {
+            int bookId = (int) tableModel.getValueAt(row, 0);
+            Book book = byId.get(bookId);
+            if (book == null || !present.add(bookId)) {
+                tableModel.removeRow(row);
+                continue;
+            }
+            
+            Object[] values = {book.getTitle(), book.getAuthor(), book.getGenre(), book.getAvailability()};
+            for (int column = 1; column <= values.length; column++) {
+                Object current = tableModel.getValueAt(row, column);
+                if (current == null ? values[column - 1] != null : !current.equals(values[column - 1])) {
+                    tableModel.setValueAt(values[column - 1], row, column);
+                }
+            }
+        }
         
-        // Добавяне на книгите в таблицата
+        // Добавяне на новите книги
         for (Book book : books) {
-            tableModel.addRow(new Object[] {
-                    book.getBookId(),
-                    book.getTitle(),
-                    book.getAuthor(),
-                    book.getGenre(),
-                    book.getAvailability()
-            });
+            if (present.add(book.getBookId())) {
+                tableModel.addRow(toRow(book));
+            }
         }
         
         // Прилагане на филтрите
         filterTable();
-        
-        // Обновяване на статус съобщението
-        mainFrame.setStatusMessage("Заредени " + books.size() + " книги");
     }
     
     /**
@@ -282,10 +525,9 @@ public class BookListPanel extends JPanel {
         List<RowFilter<DefaultTableModel, Object>> filters = new ArrayList<>();
         
         // Филтър по текст за търсене
-        String searchText = searchField.getText().trim().toLowerCase();
+        String searchText = searchField.getText().trim();
         if (!searchText.isEmpty()) {
-            RowFilter<DefaultTableModel, Object> searchFilter = RowFilter.regexFilter("(?i)" + searchText, 1, 2); // Търсене в колоните "Заглавие" и "Автор"
-            filters.add(searchFilter);
+            filters.add(createSearchFilter(searchText));
         }
         
         // Филтър по жанр
@@ -310,6 +552,31 @@ public class BookListPanel extends JPanel {
         }
     }
     
+    /**
+     * Създава филтъра по текст за търсене. Когато индексът е готов, се показват
+     * най-близките по триграми книги (независимо от азбуката и дребни грешки),
+     * иначе - книгите, чието заглавие или автор съдържа текста
+     * @param searchText текстът за търсене
+     * @return филтърът
+     */
+    private RowFilter<DefaultTableModel, Object> createSearchFilter(String searchText) {
+        TrigramIndex index = searchIndex;
+        if (index != null && TextNormalizer.normalize(searchText).length() >= 2) {
+            Set<Integer> matches = new HashSet<>();
+            for (TrigramIndex.Match match : index.search(searchText, MAX_SEARCH_RESULTS)) {
+                matches.add(match.getId());
+            }
+            return new RowFilter<DefaultTableModel, Object>() {
+                @Override
+                public boolean include(Entry<? extends DefaultTableModel, ? extends Object> entry) {
+                    return matches.contains(entry.getValue(0));
+                }
+            };
+        }
+        
+        return RowFilter.regexFilter("(?i)" + Pattern.quote(searchText), 1, 2); // Търсене в колоните "Заглавие" и "Автор"
+    }
+    
     /**
      * Показва диалог с детайли за избраната книга
      */
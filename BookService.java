@@ -1,27 +1,52 @@
 package library.service;
 
 import library.dao.BookDAO;
+import library.dao.DatabaseConnection;
 import library.dao.LoanDAO;
+import library.dao.ShardRouter;
+import library.dao.TransferDAO;
+import library.model.AuditEvent;
 import library.model.Book;
+import library.model.BookTransfer;
+import library.model.ChangeSet;
+import library.utils.FieldMerge;
+import library.utils.TextNormalizer;
 import library.utils.ValidationUtils;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Сервизен клас за управление на книги
  */
 public class BookService {
     
+    // Резултати от updateBook
+    public static final int UPDATE_FAILED = BookDAO.UPDATE_FAILED;
+    public static final int UPDATE_APPLIED = BookDAO.UPDATE_APPLIED;
+    public static final int UPDATE_CONFLICT = BookDAO.UPDATE_CONFLICT;
+    
+    // Колко пъти се слива наново, ако книгата се промени между четенето и записа
+    private static final int MERGE_ATTEMPTS = 3;
+    
     private BookDAO bookDAO;
     private LoanDAO loanDAO;
+    private TransferDAO transferDAO;
     
     /**
      * Конструктор
+     * @param bookDAO споделеното DAO за книги
+     * @param loanDAO споделеното DAO за заемания
+     * @param transferDAO споделеното DAO за прехвърляния между филиали
      */
-    public BookService() {
-        this.bookDAO = new BookDAO();
-        this.loanDAO = new LoanDAO();
+    BookService(BookDAO bookDAO, LoanDAO loanDAO, TransferDAO transferDAO) {
+        this.bookDAO = bookDAO;
+        this.loanDAO = loanDAO;
+        this.transferDAO = transferDAO;
     }
     
     /**
@@ -32,6 +57,18 @@ public class BookService {
      * @return ID на новата книга или -1 при неуспех
      */
     public int addBook(String title, String author, String genre) {
+        return addBook(title, author, genre, ShardRouter.MAIN);
+    }
+    
+    /**
+     * Добавя нова книга във фонда на даден филиал
+     * @param title заглавие на книгата
+     * @param author автор на книгата
+     * @param genre жанр на книгата
+     * @param branch номерът на филиала (виж ShardRouter)
+     * @return ID на новата книга или -1 при неуспех
+     */
+    public int addBook(String title, String author, String genre, int branch) {
         // Валидация на входните данни
         if (!ValidationUtils.areNotEmpty(title, author, genre)) {
             return -1;
@@ -41,36 +78,103 @@ public class BookService {
         Book book = new Book(title, author, genre);
         
         // Запазване на книгата в базата данни
-        return bookDAO.addBook(book);
+        int bookId = bookDAO.addBook(book, branch);
+        if (bookId > 0) {
+            book.setBookId(bookId);
+            AutocompleteService.getInstance().put(book);
+            AuditLog.record(AuditEvent.BOOK, bookId, "добавяне", title + " / " + author + " / " + genre);
+        }
+        return bookId;
     }
     
     /**
-     * Обновява информация за книга
-     * @param bookId ID на книгата
+     * Обновява информация за книга, без да презаписва чужди промени.
+     * Редакцията тръгва от original - книгата такава, каквато е била заредена във формата.
+     * Ако междувременно някой друг е променил книгата, промените се сливат по полета:
+     * полетата, които не сме пипали, запазват текущата си стойност, а ако едно и също
+     * поле е променено различно от двете страни, се връща UPDATE_CONFLICT и нищо не се записва.
+     * При успех original получава записаните стойности и новата версия.
+     * @param original книгата, от която е започнала редакцията
      * @param title ново заглавие
      * @param author нов автор
      * @param genre нов жанр
-     * @return true при успех, false при неуспех
+     * @return UPDATE_APPLIED, UPDATE_CONFLICT или UPDATE_FAILED
      */
-    public boolean updateBook(int bookId, String title, String author, String genre) {
+    public int updateBook(Book original, String title, String author, String genre) {
         // Валидация на входните данни
         if (!ValidationUtils.areNotEmpty(title, author, genre)) {
-            return false;
+            return UPDATE_FAILED;
         }
         
-        // Първо вземаме текущата книга
-        Book book = bookDAO.getBookById(bookId);
-        if (book == null) {
-            return false;
+        for (int attempt = 0; attempt < MERGE_ATTEMPTS; attempt++) {
+            // Първо вземаме текущата книга
+            Book book = bookDAO.getBookById(original.getBookId());
+            if (book == null) {
+                return UPDATE_FAILED;
+            }
+            
+            // Без известна версия редакцията тръгва от текущата книга (последният записал печели)
+            Book base = original.getRowVersion() > 0 ? original : book;
+            String newTitle = FieldMerge.merge(base.getTitle(), title, book.getTitle());
+            String newAuthor = FieldMerge.merge(base.getAuthor(), author, book.getAuthor());
+            String newGenre = FieldMerge.merge(base.getGenre(), genre, book.getGenre());
+            if (newTitle == null || newAuthor == null || newGenre == null) {
+                return UPDATE_CONFLICT;
+            }
+            
+            // Старите стойности се пазят за одиторския дневник
+            String changes = AuditLog.change("заглавие", book.getTitle(), newTitle)
+                    + AuditLog.change("автор", book.getAuthor(), newAuthor)
+                    + AuditLog.change("жанр", book.getGenre(), newGenre);
+            
+            // Актуализираме информацията
+            book.setTitle(newTitle);
+            book.setAuthor(newAuthor);
+            book.setGenre(newGenre);
+            
+            // Записваме промените само ако версията в базата още е тази, която сме прочели
+            int result = bookDAO.updateBook(book);
+            if (result == BookDAO.UPDATE_CONFLICT) {
+                continue;
+            }
+            if (result != BookDAO.UPDATE_APPLIED) {
+                return UPDATE_FAILED;
+            }
+            AutocompleteService.getInstance().put(book);
+            AuditLog.record(AuditEvent.BOOK, book.getBookId(), "промяна", changes);
+            
+            original.setTitle(newTitle);
+            original.setAuthor(newAuthor);
+            original.setGenre(newGenre);
+            original.setAvailability(book.getAvailability());
+            original.setRowVersion(book.getRowVersion());
+            return UPDATE_APPLIED;
+        }
+        return UPDATE_CONFLICT;
+    }
+    
+    /**
+     * Проверява дали книгата може да бъде изтрита. Заеманията в активната таблица сочат
+     * към книгата с външен ключ (V3__foreign_keys.sql), затова книга, чиято история
+     * още не е архивирана от LoanArchiver, не се изтрива.
+     * @param bookId ID на книгата
+     * @return причината за отказ, подходяща за показване, или null, ако книгата може да бъде изтрита
+     */
+    public String getDeleteBlocker(int bookId) {
+        DatabaseConnection.clearFailure();
+        boolean loaned = loanDAO.isBookLoaned(bookId);
+        int loanCount = loanDAO.getLoanCountByBook(bookId);
+        if (DatabaseConnection.consumeFailure()) {
+            return "Няма връзка с базата данни. Опитайте отново по-късно.";
         }
         
-        // Актуализираме информацията
-        book.setTitle(title);
-        book.setAuthor(author);
-        book.setGenre(genre);
-        
-        // Записваме промените в базата данни
-        return bookDAO.updateBook(book);
+        if (loaned) {
+            return "Не можете да изтриете книга, която е заета!";
+        }
+        if (loanCount > 0) {
+            return "Книгата има история на заемания, която още не е архивирана, и не може да бъде изтрита.";
+        }
+        return null;
     }
     
     /**
@@ -79,13 +183,62 @@ public class BookService {
      * @return true при успех, false при неуспех
      */
     public boolean deleteBook(int bookId) {
-        // Проверяваме дали книгата е заета
-        if (loanDAO.isBookLoaned(bookId)) {
+        // Книга, която е заета или има неархивирана история, не се изтрива
+        if (getDeleteBlocker(bookId) != null) {
             return false;
         }
         
         // Изтриваме книгата от базата данни
-        return bookDAO.deleteBook(bookId);
+        if (!bookDAO.deleteBook(bookId)) {
+            return false;
+        }
+        AutocompleteService.getInstance().remove(bookId);
+        AuditLog.record(AuditEvent.BOOK, bookId, "изтриване", null);
+        return true;
+    }
+    
+    /**
+     * Връща имената на филиалите; индексът в списъка е номерът на филиала
+     * @return имената (само един елемент, ако няма филиали)
+     */
+    public List<String> getBranchNames() {
+        List<String> names = new ArrayList<>();
+        for (int branch = 0; branch < ShardRouter.getBranchCount(); branch++) {
+            names.add(ShardRouter.getBranchName(branch));
+        }
+        return names;
+    }
+    
+    /**
+     * Определя филиала, в който е книгата
+     * @param bookId ID на книгата
+     * @return номерът на филиала
+     */
+    public int getBranchOf(int bookId) {
+        return ShardRouter.branchOf(bookId);
+    }
+    
+    /**
+     * Прехвърля налична книга в друг филиал. Книгата е "в транзит", докато
+     * TransferRelay не я добави в приемащия филиал, където получава ново ID.
+     * @param bookId ID на книгата
+     * @param targetBranch номерът на приемащия филиал
+     * @param userId ID на читателя, за когото книгата се запазва там (0 - без запазване)
+     * @return ID на прехвърлянето или -1 при неуспех
+     */
+    public int transferBook(int bookId, int targetBranch, int userId) {
+        if (!ShardRouter.isSharded() || targetBranch < 0 || targetBranch >= ShardRouter.getBranchCount()
+                || ShardRouter.branchOf(bookId) == targetBranch) {
+            return -1;
+        }
+        
+        int transferId = transferDAO.requestTransfer(new BookTransfer(bookId, targetBranch, userId));
+        if (transferId > 0) {
+            AuditLog.record(AuditEvent.BOOK, bookId, "изпращане", "към " + ShardRouter.getBranchName(targetBranch)
+                    + (userId > 0 ? " за потребител #" + userId : ""));
+            TransferRelay.getInstance().wakeUp();
+        }
+        return transferId;
     }
     
     /**
@@ -94,7 +247,7 @@ public class BookService {
      * @return книгата или null, ако не е намерена
      */
     public Book getBookById(int bookId) {
-        return bookDAO.getBookById(bookId);
+        return LastKnownCache.getInstance().read("book:" + bookId, () -> bookDAO.getBookById(bookId));
     }
     
     /**
@@ -102,7 +255,16 @@ public class BookService {
      * @return списък с всички книги
      */
     public List<Book> getAllBooks() {
-        return bookDAO.getAllBooks();
+        return LastKnownCache.getInstance().read("books:all", () -> bookDAO.getAllBooks());
+    }
+    
+    /**
+     * Връща промените в каталога след дадена версия
+     * @param since последната известна версия (0 за целия каталог)
+     * @return промените или null, ако базата е недостъпна
+     */
+    public ChangeSet<Book> getBooksChangedSince(long since) {
+        return bookDAO.getBooksChangedSince(since);
     }
     
     /**
@@ -178,24 +340,62 @@ public class BookService {
         }
         
         // Премахваме дубликатите и филтрираме по наличност, ако е необходимо
-        List<Book> uniqueResults = new ArrayList<>();
+        Map<Integer, Book> unique = new LinkedHashMap<>();
         for (Book book : results) {
-            if (!uniqueResults.contains(book)) {
-                if (!onlyAvailable || "налична".equals(book.getAvailability())) {
-                    uniqueResults.add(book);
-                }
+            if (!onlyAvailable || "налична".equals(book.getAvailability())) {
+                unique.putIfAbsent(book.getBookId(), book);
+            }
+        }
+        
+        // Резултатите от всички филиали се подреждат общо - първо най-точните съвпадения
+        String normalizedQuery = TextNormalizer.normalize(query);
+        Map<Integer, Integer> ranks = new HashMap<>();
+        for (Book book : unique.values()) {
+            int rank = 0;
+            if (searchTitle) {
+                rank = Math.max(rank, matchRank(book.getTitle(), normalizedQuery) * 4 + 3);
+            }
+            if (searchAuthor) {
+                rank = Math.max(rank, matchRank(book.getAuthor(), normalizedQuery) * 4 + 2);
             }
+            if (searchGenre) {
+                rank = Math.max(rank, matchRank(book.getGenre(), normalizedQuery) * 4 + 1);
+            }
+            ranks.put(book.getBookId(), rank);
         }
         
+        List<Book> uniqueResults = new ArrayList<>(unique.values());
+        uniqueResults.sort(Comparator.comparing((Book book) -> ranks.get(book.getBookId())).reversed()
+                .thenComparing(book -> TextNormalizer.normalize(book.getTitle())));
         return uniqueResults;
     }
     
+    /**
+     * Оценява колко точно текст съвпада със заявката
+     * @param text текстът (заглавие, автор или жанр)
+     * @param normalizedQuery нормализираната заявка
+     * @return 3 - пълно съвпадение, 2 - в началото, 1 - в началото на дума, 0 - другаде или никъде
+     */
+    private static int matchRank(String text, String normalizedQuery) {
+        String normalized = TextNormalizer.normalize(text);
+        if (normalizedQuery.isEmpty() || normalized.isEmpty()) {
+            return 0;
+        }
+        if (normalized.equals(normalizedQuery)) {
+            return 3;
+        }
+        if (normalized.startsWith(normalizedQuery)) {
+            return 2;
+        }
+        return normalized.contains(" " + normalizedQuery) ? 1 : 0;
+    }
+    
     /**
      * Връща списък само с наличните книги
      * @return списък с наличните книги
      */
     public List<Book> getAvailableBooks() {
-        List<Book> allBooks = bookDAO.getAllBooks();
+        List<Book> allBooks = getAllBooks();
         List<Book> availableBooks = new ArrayList<>();
         
         for (Book book : allBooks) {
@@ -0,0 +1,139 @@
+package library.model;
+
+import java.util.Date;
+
+/**
+ * Клас, представящ прехвърляне на книга от един филиал в друг.
+ * Книгата пътува с данните си (заглавие, автор, жанр), тъй като в приемащия
+ * филиал получава ново ID от неговия диапазон.
+ */
+public class BookTransfer {
+    private int transferId;
+    private int sourceBranch;
+    private int bookId;
+    private int targetBranch;
+    private int userId; // 0 - без читател, за когото книгата се запазва
+    private String title;
+    private String author;
+    private String genre;
+    private Date createdAt;
+    private String status; // "изчаква", "доставена"
+    private int deliveredBookId;
+    
+    /**
+     * Конструктор по подразбиране
+     */
+    public BookTransfer() {
+    }
+    
+    /**
+     * Конструктор за ново прехвърляне (без ID)
+     */
+    public BookTransfer(int bookId, int targetBranch, int userId) {
+        this.bookId = bookId;
+        this.targetBranch = targetBranch;
+        this.userId = userId;
+        this.createdAt = new Date();
+        this.status = "изчаква";
+    }
+    
+    // Getters и Setters
+    public int getTransferId() {
+        return transferId;
+    }
+    
+    public void setTransferId(int transferId) {
+        this.transferId = transferId;
+    }
+    
+    public int getSourceBranch() {
+        return sourceBranch;
+    }
+    
+    public void setSourceBranch(int sourceBranch) {
+        this.sourceBranch = sourceBranch;
+    }
+    
+    public int getBookId() {
+        return bookId;
+    }
+    
+    public void setBookId(int bookId) {
+        this.bookId = bookId;
+    }
+    
+    public int getTargetBranch() {
+        return targetBranch;
+    }
+    
+    public void setTargetBranch(int targetBranch) {
+        this.targetBranch = targetBranch;
+    }
+    
+    public int getUserId() {
+        return userId;
+    }
+    
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+    
+    public String getTitle() {
+        return title;
+    }
+    
+    public void setTitle(String title) {
+        this.title = title;
+    }
+    
+    public String getAuthor() {
+        return author;
+    }
+    
+    public void setAuthor(String author) {
+        this.author = author;
+    }
+    
+    public String getGenre() {
+        return genre;
+    }
+    
+    public void setGenre(String genre) {
+        this.genre = genre;
+    }
+    
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+    
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+    
+    public String getStatus() {
+        return status;
+    }
+    
+    public void setStatus(String status) {
+        this.status = status;
+    }
+    
+    public int getDeliveredBookId() {
+        return deliveredBookId;
+    }
+    
+    public void setDeliveredBookId(int deliveredBookId) {
+        this.deliveredBookId = deliveredBookId;
+    }
+    
+    @Override
+    public String toString() {
+        return "Прехвърляне{" +
+                "ID=" + transferId +
+                ", Книга ID=" + bookId +
+                ", От=" + sourceBranch +
+                ", Към=" + targetBranch +
+                ", Статус='" + status + '\'' +
+                '}';
+    }
+}
\ No newline at end of file
@@ -0,0 +1,243 @@
+package library.service;
+
+import library.model.Book;
+import library.utils.AsyncLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Локално двоично копие на каталога, от което списъкът с книги се показва
+ * веднага при стартиране, преди първата заявка към базата данни.
+ *
+ * Формат на файла:
+ * заглавие - магическо число, версия на формата, момент на създаване, версия на каталога
+ * (row_version от базата), брой книги, брой низове;
+ * записи с фиксирана дължина - ID и индекси в таблицата с низове за заглавие, автор, жанр и наличност;
+ * таблица с низове - отмествания, следвани от UTF-8 байтовете. Повтарящите се
+ * стойности (автори, жанрове, наличност) се пазят веднъж.
+ *
+ * Копието се записва периодично и при затваряне на приложението, ако каталогът
+ * е променен. Версията на каталога позволява при стартиране от базата да се
+ * изтеглят само промените след момента на записа. Файлът се задава със системното свойство library.snapshot.file.
+ */
+public class CatalogSnapshot {
+    
+    private static final Path FILE = Paths.get(System.getProperty("library.snapshot.file",
+            System.getProperty("user.home") + "/.library/catalog.snap"));
+    private static final int MAGIC = 0x4C435331; // "LCS1"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4;
+    private static final int RECORD_BYTES = 5 * 4;
+    private static final long SAVE_INTERVAL_MINUTES = 5;
+    
+    private static CatalogSnapshot instance;
+    
+    private volatile List<Book> latest;
+    private volatile long latestVersion;
+    private volatile boolean dirty;
+    private long createdAt;
+    private long catalogVersion;
+    
+    private CatalogSnapshot() {
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "catalog-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        saver.scheduleWithFixedDelay(this::saveIfDirty, SAVE_INTERVAL_MINUTES, SAVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveIfDirty, "catalog-snapshot-shutdown"));
+    }
+    
+    /**
+     * Връща споделеното копие на каталога
+     * @return инстанцията
+     */
+    public static synchronized CatalogSnapshot getInstance() {
+        if (instance == null) {
+            instance = new CatalogSnapshot();
+        }
+        return instance;
+    }
+    
+    /**
+     * Прочита записаното копие на каталога
+     * @return списък с книгите или null, ако няма валидно копие
+     */
+    public List<Book> load() {
+        if (!Files.exists(FILE)) {
+            return null;
+        }
+        
+        // Файлът се прочита в паметта, а не се картографира - картографиран файл
+        // под Windows не може да бъде заменен от save() до освобождаване на паметта
+        ByteBuffer data;
+        try {
+            data = ByteBuffer.wrap(Files.readAllBytes(FILE));
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при четене на локалното копие на каталога",
+                    "CatalogSnapshot", "load", null, -1, e.toString());
+            return null;
+        }
+        
+        try {
+            if (data.remaining() < HEADER_BYTES || data.getInt() != MAGIC || data.getInt() != VERSION) {
+                return null;
+            }
+            
+            createdAt = data.getLong();
+            catalogVersion = data.getLong();
+            int bookCount = data.getInt();
+            int stringCount = data.getInt();
+            
+            int recordsStart = HEADER_BYTES;
+            int offsetsStart = recordsStart + bookCount * RECORD_BYTES;
+            int stringsStart = offsetsStart + (stringCount + 1) * 4;
+            
+            // Всеки низ се декодира веднъж, независимо колко записа го използват
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                int from = data.getInt(offsetsStart + i * 4);
+                int to = data.getInt(offsetsStart + (i + 1) * 4);
+                byte[] bytes = new byte[to - from];
+                data.get(stringsStart + from, bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            
+            List<Book> books = new ArrayList<>(bookCount);
+            for (int i = 0; i < bookCount; i++) {
+                int at = recordsStart + i * RECORD_BYTES;
+                books.add(new Book(data.getInt(at),
+                        strings[data.getInt(at + 4)],
+                        strings[data.getInt(at + 8)],
+                        strings[data.getInt(at + 12)],
+                        strings[data.getInt(at + 16)]));
+            }
+            return books;
+        } catch (RuntimeException e) {
+            // Повредено копие не е фатално - каталогът просто се зарежда от базата
+            AsyncLogger.log(AsyncLogger.Level.WARN, "Грешка при четене на локалното копие на каталога",
+                    "CatalogSnapshot", "load", null, -1, e.toString());
+            return null;
+        }
+    }
+    
+    /**
+     * Запомня актуалния каталог; записва се във файла при следващото периодично записване или при изход
+     * @param books актуалният списък с книги от базата данни
+     * @param version версията на каталога, до която включително са данните
+     */
+    public void update(Collection<Book> books, long version) {
+        // Списъкът се публикува преди версията, а записът чете в обратен ред - така
+        // във файла никога не попада версия, по-нова от данните
+        latest = new ArrayList<>(books);
+        latestVersion = version;
+        dirty = true;
+    }
+    
+    /**
+     * Връща момента на създаване на последното прочетено копие
+     * @return време в милисекунди или 0
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+    
+    /**
+     * Връща версията на каталога в последното прочетено копие
+     * @return версията или 0
+     */
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+    
+    private synchronized void saveIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        
+        try {
+            long version = latestVersion;
+            save(latest, version);
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при запис на локалното копие на каталога",
+                    "CatalogSnapshot", "saveIfDirty", null, -1, e.toString());
+            dirty = true;
+        }
+    }
+    
+    /**
+     * Записва каталога във временен файл и го премества атомарно на мястото на стария
+     */
+    private void save(List<Book> books, long version) throws IOException {
+        Map<String, Integer> index = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int[] refs = new int[books.size() * 4];
+        int stringBytes = 0;
+        
+        for (int i = 0; i < books.size(); i++) {
+            Book book = books.get(i);
+            String[] fields = {book.getTitle(), book.getAuthor(), book.getGenre(), book.getAvailability()};
+            for (int f = 0; f < fields.length; f++) {
+                String value = fields[f] != null ? fields[f] : "";
+                Integer id = index.get(value);
+                if (id == null) {
+                    id = strings.size();
+                    index.put(value, id);
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    strings.add(bytes);
+                    stringBytes += bytes.length;
+                }
+                refs[i * 4 + f] = id;
+            }
+        }
+        
+        int size = HEADER_BYTES + books.size() * RECORD_BYTES + (strings.size() + 1) * 4 + stringBytes;
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putLong(version)
+                .putInt(books.size()).putInt(strings.size());
+        for (int i = 0; i < books.size(); i++) {
+            out.putInt(books.get(i).getBookId());
+            for (int f = 0; f < 4; f++) {
+                out.putInt(refs[i * 4 + f]);
+            }
+        }
+        int offset = 0;
+        for (byte[] bytes : strings) {
+            out.putInt(offset);
+            offset += bytes.length;
+        }
+        out.putInt(offset);
+        for (byte[] bytes : strings) {
+            out.put(bytes);
+        }
+        out.flip();
+        
+        Files.createDirectories(FILE.getParent());
+        Path temp = FILE.resolveSibling(FILE.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
\ No newline at end of file
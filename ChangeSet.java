@@ -0,0 +1,83 @@
+package library.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Промени след дадена версия - добавени или променени обекти и ID-та на изтритите.
+ * Пълният набор (isFull) съдържа всички обекти и заменя изцяло данните на клиента.
+ * @param <T> вид на обектите (Book, User, Loan)
+ */
+public class ChangeSet<T> {
+    private final List<T> changed;
+    private final List<Integer> deletedIds;
+    private final long version;
+    private final boolean full;
+    
+    /**
+     * Конструктор
+     * @param changed добавени или променени обекти
+     * @param deletedIds ID-та на изтритите обекти
+     * @param version версията, до която включително са промените
+     */
+    public ChangeSet(List<T> changed, List<Integer> deletedIds, long version) {
+        this(changed, deletedIds, version, false);
+    }
+    
+    private ChangeSet(List<T> changed, List<Integer> deletedIds, long version, boolean full) {
+        this.changed = changed;
+        this.deletedIds = deletedIds;
+        this.version = version;
+        this.full = full;
+    }
+    
+    /**
+     * Създава пълен набор, който заменя всички данни на клиента
+     * @param all всички обекти
+     * @param version версията, до която включително са данните
+     * @return пълният набор
+     */
+    public static <T> ChangeSet<T> full(List<T> all, long version) {
+        return new ChangeSet<>(all, new ArrayList<>(), version, true);
+    }
+    
+    /**
+     * Създава празен набор от промени
+     * @param version текущата версия
+     * @return празен набор
+     */
+    public static <T> ChangeSet<T> empty(long version) {
+        return new ChangeSet<>(new ArrayList<>(), new ArrayList<>(), version);
+    }
+    
+    // Getters
+    public List<T> getChanged() {
+        return changed;
+    }
+    
+    public List<Integer> getDeletedIds() {
+        return deletedIds;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public boolean isFull() {
+        return full;
+    }
+    
+    public boolean isEmpty() {
+        return !full && changed.isEmpty() && deletedIds.isEmpty();
+    }
+    
+    @Override
+    public String toString() {
+        return "Промени{" +
+                "Версия=" + version +
+                ", Пълен=" + full +
+                ", Променени=" + changed.size() +
+                ", Изтрити=" + deletedIds.size() +
+                '}';
+    }
+}
\ No newline at end of file
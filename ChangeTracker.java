@@ -0,0 +1,111 @@
+package library.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Версии на промените в books, users и loans (виж V5__change_versions.sql).
+ * Следващата версия се взема в транзакцията на промяната - заключването на
+ * реда в change_sequence до края на транзакцията гарантира, че версиите
+ * стават видими в нарастващ ред и клиент, прочел версия V, няма да пропусне
+ * промяна с по-малка версия.
+ */
+class ChangeTracker {
+    
+    static final String BOOKS = "books";
+    static final String USERS = "users";
+    static final String LOANS = "loans";
+    
+    private ChangeTracker() {
+    }
+    
+    /**
+     * Взема следващата версия; трябва да се извиква в транзакция
+     * @param conn връзка с активна транзакция
+     * @return новата версия
+     * @throws SQLException при грешка в базата данни
+     */
+    static long nextVersion(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("UPDATE change_sequence SET version = version + 1 WHERE id = 1")) {
+            pstmt.executeUpdate();
+        }
+        return currentVersion(conn);
+    }
+    
+    /**
+     * Връща последната използвана версия
+     * @param conn Connection обект
+     * @return текущата версия
+     * @throws SQLException при грешка в базата данни
+     */
+    static long currentVersion(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT version FROM change_sequence WHERE id = 1");
+             ResultSet rs = pstmt.executeQuery()) {
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+            throw new SQLException("Липсва ред в change_sequence");
+        }
+    }
+    
+    /**
+     * Записва изтриване на обекти, така че клиентите да ги премахнат при следващото обновяване
+     * @param conn връзка с активна транзакция
+     * @param entity таблица (BOOKS, USERS или LOANS)
+     * @param ids ID-та на изтритите обекти
+     * @param version версията на изтриването
+     * @throws SQLException при грешка в базата данни
+     */
+    static void addTombstones(Connection conn, String entity, Collection<Integer> ids, long version) throws SQLException {
+        try (PreparedStatement delete = conn.prepareStatement("DELETE FROM tombstones WHERE entity = ? AND entity_id = ?");
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO tombstones (entity, entity_id, row_version) VALUES (?, ?, ?)")) {
+            for (int id : ids) {
+                delete.setString(1, entity);
+                delete.setInt(2, id);
+                delete.addBatch();
+                
+                insert.setString(1, entity);
+                insert.setInt(2, id);
+                insert.setLong(3, version);
+                insert.addBatch();
+            }
+            delete.executeBatch();
+            insert.executeBatch();
+        }
+    }
+    
+    /**
+     * Връща ID-тата на обектите, изтрити във версии (since, upTo]
+     * @param conn Connection обект
+     * @param entity таблица (BOOKS, USERS или LOANS)
+     * @param since последната версия, известна на клиента
+     * @param upTo горна граница на версиите
+     * @return списък с ID-та
+     * @throws SQLException при грешка в базата данни
+     */
+    static List<Integer> getDeletedIds(Connection conn, String entity, long since, long upTo) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        if (since <= 0) {
+            // Пълното зареждане не съдържа изтрити редове
+            return ids;
+        }
+        
+        String sql = "SELECT entity_id FROM tombstones WHERE entity = ? AND row_version > ? AND row_version <= ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, entity);
+            pstmt.setLong(2, since);
+            pstmt.setLong(3, upTo);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+            }
+        }
+        return ids;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,142 @@
+package library.utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Прекъсвач (circuit breaker) за външен ресурс. След определен брой поредни
+ * неуспехи се отваря и отказва заявките веднага, без да натоварва ресурса.
+ * След изтичане на паузата пропуска една пробна заявка - при успех се затваря,
+ * при неуспех се отваря отново.
+ */
+public class CircuitBreaker {
+    
+    /**
+     * Състояние на прекъсвача
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+    
+    /**
+     * Слушател за промяна на състоянието
+     */
+    public interface Listener {
+        void stateChanged(State state);
+    }
+    
+    private final int failureThreshold;
+    private final long openMillis;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInProgress;
+    
+    /**
+     * Конструктор
+     * @param failureThreshold брой поредни неуспехи, след които прекъсвачът се отваря
+     * @param openMillis време, през което отвореният прекъсвач отказва заявките
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+    
+    /**
+     * Проверява дали заявка може да бъде изпълнена
+     * @return true ако прекъсвачът е затворен или е ред на пробна заявка
+     */
+    public boolean allowRequest() {
+        State changed = null;
+        synchronized (this) {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() - openedAt < openMillis) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN;
+                    trialInProgress = true;
+                    changed = state;
+                    break;
+                case HALF_OPEN:
+                    if (trialInProgress) {
+                        return false;
+                    }
+                    trialInProgress = true;
+                    break;
+            }
+        }
+        notifyListeners(changed);
+        return true;
+    }
+    
+    /**
+     * Отбелязва успешна заявка
+     */
+    public void recordSuccess() {
+        State changed = null;
+        synchronized (this) {
+            consecutiveFailures = 0;
+            trialInProgress = false;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                changed = state;
+            }
+        }
+        notifyListeners(changed);
+    }
+    
+    /**
+     * Отбелязва неуспешна заявка
+     */
+    public void recordFailure() {
+        State changed = null;
+        synchronized (this) {
+            consecutiveFailures++;
+            trialInProgress = false;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+                changed = state;
+            }
+        }
+        notifyListeners(changed);
+    }
+    
+    /**
+     * Връща текущото състояние
+     * @return състоянието на прекъсвача
+     */
+    public synchronized State getState() {
+        return state;
+    }
+    
+    /**
+     * Добавя слушател за промяна на състоянието
+     * @param listener слушателят
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Премахва слушател
+     * @param listener слушателят
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    private void notifyListeners(State changed) {
+        if (changed == null) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.stateChanged(changed);
+        }
+    }
+}
\ No newline at end of file
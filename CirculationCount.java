@@ -0,0 +1,59 @@
+package library.model;
+
+/**
+ * Клас, представящ брой заемания за книга или потребител (ред в статистиката)
+ */
+public class CirculationCount {
+    private int id;
+    private String name;
+    private long count;
+    
+    /**
+     * Конструктор по подразбиране
+     */
+    public CirculationCount() {
+    }
+    
+    /**
+     * Конструктор с параметри
+     */
+    public CirculationCount(int id, String name, long count) {
+        this.id = id;
+        this.name = name;
+        this.count = count;
+    }
+    
+    // Getters и Setters
+    public int getId() {
+        return id;
+    }
+    
+    public void setId(int id) {
+        this.id = id;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public void setName(String name) {
+        this.name = name;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public void setCount(long count) {
+        this.count = count;
+    }
+    
+    @Override
+    public String toString() {
+        return "Статистика{" +
+                "ID=" + id +
+                ", Име='" + name + '\'' +
+                ", Брой=" + count +
+                '}';
+    }
+}
\ No newline at end of file
@@ -0,0 +1,262 @@
+package library.service;
+
+import library.dao.LoanDAO;
+import library.model.CirculationCount;
+import library.utils.TopKTracker;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Инкрементално поддържана статистика за заеманията (най-заемани книги,
+ * най-активни читатели) за текущия ден, седмица и месец. Броячите се
+ * зареждат веднъж с агрегиращи заявки и след това се обновяват при всяко
+ * заемане и връщане, така че справките не зависят от броя на заеманията.
+ */
+public class CirculationStats {
+    
+    /** Брой елементи в класациите */
+    public static final int TOP_K = 10;
+    
+    /**
+     * Период на статистиката
+     */
+    public enum Period {
+        DAY("Днес"),
+        WEEK("Тази седмица"),
+        MONTH("Този месец");
+        
+        private final String label;
+        
+        Period(String label) {
+            this.label = label;
+        }
+        
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+    
+    private static final CirculationStats INSTANCE = new CirculationStats();
+    
+    private final LoanDAO loanDAO;
+    private final Map<Period, Window> windows;
+    private final Map<Integer, String> bookTitles;
+    private final Map<Integer, String> userNames;
+    private final AtomicLong activeLoans;
+    private volatile boolean loaded;
+    
+    /**
+     * Конструктор
+     */
+    private CirculationStats() {
+        this.loanDAO = ServiceRegistry.getInstance().getLoanDAO();
+        this.windows = new EnumMap<>(Period.class);
+        this.bookTitles = new ConcurrentHashMap<>();
+        this.userNames = new ConcurrentHashMap<>();
+        this.activeLoans = new AtomicLong();
+    }
+    
+    /**
+     * Връща споделената статистика
+     * @return инстанцията на статистиката
+     */
+    public static CirculationStats getInstance() {
+        INSTANCE.ensureLoaded();
+        return INSTANCE;
+    }
+    
+    /**
+     * Зарежда началните стойности с агрегиращи заявки при първо използване
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            
+            long now = System.currentTimeMillis();
+            for (Period period : Period.values()) {
+                Window window = new Window(periodStart(period, now));
+                Date since = new Date(window.start);
+                
+                for (CirculationCount count : loanDAO.getBorrowCountsByBookSince(since)) {
+                    bookTitles.put(count.getId(), count.getName());
+                    window.addBook(count.getId(), count.getCount());
+                }
+                for (CirculationCount count : loanDAO.getBorrowCountsByUserSince(since)) {
+                    userNames.put(count.getId(), count.getName());
+                    window.addUser(count.getId(), count.getCount());
+                }
+                window.returns = loanDAO.getReturnCountSince(since);
+                windows.put(period, window);
+            }
+            
+            activeLoans.set(loanDAO.getActiveLoansCount());
+            loaded = true;
+        }
+    }
+    
+    /**
+     * Отчита ново заемане
+     * @param bookId ID на книгата
+     * @param bookTitle заглавие на книгата
+     * @param userId ID на потребителя
+     * @param userName име на потребителя
+     */
+    public synchronized void recordBorrow(int bookId, String bookTitle, int userId, String userName) {
+        bookTitles.put(bookId, bookTitle);
+        userNames.put(userId, userName);
+        
+        long now = System.currentTimeMillis();
+        for (Period period : Period.values()) {
+            Window window = currentWindow(period, now);
+            window.addBook(bookId, 1);
+            window.addUser(userId, 1);
+        }
+        activeLoans.incrementAndGet();
+    }
+    
+    /**
+     * Отчита връщане на книга
+     */
+    public synchronized void recordReturn() {
+        long now = System.currentTimeMillis();
+        for (Period period : Period.values()) {
+            currentWindow(period, now).returns++;
+        }
+        activeLoans.decrementAndGet();
+    }
+    
+    /**
+     * Отчита изтрито активно заемане (не се брои като връщане)
+     */
+    public void recordActiveLoanRemoved() {
+        activeLoans.decrementAndGet();
+    }
+    
+    /**
+     * Връща най-заеманите книги за периода
+     * @param period период
+     * @return до TOP_K книги в низходящ ред
+     */
+    public synchronized List<CirculationCount> getTopBooks(Period period) {
+        return toCounts(currentWindow(period, System.currentTimeMillis()).topBooks, bookTitles);
+    }
+    
+    /**
+     * Връща най-активните читатели за периода
+     * @param period период
+     * @return до TOP_K потребители в низходящ ред
+     */
+    public synchronized List<CirculationCount> getTopUsers(Period period) {
+        return toCounts(currentWindow(period, System.currentTimeMillis()).topUsers, userNames);
+    }
+    
+    /**
+     * Връща броя на заеманията за периода
+     * @param period период
+     * @return брой заемания
+     */
+    public synchronized long getBorrowCount(Period period) {
+        return currentWindow(period, System.currentTimeMillis()).borrows;
+    }
+    
+    /**
+     * Връща броя на връщанията за периода
+     * @param period период
+     * @return брой връщания
+     */
+    public synchronized long getReturnCount(Period period) {
+        return currentWindow(period, System.currentTimeMillis()).returns;
+    }
+    
+    /**
+     * Връща текущия брой активни заемания
+     * @return брой активни заемания
+     */
+    public long getActiveLoans() {
+        return activeLoans.get();
+    }
+    
+    /**
+     * Връща прозореца за текущия период, като започва нов при смяна на деня/седмицата/месеца
+     */
+    private Window currentWindow(Period period, long now) {
+        long start = periodStart(period, now);
+        Window window = windows.get(period);
+        if (window == null || window.start != start) {
+            window = new Window(start);
+            windows.put(period, window);
+        }
+        return window;
+    }
+    
+    /**
+     * Изчислява началото на периода, в който попада даден момент
+     */
+    private static long periodStart(Period period, long now) {
+        Calendar cal = Calendar.getInstance();
+        cal.setFirstDayOfWeek(Calendar.MONDAY);
+        cal.setTimeInMillis(now);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        
+        if (period == Period.WEEK) {
+            cal.set(Calendar.DAY_OF_WEEK, Calendar.MONDAY);
+        } else if (period == Period.MONTH) {
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        return cal.getTimeInMillis();
+    }
+    
+    private static List<CirculationCount> toCounts(TopKTracker tracker, Map<Integer, String> names) {
+        List<CirculationCount> result = new ArrayList<>();
+        for (long[] entry : tracker.snapshot()) {
+            int id = (int) entry[0];
+            result.add(new CirculationCount(id, names.get(id), entry[1]));
+        }
+        return result;
+    }
+    
+    /**
+     * Броячи за един период
+     */
+    private static class Window {
+        private final long start;
+        private final Map<Integer, Long> bookCounts = new HashMap<>();
+        private final Map<Integer, Long> userCounts = new HashMap<>();
+        private final TopKTracker topBooks = new TopKTracker(TOP_K);
+        private final TopKTracker topUsers = new TopKTracker(TOP_K);
+        private long borrows;
+        private long returns;
+        
+        private Window(long start) {
+            this.start = start;
+        }
+        
+        private void addBook(int bookId, long delta) {
+            long count = bookCounts.merge(bookId, delta, Long::sum);
+            topBooks.update(bookId, count);
+            borrows += delta;
+        }
+        
+        private void addUser(int userId, long delta) {
+            long count = userCounts.merge(userId, delta, Long::sum);
+            topUsers.update(userId, count);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,457 @@
+package library.ui.main.panels;
+
+import javax.swing.RowFilter;
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.SwingUtilities;
+import javax.swing.table.TableModel;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+/**
+ * Сортиране на таблица според правилата на българския език, изпълнявано извън
+ * нишката на Swing. Текстовите стойности се сравняват чрез ключове на Collator,
+ * които се изчисляват веднъж за всяка различна стойност и се пазят в кеш;
+ * индексите на редовете се сортират паралелно във фонова нишка, а готовата
+ * подредба се прилага в нишката на Swing. Докато сортирането тече, таблицата
+ * показва предишната подредба.
+ *
+ * Филтърът (setRowFilter) се прилага в същата фонова задача. Стойностите,
+ * с които работи задачата, се копират от модела в нишката на Swing.
+ * @param <M> вид на модела на таблицата
+ */
+final class CollatedRowSorter<M extends TableModel> extends RowSorter<M> {
+    
+    private static final Locale LOCALE = new Locale("bg", "BG");
+    private static final ThreadLocal<Collator> COLLATOR = ThreadLocal.withInitial(() -> Collator.getInstance(LOCALE));
+    private static final int MAX_SORT_KEYS = 3;
+    private static final int MAX_CACHED_KEYS = 2_000_000;
+    // След толкова структурни промени в една партида подредбата не се поддържа, а се изчислява наново
+    private static final int MAX_INCREMENTAL_CHANGES = 8;
+    
+    private static final ExecutorService SORTER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "table-sort");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    private final M model;
+    private final Map<String, byte[]> keyCache = new ConcurrentHashMap<>();
+    private List<SortKey> sortKeys = Collections.emptyList();
+    private RowFilter<? super M, ? super Integer> rowFilter;
+    private volatile int[] precomputedColumns = new int[0];
+    
+    // Копие на стойностите по колони; валидно до следващата промяна в модела
+    private Object[][] snapshot;
+    
+    // null означава, че редовете се показват в реда на модела
+    private int[] viewToModel;
+    private int[] modelToView;
+    
+    private long generation;
+    private boolean scheduled;
+    private int changesInBatch;
+    
+    /**
+     * Конструктор
+     * @param model моделът на таблицата
+     */
+    CollatedRowSorter(M model) {
+        this.model = model;
+    }
+    
+    /**
+     * Задава колоните, за които ключовете за сравнение се изчисляват при всяко
+     * зареждане на данните, за да е мигновено първото сортиране по тях
+     * @param columns индекси на колони в модела
+     */
+    void setPrecomputedColumns(int... columns) {
+        precomputedColumns = columns.clone();
+        schedule();
+    }
+    
+    /**
+     * Задава филтър за редовете
+     * @param filter филтърът или null за всички редове
+     */
+    void setRowFilter(RowFilter<? super M, ? super Integer> filter) {
+        rowFilter = filter;
+        schedule();
+    }
+    
+    RowFilter<? super M, ? super Integer> getRowFilter() {
+        return rowFilter;
+    }
+    
+    @Override
+    public M getModel() {
+        return model;
+    }
+    
+    @Override
+    public void toggleSortOrder(int column) {
+        List<SortKey> keys = new ArrayList<>(sortKeys);
+        if (!keys.isEmpty() && keys.get(0).getColumn() == column) {
+            SortOrder order = keys.get(0).getSortOrder() == SortOrder.ASCENDING ? SortOrder.DESCENDING : SortOrder.ASCENDING;
+            keys.set(0, new SortKey(column, order));
+        } else {
+            keys.removeIf(key -> key.getColumn() == column);
+            keys.add(0, new SortKey(column, SortOrder.ASCENDING));
+            if (keys.size() > MAX_SORT_KEYS) {
+                keys = keys.subList(0, MAX_SORT_KEYS);
+            }
+        }
+        setSortKeys(keys);
+    }
+    
+    @Override
+    public int convertRowIndexToModel(int index) {
+        if (viewToModel == null) {
+            if (index < 0 || index >= model.getRowCount()) {
+                throw new IndexOutOfBoundsException("Невалиден индекс: " + index);
+            }
+            return index;
+        }
+        return viewToModel[index];
+    }
+    
+    @Override
+    public int convertRowIndexToView(int index) {
+        if (modelToView == null) {
+            if (index < 0 || index >= model.getRowCount()) {
+                throw new IndexOutOfBoundsException("Невалиден индекс: " + index);
+            }
+            return index;
+        }
+        return modelToView[index];
+    }
+    
+    @Override
+    public void setSortKeys(List<? extends SortKey> keys) {
+        List<SortKey> copy = keys == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(keys));
+        if (copy.equals(sortKeys)) {
+            return;
+        }
+        sortKeys = copy;
+        fireSortOrderChanged();
+        schedule();
+    }
+    
+    @Override
+    public List<? extends SortKey> getSortKeys() {
+        return sortKeys;
+    }
+    
+    @Override
+    public int getViewRowCount() {
+        return viewToModel == null ? model.getRowCount() : viewToModel.length;
+    }
+    
+    @Override
+    public int getModelRowCount() {
+        return model.getRowCount();
+    }
+    
+    @Override
+    public void modelStructureChanged() {
+        resetMapping();
+    }
+    
+    @Override
+    public void allRowsChanged() {
+        resetMapping();
+    }
+    
+    @Override
+    public void rowsInserted(int firstRow, int endRow) {
+        snapshot = null;
+        if (viewToModel != null && ++changesInBatch <= MAX_INCREMENTAL_CHANGES) {
+            // Новите редове се показват накрая, докато фоновото сортиране ги подреди
+            int count = endRow - firstRow + 1;
+            int[] mapping = new int[viewToModel.length + count];
+            for (int i = 0; i < viewToModel.length; i++) {
+                mapping[i] = viewToModel[i] >= firstRow ? viewToModel[i] + count : viewToModel[i];
+            }
+            for (int i = 0; i < count; i++) {
+                mapping[viewToModel.length + i] = firstRow + i;
+            }
+            setMapping(mapping);
+        } else {
+            viewToModel = null;
+            modelToView = null;
+        }
+        schedule();
+    }
+    
+    @Override
+    public void rowsDeleted(int firstRow, int endRow) {
+        snapshot = null;
+        if (viewToModel != null && ++changesInBatch <= MAX_INCREMENTAL_CHANGES) {
+            int count = endRow - firstRow + 1;
+            int[] mapping = new int[viewToModel.length];
+            int size = 0;
+            for (int modelRow : viewToModel) {
+                if (modelRow < firstRow) {
+                    mapping[size++] = modelRow;
+                } else if (modelRow > endRow) {
+                    mapping[size++] = modelRow - count;
+                }
+            }
+            setMapping(Arrays.copyOf(mapping, size));
+        } else {
+            viewToModel = null;
+            modelToView = null;
+        }
+        schedule();
+    }
+    
+    @Override
+    public void rowsUpdated(int firstRow, int endRow) {
+        snapshot = null;
+        schedule();
+    }
+    
+    @Override
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+        snapshot = null;
+        schedule();
+    }
+    
+    /**
+     * Връща подредбата на модела и планира ново сортиране
+     */
+    private void resetMapping() {
+        snapshot = null;
+        viewToModel = null;
+        modelToView = null;
+        schedule();
+    }
+    
+    private void setMapping(int[] mapping) {
+        int[] inverse = new int[model.getRowCount()];
+        Arrays.fill(inverse, -1);
+        for (int viewRow = 0; viewRow < mapping.length; viewRow++) {
+            inverse[mapping[viewRow]] = viewRow;
+        }
+        viewToModel = mapping;
+        modelToView = inverse;
+    }
+    
+    /**
+     * Планира сортиране след обработката на текущото събитие, така че поредица от
+     * промени в модела (напр. добавяне на много редове) води до едно сортиране
+     */
+    private void schedule() {
+        generation++;
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        SwingUtilities.invokeLater(this::startSort);
+    }
+    
+    /**
+     * Копира нужните стойности от модела и стартира фоновото сортиране
+     */
+    private void startSort() {
+        scheduled = false;
+        changesInBatch = 0;
+        long sortGeneration = generation;
+        
+        List<SortKey> activeKeys = new ArrayList<>();
+        for (SortKey key : sortKeys) {
+            if (key.getSortOrder() != SortOrder.UNSORTED) {
+                activeKeys.add(key);
+            }
+        }
+        RowFilter<? super M, ? super Integer> filter = rowFilter;
+        
+        if (activeKeys.isEmpty() && filter == null && precomputedColumns.length == 0) {
+            publish(sortGeneration, null);
+            return;
+        }
+        
+        // Колоните се копират само веднъж след всяка промяна, напр. не при всеки нов филтър;
+        // веднъж копирана колона не се променя, затова фоновата задача я чете безопасно
+        int rowCount = model.getRowCount();
+        int columnCount = model.getColumnCount();
+        if (snapshot == null || snapshot.length != columnCount) {
+            snapshot = new Object[columnCount][];
+        }
+        for (int column = 0; column < columnCount; column++) {
+            if (snapshot[column] == null && (filter != null || isNeeded(column, activeKeys))) {
+                Object[] values = new Object[rowCount];
+                for (int row = 0; row < rowCount; row++) {
+                    values[row] = model.getValueAt(row, column);
+                }
+                snapshot[column] = values;
+            }
+        }
+        Object[][] columns = snapshot.clone();
+        
+        SORTER.execute(() -> {
+            int[] mapping = sort(columns, rowCount, activeKeys, filter);
+            SwingUtilities.invokeLater(() -> publish(sortGeneration, mapping));
+        });
+    }
+    
+    private boolean isNeeded(int column, List<SortKey> keys) {
+        for (SortKey key : keys) {
+            if (key.getColumn() == column) {
+                return true;
+            }
+        }
+        for (int precomputed : precomputedColumns) {
+            if (precomputed == column) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Филтрира и сортира редовете; изпълнява се във фоновата нишка
+     * @return подредбата (индекси в модела по ред на показване) или null, ако е подредбата на модела
+     */
+    private int[] sort(Object[][] columns, int rowCount, List<SortKey> keys, RowFilter<? super M, ? super Integer> filter) {
+        // Ключовете на текстовите колони се изчисляват паралелно; повтарящите се стойности - веднъж
+        if (keyCache.size() > MAX_CACHED_KEYS) {
+            keyCache.clear();
+        }
+        Object[][] sortValues = new Object[columns.length][];
+        for (int column = 0; column < columns.length; column++) {
+            Object[] values = columns[column];
+            if (values != null && isNeeded(column, keys)) {
+                Object[] converted = new Object[rowCount];
+                IntStream.range(0, rowCount).parallel().forEach(row -> converted[row] = toSortValue(values[row]));
+                sortValues[column] = converted;
+            }
+        }
+        
+        int[] rows;
+        if (filter != null) {
+            // RowFilter не е безопасен за няколко нишки, затова се прилага последователно
+            SnapshotEntry entry = new SnapshotEntry(columns);
+            int[] included = new int[rowCount];
+            int size = 0;
+            for (int row = 0; row < rowCount; row++) {
+                entry.row = row;
+                if (filter.include(entry)) {
+                    included[size++] = row;
+                }
+            }
+            rows = Arrays.copyOf(included, size);
+        } else {
+            rows = IntStream.range(0, rowCount).toArray();
+        }
+        
+        if (keys.isEmpty()) {
+            return filter == null ? null : rows;
+        }
+        
+        Integer[] boxed = new Integer[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            boxed[i] = rows[i];
+        }
+        Arrays.parallelSort(boxed, comparator(sortValues, keys));
+        
+        int[] mapping = new int[boxed.length];
+        for (int i = 0; i < boxed.length; i++) {
+            mapping[i] = boxed[i];
+        }
+        return mapping;
+    }
+    
+    /**
+     * Прилага готовата подредба, ако междувременно не е поискано ново сортиране
+     */
+    private void publish(long sortGeneration, int[] mapping) {
+        if (sortGeneration != generation) {
+            return;
+        }
+        
+        int[] previous = viewToModel;
+        if (mapping == null) {
+            viewToModel = null;
+            modelToView = null;
+        } else {
+            setMapping(mapping);
+        }
+        fireRowSorterChanged(previous);
+    }
+    
+    private Object toSortValue(Object value) {
+        if (value instanceof String) {
+            return keyCache.computeIfAbsent((String) value,
+                    text -> COLLATOR.get().getCollationKey(text).toByteArray());
+        }
+        return value;
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Comparator<Integer> comparator(Object[][] values, List<SortKey> keys) {
+        return (a, b) -> {
+            for (SortKey key : keys) {
+                Object[] column = values[key.getColumn()];
+                Object x = column[a];
+                Object y = column[b];
+                int result;
+                if (x == null || y == null) {
+                    result = x == null ? (y == null ? 0 : -1) : 1;
+                } else if (x instanceof byte[] && y instanceof byte[]) {
+                    result = Arrays.compareUnsigned((byte[]) x, (byte[]) y);
+                } else if (x instanceof Comparable && x.getClass() == y.getClass()) {
+                    result = ((Comparable) x).compareTo(y);
+                } else {
+                    result = x.toString().compareTo(y.toString());
+                }
+                if (result != 0) {
+                    return key.getSortOrder() == SortOrder.DESCENDING ? -result : result;
+                }
+            }
+            return Integer.compare(a, b);
+        };
+    }
+    
+    /**
+     * Ред от копието на стойностите, подаван на филтъра
+     */
+    private class SnapshotEntry extends RowFilter.Entry<M, Integer> {
+        private final Object[][] columns;
+        int row;
+        
+        SnapshotEntry(Object[][] columns) {
+            this.columns = columns;
+        }
+        
+        @Override
+        public M getModel() {
+            return model;
+        }
+        
+        @Override
+        public int getValueCount() {
+            return columns.length;
+        }
+        
+        @Override
+        public Object getValue(int index) {
+            return columns[index][row];
+        }
+        
+        @Override
+        public Integer getIdentifier() {
+            return row;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,454 @@
+package library.dao;
+
+import library.metrics.MetricsRegistry;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограничен пул от връзки с базата данни. Всяка физическа връзка пази LRU кеш
+ * на подготвените заявки по текста на SQL, така че постоянните заявки на DAO
+ * класовете се подготвят от сървъра веднъж на връзка, а не при всяко извикване.
+ * Затварянето на получената връзка или заявка я връща в пула/кеша вместо да я затваря.
+ */
+class ConnectionPool {
+    
+    /**
+     * Източник на нови физически връзки
+     */
+    interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+    
+    // Неизползвана по-дълго от това връзка се проверява преди да бъде дадена
+    private static final long VALIDATE_AFTER_MILLIS = 30_000;
+    
+    private static final MetricsRegistry.Counter CACHE_HITS = MetricsRegistry.getInstance()
+            .counter("library_statement_cache_requests_total", "Търсения в кеша на подготвените заявки", "result", "hit");
+    private static final MetricsRegistry.Counter CACHE_MISSES = MetricsRegistry.getInstance()
+            .counter("library_statement_cache_requests_total", "Търсения в кеша на подготвените заявки", "result", "miss");
+    private static final MetricsRegistry.Counter CACHE_EVICTIONS = MetricsRegistry.getInstance()
+            .counter("library_statement_cache_evictions_total", "Подготвени заявки, изхвърлени от кеша");
+    private static final MetricsRegistry.Counter POOL_TIMEOUTS = MetricsRegistry.getInstance()
+            .counter("library_db_pool_timeouts_total", "Неуспешни искания на връзка поради изчакване");
+    
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long waitMillis;
+    private final int statementCacheSize;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private int size;
+    private boolean shutdown;
+    
+    /**
+     * Конструктор
+     * @param factory източник на физически връзки
+     * @param maxSize максимален брой физически връзки
+     * @param waitMillis максимално време за изчакване на свободна връзка
+     * @param statementCacheSize брой кеширани заявки на връзка (0 изключва кеша)
+     * @param labels двойки етикет, стойност за метриките на пула (напр. за репликите)
+     */
+    ConnectionPool(ConnectionFactory factory, int maxSize, long waitMillis, int statementCacheSize, String... labels) {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.waitMillis = waitMillis;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.gauge("library_db_pool_active", "Връзки от пула, заети в момента", this::getActive, labels);
+        registry.gauge("library_db_pool_idle", "Свободни връзки в пула", this::getIdle, labels);
+        registry.gauge("library_db_pool_max", "Максимален размер на пула", () -> this.maxSize, labels);
+    }
+    
+    /**
+     * Взема връзка от пула, като при нужда отваря нова или изчаква освобождаване
+     * @return логическа връзка; close() я връща в пула
+     * @throws SQLException при грешка във връзката или изтекло изчакване
+     */
+    Connection borrow() throws SQLException {
+        PooledConnection pooled = null;
+        boolean create = false;
+        
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            while (pooled == null && !create) {
+                if (shutdown) {
+                    throw new SQLException("Пулът от връзки е спрян");
+                }
+                if (!idle.isEmpty()) {
+                    pooled = idle.pollFirst();
+                } else if (size < maxSize) {
+                    size++;
+                    create = true;
+                } else {
+                    if (remaining <= 0) {
+                        POOL_TIMEOUTS.increment();
+                        throw new SQLException("Няма свободна връзка с базата данни след " + waitMillis + " ms", "HYT00");
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Прекъснато изчакване на връзка", e);
+        } finally {
+            lock.unlock();
+        }
+        
+        if (pooled != null && !isUsable(pooled)) {
+            discard(pooled);
+            return borrow();
+        }
+        
+        if (create) {
+            try {
+                pooled = new PooledConnection(factory.open());
+            } catch (SQLException | RuntimeException e) {
+                lock.lock();
+                try {
+                    size--;
+                    available.signal();
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+        }
+        
+        return pooled.lease();
+    }
+    
+    /**
+     * Затваря всички свободни връзки; заетите се затварят при връщането си
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            while (!idle.isEmpty()) {
+                PooledConnection pooled = idle.pollFirst();
+                size--;
+                pooled.closePhysical();
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    int getActive() {
+        lock.lock();
+        try {
+            return size - idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    int getIdle() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private boolean isUsable(PooledConnection pooled) {
+        try {
+            if (pooled.raw.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - pooled.lastUsed > VALIDATE_AFTER_MILLIS) {
+                return pooled.raw.isValid(2);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+    
+    private void release(PooledConnection pooled) {
+        boolean reusable;
+        try {
+            // Незавършена транзакция не бива да премине към следващия потребител на връзката
+            if (!pooled.raw.getAutoCommit()) {
+                pooled.raw.rollback();
+                pooled.raw.setAutoCommit(true);
+            }
+            pooled.raw.clearWarnings();
+            reusable = !pooled.raw.isClosed();
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при връщане на връзка в пула", e);
+            reusable = false;
+        }
+        
+        if (!reusable) {
+            discard(pooled);
+            return;
+        }
+        
+        lock.lock();
+        try {
+            if (shutdown) {
+                size--;
+                pooled.closePhysical();
+            } else {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pooled);
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void discard(PooledConnection pooled) {
+        pooled.closePhysical();
+        lock.lock();
+        try {
+            size--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * Физическа връзка в пула заедно с кеша на подготвените заявки
+     */
+    private class PooledConnection {
+        private final Connection raw;
+        private final Map<String, CachedStatement> statements;
+        private long lastUsed = System.currentTimeMillis();
+        
+        private PooledConnection(Connection raw) {
+            this.raw = raw;
+            this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    if (size() <= statementCacheSize) {
+                        return false;
+                    }
+                    CACHE_EVICTIONS.increment();
+                    eldest.getValue().evict();
+                    return true;
+                }
+            };
+        }
+        
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, new LeaseHandler(this));
+        }
+        
+        /**
+         * Връща подготвена заявка от кеша или подготвя нова
+         */
+        private PreparedStatement prepare(Connection logical, String sql, int autoGeneratedKeys) throws SQLException {
+            if (statementCacheSize == 0) {
+                return raw.prepareStatement(sql, autoGeneratedKeys);
+            }
+            
+            String key = autoGeneratedKeys + ":" + sql;
+            CachedStatement cached = statements.get(key);
+            if (cached != null && !cached.inUse) {
+                CACHE_HITS.increment();
+            } else {
+                CACHE_MISSES.increment();
+                PreparedStatement statement = raw.prepareStatement(sql, autoGeneratedKeys);
+                if (cached != null) {
+                    // Същата заявка вече е отворена на тази връзка - новата не се кешира
+                    return statement;
+                }
+                cached = new CachedStatement(key, statement);
+                statements.put(key, cached);
+            }
+            
+            cached.inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] {PreparedStatement.class}, new StatementHandler(this, cached, logical));
+        }
+        
+        private void closePhysical() {
+            for (Iterator<CachedStatement> it = statements.values().iterator(); it.hasNext(); ) {
+                it.next().closePhysical();
+                it.remove();
+            }
+            try {
+                raw.close();
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при затваряне на връзка от пула", e);
+            }
+        }
+    }
+    
+    /**
+     * Кеширана подготвена заявка
+     */
+    private static class CachedStatement {
+        private final String key;
+        private final PreparedStatement raw;
+        private boolean inUse;
+        private boolean evicted;
+        
+        private CachedStatement(String key, PreparedStatement raw) {
+            this.key = key;
+            this.raw = raw;
+        }
+        
+        private void evict() {
+            evicted = true;
+            if (!inUse) {
+                closePhysical();
+            }
+        }
+        
+        private void closePhysical() {
+            try {
+                raw.close();
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при затваряне на кеширана заявка", e);
+            }
+        }
+    }
+    
+    /**
+     * Логическа връзка, дадена на DAO метод; close() я връща в пула
+     */
+    private class LeaseHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+        
+        private LeaseHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            
+            if (closed) {
+                throw new SQLException("Връзката е затворена");
+            }
+            
+            if ("prepareStatement".equals(name)) {
+                if (args.length == 1) {
+                    return pooled.prepare((Connection) proxy, (String) args[0], Statement.NO_GENERATED_KEYS);
+                }
+                if (args.length == 2 && args[1] instanceof Integer) {
+                    return pooled.prepare((Connection) proxy, (String) args[0], (Integer) args[1]);
+                }
+            }
+            return ConnectionPool.invoke(pooled.raw, method, args);
+        }
+    }
+    
+    /**
+     * Логическа заявка от кеша; close() я нулира и връща в кеша
+     */
+    private static class StatementHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final CachedStatement cached;
+        private final Connection logical;
+        private boolean closed;
+        
+        private StatementHandler(PooledConnection pooled, CachedStatement cached, Connection logical) {
+            this.pooled = pooled;
+            this.cached = cached;
+            this.logical = logical;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        giveBack();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    return logical;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            
+            if (closed) {
+                throw new SQLException("Заявката е затворена");
+            }
+            return ConnectionPool.invoke(cached.raw, method, args);
+        }
+        
+        private void giveBack() {
+            try {
+                ResultSet rs = cached.raw.getResultSet();
+                if (rs != null) {
+                    rs.close();
+                }
+                cached.raw.clearParameters();
+                cached.raw.clearBatch();
+                cached.raw.clearWarnings();
+            } catch (SQLException e) {
+                // Заявка, която не може да бъде нулирана, не се използва повторно
+                cached.evicted = true;
+                pooled.statements.remove(cached.key);
+            }
+            
+            cached.inUse = false;
+            if (cached.evicted) {
+                cached.closePhysical();
+            }
+        }
+    }
+}
\ No newline at end of file
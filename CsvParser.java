@@ -0,0 +1,99 @@
+package library.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Прост четец на CSV файлове (RFC 4180): полета в кавички, удвоени кавички
+ * и нови редове в кавички. Разделителят се определя от първия ред - точка
+ * и запетая (както записва Excel с български настройки) или запетая.
+ */
+public class CsvParser {
+    
+    private CsvParser() {
+    }
+    
+    /**
+     * Прочита всички записи
+     * @param reader източникът
+     * @return записите; празните редове се пропускат
+     * @throws IOException при грешка при четене
+     */
+    public static List<String[]> parse(Reader reader) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = reader.read(buffer)) > 0) {
+            text.append(buffer, 0, read);
+        }
+        
+        // Пропускане на BOM в началото
+        int pos = text.length() > 0 && text.charAt(0) == '\uFEFF' ? 1 : 0;
+        char delimiter = detectDelimiter(text, pos);
+        
+        List<String[]> records = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean fieldStarted = false;
+        
+        for (; pos < text.length(); pos++) {
+            char c = text.charAt(pos);
+            if (quoted) {
+                if (c == '"') {
+                    if (pos + 1 < text.length() && text.charAt(pos + 1) == '"') {
+                        field.append('"');
+                        pos++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+                fieldStarted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+                fieldStarted = true;
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r' && pos + 1 < text.length() && text.charAt(pos + 1) == '\n') {
+                    pos++;
+                }
+                endRecord(records, fields, field, fieldStarted);
+                fieldStarted = false;
+            } else {
+                field.append(c);
+                fieldStarted = true;
+            }
+        }
+        endRecord(records, fields, field, fieldStarted);
+        
+        return records;
+    }
+    
+    private static void endRecord(List<String[]> records, List<String> fields, StringBuilder field, boolean fieldStarted) {
+        if (fieldStarted || !fields.isEmpty()) {
+            fields.add(field.toString().trim());
+            records.add(fields.toArray(new String[0]));
+        }
+        fields.clear();
+        field.setLength(0);
+    }
+    
+    private static char detectDelimiter(CharSequence text, int from) {
+        int commas = 0;
+        int semicolons = 0;
+        for (int i = from; i < text.length() && text.charAt(i) != '\n' && text.charAt(i) != '\r'; i++) {
+            if (text.charAt(i) == ',') {
+                commas++;
+            } else if (text.charAt(i) == ';') {
+                semicolons++;
+            }
+        }
+        return semicolons > commas ? ';' : ',';
+    }
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+package library.dao;
+
+import library.utils.AsyncLogger;
+
+import java.sql.SQLException;
+
+/**
+ * Записва грешките от DAO класовете в асинхронния дневник, като добавя
+ * класа и метода, SQLState и времето от получаването на връзката.
+ */
+class DaoLog {
+    
+    private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    
+    private DaoLog() {
+    }
+    
+    /**
+     * Записва грешка от базата данни
+     * @param message описание на операцията, напр. "Грешка при добавяне на книга"
+     * @param e възникналата грешка
+     */
+    static void error(String message, SQLException e) {
+        DatabaseConnection.recordFailure(e);
+        log(AsyncLogger.Level.ERROR, message, e.getSQLState(), e.getMessage());
+    }
+    
+    /**
+     * Записва предупреждение без изключение
+     * @param message съобщение
+     */
+    static void warn(String message) {
+        log(AsyncLogger.Level.WARN, message, null, null);
+    }
+    
+    /**
+     * Записва предупреждение за грешка, която не означава проблем с връзката
+     * (напр. неуспешен EXPLAIN) и затова не се отчита като отказ на базата
+     * @param message описание на операцията
+     * @param e възникналата грешка
+     */
+    static void warn(String message, SQLException e) {
+        log(AsyncLogger.Level.WARN, message, e.getSQLState(), e.getMessage());
+    }
+    
+    /**
+     * Записва информационно съобщение
+     * @param message съобщение
+     */
+    static void info(String message) {
+        log(AsyncLogger.Level.INFO, message, null, null);
+    }
+    
+    private static void log(AsyncLogger.Level level, String message, String sqlState, String error) {
+        StackWalker.StackFrame caller = WALKER.walk(frames -> frames
+                .filter(f -> f.getDeclaringClass() != DaoLog.class)
+                .findFirst()
+                .orElse(null));
+        
+        String source = null;
+        String method = null;
+        if (caller != null) {
+            source = caller.getDeclaringClass().getSimpleName();
+            method = caller.getMethodName();
+        }
+        
+        AsyncLogger.log(level, message, source, method, sqlState, JdbcStats.operationElapsedMicros(), error);
+    }
+}
\ No newline at end of file
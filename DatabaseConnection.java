@@ -1,16 +1,80 @@
 package library.dao;
 
+import library.utils.CircuitBreaker;
+
+import java.awt.EventQueue;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Клас за връзка с базата данни
+ * Клас за връзка с базата данни.
+ * Връзката може да се насочи към друга база (напр. вградена H2 за локална работа)
+ * чрез системните свойства library.db.url, library.db.user и library.db.password.
+ * Връзките се вземат от пул с размер library.db.poolSize (по подразбиране 8, 0 изключва пула),
+ * като всяка физическа връзка кешира до library.db.statementCacheSize подготвени заявки.
+ * Временните грешки при свързване се повтарят с нарастваща пауза и случайно отклонение
+ * (но не в нишката на интерфейса и не при изчакване на свободна връзка от пула),
+ * а след library.db.breaker.failures поредни неуспеха прекъсвачът се отваря за
+ * library.db.breaker.openMillis и заявките се отказват веднага (режим само за четене).
+ *
+ * Четенията, за които леко закъснение е допустимо (списъци, броене, статистики),
+ * вземат връзка с getReadConnection и могат да се обслужат от реплика, зададена в
+ * library.db.replicas (адреси, разделени със запетая; потребител и парола от
+ * library.db.replicaUser и library.db.replicaPassword или като на основната база).
+ * След запис четенията остават към основната база за library.db.readYourWritesMillis
+ * (по подразбиране 2000). За локална проба са достатъчни две вградени бази, напр.
+ * -Dlibrary.db.url=jdbc:h2:./data/primary -Dlibrary.db.replicas=jdbc:h2:./data/replica;
+ * репликацията между тях не се симулира.
+ *
+ * При зададени филиали (виж ShardRouter) всеки филиал има собствен пул от връзки и
+ * getConnection връща връзка към базата на филиала, към който е насочена текущата
+ * нишка. Прекъсвачът и репликите се отнасят само до основната база.
  */
 public class DatabaseConnection {
-    private static final String URL = "jdbc:mysql://localhost:3306/library_db?useSSL=false&useUnicode=true&characterEncoding=UTF-8&serverTimezone=UTC";
-    private static final String USER = "root";
-    private static final String PASSWORD = "password"; // Променете това със собствената си парола
+    private static final String URL = System.getProperty("library.db.url",
+            "jdbc:mysql://localhost:3306/library_db?useSSL=false&useUnicode=true&characterEncoding=UTF-8&serverTimezone=UTC");
+    private static final String USER = System.getProperty("library.db.user", "root");
+    private static final String PASSWORD = System.getProperty("library.db.password", "password"); // Променете това със собствената си парола
+    
+    // Измерване на заявките (JdbcStats); изключва се с -Dlibrary.jdbc.instrument=false
+    private static final boolean INSTRUMENT = Boolean.parseBoolean(System.getProperty("library.jdbc.instrument", "true"));
+    
+    private static final int POOL_SIZE = Integer.getInteger("library.db.poolSize", 8);
+    private static final long POOL_WAIT_MILLIS = Long.getLong("library.db.poolWaitMillis", 5000L);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("library.db.statementCacheSize", 32);
+    
+    private static final ConnectionPool[] POOLS = new ConnectionPool[ShardRouter.getBranchCount()];
+    
+    private static final String REPLICA_USER = System.getProperty("library.db.replicaUser", USER);
+    private static final String REPLICA_PASSWORD = System.getProperty("library.db.replicaPassword", PASSWORD);
+    private static final ReplicaRouter ROUTER = createRouter(System.getProperty("library.db.replicas", ""));
+    
+    private static final int RETRIES = Integer.getInteger("library.db.retries", 3);
+    private static final long RETRY_BASE_MILLIS = Long.getLong("library.db.retryBaseMillis", 100L);
+    private static final long RETRY_MAX_MILLIS = 2000;
+    private static final String POOL_TIMEOUT_STATE = "HYT00";
+    
+    private static final CircuitBreaker BREAKER = new CircuitBreaker(
+            Integer.getInteger("library.db.breaker.failures", 5),
+            Long.getLong("library.db.breaker.openMillis", 10_000L));
+    
+    // Грешка в последната операция с базата в текущата нишка: 0 - няма, 1 - друга, 2 - във връзката
+    private static final ThreadLocal<int[]> FAILED = ThreadLocal.withInitial(() -> new int[1]);
+    
+    // Миграциите на схемата се прилагат веднъж - при първата успешна връзка
+    private static final boolean MIGRATE = Boolean.parseBoolean(System.getProperty("library.db.migrate", "true"));
+    private static volatile boolean schemaChecked = !MIGRATE;
+    private static volatile SQLException schemaError;
+    private static final Set<Integer> PREPARED_BRANCHES = ConcurrentHashMap.newKeySet();
+    // Отделно заключване - getPool не трябва да чака, докато миграцията се свързва
+    private static final Object SCHEMA_LOCK = new Object();
     
     /**
      * Осъществява връзка с базата данни
@@ -18,11 +82,389 @@ public class DatabaseConnection {
      * @throws SQLException при грешка във връзката
      */
     public static Connection getConnection() throws SQLException {
+        return getConnection(ShardRouter.currentBranch());
+    }
+    
+    /**
+     * Осъществява връзка с базата данни на даден филиал
+     * @param branch номерът на филиала (ShardRouter.MAIN за основната база)
+     * @return Connection обект за връзка с базата данни
+     * @throws SQLException при грешка във връзката
+     */
+    public static Connection getConnection(int branch) throws SQLException {
+        JdbcStats.markOperationStart();
+        boolean main = branch == ShardRouter.MAIN;
+        
+        // Прекъсвачът се проверява първо - при недостъпна база и миграцията не се опитва
+        if (main && !BREAKER.allowRequest()) {
+            throw new SQLException("Базата данни е временно недостъпна", "08000");
+        }
+        
+        if (main && !schemaChecked) {
+            ensureSchema();
+        } else if (!main && !PREPARED_BRANCHES.contains(branch)) {
+            // Неподготвен филиал дава ID-та извън своя диапазон, които ShardRouter
+            // насочва към основната база - затова без подготовка връзка не се дава
+            ensureBranchSchema(branch);
+        }
+        
+        long start = System.nanoTime();
+        Connection conn = acquire(branch);
+        if (main && ROUTER.isEnabled()) {
+            conn = ROUTER.trackWrites(conn);
+        }
+        if (!INSTRUMENT) {
+            return conn;
+        }
+        
+        JdbcStats.recordConnectionWait((System.nanoTime() - start) / 1000);
+        return InstrumentedJdbc.wrap(conn);
+    }
+    
+    /**
+     * Прилага миграциите на схемата на основната база, ако още не са приложени.
+     * Извиква се при стартиране във фонов режим, за да не се изпълняват при
+     * първата заявка от нишката на интерфейса.
+     * @return true, ако схемата е актуална; false, ако базата е недостъпна -
+     *         тогава миграциите се прилагат при първата успешна връзка
+     * @throws SQLException при грешка в миграция; приложението не може да работи със схемата
+     */
+    public static boolean prepareSchema() throws SQLException {
+        if (schemaChecked) {
+            return true;
+        }
+        if (!BREAKER.allowRequest()) {
+            return false;
+        }
         try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            return DriverManager.getConnection(URL, USER, PASSWORD);
-        } catch (ClassNotFoundException e) {
-            throw new SQLException("MySQL JDBC Driver не е намерен", e);
+            ensureSchema();
+            return true;
+        } catch (SQLException e) {
+            if (schemaError != null) {
+                throw e;
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Осъществява връзка за заявки само за четене. При зададени реплики връзката
+     * е към една от тях, освен ако наскоро е имало запис или няма здрава реплика.
+     * Подходяща е за четения, при които кратко закъснение спрямо основната база
+     * е допустимо - проверките преди промяна трябва да използват getConnection.
+     * @return Connection обект за връзка с базата данни
+     * @throws SQLException при грешка във връзката
+     */
+    public static Connection getReadConnection() throws SQLException {
+        return getReadConnection(ShardRouter.currentBranch());
+    }
+    
+    /**
+     * Осъществява връзка за заявки само за четене в базата на даден филиал.
+     * Репликите се използват само за основната база.
+     * @param branch номерът на филиала (ShardRouter.MAIN за основната база)
+     * @return Connection обект за връзка с базата данни
+     * @throws SQLException при грешка във връзката
+     */
+    public static Connection getReadConnection(int branch) throws SQLException {
+        if (!schemaChecked || branch != ShardRouter.MAIN) {
+            return getConnection(branch);
+        }
+        
+        long start = System.nanoTime();
+        Connection conn = ROUTER.acquire();
+        if (conn == null) {
+            return getConnection();
+        }
+        
+        JdbcStats.markOperationStart();
+        if (!INSTRUMENT) {
+            return conn;
+        }
+        
+        JdbcStats.recordConnectionWait((System.nanoTime() - start) / 1000);
+        return InstrumentedJdbc.wrap(conn);
+    }
+    
+    /**
+     * Взема връзка, като повтаря временните грешки с нарастваща пауза
+     * @param branch номерът на филиала
+     * @return Connection обект за връзка с базата данни
+     * @throws SQLException при грешка, която не е временна, или след последния опит
+     */
+    private static Connection acquire(int branch) throws SQLException {
+        boolean main = branch == ShardRouter.MAIN;
+        // Паузите между опитите биха блокирали интерфейса - там грешката се връща веднага
+        int retries = EventQueue.isDispatchThread() ? 0 : RETRIES;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Connection conn = POOL_SIZE > 0 ? getPool(branch).borrow() : openConnection(branch);
+                if (main) {
+                    BREAKER.recordSuccess();
+                }
+                return conn;
+            } catch (SQLException e) {
+                // Изтеклото чакане за връзка от пула (HYT00) не се повтаря - пулът е изчерпан,
+                // а не базата, и повторението само би умножило изчакването
+                if (!isTransient(e) || POOL_TIMEOUT_STATE.equals(e.getSQLState()) || attempt >= retries) {
+                    if (main && (isConnectionFailure(e) || BREAKER.getState() != CircuitBreaker.State.CLOSED)) {
+                        BREAKER.recordFailure();
+                    }
+                    throw e;
+                }
+                
+                // Пълно случайно отклонение, за да не се връщат всички клиенти едновременно
+                long cap = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << attempt);
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(cap / 2, cap + 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Проверява дали грешката е временна и операцията може да бъде повторена
+     * @param e грешката
+     * @return true при прекъсната връзка, deadlock или изтекло време
+     */
+    static boolean isTransient(SQLException e) {
+        if (e instanceof SQLTransientException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("08") || "40001".equals(state)
+                || "40P01".equals(state) || "HYT00".equals(state));
+    }
+    
+    /**
+     * Проверява дали грешката означава, че базата данни е недостъпна
+     * @param e грешката
+     * @return true при SQLState от клас 08 (грешка във връзката)
+     */
+    static boolean isConnectionFailure(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+    
+    /**
+     * Отбелязва грешка в операция с базата данни в текущата нишка
+     * @param e грешката
+     */
+    static void recordFailure(SQLException e) {
+        FAILED.get()[0] = isConnectionFailure(e) ? 2 : Math.max(1, FAILED.get()[0]);
+        if (isConnectionFailure(e) && ShardRouter.currentBranch() == ShardRouter.MAIN
+                && BREAKER.getState() == CircuitBreaker.State.CLOSED) {
+            BREAKER.recordFailure();
+        }
+    }
+    
+    /**
+     * Взема и изчиства отметката за грешка в текущата нишка
+     * @return 0 - няма грешка, 1 - друга грешка, 2 - грешка във връзката
+     */
+    static int takeFailure() {
+        int[] failed = FAILED.get();
+        int result = failed[0];
+        failed[0] = 0;
+        return result;
+    }
+    
+    /**
+     * Пренася отметка за грешка (напр. от нишка, обслужила друг филиал) в текущата нишка
+     * @param failure стойност, върната от takeFailure
+     */
+    static void mergeFailure(int failure) {
+        int[] failed = FAILED.get();
+        failed[0] = Math.max(failed[0], failure);
+    }
+    
+    /**
+     * Изчиства отметката за грешка в текущата нишка
+     */
+    public static void clearFailure() {
+        FAILED.get()[0] = 0;
+    }
+    
+    /**
+     * Проверява и изчиства отметката за грешка в текущата нишка
+     * @return true ако от последното изчистване е имало грешка в базата данни
+     */
+    public static boolean consumeFailure() {
+        int[] failed = FAILED.get();
+        boolean result = failed[0] != 0;
+        failed[0] = 0;
+        return result;
+    }
+    
+    /**
+     * Проверява и изчиства отметката за грешка в текущата нишка
+     * @return true ако от последното изчистване базата данни е била недостъпна
+     */
+    public static boolean consumeConnectionFailure() {
+        int[] failed = FAILED.get();
+        boolean result = failed[0] == 2;
+        failed[0] = 0;
+        return result;
+    }
+    
+    /**
+     * Проверява дали приложението е в режим само за четене поради недостъпна база данни
+     * @return true ако прекъсвачът не е затворен
+     */
+    public static boolean isReadOnly() {
+        return BREAKER.getState() != CircuitBreaker.State.CLOSED;
+    }
+    
+    /**
+     * Добавя слушател за промяна на достъпността на базата данни
+     * @param listener слушателят
+     */
+    public static void addStateListener(CircuitBreaker.Listener listener) {
+        BREAKER.addListener(listener);
+    }
+    
+    /**
+     * Премахва слушател за промяна на достъпността на базата данни
+     * @param listener слушателят
+     */
+    public static void removeStateListener(CircuitBreaker.Listener listener) {
+        BREAKER.removeListener(listener);
+    }
+    
+    /**
+     * Отваря нова физическа връзка с базата данни
+     * @return Connection обект за връзка с базата данни
+     * @throws SQLException при грешка във връзката
+     */
+    private static Connection openConnection() throws SQLException {
+        return openConnection(URL, USER, PASSWORD);
+    }
+    
+    /**
+     * Отваря нова физическа връзка с базата данни на филиал
+     * @param branch номерът на филиала
+     * @return Connection обект за връзка с базата данни
+     * @throws SQLException при грешка във връзката
+     */
+    private static Connection openConnection(int branch) throws SQLException {
+        if (branch == ShardRouter.MAIN) {
+            return openConnection();
+        }
+        return openConnection(ShardRouter.getUrl(branch), ShardRouter.getUser(branch), ShardRouter.getPassword(branch));
+    }
+    
+    private static Connection openConnection(String url, String user, String password) throws SQLException {
+        if (url.startsWith("jdbc:mysql:")) {
+            try {
+                Class.forName("com.mysql.cj.jdbc.Driver");
+            } catch (ClassNotFoundException e) {
+                throw new SQLException("MySQL JDBC Driver не е намерен", e);
+            }
+        }
+        return DriverManager.getConnection(url, user, password);
+    }
+    
+    /**
+     * Създава разпределителя на четенията
+     * @param replicas адресите на репликите, разделени със запетая
+     * @return разпределителят (без реплики, ако не са зададени)
+     */
+    private static ReplicaRouter createRouter(String replicas) {
+        List<String> urls = new ArrayList<>();
+        List<ConnectionPool.ConnectionFactory> factories = new ArrayList<>();
+        for (String url : replicas.split(",")) {
+            String trimmed = url.trim();
+            if (!trimmed.isEmpty()) {
+                urls.add(trimmed);
+                factories.add(() -> openConnection(trimmed, REPLICA_USER, REPLICA_PASSWORD));
+            }
+        }
+        return new ReplicaRouter(urls, factories, POOL_SIZE, POOL_WAIT_MILLIS, STATEMENT_CACHE_SIZE,
+                Long.getLong("library.db.readYourWritesMillis", 2000L));
+    }
+    
+    /**
+     * Връща пула от връзки на филиал, като го създава при първо обръщение
+     * @param branch номерът на филиала
+     * @return пулът
+     */
+    private static synchronized ConnectionPool getPool(int branch) {
+        ConnectionPool pool = POOLS[branch];
+        if (pool == null) {
+            pool = branch == ShardRouter.MAIN
+                    ? new ConnectionPool(DatabaseConnection::openConnection, POOL_SIZE, POOL_WAIT_MILLIS, STATEMENT_CACHE_SIZE)
+                    : new ConnectionPool(() -> openConnection(branch), POOL_SIZE, POOL_WAIT_MILLIS, STATEMENT_CACHE_SIZE,
+                            "pool", "branch" + branch);
+            Runtime.getRuntime().addShutdownHook(new Thread(pool::shutdown, "connection-pool-shutdown"));
+            POOLS[branch] = pool;
+        }
+        return pool;
+    }
+    
+    /**
+     * Прилага неприложените миграции на схемата и проверява плановете на основните заявки.
+     * Връзката се взема през acquire, така че неуспешното свързване се повтаря с пауза
+     * и се отчита от прекъсвача.
+     * @throws SQLException при грешка във връзката или в миграция
+     */
+    private static void ensureSchema() throws SQLException {
+        synchronized (SCHEMA_LOCK) {
+            if (schemaChecked) {
+                return;
+            }
+            if (schemaError != null) {
+                // Не опитваме отново - частично приложена миграция (напр. V5) не може да се повтори,
+                // а работата със схема, за която знаем, че е грешна, би повредила данните
+                throw new SQLException("Схемата на базата данни не е актуална: " + schemaError.getMessage(), schemaError);
+            }
+            
+            Connection conn = acquire(ShardRouter.MAIN);
+            try {
+                SchemaMigrator.migrate(conn);
+                QueryPlanChecker.check(conn);
+                schemaChecked = true;
+            } catch (SQLException e) {
+                // Прекъсната връзка се повтаря при следващата заявка; всяка друга грешка изисква намеса
+                if (!isTransient(e)) {
+                    schemaError = e;
+                }
+                throw e;
+            } finally {
+                closeConnection(conn);
+            }
+        }
+    }
+    
+    /**
+     * Прилага миграциите в базата на филиал и я подготвя за разпределението.
+     * Диапазонът на ID-тата се задава и когато миграциите са изключени
+     * (library.db.migrate=false). Филиалът се отбелязва като подготвен само
+     * при успех - дотогава връзки към него не се дават.
+     * @param branch номерът на филиала
+     * @throws SQLException при грешка във връзката, в миграция или в подготовката
+     */
+    private static void ensureBranchSchema(int branch) throws SQLException {
+        synchronized (SCHEMA_LOCK) {
+            if (PREPARED_BRANCHES.contains(branch)) {
+                return;
+            }
+            
+            Connection conn = acquire(branch);
+            try {
+                if (MIGRATE) {
+                    SchemaMigrator.migrate(conn);
+                }
+                SchemaMigrator.prepareBranch(conn, branch);
+                PREPARED_BRANCHES.add(branch);
+            } catch (SQLException e) {
+                throw new SQLException("Филиалът " + ShardRouter.getBranchName(branch)
+                        + " не е подготвен: " + e.getMessage(), e.getSQLState(), e);
+            } finally {
+                closeConnection(conn);
+            }
         }
     }
     
@@ -35,7 +477,7 @@ public class DatabaseConnection {
             try {
                 connection.close();
             } catch (SQLException e) {
-                System.err.println("Грешка при затваряне на връзката: " + e.getMessage());
+                DaoLog.error("Грешка при затваряне на връзката", e);
             }
         }
     }
@@ -61,7 +61,7 @@ public class EditBookDialog extends JDialog {
         titleField = new JTextField(20);
         authorField = new JTextField(20);
         genreComboBox = new JComboBox<>(new String[] {"Класика", "Фентъзи", "Научна фантастика", "Романтика", "Приключенска", "Сатира", "Детска литература"});
-        availabilityComboBox = new JComboBox<>(new String[] {"налична", "заета", "върната"});
+        availabilityComboBox = new JComboBox<>(new String[] {"налична", "заета", "запазена", "върната"});
         saveButton = new JButton("Запази");
         cancelButton = new JButton("Отказ");
     }
@@ -155,7 +155,6 @@ public class EditBookDialog extends JDialog {
         String title = titleField.getText();
         String author = authorField.getText();
         String genre = (String) genreComboBox.getSelectedItem();
-        String availability = (String) availabilityComboBox.getSelectedItem();
         
         // Валидация на входните данни
         if (!ValidationUtils.areNotEmpty(title, author)) {
@@ -166,15 +165,34 @@ public class EditBookDialog extends JDialog {
             return;
         }
         
-        // Обновяване на книгата
-        book.setTitle(title);
-        book.setAuthor(author);
-        book.setGenre(genre);
-        book.setAvailability(availability);
+        // Обновяване на книгата спрямо версията, заредена при отваряне на диалога
+        int result = bookService.updateBook(book, title, author, genre);
         
-        boolean success = bookService.updateBook(book.getBookId(), title, author, genre);
+        // Някой друг е променил същите полета междувременно - потребителят решава
+        while (result == BookService.UPDATE_CONFLICT) {
+            Book current = bookService.getBookById(book.getBookId());
+            if (current == null) {
+                result = BookService.UPDATE_FAILED;
+                break;
+            }
+            
+            int choice = EditConflictPrompt.ask(this, "книгата",
+                    new String[] {"Заглавие", "Автор", "Жанр"},
+                    new String[] {title, author, genre},
+                    new String[] {current.getTitle(), current.getAuthor(), current.getGenre()});
+            if (choice == EditConflictPrompt.KEEP_MINE) {
+                book = current;
+                result = bookService.updateBook(book, title, author, genre);
+            } else {
+                if (choice == EditConflictPrompt.RELOAD) {
+                    book = current;
+                    loadBookData();
+                }
+                return;
+            }
+        }
         
-        if (success) {
+        if (result == BookService.UPDATE_APPLIED) {
             JOptionPane.showMessageDialog(this,
                     "Книгата е обновена успешно!",
                     "Успех",
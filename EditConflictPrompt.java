@@ -0,0 +1,54 @@
+package library.ui.main.dialogs;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Objects;
+
+/**
+ * Пита потребителя какво да прави, когато записът, който редактира, е бил
+ * променен от някой друг, докато формата е била отворена
+ */
+public final class EditConflictPrompt {
+    
+    // Избори на потребителя
+    public static final int KEEP_MINE = 0;
+    public static final int RELOAD = 1;
+    public static final int CANCEL = 2;
+    
+    private EditConflictPrompt() {
+    }
+    
+    /**
+     * Показва въведените и текущите стойности на полетата, които се различават
+     * @param parent родителският компонент
+     * @param subject какво се редактира, за текста на съобщението (напр. "книгата")
+     * @param labels имената на полетата
+     * @param mine въведените стойности
+     * @param current текущите стойности в базата
+     * @return KEEP_MINE, RELOAD или CANCEL
+     */
+    public static int ask(Component parent, String subject, String[] labels, String[] mine, String[] current) {
+        StringBuilder message = new StringBuilder();
+        message.append("Някой друг е променил ").append(subject).append(", след като отворихте формата.\n");
+        
+        for (int i = 0; i < labels.length; i++) {
+            if (!Objects.equals(mine[i], current[i])) {
+                message.append("\n").append(labels[i]).append(":")
+                        .append("\n    Ваша стойност: ").append(mine[i])
+                        .append("\n    Текуща стойност: ").append(current[i]);
+            }
+        }
+        message.append("\n\nКакво искате да направите?");
+        
+        Object[] options = {"Запази моите", "Зареди текущите", "Отказ"};
+        int choice = JOptionPane.showOptionDialog(parent,
+                message.toString(),
+                "Едновременна промяна",
+                JOptionPane.DEFAULT_OPTION,
+                JOptionPane.WARNING_MESSAGE,
+                null,
+                options,
+                options[1]);
+        return choice == KEEP_MINE || choice == RELOAD ? choice : CANCEL;
+    }
+}
\ No newline at end of file
@@ -79,4 +79,173 @@ public class EditUserDialog extends JDialog {
         JPanel formPanel = new JPanel(new GridLayout(3, 2, 10, 10));
         formPanel.add(new JLabel("Име:"));
         formPanel.add(nameField);
-        formPanel.add(new
\ No newline at end of file
+        formPanel.add(new JLabel("Имейл:"));
+        formPanel.add(emailField);
+        formPanel.add(new JLabel("Роля:"));
+        formPanel.add(roleComboBox);
+        mainPanel.add(formPanel);
+        
+        mainPanel.add(Box.createRigidArea(new Dimension(0, 20)));
+        
+        // Панел за бутоните
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.setLayout(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(changePasswordButton);
+        buttonPanel.add(saveButton);
+        buttonPanel.add(cancelButton);
+        mainPanel.add(buttonPanel);
+        
+        // Добавяне на основния панел към диалога
+        getContentPane().add(mainPanel);
+    }
+    
+    /**
+     * Зарежда данните на потребителя в компонентите
+     */
+    private void loadUserData() {
+        if (user != null) {
+            nameField.setText(user.getName());
+            emailField.setText(user.getEmail());
+            
+            // Избиране на ролята от списъка
+            for (int i = 0; i < roleComboBox.getItemCount(); i++) {
+                if (roleComboBox.getItemAt(i).equals(user.getRole())) {
+                    roleComboBox.setSelectedIndex(i);
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Добавя слушатели за събития към компонентите
+     */
+    private void addEventListeners() {
+        // Слушател за бутона "Промяна на паролата"
+        changePasswordButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                changePassword();
+            }
+        });
+        
+        // Слушател за бутона "Запази"
+        saveButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                saveUser();
+            }
+        });
+        
+        // Слушател за бутона "Отказ"
+        cancelButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+    }
+    
+    /**
+     * Задава нова парола на потребителя
+     */
+    private void changePassword() {
+        JPasswordField passwordField = new JPasswordField(20);
+        int option = JOptionPane.showConfirmDialog(this,
+                passwordField,
+                "Нова парола",
+                JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (option != JOptionPane.OK_OPTION) {
+            return;
+        }
+        
+        String newPassword = new String(passwordField.getPassword());
+        if (!ValidationUtils.isStrongPassword(newPassword)) {
+            JOptionPane.showMessageDialog(this,
+                    "Новата парола трябва да бъде поне 8 символа с цифри и букви!",
+                    "Грешка",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        if (userService.changeUserPassword(user.getUserId(), newPassword)) {
+            JOptionPane.showMessageDialog(this,
+                    "Паролата е променена успешно!",
+                    "Успех",
+                    JOptionPane.INFORMATION_MESSAGE);
+        } else {
+            JOptionPane.showMessageDialog(this,
+                    "Грешка при промяна на паролата!",
+                    "Грешка",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    /**
+     * Запазва промените по потребителя
+     */
+    private void saveUser() {
+        // Извличане на въведените данни
+        String name = nameField.getText();
+        String email = emailField.getText();
+        String role = (String) roleComboBox.getSelectedItem();
+        
+        // Валидация на входните данни
+        if (!ValidationUtils.areNotEmpty(name, email)) {
+            JOptionPane.showMessageDialog(this,
+                    "Моля, попълнете всички полета!",
+                    "Грешка",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        if (!ValidationUtils.isValidEmail(email)) {
+            JOptionPane.showMessageDialog(this,
+                    "Моля, въведете валиден имейл адрес!",
+                    "Грешка",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        // Обновяване на потребителя спрямо версията, заредена при отваряне на диалога
+        int result = userService.updateUser(user, name, email, role);
+        
+        // Някой друг е променил същите полета междувременно - потребителят решава
+        while (result == UserService.UPDATE_CONFLICT) {
+            User current = userService.getUserById(user.getUserId());
+            if (current == null) {
+                result = UserService.UPDATE_FAILED;
+                break;
+            }
+            
+            int choice = EditConflictPrompt.ask(this, "потребителя",
+                    new String[] {"Име", "Имейл", "Роля"},
+                    new String[] {name, email, role},
+                    new String[] {current.getName(), current.getEmail(), current.getRole()});
+            if (choice == EditConflictPrompt.KEEP_MINE) {
+                user = current;
+                result = userService.updateUser(user, name, email, role);
+            } else {
+                if (choice == EditConflictPrompt.RELOAD) {
+                    user = current;
+                    loadUserData();
+                }
+                return;
+            }
+        }
+        
+        if (result == UserService.UPDATE_APPLIED) {
+            JOptionPane.showMessageDialog(this,
+                    "Потребителят е обновен успешно!",
+                    "Успех",
+                    JOptionPane.INFORMATION_MESSAGE);
+            dispose();
+        } else {
+            JOptionPane.showMessageDialog(this,
+                    "Грешка при обновяване на потребителя!",
+                    "Грешка",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
\ No newline at end of file
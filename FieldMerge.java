@@ -0,0 +1,32 @@
+package library.utils;
+
+import java.util.Objects;
+
+/**
+ * Тристранно сливане на едно поле при едновременни редакции: сравнява
+ * стойността, от която редакторът е тръгнал, неговата стойност и текущата
+ * стойност в базата. Ако само едната страна е променила полето, печели тя;
+ * ако и двете са го променили по различен начин, има конфликт.
+ */
+public class FieldMerge {
+    
+    private FieldMerge() {
+    }
+    
+    /**
+     * Слива едно поле
+     * @param base стойността, от която е тръгнала редакцията
+     * @param mine стойността, въведена от редактора
+     * @param theirs текущата стойност в базата
+     * @return слятата стойност или null при конфликт
+     */
+    public static String merge(String base, String mine, String theirs) {
+        if (Objects.equals(mine, theirs) || Objects.equals(base, theirs)) {
+            return mine;
+        }
+        if (Objects.equals(base, mine)) {
+            return theirs;
+        }
+        return null;
+    }
+}
\ No newline at end of file
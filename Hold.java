@@ -0,0 +1,112 @@
+package library.model;
+
+import java.util.Date;
+
+/**
+ * Клас, представящ запазване (резервация) на заета книга в библиотечната система
+ */
+public class Hold {
+    private int holdId;
+    private int bookId;
+    private int userId;
+    private Date createdAt;
+    private Date expiresAt;
+    private String status; // "чакаща", "назначена", "изпълнена", "изтекла", "отказана"
+    
+    /**
+     * Конструктор по подразбиране
+     */
+    public Hold() {
+    }
+    
+    /**
+     * Конструктор с параметри
+     */
+    public Hold(int holdId, int bookId, int userId, Date createdAt, Date expiresAt, String status) {
+        this.holdId = holdId;
+        this.bookId = bookId;
+        this.userId = userId;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+        this.status = status;
+    }
+    
+    /**
+     * Конструктор за ново запазване (без ID)
+     */
+    public Hold(int bookId, int userId) {
+        this.bookId = bookId;
+        this.userId = userId;
+        this.createdAt = new Date();
+        this.status = "чакаща";
+    }
+    
+    // Getters и Setters
+    public int getHoldId() {
+        return holdId;
+    }
+    
+    public void setHoldId(int holdId) {
+        this.holdId = holdId;
+    }
+    
+    public int getBookId() {
+        return bookId;
+    }
+    
+    public void setBookId(int bookId) {
+        this.bookId = bookId;
+    }
+    
+    public int getUserId() {
+        return userId;
+    }
+    
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+    
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+    
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+    
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+    
+    public void setExpiresAt(Date expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+    
+    public String getStatus() {
+        return status;
+    }
+    
+    public void setStatus(String status) {
+        this.status = status;
+    }
+    
+    /**
+     * Проверява дали запазването е назначено (книгата чака потребителя)
+     * @return true ако запазването е назначено
+     */
+    public boolean isAssigned() {
+        return "назначена".equals(status);
+    }
+    
+    @Override
+    public String toString() {
+        return "Запазване{" +
+                "ID=" + holdId +
+                ", Книга ID=" + bookId +
+                ", Потребител ID=" + userId +
+                ", Създадено=" + createdAt +
+                ", Валидно до=" + expiresAt +
+                ", Статус='" + status + '\'' +
+                '}';
+    }
+}
\ No newline at end of file
@@ -0,0 +1,657 @@
+package library.dao;
+
+import library.model.Hold;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * DAO клас за операции със запазвания (опашка за заети книги) в базата данни.
+ * Опашката за всяка книга е FIFO по created_at, а назначаването на следващия
+ * чакащ потребител става в същата транзакция, в която се връща книгата.
+ * Таблицата holds се създава от миграцията V1__base_schema.sql.
+ * Запазванията са в базата на филиала на книгата (виж ShardRouter).
+ */
+public class HoldDAO {
+    
+    /** Брой дни, през които назначената книга чака потребителя */
+    public static final int PICKUP_DAYS = 3;
+    
+    private BookDAO bookDAO;
+    
+    /**
+     * Конструктор
+     * @param bookDAO DAO за книги, чрез което се променя наличността
+     */
+    public HoldDAO(BookDAO bookDAO) {
+        this.bookDAO = bookDAO;
+    }
+    
+    /**
+     * Добавя ново запазване в края на опашката за книгата.
+     * Проверката за съществуващо запазване и добавянето са в една транзакция при
+     * заключен ред на книгата, така че две едновременни заявки не създават дубликат.
+     * @param hold запазването, което трябва да бъде добавено
+     * @return ID на добавеното запазване или -1 при неуспех
+     */
+    public int addHold(Hold hold) {
+        if (ShardRouter.routes(hold.getBookId())) {
+            return ShardRouter.on(ShardRouter.branchOf(hold.getBookId()), () -> addHold(hold));
+        }
+        String sql = "INSERT INTO holds (book_id, user_id, created_at, expires_at, status) VALUES (?, ?, ?, ?, ?)";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            if (!lockBook(conn, hold.getBookId())) {
+                conn.rollback();
+                return -1;
+            }
+            if (hasActiveHold(conn, hold.getBookId(), hold.getUserId())) {
+                conn.rollback();
+                DaoLog.warn("Потребителят вече има запазване за тази книга");
+                return -1;
+            }
+            
+            pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            pstmt.setInt(1, hold.getBookId());
+            pstmt.setInt(2, hold.getUserId());
+            
+            if (hold.getCreatedAt() == null) {
+                hold.setCreatedAt(new Date());
+            }
+            pstmt.setTimestamp(3, new Timestamp(hold.getCreatedAt().getTime()));
+            pstmt.setNull(4, Types.TIMESTAMP);
+            pstmt.setString(5, "чакаща");
+            
+            int affectedRows = pstmt.executeUpdate();
+            if (affectedRows == 0) {
+                throw new SQLException("Добавянето на запазване не бе успешно, няма редове за добавяне");
+            }
+            
+            rs = pstmt.getGeneratedKeys();
+            if (rs.next()) {
+                int holdId = rs.getInt(1);
+                conn.commit();
+                return holdId;
+            } else {
+                throw new SQLException("Добавянето на запазване не бе успешно, не е генериран ID");
+            }
+        } catch (SQLException e) {
+            rollback(conn);
+            DaoLog.error("Грешка при добавяне на запазване", e);
+            return -1;
+        } finally {
+            restoreAutoCommit(conn);
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Заключва реда на книгата до края на транзакцията; сериализира запазванията за нея
+     * @param conn връзката на текущата транзакция
+     * @param bookId ID на книгата
+     * @return true, ако книгата съществува
+     * @throws SQLException при грешка в базата
+     */
+    private boolean lockBook(Connection conn, int bookId) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement("SELECT book_id FROM books WHERE book_id = ? FOR UPDATE");
+            pstmt.setInt(1, bookId);
+            rs = pstmt.executeQuery();
+            return rs.next();
+        } finally {
+            closeResources(null, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Намира запазване по ID
+     * @param holdId ID на търсеното запазване
+     * @return запазването или null, ако не е намерено
+     */
+    public Hold getHoldById(int holdId) {
+        if (ShardRouter.routes(holdId)) {
+            return ShardRouter.on(ShardRouter.branchOf(holdId), () -> getHoldById(holdId));
+        }
+        String sql = "SELECT * FROM holds WHERE hold_id = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, holdId);
+            
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return extractHoldFromResultSet(rs);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при търсене на запазване по ID", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Връща активните запазвания (чакащи и назначени) за книга в реда на опашката
+     * @param bookId ID на книгата
+     * @return списък със запазвания, подреден по време на създаване
+     */
+    public List<Hold> getActiveHoldsByBook(int bookId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> getActiveHoldsByBook(bookId));
+        }
+        String sql = "SELECT * FROM holds WHERE book_id = ? AND status IN ('чакаща', 'назначена') ORDER BY created_at, hold_id";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        List<Hold> holds = new ArrayList<>();
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, bookId);
+            
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                holds.add(extractHoldFromResultSet(rs));
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при извличане на запазвания за книга", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return holds;
+    }
+    
+    /**
+     * Връща активните запазвания на потребител
+     * @param userId ID на потребителя
+     * @return списък с активни запазвания на потребителя
+     */
+    public List<Hold> getActiveHoldsByUser(int userId) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(() -> getActiveHoldsByUser(userId), Comparator.comparing(Hold::getCreatedAt));
+        }
+        String sql = "SELECT * FROM holds WHERE user_id = ? AND status IN ('чакаща', 'назначена') ORDER BY created_at";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        List<Hold> holds = new ArrayList<>();
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, userId);
+            
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                holds.add(extractHoldFromResultSet(rs));
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при извличане на запазвания за потребител", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return holds;
+    }
+    
+    /**
+     * Връща всички назначени запазвания (нужни при стартиране за възстановяване на таймерите)
+     * @return списък с назначени запазвания
+     */
+    public List<Hold> getAssignedHolds() {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(this::getAssignedHolds);
+        }
+        String sql = "SELECT * FROM holds WHERE status = 'назначена'";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        List<Hold> holds = new ArrayList<>();
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                holds.add(extractHoldFromResultSet(rs));
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при извличане на назначени запазвания", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return holds;
+    }
+    
+    /**
+     * Проверява дали потребителят има активно запазване за книгата
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return true ако има чакащо или назначено запазване
+     */
+    public boolean hasActiveHold(int bookId, int userId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> hasActiveHold(bookId, userId));
+        }
+        Connection conn = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            return hasActiveHold(conn, bookId, userId);
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при проверка за активно запазване", e);
+        } finally {
+            closeResources(conn, null, null);
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Проверява дали потребителят има чакащо или назначено запазване за книгата в рамките на транзакция
+     * @param conn връзката на текущата транзакция
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return true ако има активно запазване
+     * @throws SQLException при грешка в базата
+     */
+    private boolean hasActiveHold(Connection conn, int bookId, int userId) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM holds WHERE book_id = ? AND user_id = ? AND status IN ('чакаща', 'назначена')";
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, bookId);
+            pstmt.setInt(2, userId);
+            rs = pstmt.executeQuery();
+            return rs.next() && rs.getInt(1) > 0;
+        } finally {
+            closeResources(null, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Проверява дали книгата е назначена (запазена) за даден потребител
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return true ако книгата чака точно този потребител
+     */
+    public boolean isAssignedTo(int bookId, int userId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> isAssignedTo(bookId, userId));
+        }
+        Connection conn = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            return isAssignedTo(conn, bookId, userId);
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при проверка за назначено запазване", e);
+        } finally {
+            closeResources(conn, null, null);
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Проверява дали книгата е назначена за даден потребител с връзката на текущата транзакция
+     * @param conn връзката на текущата транзакция
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return true ако книгата чака точно този потребител
+     * @throws SQLException при грешка в базата
+     */
+    boolean isAssignedTo(Connection conn, int bookId, int userId) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM holds WHERE book_id = ? AND user_id = ? AND status = 'назначена'";
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, bookId);
+            pstmt.setInt(2, userId);
+            rs = pstmt.executeQuery();
+            return rs.next() && rs.getInt(1) > 0;
+        } finally {
+            closeResources(null, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Назначава книгата на първия чакащ в опашката, ако тя междувременно е станала налична.
+     * Затваря прозореца между проверката за наличност и добавянето на запазване.
+     * @param bookId ID на книгата
+     * @return назначеното запазване или null, ако няма промяна
+     */
+    public Hold assignIfAvailable(int bookId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> assignIfAvailable(bookId));
+        }
+        String sql = "SELECT availability FROM books WHERE book_id = ? FOR UPDATE";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, bookId);
+            rs = pstmt.executeQuery();
+            
+            Hold assigned = null;
+            if (rs.next() && "налична".equals(rs.getString("availability"))) {
+                assigned = assignNextHold(conn, bookId);
+                if (assigned != null && !bookDAO.updateBookAvailability(conn, bookId, "запазена")) {
+                    conn.rollback();
+                    return null;
+                }
+            }
+            
+            conn.commit();
+            return assigned;
+        } catch (SQLException e) {
+            rollback(conn);
+            DaoLog.error("Грешка при назначаване на запазване", e);
+            return null;
+        } finally {
+            restoreAutoCommit(conn);
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Отменя или маркира като изтекло назначено/чакащо запазване и, ако книгата е чакала
+     * този потребител, я назначава на следващия в опашката (или я освобождава).
+     * @param holdId ID на запазването
+     * @param newStatus "изтекла" или "отказана"
+     * @return новото назначено запазване или null, ако няма следващ
+     */
+    public Hold releaseHold(int holdId, String newStatus) {
+        if (ShardRouter.routes(holdId)) {
+            return ShardRouter.on(ShardRouter.branchOf(holdId), () -> releaseHold(holdId, newStatus));
+        }
+        String selectSql = "SELECT * FROM holds WHERE hold_id = ? FOR UPDATE";
+        String updateSql = "UPDATE holds SET status = ? WHERE hold_id = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            pstmt = conn.prepareStatement(selectSql);
+            pstmt.setInt(1, holdId);
+            rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                conn.rollback();
+                return null;
+            }
+            Hold hold = extractHoldFromResultSet(rs);
+            rs.close();
+            rs = null;
+            pstmt.close();
+            
+            if (!"чакаща".equals(hold.getStatus()) && !hold.isAssigned()) {
+                conn.rollback();
+                return null;
+            }
+            
+            pstmt = conn.prepareStatement(updateSql);
+            pstmt.setString(1, newStatus);
+            pstmt.setInt(2, holdId);
+            pstmt.executeUpdate();
+            
+            Hold next = null;
+            if (hold.isAssigned()) {
+                // Книгата е чакала този потребител - предаваме я нататък по опашката
+                next = assignNextHold(conn, hold.getBookId());
+                String availability = next != null ? "запазена" : "налична";
+                if (!bookDAO.updateBookAvailability(conn, hold.getBookId(), availability)) {
+                    conn.rollback();
+                    return null;
+                }
+            }
+            
+            conn.commit();
+            return next;
+        } catch (SQLException e) {
+            rollback(conn);
+            DaoLog.error("Грешка при освобождаване на запазване", e);
+            return null;
+        } finally {
+            restoreAutoCommit(conn);
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Назначава книгата на първия чакащ в опашката в рамките на текуща транзакция
+     * @param conn връзка с активна транзакция
+     * @param bookId ID на книгата
+     * @return назначеното запазване или null, ако опашката е празна
+     * @throws SQLException при грешка в базата данни
+     */
+    Hold assignNextHold(Connection conn, int bookId) throws SQLException {
+        String selectSql = "SELECT * FROM holds WHERE book_id = ? AND status = 'чакаща' ORDER BY created_at, hold_id LIMIT 1 FOR UPDATE";
+        String updateSql = "UPDATE holds SET status = 'назначена', expires_at = ? WHERE hold_id = ?";
+        
+        try (PreparedStatement select = conn.prepareStatement(selectSql)) {
+            select.setInt(1, bookId);
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                
+                Hold hold = extractHoldFromResultSet(rs);
+                hold.setStatus("назначена");
+                hold.setExpiresAt(generateExpiryDate());
+                
+                try (PreparedStatement update = conn.prepareStatement(updateSql)) {
+                    update.setTimestamp(1, new Timestamp(hold.getExpiresAt().getTime()));
+                    update.setInt(2, hold.getHoldId());
+                    update.executeUpdate();
+                }
+                return hold;
+            }
+        }
+    }
+    
+    /**
+     * Връща кои от дадените книги имат чакащи запазвания, в рамките на текуща транзакция
+     * @param conn връзка с активна транзакция
+     * @param bookIds ID-тата на книгите
+     * @return книгите с непразна опашка
+     * @throws SQLException при грешка в базата данни
+     */
+    Set<Integer> getBooksWithWaitingHolds(Connection conn, Collection<Integer> bookIds) throws SQLException {
+        Set<Integer> waiting = new HashSet<>();
+        List<Integer> ids = new ArrayList<>(bookIds);
+        
+        for (int from = 0; from < ids.size(); from += 1000) {
+            List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + 1000));
+            String sql = "SELECT DISTINCT book_id FROM holds WHERE status = 'чакаща' AND book_id IN ("
+                    + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+            
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        waiting.add(rs.getInt(1));
+                    }
+                }
+            }
+        }
+        return waiting;
+    }
+    
+    /**
+     * Маркира назначеното запазване на потребителя като изпълнено в рамките на текуща транзакция
+     * @param conn връзка с активна транзакция
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return true ако е имало назначено запазване за потребителя
+     * @throws SQLException при грешка в базата данни
+     */
+    boolean fulfillHold(Connection conn, int bookId, int userId) throws SQLException {
+        String sql = "UPDATE holds SET status = 'изпълнена' WHERE book_id = ? AND user_id = ? AND status = 'назначена'";
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, bookId);
+            pstmt.setInt(2, userId);
+            return pstmt.executeUpdate() > 0;
+        }
+    }
+    
+    /**
+     * Изтрива всички запазвания на потребител във всички филиали. Базите на
+     * филиалите нямат външен ключ към потребителите, затова при изтриване на
+     * потребител запазванията му там се изтриват изрично.
+     * @param userId ID на потребителя
+     * @return true, ако изтриването е успешно във всеки филиал
+     */
+    public boolean deleteHoldsByUser(int userId) {
+        if (ShardRouter.scatters()) {
+            for (Boolean deleted : ShardRouter.scatter(branch -> deleteHoldsByUser(userId))) {
+                if (deleted == null || !deleted) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        String sql = "DELETE FROM holds WHERE user_id = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, userId);
+            pstmt.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при изтриване на запазванията на потребител", e);
+            return false;
+        } finally {
+            closeResources(conn, pstmt, null);
+        }
+    }
+    
+    /**
+     * Генерира крайна дата, до която назначената книга чака потребителя
+     * @return дата след PICKUP_DAYS дни от сега
+     */
+    public Date generateExpiryDate() {
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DAY_OF_MONTH, PICKUP_DAYS);
+        return cal.getTime();
+    }
+    
+    /**
+     * Извлича запазване от ResultSet обект
+     * @param rs ResultSet обект
+     * @return извлеченото запазване
+     * @throws SQLException при грешка в извличането
+     */
+    private Hold extractHoldFromResultSet(ResultSet rs) throws SQLException {
+        Hold hold = new Hold();
+        hold.setHoldId(rs.getInt("hold_id"));
+        hold.setBookId(rs.getInt("book_id"));
+        hold.setUserId(rs.getInt("user_id"));
+        
+        Timestamp createdAt = rs.getTimestamp("created_at");
+        if (createdAt != null) {
+            hold.setCreatedAt(new Date(createdAt.getTime()));
+        }
+        
+        Timestamp expiresAt = rs.getTimestamp("expires_at");
+        if (expiresAt != null) {
+            hold.setExpiresAt(new Date(expiresAt.getTime()));
+        }
+        
+        hold.setStatus(rs.getString("status"));
+        return hold;
+    }
+    
+    /**
+     * Отменя текущата транзакция, ако има такава
+     * @param conn Connection обект
+     */
+    private void rollback(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.rollback();
+            }
+        } catch (SQLException ex) {
+            DaoLog.error("Грешка при rollback", ex);
+        }
+    }
+    
+    /**
+     * Възстановява autoCommit режима на връзката
+     * @param conn Connection обект
+     */
+    private void restoreAutoCommit(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при възстановяване на autoCommit", e);
+        }
+    }
+    
+    /**
+     * Затваря ресурсите за връзка с базата данни
+     * @param conn Connection обект
+     * @param pstmt PreparedStatement обект
+     * @param rs ResultSet обект
+     */
+    private void closeResources(Connection conn, PreparedStatement pstmt, ResultSet rs) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при затваряне на ресурсите", e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,155 @@
+package library.service;
+
+import library.dao.HoldDAO;
+import library.metrics.MetricsRegistry;
+import library.model.Hold;
+import library.utils.TimerWheel;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Споделено копие в паметта на опашките със запазвания за всяка книга.
+ * Базата данни остава източник на истината - при всяка промяна опашката на
+ * книгата се презарежда атомарно, а изтичането на назначените запазвания
+ * се следи от колело от таймери вместо от периодично допитване до базата.
+ */
+public class HoldQueue {
+    
+    private static final HoldQueue INSTANCE = new HoldQueue();
+    
+    private static final MetricsRegistry.Counter CACHE_HITS = MetricsRegistry.getInstance()
+            .counter("library_cache_requests_total", "Обръщения към кешовете в паметта", "cache", "holds", "result", "hit");
+    private static final MetricsRegistry.Counter CACHE_MISSES = MetricsRegistry.getInstance()
+            .counter("library_cache_requests_total", "Обръщения към кешовете в паметта", "cache", "holds", "result", "miss");
+    
+    private final HoldDAO holdDAO;
+    private final Map<Integer, List<Hold>> queues;
+    private final Map<Integer, TimerWheel.Timeout> expiryTimers;
+    private final TimerWheel timerWheel;
+    private volatile boolean loaded;
+    
+    /**
+     * Конструктор
+     */
+    private HoldQueue() {
+        this.holdDAO = ServiceRegistry.getInstance().getHoldDAO();
+        this.queues = new ConcurrentHashMap<>();
+        this.expiryTimers = new ConcurrentHashMap<>();
+        this.timerWheel = new TimerWheel(1, TimeUnit.MINUTES, 512);
+    }
+    
+    /**
+     * Връща споделената опашка
+     * @return инстанцията на опашката
+     */
+    public static HoldQueue getInstance() {
+        INSTANCE.ensureLoaded();
+        return INSTANCE;
+    }
+    
+    /**
+     * Възстановява таймерите за назначените запазвания при първо използване
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                for (Hold hold : holdDAO.getAssignedHolds()) {
+                    scheduleExpiry(hold);
+                }
+                loaded = true;
+            }
+        }
+    }
+    
+    /**
+     * Презарежда опашката на книгата от базата данни и планира изтичането на назначеното запазване
+     * @param bookId ID на книгата
+     */
+    public void reload(int bookId) {
+        List<Hold> holds = Collections.unmodifiableList(holdDAO.getActiveHoldsByBook(bookId));
+        queues.put(bookId, holds);
+        
+        for (Hold hold : holds) {
+            if (hold.isAssigned()) {
+                scheduleExpiry(hold);
+            }
+        }
+    }
+    
+    /**
+     * Връща текущата опашка за книгата; базата се чете само при първо обръщение за книгата
+     * @param bookId ID на книгата
+     * @return списък със запазвания в реда на опашката
+     */
+    public List<Hold> getQueue(int bookId) {
+        List<Hold> holds = queues.get(bookId);
+        if (holds == null) {
+            CACHE_MISSES.increment();
+            reload(bookId);
+            holds = queues.get(bookId);
+        } else {
+            CACHE_HITS.increment();
+        }
+        return holds;
+    }
+    
+    /**
+     * Връща позицията на потребителя в опашката за книгата
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return позиция (от 1) или -1, ако потребителят не е в опашката
+     */
+    public int getPosition(int bookId, int userId) {
+        List<Hold> holds = getQueue(bookId);
+        for (int i = 0; i < holds.size(); i++) {
+            if (holds.get(i).getUserId() == userId) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Планира изтичането на назначено запазване
+     * @param hold назначеното запазване
+     */
+    private void scheduleExpiry(Hold hold) {
+        if (hold.getExpiresAt() == null || expiryTimers.containsKey(hold.getHoldId())) {
+            return;
+        }
+        
+        long delay = Math.max(0, hold.getExpiresAt().getTime() - System.currentTimeMillis());
+        final int holdId = hold.getHoldId();
+        final int bookId = hold.getBookId();
+        expiryTimers.put(holdId, timerWheel.schedule(() -> expire(holdId, bookId), delay, TimeUnit.MILLISECONDS));
+    }
+    
+    /**
+     * Отменя таймера за изтичане на запазване (напр. при заемане или отказ)
+     * @param holdId ID на запазването
+     */
+    public void cancelExpiry(int holdId) {
+        TimerWheel.Timeout timeout = expiryTimers.remove(holdId);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+    
+    /**
+     * Обработва изтекло запазване - книгата преминава към следващия в опашката
+     * @param holdId ID на запазването
+     * @param bookId ID на книгата
+     */
+    private void expire(int holdId, int bookId) {
+        expiryTimers.remove(holdId);
+        holdDAO.releaseHold(holdId, "изтекла");
+        reload(bookId);
+    }
+}
\ No newline at end of file
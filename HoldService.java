@@ -0,0 +1,183 @@
+package library.service;
+
+import library.dao.BookDAO;
+import library.dao.DatabaseConnection;
+import library.dao.HoldDAO;
+import library.dao.LoanDAO;
+import library.model.AuditEvent;
+import library.model.Book;
+import library.model.Hold;
+
+import java.util.List;
+
+/**
+ * Сервизен клас за управление на запазвания (опашка за заети книги)
+ */
+public class HoldService {
+    
+    private HoldDAO holdDAO;
+    private BookDAO bookDAO;
+    private LoanDAO loanDAO;
+    private HoldQueue holdQueue;
+    
+    /**
+     * Конструктор
+     * @param holdDAO споделеното DAO за запазвания
+     * @param bookDAO споделеното DAO за книги
+     * @param loanDAO споделеното DAO за заемания
+     * @param holdQueue споделената опашка със запазвания
+     */
+    HoldService(HoldDAO holdDAO, BookDAO bookDAO, LoanDAO loanDAO, HoldQueue holdQueue) {
+        this.holdDAO = holdDAO;
+        this.bookDAO = bookDAO;
+        this.loanDAO = loanDAO;
+        this.holdQueue = holdQueue;
+    }
+    
+    /**
+     * Нарежда потребителя в опашката за заета книга
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return ID на запазването или -1 при неуспех
+     */
+    public int placeHold(int bookId, int userId) {
+        // Налична книга се заема директно, а не се запазва
+        Book book = bookDAO.getBookById(bookId);
+        if (book == null || "налична".equals(book.getAvailability())) {
+            return -1;
+        }
+        
+        // Потребителят не може да чака книга, която вече държи
+        if (loanDAO.isBookLoanedBy(bookId, userId)) {
+            return -1;
+        }
+        
+        int holdId = holdDAO.addHold(new Hold(bookId, userId));
+        if (holdId > 0) {
+            AuditLog.record(AuditEvent.HOLD, holdId, "запазване", "книга #" + bookId + ", потребител #" + userId);
+            
+            // Книгата може да е била върната между проверката и записа
+            holdDAO.assignIfAvailable(bookId);
+            holdQueue.reload(bookId);
+        }
+        return holdId;
+    }
+    
+    /**
+     * Отказва запазване на потребител
+     * @param holdId ID на запазването
+     * @param userId ID на потребителя, който отказва
+     * @return true при успех, false при неуспех
+     */
+    public boolean cancelHold(int holdId, int userId) {
+        Hold hold = holdDAO.getHoldById(holdId);
+        if (hold == null || hold.getUserId() != userId) {
+            return false;
+        }
+        
+        holdQueue.cancelExpiry(holdId);
+        holdDAO.releaseHold(holdId, "отказана");
+        AuditLog.record(AuditEvent.HOLD, holdId, "отказ", "книга #" + hold.getBookId() + ", потребител #" + userId);
+        holdQueue.reload(hold.getBookId());
+        return true;
+    }
+    
+    /**
+     * Премахва всички запазвания на потребител преди изтриването му. Активните
+     * се отказват, така че запазените за него книги преминават към следващия в
+     * опашката, а след това запазванията се изтриват във всички филиали.
+     * @param userId ID на потребителя
+     * @return true при успех; false, ако някой филиал е недостъпен
+     */
+    public boolean removeUserHolds(int userId) {
+        DatabaseConnection.clearFailure();
+        List<Hold> holds = holdDAO.getActiveHoldsByUser(userId);
+        if (DatabaseConnection.consumeFailure()) {
+            return false;
+        }
+        
+        for (Hold hold : holds) {
+            holdQueue.cancelExpiry(hold.getHoldId());
+            DatabaseConnection.clearFailure();
+            holdDAO.releaseHold(hold.getHoldId(), "отказана");
+            if (DatabaseConnection.consumeFailure()) {
+                holdQueue.reload(hold.getBookId());
+                return false;
+            }
+            AuditLog.record(AuditEvent.HOLD, hold.getHoldId(), "отказ",
+                    "книга #" + hold.getBookId() + ", потребител #" + userId + " (изтриване на потребителя)");
+            holdQueue.reload(hold.getBookId());
+        }
+        return holdDAO.deleteHoldsByUser(userId);
+    }
+    
+    /**
+     * Проверява дали потребителят може да заеме книгата - налична е или е запазена за него
+     * @param book книгата
+     * @param userId ID на потребителя
+     * @return true ако заемането е позволено
+     */
+    public boolean canBorrow(Book book, int userId) {
+        if (book == null) {
+            return false;
+        }
+        if ("налична".equals(book.getAvailability())) {
+            return true;
+        }
+        return "запазена".equals(book.getAvailability()) && holdDAO.isAssignedTo(book.getBookId(), userId);
+    }
+    
+    /**
+     * Синхронизира опашката след промяна на книгата (връщане или заемане)
+     * @param bookId ID на книгата
+     */
+    public void onBookChanged(int bookId) {
+        for (Hold hold : holdQueue.getQueue(bookId)) {
+            holdQueue.cancelExpiry(hold.getHoldId());
+        }
+        holdQueue.reload(bookId);
+    }
+    
+    /**
+     * Връща позицията на потребителя в опашката за книгата
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return позиция (от 1) или -1, ако потребителят не чака книгата
+     */
+    public int getQueuePosition(int bookId, int userId) {
+        return holdQueue.getPosition(bookId, userId);
+    }
+    
+    /**
+     * Връща броя на чакащите за книгата
+     * @param bookId ID на книгата
+     * @return дължина на опашката
+     */
+    public int getQueueLength(int bookId) {
+        return holdQueue.getQueue(bookId).size();
+    }
+    
+    /**
+     * Връща активните запазвания на потребител
+     * @param userId ID на потребителя
+     * @return списък със запазвания
+     */
+    public List<Hold> getHoldsByUser(int userId) {
+        return holdDAO.getActiveHoldsByUser(userId);
+    }
+    
+    /**
+     * Намира активното запазване на потребителя за книгата
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return запазването или null, ако няма такова
+     */
+    public Hold getUserHold(int bookId, int userId) {
+        for (Hold hold : holdQueue.getQueue(bookId)) {
+            if (hold.getUserId() == userId) {
+                return hold;
+            }
+        }
+        return null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,192 @@
+package library.ui.main.dialogs;
+
+import library.model.UserImportResult;
+import library.service.UserService;
+
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Диалог за масово добавяне на потребители от CSV файл с отчет за всеки ред
+ */
+public class ImportUsersDialog extends JDialog {
+    
+    private UserService userService;
+    
+    // Компоненти на диалога
+    private JLabel fileLabel;
+    private JLabel summaryLabel;
+    private JProgressBar progressBar;
+    private DefaultTableModel resultsModel;
+    private JTable resultsTable;
+    private JButton chooseButton;
+    private JButton closeButton;
+    
+    /**
+     * Конструктор
+     * @param parent родителският компонент
+     * @param userService сервиз за потребители
+     */
+    public ImportUsersDialog(Window parent, UserService userService) {
+        super(parent, "Импортиране на потребители", ModalityType.APPLICATION_MODAL);
+        this.userService = userService;
+        
+        // Настройки на диалога
+        setSize(700, 500);
+        setLocationRelativeTo(parent);
+        
+        // Инициализация на компонентите
+        initComponents();
+        
+        // Разположение на компонентите
+        layoutComponents();
+        
+        // Добавяне на слушатели за събития
+        addEventListeners();
+    }
+    
+    /**
+     * Инициализира компонентите на диалога
+     */
+    private void initComponents() {
+        fileLabel = new JLabel("CSV файл с колони: име, имейл, парола, роля (по желание)");
+        summaryLabel = new JLabel(" ");
+        
+        progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(false);
+        
+        String[] columns = {"Ред", "Имейл", "Резултат", "Бележка"};
+        resultsModel = new DefaultTableModel(columns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        resultsTable = new JTable(resultsModel);
+        resultsTable.setAutoCreateRowSorter(true);
+        resultsTable.getColumnModel().getColumn(0).setMaxWidth(60);
+        
+        chooseButton = new JButton("Избери файл...");
+        closeButton = new JButton("Затвори");
+    }
+    
+    /**
+     * Разполага компонентите в диалога
+     */
+    private void layoutComponents() {
+        JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
+        mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        
+        JPanel topPanel = new JPanel(new BorderLayout(10, 10));
+        topPanel.add(fileLabel, BorderLayout.CENTER);
+        topPanel.add(chooseButton, BorderLayout.EAST);
+        topPanel.add(progressBar, BorderLayout.SOUTH);
+        mainPanel.add(topPanel, BorderLayout.NORTH);
+        
+        mainPanel.add(new JScrollPane(resultsTable), BorderLayout.CENTER);
+        
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(summaryLabel, BorderLayout.CENTER);
+        bottomPanel.add(closeButton, BorderLayout.EAST);
+        mainPanel.add(bottomPanel, BorderLayout.SOUTH);
+        
+        getContentPane().add(mainPanel);
+    }
+    
+    /**
+     * Добавя слушатели за събития към компонентите
+     */
+    private void addEventListeners() {
+        // Слушател за бутона "Избери файл"
+        chooseButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                chooseFile();
+            }
+        });
+        
+        // Слушател за бутона "Затвори"
+        closeButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+    }
+    
+    /**
+     * Избира файл и го импортира във фонов режим
+     */
+    private void chooseFile() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter("CSV файлове", "csv", "txt"));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        
+        fileLabel.setText("Импортиране на " + file.getName() + "...");
+        summaryLabel.setText(" ");
+        resultsModel.setRowCount(0);
+        progressBar.setVisible(true);
+        chooseButton.setEnabled(false);
+        closeButton.setEnabled(false);
+        
+        new SwingWorker<List<UserImportResult>, Void>() {
+            @Override
+            protected List<UserImportResult> doInBackground() throws Exception {
+                try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    return userService.importUsers(reader);
+                }
+            }
+            
+            @Override
+            protected void done() {
+                progressBar.setVisible(false);
+                chooseButton.setEnabled(true);
+                closeButton.setEnabled(true);
+                fileLabel.setText(file.getName());
+                
+                try {
+                    showResults(get());
+                } catch (Exception e) {
+                    JOptionPane.showMessageDialog(ImportUsersDialog.this,
+                            "Грешка при импортиране на файла!",
+                            "Грешка",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+    
+    /**
+     * Показва отчета за импортирането
+     * @param results резултатът за всеки ред
+     */
+    private void showResults(List<UserImportResult> results) {
+        int created = 0;
+        for (UserImportResult result : results) {
+            if (result.isCreated()) {
+                created++;
+            }
+            resultsModel.addRow(new Object[] {
+                    result.getRowNumber(),
+                    result.getEmail(),
+                    result.getStatus(),
+                    result.getMessage() != null ? result.getMessage() : ""
+            });
+        }
+        
+        summaryLabel.setText("Добавени " + created + " от " + results.size() + " потребители");
+    }
+}
\ No newline at end of file
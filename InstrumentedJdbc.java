@@ -0,0 +1,180 @@
+package library.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Optional;
+
+/**
+ * Обвивки (dynamic proxy) около Connection, Statement и ResultSet, които
+ * измерват всяко изпълнение на заявка и отчитат резултата в JdbcStats.
+ * DAO класовете не се променят - DatabaseConnection връща обвитата връзка.
+ */
+class InstrumentedJdbc {
+    
+    private static final StackWalker WALKER = StackWalker.getInstance();
+    
+    private InstrumentedJdbc() {
+    }
+    
+    /**
+     * Обвива връзка с базата данни
+     * @param conn физическата връзка
+     * @return връзка, която измерва създадените от нея заявки
+     */
+    static Connection wrap(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new ConnectionHandler(conn));
+    }
+    
+    /**
+     * Намира DAO метода, от който е извикана връзката, напр. "BookDAO.getBookById"
+     */
+    private static String callerMethod() {
+        Optional<String> caller = WALKER.walk(frames -> frames
+                .filter(f -> f.getClassName().startsWith("library.") && !f.getClassName().startsWith(InstrumentedJdbc.class.getName()))
+                .filter(f -> f.getClassName().endsWith("DAO") || f.getClassName().endsWith("Migrator") || f.getClassName().endsWith("Checker"))
+                .findFirst()
+                .map(f -> f.getClassName().substring(f.getClassName().lastIndexOf('.') + 1) + "." + f.getMethodName()));
+        return caller.orElse("друг");
+    }
+    
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * Обвивка на Connection - обвива създадените заявки
+     */
+    private static class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+        private boolean closed;
+        
+        private ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("unwrap".equals(name) && args[0] == Connection.class) {
+                return target;
+            }
+            
+            Object result = InstrumentedJdbc.invoke(target, method, args);
+            
+            if ("close".equals(name) && !closed) {
+                closed = true;
+                JdbcStats.recordConnectionClosed();
+            }
+            if ("prepareStatement".equals(name) && result instanceof PreparedStatement) {
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                        new Class<?>[] {PreparedStatement.class},
+                        new StatementHandler((Statement) result, (String) args[0], callerMethod()));
+            }
+            if ("createStatement".equals(name) && result instanceof Statement) {
+                return Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                        new Class<?>[] {Statement.class},
+                        new StatementHandler((Statement) result, null, callerMethod()));
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Обвивка на Statement/PreparedStatement - измерва изпълненията
+     */
+    private static class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        private final String sql;
+        private final String caller;
+        
+        private StatementHandler(Statement target, String sql, String caller) {
+            this.target = target;
+            this.sql = sql;
+            this.caller = caller;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (!name.startsWith("execute")) {
+                Object result = InstrumentedJdbc.invoke(target, method, args);
+                if ("getResultSet".equals(name) && result != null) {
+                    return wrapResultSet((ResultSet) result, sql);
+                }
+                return result;
+            }
+            
+            // При обикновен Statement текстът на заявката идва като аргумент
+            String statementSql = sql != null ? sql : (args != null && args.length > 0 ? String.valueOf(args[0]) : "?");
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object result = InstrumentedJdbc.invoke(target, method, args);
+                failed = false;
+                
+                if (result instanceof ResultSet) {
+                    return wrapResultSet((ResultSet) result, statementSql);
+                }
+                if (result instanceof Integer || result instanceof Long) {
+                    JdbcStats.recordRows(caller, statementSql, ((Number) result).longValue());
+                } else if (result instanceof int[]) {
+                    long rows = 0;
+                    for (int count : (int[]) result) {
+                        rows += Math.max(0, count);
+                    }
+                    JdbcStats.recordRows(caller, statementSql, rows);
+                }
+                return result;
+            } finally {
+                JdbcStats.recordExecution(caller, statementSql, (System.nanoTime() - start) / 1000, failed);
+            }
+        }
+        
+        private ResultSet wrapResultSet(ResultSet rs, String statementSql) {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[] {ResultSet.class}, new ResultSetHandler(rs, statementSql, caller));
+        }
+    }
+    
+    /**
+     * Обвивка на ResultSet - брои прочетените редове
+     */
+    private static class ResultSetHandler implements InvocationHandler {
+        private final ResultSet target;
+        private final String sql;
+        private final String caller;
+        private long rows;
+        private boolean reported;
+        
+        private ResultSetHandler(ResultSet target, String sql, String caller) {
+            this.target = target;
+            this.sql = sql;
+            this.caller = caller;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            Object result = InstrumentedJdbc.invoke(target, method, args);
+            
+            if ("next".equals(name) && Boolean.TRUE.equals(result)) {
+                rows++;
+            } else if ("close".equals(name) && !reported) {
+                reported = true;
+                JdbcStats.recordRows(caller, sql, rows);
+            }
+            return result;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,264 @@
+package library.dao;
+
+import library.utils.AsyncLogger;
+import library.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика за достъпа до базата данни, събирана от InstrumentedJdbc:
+ * брой извиквания, грешки, върнати редове и хистограми на времената
+ * за всяка SQL заявка и за всеки DAO метод, времето за получаване на
+ * връзка и дневник на бавните заявки над зададен праг.
+ *
+ * Прагът за бавна заявка се задава със системното свойство library.jdbc.slowMillis (по подразбиране 500).
+ */
+public class JdbcStats {
+    
+    private static final long SLOW_QUERY_MICROS = Long.getLong("library.jdbc.slowMillis", 500L) * 1000;
+    private static final int SLOW_LOG_SIZE = 200;
+    
+    private static final Map<String, Stat> BY_SQL = new ConcurrentHashMap<>();
+    private static final Map<String, Stat> BY_METHOD = new ConcurrentHashMap<>();
+    private static final LatencyHistogram CONNECTION_WAIT = new LatencyHistogram();
+    private static final LongAdder CONNECTIONS_OPENED = new LongAdder();
+    private static final LongAdder OPEN_CONNECTIONS = new LongAdder();
+    private static final Deque<String> SLOW_LOG = new ArrayDeque<>();
+    private static final ThreadLocal<long[]> OPERATION_START = ThreadLocal.withInitial(() -> new long[] {-1});
+    
+    private JdbcStats() {
+    }
+    
+    /**
+     * Статистика за една заявка или един DAO метод
+     */
+    public static class Stat {
+        private final String name;
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        
+        private Stat(String name) {
+            this.name = name;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public long getCalls() {
+            return latency.getCount();
+        }
+        
+        public long getErrors() {
+            return errors.sum();
+        }
+        
+        public long getRows() {
+            return rows.sum();
+        }
+        
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+    
+    /**
+     * Записва изпълнение на заявка
+     * @param method DAO метод, от който е подготвена заявката (напр. "BookDAO.getBookById")
+     * @param sql текст на заявката
+     * @param micros продължителност в микросекунди
+     * @param failed дали изпълнението е завършило с грешка
+     */
+    static void recordExecution(String method, String sql, long micros, boolean failed) {
+        Stat sqlStat = BY_SQL.computeIfAbsent(sql, Stat::new);
+        Stat methodStat = BY_METHOD.computeIfAbsent(method, Stat::new);
+        
+        sqlStat.latency.record(micros);
+        methodStat.latency.record(micros);
+        if (failed) {
+            sqlStat.errors.increment();
+            methodStat.errors.increment();
+        }
+        
+        if (micros >= SLOW_QUERY_MICROS) {
+            String entry = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()) +
+                    " " + (micros / 1000) + " ms " + method + " " + sql;
+            synchronized (SLOW_LOG) {
+                if (SLOW_LOG.size() == SLOW_LOG_SIZE) {
+                    SLOW_LOG.removeFirst();
+                }
+                SLOW_LOG.addLast(entry);
+            }
+            AsyncLogger.log(AsyncLogger.Level.WARN, "Бавна заявка", null, method, null, micros, sql);
+        }
+    }
+    
+    /**
+     * Отбелязва началото на операция с базата данни в текущата нишка (при искане на връзка)
+     */
+    static void markOperationStart() {
+        OPERATION_START.get()[0] = System.nanoTime();
+    }
+    
+    /**
+     * Връща времето от последното искане на връзка в текущата нишка
+     * @return продължителност в микросекунди или -1, ако няма такова
+     */
+    static long operationElapsedMicros() {
+        long start = OPERATION_START.get()[0];
+        return start < 0 ? -1 : (System.nanoTime() - start) / 1000;
+    }
+    
+    /**
+     * Записва броя на прочетените редове от резултат или променените редове
+     * @param method DAO метод
+     * @param sql текст на заявката
+     * @param rows брой редове
+     */
+    static void recordRows(String method, String sql, long rows) {
+        BY_SQL.computeIfAbsent(sql, Stat::new).rows.add(rows);
+        BY_METHOD.computeIfAbsent(method, Stat::new).rows.add(rows);
+    }
+    
+    /**
+     * Записва времето за получаване на връзка с базата данни
+     * @param micros продължителност в микросекунди
+     */
+    static void recordConnectionWait(long micros) {
+        CONNECTION_WAIT.record(micros);
+        CONNECTIONS_OPENED.increment();
+        OPEN_CONNECTIONS.increment();
+    }
+    
+    /**
+     * Записва затварянето на връзка, получена чрез recordConnectionWait
+     */
+    static void recordConnectionClosed() {
+        OPEN_CONNECTIONS.decrement();
+    }
+    
+    /**
+     * Връща статистиката по SQL заявки, подредена по общо време
+     * @return списък със статистики
+     */
+    public static List<Stat> getSqlStats() {
+        return sorted(BY_SQL);
+    }
+    
+    /**
+     * Връща статистиката по DAO методи, подредена по общо време
+     * @return списък със статистики
+     */
+    public static List<Stat> getMethodStats() {
+        return sorted(BY_METHOD);
+    }
+    
+    /**
+     * Връща статистиката за конкретен DAO метод
+     * @param method име във формат "BookDAO.getBookById"
+     * @return статистиката или null, ако методът не е извикван
+     */
+    public static Stat getMethodStat(String method) {
+        return BY_METHOD.get(method);
+    }
+    
+    /**
+     * Връща хистограмата на времето за получаване на връзка
+     * @return хистограма в микросекунди
+     */
+    public static LatencyHistogram getConnectionWait() {
+        return CONNECTION_WAIT;
+    }
+    
+    /**
+     * Връща броя на отворените в момента връзки
+     * @return брой връзки
+     */
+    public static long getOpenConnections() {
+        return OPEN_CONNECTIONS.sum();
+    }
+    
+    /**
+     * Връща общия брой отворени връзки от стартирането на приложението
+     * @return брой връзки
+     */
+    public static long getConnectionsOpened() {
+        return CONNECTIONS_OPENED.sum();
+    }
+    
+    /**
+     * Връща последните бавни заявки
+     * @return списък със записи от дневника на бавните заявки
+     */
+    public static List<String> getSlowQueries() {
+        synchronized (SLOW_LOG) {
+            return new ArrayList<>(SLOW_LOG);
+        }
+    }
+    
+    /**
+     * Изчиства натрупаната статистика
+     */
+    public static void reset() {
+        BY_SQL.clear();
+        BY_METHOD.clear();
+        synchronized (SLOW_LOG) {
+            SLOW_LOG.clear();
+        }
+    }
+    
+    /**
+     * Записва текстов отчет за статистиката във файл
+     * @param file път до файла
+     * @throws IOException при грешка в записа
+     */
+    public static void dump(Path file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("# Статистика за достъпа до базата данни - " + new Date() + "\n\n");
+            
+            LatencyHistogram wait = CONNECTION_WAIT;
+            out.write(String.format("Получаване на връзка: брой=%d p50=%dus p99=%dus max=%dus%n%n",
+                    wait.getCount(), wait.percentile(50), wait.percentile(99), wait.getMax()));
+            
+            out.write("## По DAO методи\n");
+            writeStats(out, getMethodStats());
+            
+            out.write("\n## По SQL заявки\n");
+            writeStats(out, getSqlStats());
+            
+            out.write("\n## Бавни заявки\n");
+            for (String entry : getSlowQueries()) {
+                out.write(entry + "\n");
+            }
+        }
+    }
+    
+    private static void writeStats(Writer out, List<Stat> stats) throws IOException {
+        for (Stat stat : stats) {
+            LatencyHistogram h = stat.latency;
+            out.write(String.format("%-10d грешки=%-6d редове=%-10d p50=%dus p99=%dus max=%dus  %s%n",
+                    h.getCount(), stat.getErrors(), stat.getRows(), h.percentile(50), h.percentile(99), h.getMax(), stat.name));
+        }
+    }
+    
+    private static List<Stat> sorted(Map<String, Stat> stats) {
+        List<Stat> result = new ArrayList<>(stats.values());
+        result.sort(Comparator.comparingLong((Stat s) -> s.latency.getSum()).reversed());
+        return result;
+    }
+}
\ No newline at end of file
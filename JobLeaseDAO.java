@@ -0,0 +1,103 @@
+package library.dao;
+
+import java.sql.*;
+
+/**
+ * DAO клас за краткотрайни права (lease) върху фонови задачи, които трябва да се
+ * изпълняват само от една работна станция наведнъж - напр. ежедневното архивиране.
+ * Правото се държи до expires_at; притежателят го подновява при всяко изпълнение,
+ * а ако станцията му спре, друга го поема след изтичането. Времето се взима от
+ * базата, за да не зависи от часовниците на отделните станции.
+ * Таблицата се създава от V7__job_leases.sql и е само в основната база.
+ */
+public class JobLeaseDAO {
+    
+    /**
+     * Взема или подновява правото за изпълнение на задача
+     * @param jobName името на задачата
+     * @param owner уникален идентификатор на инстанцията, която иска правото
+     * @param seconds за колко секунди се взема правото
+     * @return true, ако инстанцията държи правото; false, ако то е на друга или при грешка
+     */
+    public boolean tryAcquire(String jobName, String owner, int seconds) {
+        String updateSql = "UPDATE job_leases SET owner = ?, expires_at = TIMESTAMPADD(SECOND, ?, CURRENT_TIMESTAMP) "
+                + "WHERE job_name = ? AND (owner = ? OR expires_at < CURRENT_TIMESTAMP)";
+        String insertSql = "INSERT INTO job_leases (job_name, owner, expires_at) VALUES (?, ?, TIMESTAMPADD(SECOND, ?, CURRENT_TIMESTAMP))";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+            
+            pstmt = conn.prepareStatement(updateSql);
+            pstmt.setString(1, owner);
+            pstmt.setInt(2, seconds);
+            pstmt.setString(3, jobName);
+            pstmt.setString(4, owner);
+            if (pstmt.executeUpdate() > 0) {
+                return true;
+            }
+            pstmt.close();
+            
+            // Задачата още няма ред - първата инстанция, която го добави, взема правото
+            pstmt = conn.prepareStatement(insertSql);
+            pstmt.setString(1, jobName);
+            pstmt.setString(2, owner);
+            pstmt.setInt(3, seconds);
+            try {
+                return pstmt.executeUpdate() > 0;
+            } catch (SQLException e) {
+                if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                    return false; // Друга инстанция е добавила реда междувременно
+                }
+                throw e;
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при вземане на право за задача", e);
+            return false;
+        } finally {
+            closeResources(conn, pstmt);
+        }
+    }
+    
+    /**
+     * Освобождава правото, ако е на тази инстанция, за да може друга да го поеме веднага
+     * @param jobName името на задачата
+     * @param owner идентификаторът на инстанцията
+     */
+    public void release(String jobName, String owner) {
+        String sql = "DELETE FROM job_leases WHERE job_name = ? AND owner = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setString(1, jobName);
+            pstmt.setString(2, owner);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при освобождаване на право за задача", e);
+        } finally {
+            closeResources(conn, pstmt);
+        }
+    }
+    
+    /**
+     * Затваря ресурсите
+     * @param conn Connection обект
+     * @param pstmt PreparedStatement обект
+     */
+    private void closeResources(Connection conn, PreparedStatement pstmt) {
+        try {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при затваряне на ресурсите", e);
+        }
+    }
+}
\ No newline at end of file
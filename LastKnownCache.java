@@ -0,0 +1,125 @@
+package library.service;
+
+import library.dao.DatabaseConnection;
+import library.utils.CircuitBreaker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Последните успешно прочетени резултати от базата данни. Когато четенето
+ * се провали (или базата е недостъпна и прекъсвачът е отворен), вместо празен
+ * списък се връща последният известен резултат, а приложението преминава в
+ * режим само за четене, докато базата не стане отново достъпна.
+ */
+public class LastKnownCache {
+    
+    private static final int MAX_ENTRIES = 256;
+    
+    private static final LastKnownCache INSTANCE = new LastKnownCache();
+    
+    private final Map<String, Object> values = new LinkedHashMap<String, Object>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // Дали последното четене в съответната нишка е обслужено от кеша
+    private final ThreadLocal<Boolean> lastReadStale = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    // Ключовете, чийто последен резултат е от кеша; изчистват се при успешно четене
+    private final Set<String> staleKeys = ConcurrentHashMap.newKeySet();
+    
+    private LastKnownCache() {
+        // След възстановяване на базата показаните панели се презареждат (MainFrame)
+        DatabaseConnection.addStateListener(state -> {
+            if (state == CircuitBreaker.State.CLOSED) {
+                staleKeys.clear();
+            }
+        });
+    }
+    
+    /**
+     * Връща споделения кеш
+     * @return инстанцията на кеша
+     */
+    public static LastKnownCache getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Изпълнява четене и запомня резултата; при грешка в базата връща последния известен резултат
+     * @param key ключ на четенето, включващ параметрите му (напр. "books:all")
+     * @param loader четенето от базата данни
+     * @return прочетеният или последният известен резултат
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T read(String key, Supplier<T> loader) {
+        DatabaseConnection.clearFailure();
+        T value = loader.get();
+        
+        if (!DatabaseConnection.consumeFailure()) {
+            synchronized (values) {
+                values.put(key, value);
+            }
+            staleKeys.remove(key);
+            lastReadStale.set(Boolean.FALSE);
+            return value;
+        }
+        
+        synchronized (values) {
+            if (values.containsKey(key)) {
+                staleKeys.add(key);
+                lastReadStale.set(Boolean.TRUE);
+                return (T) values.get(key);
+            }
+        }
+        lastReadStale.set(Boolean.FALSE);
+        return value;
+    }
+    
+    /**
+     * Проверява дали последното четене в текущата нишка е обслужено от кеша поради
+     * недостъпна база. Четенията в други нишки не влияят на резултата.
+     * @return true ако прочетените данни може да са остарели
+     */
+    public boolean isServingStale() {
+        return lastReadStale.get();
+    }
+    
+    /**
+     * Проверява дали някой от последните резултати е бил от кеша и още не е
+     * прочетен успешно наново - напр. за индикатор в статус лентата
+     * @return true ако част от показаните данни може да са остарели
+     */
+    public boolean hasStaleData() {
+        return !staleKeys.isEmpty();
+    }
+    
+    /**
+     * Проверява дали приложението е в режим само за четене - базата е недостъпна
+     * и промените ще бъдат отказани, докато прекъсвачът не се затвори
+     * @return true в режим само за четене
+     */
+    public boolean isReadOnly() {
+        return DatabaseConnection.isReadOnly();
+    }
+    
+    /**
+     * Добавя слушател за влизане и излизане от режим само за четене
+     * @param listener слушателят (извиква се извън EDT)
+     */
+    public void addReadOnlyListener(CircuitBreaker.Listener listener) {
+        DatabaseConnection.addStateListener(listener);
+    }
+    
+    /**
+     * Премахва слушател за режим само за четене
+     * @param listener слушателят
+     */
+    public void removeReadOnlyListener(CircuitBreaker.Listener listener) {
+        DatabaseConnection.removeStateListener(listener);
+    }
+}
\ No newline at end of file
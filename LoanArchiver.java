@@ -0,0 +1,138 @@
+package library.service;
+
+import library.dao.JobLeaseDAO;
+import library.dao.LoanDAO;
+
+import java.lang.management.ManagementFactory;
+import java.util.Calendar;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Периодично архивиране на стари върнати заемания в таблицата loans_archive,
+ * за да остава активната таблица loans малка. Преместването става на малки
+ * партиди с пауза между тях, за да не натоварва базата при работещи гишета.
+ * Таблицата loans_archive се създава от миграцията V1__base_schema.sql.
+ *
+ * Настройки (системни свойства):
+ * library.archive.days - след колко дни върнатите заемания се архивират (по подразбиране 365)
+ * library.archive.batchSize - брой заемания в партида (по подразбиране 500)
+ * library.archive.pauseMillis - пауза между партидите (по подразбиране 200)
+ * library.archive.enabled - дали тази станция изобщо участва в архивирането (по подразбиране true)
+ *
+ * Архиваторът се стартира на всеки администраторски клиент, но всяко изпълнение
+ * първо взема правото "loan-archive" от таблицата job_leases. Така архивирането
+ * върви само на една станция; ако тя спре, друга го поема след изтичане на правото.
+ */
+public class LoanArchiver {
+    
+    // Месечната статистика се зарежда само от активната таблица, затова не архивираме по-нови от 31 дни
+    private static final int MIN_ARCHIVE_DAYS = 31;
+    
+    // Правото се държи малко над денонощие, за да го подновява същата станция всеки ден
+    private static final String LEASE_NAME = "loan-archive";
+    private static final int LEASE_SECONDS = 25 * 60 * 60;
+    
+    private static final LoanArchiver INSTANCE = new LoanArchiver();
+    
+    private final LoanDAO loanDAO;
+    private final JobLeaseDAO jobLeaseDAO;
+    private final String owner;
+    private final boolean enabled;
+    private final int archiveDays;
+    private final int batchSize;
+    private final long pauseMillis;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private ScheduledExecutorService scheduler;
+    
+    /**
+     * Конструктор
+     */
+    private LoanArchiver() {
+        this.loanDAO = ServiceRegistry.getInstance().getLoanDAO();
+        this.jobLeaseDAO = ServiceRegistry.getInstance().getJobLeaseDAO();
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+        this.enabled = Boolean.parseBoolean(System.getProperty("library.archive.enabled", "true"));
+        this.archiveDays = Math.max(MIN_ARCHIVE_DAYS, Integer.getInteger("library.archive.days", 365));
+        this.batchSize = Math.max(1, Integer.getInteger("library.archive.batchSize", 500));
+        this.pauseMillis = Math.max(0, Long.getLong("library.archive.pauseMillis", 200L));
+    }
+    
+    /**
+     * Връща споделения архиватор
+     * @return инстанцията на архиватора
+     */
+    public static LoanArchiver getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Стартира ежедневно архивиране във фонов режим
+     */
+    public synchronized void start() {
+        if (scheduler != null || !enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "loan-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::archiveNow, 1, 24 * 60, TimeUnit.MINUTES);
+    }
+    
+    /**
+     * Спира фоновото архивиране
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            jobLeaseDAO.release(LEASE_NAME, owner);
+        }
+    }
+    
+    /**
+     * Архивира всички подходящи заемания на партиди
+     * @return общ брой архивирани заемания
+     */
+    public int archiveNow() {
+        if (!running.compareAndSet(false, true)) {
+            return 0; // Вече тече архивиране
+        }
+        
+        int total = 0;
+        try {
+            // Друга станция държи правото за архивиране
+            if (!jobLeaseDAO.tryAcquire(LEASE_NAME, owner, LEASE_SECONDS)) {
+                return 0;
+            }
+            
+            Calendar cal = Calendar.getInstance();
+            cal.add(Calendar.DAY_OF_MONTH, -archiveDays);
+            
+            while (true) {
+                int moved = loanDAO.archiveReturnedLoans(cal.getTime(), batchSize);
+                if (moved <= 0) {
+                    break;
+                }
+                total += moved;
+                if (moved < batchSize) {
+                    break;
+                }
+                
+                // Пауза между партидите, за да не се задържат заключвания твърде дълго
+                Thread.sleep(pauseMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.set(false);
+        }
+        
+        return total;
+    }
+}
\ No newline at end of file
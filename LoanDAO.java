@@ -1,29 +1,77 @@
 package library.dao;
 
 import library.model.Book;
+import library.model.ChangeSet;
+import library.model.CirculationCount;
+import library.model.Hold;
 import library.model.Loan;
+import library.model.LoanOutcome;
 import library.model.User;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * DAO клас за операции със заемания в базата данни
+ * DAO клас за операции със заемания в базата данни.
+ * Заеманията са в базата на филиала на книгата (виж ShardRouter); масовите
+ * операции с книги от няколко филиала се изпълняват в отделна транзакция
+ * за всеки филиал.
  */
 public class LoanDAO {
     
+    // Максимален брой стойности в едно условие IN (...) при масовите операции
+    private static final int IN_CHUNK = 1000;
+    
+    // Размер на порцията при поточно обхождане за драйвери, различни от MySQL
+    private static final int STREAM_FETCH_SIZE = 1000;
+    
+    // Колони, общи за активната таблица и архива
+    private static final String LOAN_COLUMNS = "loan_id, book_id, user_id, loan_date, return_date, is_returned";
+    
+    // Резултати от прилагането на офлайн операция (replayOperation)
+    public static final int REPLAY_FAILED = -1;
+    public static final int REPLAY_DUPLICATE = 0;
+    public static final int REPLAY_APPLIED = 1;
+    public static final int REPLAY_CONFLICT = 2;
+    
+    // Видове офлайн операции
+    public static final char OPERATION_BORROW = 'B';
+    public static final char OPERATION_RETURN = 'R';
+    
+    /**
+     * Получава двойките потребител-книга при поточно четене на историята (forEachBorrow)
+     */
+    public interface BorrowVisitor {
+        void visit(int userId, int bookId);
+    }
+    
     private BookDAO bookDAO;
     private UserDAO userDAO;
+    private HoldDAO holdDAO;
     
     /**
      * Конструктор
+     * @param bookDAO DAO за книги
+     * @param userDAO DAO за потребители
+     * @param holdDAO DAO за запазвания
      */
-    public LoanDAO() {
-        this.bookDAO = new BookDAO();
-        this.userDAO = new UserDAO();
+    public LoanDAO(BookDAO bookDAO, UserDAO userDAO, HoldDAO holdDAO) {
+        this.bookDAO = bookDAO;
+        this.userDAO = userDAO;
+        this.holdDAO = holdDAO;
     }
     
     /**
@@ -32,16 +80,21 @@ public class LoanDAO {
      * @return ID на добавеното заемане или -1 при неуспех
      */
     public int addLoan(Loan loan) {
-        String sql = "INSERT INTO loans (book_id, user_id, loan_date, return_date, is_returned) VALUES (?, ?, ?, ?, ?)";
+        if (ShardRouter.routes(loan.getBookId())) {
+            return ShardRouter.on(ShardRouter.branchOf(loan.getBookId()), () -> addLoan(loan));
+        }
+        String sql = "INSERT INTO loans (book_id, user_id, loan_date, return_date, is_returned, row_version) VALUES (?, ?, ?, ?, ?, ?)";
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         
         try {
-            // Проверяваме дали книгата е налична
+            // Проверяваме дали книгата е налична или е запазена точно за този потребител
             Book book = bookDAO.getBookById(loan.getBookId());
-            if (book == null || !book.getAvailability().equals("налична")) {
-                System.err.println("Книгата не е налична за заемане");
+            boolean reservedForUser = book != null && "запазена".equals(book.getAvailability())
+                    && holdDAO.isAssignedTo(loan.getBookId(), loan.getUserId());
+            if (book == null || (!book.getAvailability().equals("налична") && !reservedForUser)) {
+                DaoLog.warn("Книгата не е налична за заемане");
                 return -1;
             }
             
@@ -68,6 +121,7 @@ public class LoanDAO {
             }
             
             pstmt.setBoolean(5, loan.isReturned());
+            pstmt.setLong(6, ChangeTracker.nextVersion(conn));
             
             int affectedRows = pstmt.executeUpdate();
             if (affectedRows == 0) {
@@ -85,8 +139,14 @@ public class LoanDAO {
                 throw new SQLException("Добавянето на заемане не бе успешно, не е генериран ID");
             }
             
+            // Ако книгата е чакала потребителя, запазването му е изпълнено
+            if (reservedForUser && !holdDAO.fulfillHold(conn, loan.getBookId(), loan.getUserId())) {
+                conn.rollback();
+                throw new SQLException("Запазването на книгата вече не е валидно");
+            }
+            
             // Обновяваме статуса на книгата
-            if (!bookDAO.updateBookAvailability(loan.getBookId(), "заета")) {
+            if (!bookDAO.updateBookAvailability(conn, loan.getBookId(), "заета")) {
                 conn.rollback();
                 throw new SQLException("Грешка при обновяване на статуса на книгата");
             }
@@ -101,9 +161,9 @@ public class LoanDAO {
                     conn.rollback();
                 }
             } catch (SQLException ex) {
-                System.err.println("Грешка при rollback: " + ex.getMessage());
+                DaoLog.error("Грешка при rollback", ex);
             }
-            System.err.println("Грешка при добавяне на заемане: " + e.getMessage());
+            DaoLog.error("Грешка при добавяне на заемане", e);
             return -1;
         } finally {
             try {
@@ -111,7 +171,7 @@ public class LoanDAO {
                     conn.setAutoCommit(true);
                 }
             } catch (SQLException e) {
-                System.err.println("Грешка при възстановяване на autoCommit: " + e.getMessage());
+                DaoLog.error("Грешка при възстановяване на autoCommit", e);
             }
             closeResources(conn, pstmt, rs);
         }
@@ -123,12 +183,17 @@ public class LoanDAO {
      * @return true при успех, false при неуспех
      */
     public boolean updateLoan(Loan loan) {
-        String sql = "UPDATE loans SET book_id = ?, user_id = ?, loan_date = ?, return_date = ?, is_returned = ? WHERE loan_id = ?";
+        if (ShardRouter.routes(loan.getLoanId())) {
+            return ShardRouter.on(ShardRouter.branchOf(loan.getLoanId()), () -> updateLoan(loan));
+        }
+        String sql = "UPDATE loans SET book_id = ?, user_id = ?, loan_date = ?, return_date = ?, is_returned = ?, row_version = ? WHERE loan_id = ?";
         Connection conn = null;
         PreparedStatement pstmt = null;
         
         try {
             conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
             pstmt = conn.prepareStatement(sql);
             pstmt.setInt(1, loan.getBookId());
             pstmt.setInt(2, loan.getUserId());
@@ -141,14 +206,30 @@ public class LoanDAO {
             }
             
             pstmt.setBoolean(5, loan.isReturned());
-            pstmt.setInt(6, loan.getLoanId());
+            pstmt.setLong(6, ChangeTracker.nextVersion(conn));
+            pstmt.setInt(7, loan.getLoanId());
             
             int affectedRows = pstmt.executeUpdate();
+            conn.commit();
             return affectedRows > 0;
         } catch (SQLException e) {
-            System.err.println("Грешка при обновяване на заемане: " + e.getMessage());
+            try {
+                if (conn != null) {
+                    conn.rollback();
+                }
+            } catch (SQLException ex) {
+                DaoLog.error("Грешка при rollback", ex);
+            }
+            DaoLog.error("Грешка при обновяване на заемане", e);
             return false;
         } finally {
+            try {
+                if (conn != null) {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при възстановяване на autoCommit", e);
+            }
             closeResources(conn, pstmt, null);
         }
     }
@@ -159,7 +240,10 @@ public class LoanDAO {
      * @return true при успех, false при неуспех
      */
     public boolean returnBook(int loanId) {
-        String sql = "UPDATE loans SET return_date = ?, is_returned = TRUE WHERE loan_id = ?";
+        if (ShardRouter.routes(loanId)) {
+            return ShardRouter.on(ShardRouter.branchOf(loanId), () -> returnBook(loanId));
+        }
+        String sql = "UPDATE loans SET return_date = ?, is_returned = TRUE, row_version = ? WHERE loan_id = ?";
         Connection conn = null;
         PreparedStatement pstmt = null;
         
@@ -177,13 +261,18 @@ public class LoanDAO {
             
             pstmt = conn.prepareStatement(sql);
             pstmt.setTimestamp(1, new Timestamp(new Date().getTime()));
-            pstmt.setInt(2, loanId);
+            pstmt.setLong(2, ChangeTracker.nextVersion(conn));
+            pstmt.setInt(3, loanId);
             
             int affectedRows = pstmt.executeUpdate();
             
             if (affectedRows > 0) {
+                // Назначаваме книгата на първия чакащ в опашката, ако има такъв
+                Hold next = holdDAO.assignNextHold(conn, loan.getBookId());
+                String availability = next != null ? "запазена" : "налична";
+                
                 // Обновяваме статуса на книгата
-                if (!bookDAO.updateBookAvailability(loan.getBookId(), "налична")) {
+                if (!bookDAO.updateBookAvailability(conn, loan.getBookId(), availability)) {
                     conn.rollback();
                     return false;
                 }
@@ -200,9 +289,9 @@ public class LoanDAO {
                     conn.rollback();
                 }
             } catch (SQLException ex) {
-                System.err.println("Грешка при rollback: " + ex.getMessage());
+                DaoLog.error("Грешка при rollback", ex);
             }
-            System.err.println("Грешка при връщане на книга: " + e.getMessage());
+            DaoLog.error("Грешка при връщане на книга", e);
             return false;
         } finally {
             try {
@@ -210,18 +299,372 @@ public class LoanDAO {
                     conn.setAutoCommit(true);
                 }
             } catch (SQLException e) {
-                System.err.println("Грешка при възстановяване на autoCommit: " + e.getMessage());
+                DaoLog.error("Грешка при възстановяване на autoCommit", e);
             }
             closeResources(conn, pstmt, null);
         }
     }
     
+    /**
+     * Маркира много заемания като върнати в една транзакция. Заеманията и книгите
+     * се заключват с няколко заявки IN (...), а промените се записват с пакетни
+     * заявки; само книгите с чакащи запазвания се обработват поотделно.
+     * @param loanIds ID-тата на заеманията
+     * @return резултатът за всяко заемане (в реда на подаване) или null при грешка в базата,
+     *         в който случай нищо не е променено
+     */
+    public List<LoanOutcome> returnBooks(Collection<Integer> loanIds) {
+        if (ShardRouter.scatters()) {
+            Map<Integer, LoanOutcome> merged = new HashMap<>();
+            Map<Integer, List<Integer>> groups = ShardRouter.groupByBranch(loanIds);
+            for (Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+                List<LoanOutcome> part = ShardRouter.on(group.getKey(), () -> returnBooks(group.getValue()));
+                if (part == null && groups.size() == 1) {
+                    return null;
+                }
+                if (part != null) {
+                    for (LoanOutcome outcome : part) {
+                        merged.put(outcome.getLoanId(), outcome);
+                    }
+                } else {
+                    for (int loanId : group.getValue()) {
+                        merged.put(loanId, branchUnavailable(loanId, 0, 0));
+                    }
+                }
+            }
+            
+            List<LoanOutcome> outcomes = new ArrayList<>();
+            for (int loanId : new LinkedHashSet<>(loanIds)) {
+                outcomes.add(merged.get(loanId));
+            }
+            return outcomes;
+        }
+        
+        String selectSql = "SELECT l.loan_id, l.book_id, l.user_id, l.is_returned, b.title FROM loans l " +
+                "LEFT JOIN books b ON b.book_id = l.book_id WHERE l.loan_id IN (%s) FOR UPDATE";
+        String updateSql = "UPDATE loans SET return_date = ?, is_returned = TRUE, row_version = ? WHERE loan_id = ?";
+        Connection conn = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            // Заключване и четене на всички заемания
+            Map<Integer, LoanOutcome> outcomes = new LinkedHashMap<>();
+            for (int loanId : loanIds) {
+                LoanOutcome outcome = new LoanOutcome(loanId, 0, 0);
+                outcome.fail("Заемането не съществува или е архивирано");
+                outcomes.put(loanId, outcome);
+            }
+            
+            List<LoanOutcome> toReturn = new ArrayList<>();
+            for (List<Integer> chunk : chunks(outcomes.keySet())) {
+                try (PreparedStatement pstmt = conn.prepareStatement(String.format(selectSql, placeholders(chunk.size())))) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        pstmt.setInt(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            LoanOutcome outcome = outcomes.get(rs.getInt("loan_id"));
+                            outcome.setBookId(rs.getInt("book_id"));
+                            outcome.setUserId(rs.getInt("user_id"));
+                            outcome.setBookTitle(rs.getString("title"));
+                            if (rs.getBoolean("is_returned")) {
+                                outcome.setMessage("Заемането вече е върнато");
+                            } else {
+                                outcome.setSuccess(true);
+                                outcome.setMessage(null);
+                                toReturn.add(outcome);
+                            }
+                        }
+                    }
+                }
+            }
+            
+            if (!toReturn.isEmpty()) {
+                // Пакетно отбелязване на заеманията като върнати
+                Timestamp now = new Timestamp(System.currentTimeMillis());
+                long version = ChangeTracker.nextVersion(conn);
+                try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+                    for (LoanOutcome outcome : toReturn) {
+                        pstmt.setTimestamp(1, now);
+                        pstmt.setLong(2, version);
+                        pstmt.setInt(3, outcome.getLoanId());
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                }
+                
+                // Книгите с чакащи запазвания се назначават на следващия, останалите стават налични
+                Map<Integer, LoanOutcome> byBook = new HashMap<>();
+                for (LoanOutcome outcome : toReturn) {
+                    byBook.put(outcome.getBookId(), outcome);
+                }
+                Set<Integer> available = new LinkedHashSet<>(byBook.keySet());
+                for (int bookId : holdDAO.getBooksWithWaitingHolds(conn, byBook.keySet())) {
+                    if (holdDAO.assignNextHold(conn, bookId) != null) {
+                        bookDAO.updateBookAvailability(conn, bookId, "запазена");
+                        byBook.get(bookId).setHoldChanged(true);
+                        available.remove(bookId);
+                    }
+                }
+                bookDAO.updateBooksAvailability(conn, available, "налична");
+            }
+            
+            conn.commit();
+            return new ArrayList<>(outcomes.values());
+        } catch (SQLException e) {
+            try {
+                if (conn != null) {
+                    conn.rollback();
+                }
+            } catch (SQLException ex) {
+                DaoLog.error("Грешка при rollback", ex);
+            }
+            DaoLog.error("Грешка при масово връщане на книги", e);
+            return null;
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при възстановяване на autoCommit", e);
+            }
+            closeResources(conn, null, null);
+        }
+    }
+    
+    /**
+     * Заема много книги в една транзакция (напр. комплект учебници за клас).
+     * Книгите се заключват с няколко заявки IN (...), заеманията се добавят с
+     * пакетна заявка, а наличността на книгите се променя с още една.
+     * @param loans заеманията за добавяне (книга и потребител; датите са по желание)
+     * @return резултатът за всяко заемане (в реда на подаване) или null при грешка в базата,
+     *         в който случай нищо не е променено
+     */
+    public List<LoanOutcome> borrowBooks(List<Loan> loans) {
+        if (ShardRouter.scatters()) {
+            Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = 0; i < loans.size(); i++) {
+                groups.computeIfAbsent(ShardRouter.branchOf(loans.get(i).getBookId()), b -> new ArrayList<>()).add(i);
+            }
+            
+            LoanOutcome[] outcomes = new LoanOutcome[loans.size()];
+            for (Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+                List<Loan> branchLoans = new ArrayList<>();
+                for (int index : group.getValue()) {
+                    branchLoans.add(loans.get(index));
+                }
+                
+                List<LoanOutcome> part = ShardRouter.on(group.getKey(), () -> borrowBooks(branchLoans));
+                if (part == null && groups.size() == 1) {
+                    return null;
+                }
+                for (int i = 0; i < branchLoans.size(); i++) {
+                    Loan loan = branchLoans.get(i);
+                    outcomes[group.getValue().get(i)] = part != null ? part.get(i)
+                            : branchUnavailable(0, loan.getBookId(), loan.getUserId());
+                }
+            }
+            return new ArrayList<>(Arrays.asList(outcomes));
+        }
+        
+        String booksSql = "SELECT book_id, title, availability FROM books WHERE book_id IN (%s) FOR UPDATE";
+        String usersSql = "SELECT user_id FROM users WHERE user_id IN (%s)";
+        String insertSql = "INSERT INTO loans (book_id, user_id, loan_date, return_date, is_returned, row_version) VALUES (?, ?, ?, ?, FALSE, ?)";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            Set<Integer> bookIds = new LinkedHashSet<>();
+            Set<Integer> userIds = new LinkedHashSet<>();
+            for (Loan loan : loans) {
+                bookIds.add(loan.getBookId());
+                userIds.add(loan.getUserId());
+            }
+            
+            Set<Integer> users = new HashSet<>();
+            if (ShardRouter.currentBranch() != ShardRouter.MAIN) {
+                // Потребителите са в основната база - проверяват се преди да вземем връзка
+                // към филиала, за да не държим две връзки едновременно
+                users = userDAO.findExistingIds(userIds);
+                if (users == null) {
+                    throw new SQLException("Грешка при проверка на потребителите в основната база");
+                }
+            }
+            
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            // Заключване на книгите и проверка на потребителите
+            
+            Map<Integer, String[]> books = new HashMap<>();
+            for (List<Integer> chunk : chunks(bookIds)) {
+                try (PreparedStatement select = conn.prepareStatement(String.format(booksSql, placeholders(chunk.size())))) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        select.setInt(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet found = select.executeQuery()) {
+                        while (found.next()) {
+                            books.put(found.getInt("book_id"),
+                                    new String[] {found.getString("title"), found.getString("availability")});
+                        }
+                    }
+                }
+            }
+            
+            if (ShardRouter.currentBranch() == ShardRouter.MAIN) {
+                for (List<Integer> chunk : chunks(userIds)) {
+                    try (PreparedStatement select = conn.prepareStatement(String.format(usersSql, placeholders(chunk.size())))) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            select.setInt(i + 1, chunk.get(i));
+                        }
+                        try (ResultSet found = select.executeQuery()) {
+                            while (found.next()) {
+                                users.add(found.getInt(1));
+                            }
+                        }
+                    }
+                }
+            }
+            
+            // Проверка на всяко заемане
+            List<LoanOutcome> outcomes = new ArrayList<>();
+            List<Loan> toInsert = new ArrayList<>();
+            List<LoanOutcome> inserted = new ArrayList<>();
+            Set<Integer> taken = new LinkedHashSet<>();
+            for (Loan loan : loans) {
+                LoanOutcome outcome = new LoanOutcome(0, loan.getBookId(), loan.getUserId());
+                outcomes.add(outcome);
+                
+                String[] book = books.get(loan.getBookId());
+                if (book == null) {
+                    outcome.fail("Книгата не съществува");
+                    continue;
+                }
+                outcome.setBookTitle(book[0]);
+                
+                if (!users.contains(loan.getUserId())) {
+                    outcome.fail("Потребителят не съществува");
+                } else if (taken.contains(loan.getBookId())) {
+                    outcome.fail("Книгата вече е заета в същата операция");
+                } else if ("налична".equals(book[1])
+                        || ("запазена".equals(book[1]) && holdDAO.isAssignedTo(conn, loan.getBookId(), loan.getUserId()))) {
+                    outcome.setSuccess(true);
+                    outcome.setHoldChanged("запазена".equals(book[1]));
+                    taken.add(loan.getBookId());
+                    toInsert.add(loan);
+                    inserted.add(outcome);
+                } else {
+                    outcome.fail("Книгата е " + book[1]);
+                }
+            }
+            
+            if (!toInsert.isEmpty()) {
+                // Пакетно добавяне на заеманията
+                Date now = new Date();
+                long version = ChangeTracker.nextVersion(conn);
+                pstmt = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS);
+                for (Loan loan : toInsert) {
+                    if (loan.getLoanDate() == null) {
+                        loan.setLoanDate(now);
+                    }
+                    if (loan.getReturnDate() == null) {
+                        loan.setReturnDate(generateReturnDate());
+                    }
+                    pstmt.setInt(1, loan.getBookId());
+                    pstmt.setInt(2, loan.getUserId());
+                    pstmt.setTimestamp(3, new Timestamp(loan.getLoanDate().getTime()));
+                    pstmt.setTimestamp(4, new Timestamp(loan.getReturnDate().getTime()));
+                    pstmt.setLong(5, version);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                
+                rs = pstmt.getGeneratedKeys();
+                int i = 0;
+                while (rs.next() && i < toInsert.size()) {
+                    toInsert.get(i).setLoanId(rs.getInt(1));
+                    inserted.get(i).setLoanId(rs.getInt(1));
+                    i++;
+                }
+                if (i < toInsert.size()) {
+                    throw new SQLException("Добавянето на заемания не бе успешно, не са генерирани всички ID");
+                }
+                
+                // Запазените книги, които чакаха точно тези потребители
+                for (Loan loan : toInsert) {
+                    if ("запазена".equals(books.get(loan.getBookId())[1])
+                            && !holdDAO.fulfillHold(conn, loan.getBookId(), loan.getUserId())) {
+                        throw new SQLException("Запазването на книга " + loan.getBookId() + " вече не е валидно");
+                    }
+                }
+                bookDAO.updateBooksAvailability(conn, taken, "заета");
+            }
+            
+            conn.commit();
+            return outcomes;
+        } catch (SQLException e) {
+            try {
+                if (conn != null) {
+                    conn.rollback();
+                }
+            } catch (SQLException ex) {
+                DaoLog.error("Грешка при rollback", ex);
+            }
+            DaoLog.error("Грешка при масово заемане на книги", e);
+            return null;
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при възстановяване на autoCommit", e);
+            }
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Резултат за заемане от филиал, чиято база е недостъпна по време на масова операция
+     */
+    private static LoanOutcome branchUnavailable(int loanId, int bookId, int userId) {
+        LoanOutcome outcome = new LoanOutcome(loanId, bookId, userId);
+        outcome.fail("Няма връзка с базата на филиала");
+        return outcome;
+    }
+    
+    /**
+     * Разделя ID-та на части с не повече от IN_CHUNK елемента
+     */
+    private static List<List<Integer>> chunks(Collection<Integer> ids) {
+        List<Integer> all = new ArrayList<>(ids);
+        List<List<Integer>> chunks = new ArrayList<>();
+        for (int from = 0; from < all.size(); from += IN_CHUNK) {
+            chunks.add(all.subList(from, Math.min(all.size(), from + IN_CHUNK)));
+        }
+        return chunks;
+    }
+    
+    /**
+     * Връща "?, ?, ..., ?" за условие IN с дадения брой стойности
+     */
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+    
     /**
      * Изтрива заемане от базата данни
      * @param loanId ID на заемането, което трябва да бъде изтрито
      * @return true при успех, false при неуспех
      */
     public boolean deleteLoan(int loanId) {
+        if (ShardRouter.routes(loanId)) {
+            return ShardRouter.on(ShardRouter.branchOf(loanId), () -> deleteLoan(loanId));
+        }
         String sql = "DELETE FROM loans WHERE loan_id = ?";
         Connection conn = null;
         PreparedStatement pstmt = null;
@@ -244,14 +687,17 @@ public class LoanDAO {
             int affectedRows = pstmt.executeUpdate();
             
             if (affectedRows > 0) {
-                // Ако книгата е била заета и сега я изтриваме, трябва да променим статуса й обратно на "налична"
+                // Ако книгата е била заета, тя се назначава на следващия в опашката (както при
+                // връщане) и става "налична" само ако никой не я чака
                 if (!loan.isReturned()) {
-                    if (!bookDAO.updateBookAvailability(loan.getBookId(), "налична")) {
+                    Hold next = holdDAO.assignNextHold(conn, loan.getBookId());
+                    if (!bookDAO.updateBookAvailability(conn, loan.getBookId(), next != null ? "запазена" : "налична")) {
                         conn.rollback();
                         return false;
                     }
                 }
                 
+                ChangeTracker.addTombstones(conn, ChangeTracker.LOANS, Collections.singletonList(loanId), ChangeTracker.nextVersion(conn));
                 conn.commit();
                 return true;
             }
@@ -264,9 +710,9 @@ public class LoanDAO {
                     conn.rollback();
                 }
             } catch (SQLException ex) {
-                System.err.println("Грешка при rollback: " + ex.getMessage());
+                DaoLog.error("Грешка при rollback", ex);
             }
-            System.err.println("Грешка при изтриване на заемане: " + e.getMessage());
+            DaoLog.error("Грешка при изтриване на заемане", e);
             return false;
         } finally {
             try {
@@ -274,7 +720,7 @@ public class LoanDAO {
                     conn.setAutoCommit(true);
                 }
             } catch (SQLException e) {
-                System.err.println("Грешка при възстановяване на autoCommit: " + e.getMessage());
+                DaoLog.error("Грешка при възстановяване на autoCommit", e);
             }
             closeResources(conn, pstmt, null);
         }
@@ -286,10 +732,14 @@ public class LoanDAO {
      * @return заемането или null, ако не е намерено
      */
     public Loan getLoanById(int loanId) {
+        if (ShardRouter.routes(loanId)) {
+            return ShardRouter.on(ShardRouter.branchOf(loanId), () -> getLoanById(loanId));
+        }
         String sql = "SELECT * FROM loans WHERE loan_id = ?";
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
+        Loan loan;
         
         try {
             conn = DatabaseConnection.getConnection();
@@ -297,31 +747,45 @@ public class LoanDAO {
             pstmt.setInt(1, loanId);
             
             rs = pstmt.executeQuery();
-            if (rs.next()) {
-                Loan loan = extractLoanFromResultSet(rs);
-                
-                // Зареждаме книгата и потребителя
-                loan.setBook(bookDAO.getBookById(loan.getBookId()));
-                loan.setUser(userDAO.getUserById(loan.getUserId()));
-                
-                return loan;
+            if (!rs.next()) {
+                return null;
             }
+            loan = extractLoanFromResultSet(rs);
         } catch (SQLException e) {
-            System.err.println("Грешка при търсене на заемане по ID: " + e.getMessage());
+            DaoLog.error("Грешка при търсене на заемане по ID", e);
+            return null;
         } finally {
             closeResources(conn, pstmt, rs);
         }
         
-        return null;
+        // Зареждаме книгата и потребителя
+        hydrate(Collections.singletonList(loan));
+        return loan;
     }
     
     /**
-     * Връща списък със заемания за даден потребител
+     * Връща списък със заемания за даден потребител (без архивираните)
      * @param userId ID на потребителя
      * @return списък със заемания на потребителя
      */
     public List<Loan> getLoansByUserId(int userId) {
-        String sql = "SELECT * FROM loans WHERE user_id = ? ORDER BY loan_date DESC";
+        return getLoansByUserId(userId, false);
+    }
+    
+    /**
+     * Връща списък със заемания за даден потребител
+     * @param userId ID на потребителя
+     * @param includeHistory дали да се включат и архивираните заемания
+     * @return списък със заемания на потребителя
+     */
+    public List<Loan> getLoansByUserId(int userId, boolean includeHistory) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(() -> getLoansByUserId(userId, includeHistory), Comparator.comparing(Loan::getLoanDate).reversed());
+        }
+        String sql = includeHistory
+                ? "SELECT " + LOAN_COLUMNS + " FROM loans WHERE user_id = ? UNION ALL " +
+                  "SELECT " + LOAN_COLUMNS + " FROM loans_archive WHERE user_id = ? ORDER BY loan_date DESC"
+                : "SELECT * FROM loans WHERE user_id = ? ORDER BY loan_date DESC";
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -329,23 +793,25 @@ public class LoanDAO {
         List<Loan> loans = new ArrayList<>();
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getReadConnection();
             pstmt = conn.prepareStatement(sql);
             pstmt.setInt(1, userId);
+            if (includeHistory) {
+                pstmt.setInt(2, userId);
+            }
             
             rs = pstmt.executeQuery();
             while (rs.next()) {
                 Loan loan = extractLoanFromResultSet(rs);
-                loan.setBook(bookDAO.getBookById(loan.getBookId()));
-                loan.setUser(userDAO.getUserById(loan.getUserId()));
                 loans.add(loan);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при извличане на заемания за потребител: " + e.getMessage());
+            DaoLog.error("Грешка при извличане на заемания за потребител", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
         
+        hydrate(loans);
         return loans;
     }
     
@@ -354,6 +820,9 @@ public class LoanDAO {
      * @return списък с активни заемания
      */
     public List<Loan> getActiveLoans() {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(this::getActiveLoans, Comparator.comparing(Loan::getLoanDate).reversed());
+        }
         String sql = "SELECT * FROM loans WHERE is_returned = FALSE ORDER BY loan_date DESC";
         Connection conn = null;
         PreparedStatement pstmt = null;
@@ -362,22 +831,21 @@ public class LoanDAO {
         List<Loan> loans = new ArrayList<>();
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getReadConnection();
             pstmt = conn.prepareStatement(sql);
             
             rs = pstmt.executeQuery();
             while (rs.next()) {
                 Loan loan = extractLoanFromResultSet(rs);
-                loan.setBook(bookDAO.getBookById(loan.getBookId()));
-                loan.setUser(userDAO.getUserById(loan.getUserId()));
                 loans.add(loan);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при извличане на активни заемания: " + e.getMessage());
+            DaoLog.error("Грешка при извличане на активни заемания", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
         
+        hydrate(loans);
         return loans;
     }
     
@@ -387,6 +855,9 @@ public class LoanDAO {
      * @return списък с просрочени заемания
      */
     public List<Loan> getOverdueLoans(int daysOverdue) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(() -> getOverdueLoans(daysOverdue), Comparator.comparing(Loan::getLoanDate));
+        }
         String sql = "SELECT * FROM loans WHERE is_returned = FALSE AND loan_date < ? ORDER BY loan_date";
         Connection conn = null;
         PreparedStatement pstmt = null;
@@ -395,7 +866,7 @@ public class LoanDAO {
         List<Loan> loans = new ArrayList<>();
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getReadConnection();
             pstmt = conn.prepareStatement(sql);
             
             // Изчисляваме датата, преди която се считат за просрочени
@@ -406,25 +877,39 @@ public class LoanDAO {
             rs = pstmt.executeQuery();
             while (rs.next()) {
                 Loan loan = extractLoanFromResultSet(rs);
-                loan.setBook(bookDAO.getBookById(loan.getBookId()));
-                loan.setUser(userDAO.getUserById(loan.getUserId()));
                 loans.add(loan);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при извличане на просрочени заемания: " + e.getMessage());
+            DaoLog.error("Грешка при извличане на просрочени заемания", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
         
+        hydrate(loans);
         return loans;
     }
     
     /**
-     * Връща списък с всички заемания
+     * Връща списък с всички заемания (без архивираните)
      * @return списък с всички заемания в базата данни
      */
     public List<Loan> getAllLoans() {
-        String sql = "SELECT * FROM loans ORDER BY loan_date DESC";
+        return getAllLoans(false);
+    }
+    
+    /**
+     * Връща списък с всички заемания
+     * @param includeHistory дали да се включат и архивираните заемания
+     * @return списък с всички заемания в базата данни
+     */
+    public List<Loan> getAllLoans(boolean includeHistory) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(() -> getAllLoans(includeHistory), Comparator.comparing(Loan::getLoanDate).reversed());
+        }
+        String sql = includeHistory
+                ? "SELECT " + LOAN_COLUMNS + " FROM loans UNION ALL " +
+                  "SELECT " + LOAN_COLUMNS + " FROM loans_archive ORDER BY loan_date DESC"
+                : "SELECT * FROM loans ORDER BY loan_date DESC";
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -432,31 +917,91 @@ public class LoanDAO {
         List<Loan> loans = new ArrayList<>();
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getReadConnection();
             pstmt = conn.prepareStatement(sql);
             
             rs = pstmt.executeQuery();
             while (rs.next()) {
                 Loan loan = extractLoanFromResultSet(rs);
-                loan.setBook(bookDAO.getBookById(loan.getBookId()));
-                loan.setUser(userDAO.getUserById(loan.getUserId()));
                 loans.add(loan);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при извличане на всички заемания: " + e.getMessage());
+            DaoLog.error("Грешка при извличане на всички заемания", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
         
+        hydrate(loans);
         return loans;
     }
     
+    /**
+     * Връща активните заемания, добавени, променени или изтрити (и архивирани) след дадена версия
+     * @param since последната версия, известна на клиента (0 за всички заемания)
+     * @param userId ID на потребителя или 0 за заеманията на всички потребители
+     * @return промените или null при грешка
+     */
+    public ChangeSet<Loan> getLoansChangedSince(long since, int userId) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gatherChanges(since, version -> getLoansChangedSince(version, userId));
+        }
+        String sql = userId > 0
+                ? "SELECT * FROM loans WHERE row_version > ? AND row_version <= ? AND user_id = ? ORDER BY loan_date DESC"
+                : "SELECT * FROM loans WHERE row_version > ? AND row_version <= ? ORDER BY loan_date DESC";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        List<Loan> loans = new ArrayList<>();
+        ChangeSet<Loan> changes;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            long upTo = ChangeTracker.currentVersion(conn);
+            if (upTo == since) {
+                return ChangeSet.empty(since);
+            }
+            if (upTo < since) {
+                // Версията на клиента е от друга база (напр. възстановена от архив) - зарежда се всичко
+                since = 0;
+            }
+            
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setLong(1, since);
+            pstmt.setLong(2, upTo);
+            if (userId > 0) {
+                pstmt.setInt(3, userId);
+            }
+            
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                Loan loan = extractLoanFromResultSet(rs);
+                loans.add(loan);
+            }
+            
+            // ID-тата на изтритите заемания на друг потребител не присъстват в таблицата на клиента и се пренебрегват
+            changes = since <= 0
+                    ? ChangeSet.full(loans, upTo)
+                    : new ChangeSet<>(loans, ChangeTracker.getDeletedIds(conn, ChangeTracker.LOANS, since, upTo), upTo);
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при извличане на променените заемания", e);
+            return null;
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        hydrate(loans);
+        return changes;
+    }
+    
     /**
      * Проверява дали книга е заета
      * @param bookId ID на книгата
      * @return true, ако книгата е заета, false в противен случай
      */
     public boolean isBookLoaned(int bookId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> isBookLoaned(bookId));
+        }
         String sql = "SELECT COUNT(*) FROM loans WHERE book_id = ? AND is_returned = FALSE";
         Connection conn = null;
         PreparedStatement pstmt = null;
@@ -472,7 +1017,7 @@ public class LoanDAO {
                 return rs.getInt(1) > 0;
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при проверка дали книга е заета: " + e.getMessage());
+            DaoLog.error("Грешка при проверка дали книга е заета", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -481,12 +1026,15 @@ public class LoanDAO {
     }
     
     /**
-     * Връща брой заемания на даден потребител
-     * @param userId ID на потребителя
-     * @return брой заемания
+     * Връща брой заемания на книга в активната таблица, вкл. върнатите, които още не са архивирани
+     * @param bookId ID на книгата
+     * @return брой заемания или -1 при грешка
      */
-    public int getLoanCountByUser(int userId) {
-        String sql = "SELECT COUNT(*) FROM loans WHERE user_id = ?";
+    public int getLoanCountByBook(int bookId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> getLoanCountByBook(bookId));
+        }
+        String sql = "SELECT COUNT(*) FROM loans WHERE book_id = ?";
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -494,28 +1042,32 @@ public class LoanDAO {
         try {
             conn = DatabaseConnection.getConnection();
             pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, userId);
+            pstmt.setInt(1, bookId);
             
             rs = pstmt.executeQuery();
             if (rs.next()) {
                 return rs.getInt(1);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при броене на заемания на потребител: " + e.getMessage());
+            DaoLog.error("Грешка при броене на заемания на книга", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
         
-        return 0;
+        return -1;
     }
     
     /**
-     * Връща брой активни заемания на даден потребител
+     * Проверява дали книгата в момента е заета от конкретен потребител
+     * @param bookId ID на книгата
      * @param userId ID на потребителя
-     * @return брой активни заемания
+     * @return true, ако потребителят държи книгата, false в противен случай
      */
-    public int getActiveLoansCountByUser(int userId) {
-        String sql = "SELECT COUNT(*) FROM loans WHERE user_id = ? AND is_returned = FALSE";
+    public boolean isBookLoanedBy(int bookId, int userId) {
+        if (ShardRouter.routes(bookId)) {
+            return ShardRouter.on(ShardRouter.branchOf(bookId), () -> isBookLoanedBy(bookId, userId));
+        }
+        String sql = "SELECT COUNT(*) FROM loans WHERE book_id = ? AND user_id = ? AND is_returned = FALSE";
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -523,29 +1075,662 @@ public class LoanDAO {
         try {
             conn = DatabaseConnection.getConnection();
             pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, userId);
+            pstmt.setInt(1, bookId);
+            pstmt.setInt(2, userId);
             
             rs = pstmt.executeQuery();
             if (rs.next()) {
-                return rs.getInt(1);
+                return rs.getInt(1) > 0;
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при броене на активни заемания на потребител: " + e.getMessage());
+            DaoLog.error("Грешка при проверка дали книга е заета от потребител", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
         
-        return 0;
+        return false;
     }
     
     /**
-     * Автоматично генерира подходяща дата за връщане на базата на текущата дата (обикновено +14 дни)
-     * @return препоръчителна дата на връщане
+     * Намира активните заемания на много книги с няколко заявки IN (...)
+     * @param bookIds ID-тата на книгите
+     * @return ID на книгата -> ID на активното заемане (незаетите книги липсват) или null при грешка
      */
-    public Date generateReturnDate() {
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.DAY_OF_MONTH, 14); // По подразбиране книгите се заемат за 14 дни
-        return cal.getTime();
+    public Map<Integer, Integer> getActiveLoanIdsByBooks(Collection<Integer> bookIds) {
+        if (ShardRouter.scatters()) {
+            Map<Integer, Integer> merged = new HashMap<>();
+            for (Map.Entry<Integer, List<Integer>> group : ShardRouter.groupByBranch(bookIds).entrySet()) {
+                Map<Integer, Integer> part = ShardRouter.on(group.getKey(), () -> getActiveLoanIdsByBooks(group.getValue()));
+                if (part == null) {
+                    return null;
+                }
+                merged.putAll(part);
+            }
+            return merged;
+        }
+        String sql = "SELECT book_id, loan_id FROM loans WHERE is_returned = FALSE AND book_id IN (%s)";
+        Map<Integer, Integer> loanIds = new HashMap<>();
+        Connection conn = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            for (List<Integer> chunk : chunks(bookIds)) {
+                try (PreparedStatement pstmt = conn.prepareStatement(String.format(sql, placeholders(chunk.size())))) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        pstmt.setInt(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            loanIds.put(rs.getInt("book_id"), rs.getInt("loan_id"));
+                        }
+                    }
+                }
+            }
+            return loanIds;
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при търсене на активните заемания на книги", e);
+            return null;
+        } finally {
+            closeResources(conn, null, null);
+        }
+    }
+    
+    /**
+     * Връща брой заемания на даден потребител (без архивираните)
+     * @param userId ID на потребителя
+     * @return брой заемания
+     */
+    public int getLoanCountByUser(int userId) {
+        return getLoanCountByUser(userId, false);
+    }
+    
+    /**
+     * Връща брой заемания на даден потребител
+     * @param userId ID на потребителя
+     * @param includeHistory дали да се включат и архивираните заемания
+     * @return брой заемания
+     */
+    public int getLoanCountByUser(int userId, boolean includeHistory) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.sum(() -> getLoanCountByUser(userId, includeHistory));
+        }
+        String sql = includeHistory
+                ? "SELECT (SELECT COUNT(*) FROM loans WHERE user_id = ?) + (SELECT COUNT(*) FROM loans_archive WHERE user_id = ?)"
+                : "SELECT COUNT(*) FROM loans WHERE user_id = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getReadConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, userId);
+            if (includeHistory) {
+                pstmt.setInt(2, userId);
+            }
+            
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при броене на заемания на потребител", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Връща брой активни заемания на даден потребител
+     * @param userId ID на потребителя
+     * @return брой активни заемания
+     */
+    public int getActiveLoansCountByUser(int userId) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.sum(() -> getActiveLoansCountByUser(userId));
+        }
+        String sql = "SELECT COUNT(*) FROM loans WHERE user_id = ? AND is_returned = FALSE";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, userId);
+            
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при броене на активни заемания на потребител", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Връща броя на заеманията по книги от дадена дата насам (агрегирано в базата)
+     * @param since начална дата на периода
+     * @return списък с брой заемания за всяка книга
+     */
+    public List<CirculationCount> getBorrowCountsByBookSince(Date since) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(() -> getBorrowCountsByBookSince(since));
+        }
+        String sql = "SELECT l.book_id AS id, b.title AS name, COUNT(*) AS cnt FROM loans l " +
+                "JOIN books b ON b.book_id = l.book_id WHERE l.loan_date >= ? GROUP BY l.book_id, b.title";
+        return getCirculationCounts(sql, since, "Грешка при извличане на статистика по книги");
+    }
+    
+    /**
+     * Връща броя на заеманията по потребители от дадена дата насам (агрегирано в базата)
+     * @param since начална дата на периода
+     * @return списък с брой заемания за всеки потребител
+     */
+    public List<CirculationCount> getBorrowCountsByUserSince(Date since) {
+        if (ShardRouter.isSharded()) {
+            return getShardedBorrowCountsByUser(since);
+        }
+        String sql = "SELECT l.user_id AS id, u.name AS name, COUNT(*) AS cnt FROM loans l " +
+                "JOIN users u ON u.user_id = l.user_id WHERE l.loan_date >= ? GROUP BY l.user_id, u.name";
+        return getCirculationCounts(sql, since, "Грешка при извличане на статистика по потребители");
+    }
+    
+    /**
+     * Брои заеманията по потребители във всички филиали. Потребителите са в основната
+     * база, затова броенето е без JOIN, а имената се попълват след сумирането.
+     * @param since начална дата на периода
+     * @return списък с брой заемания за всеки потребител
+     */
+    private List<CirculationCount> getShardedBorrowCountsByUser(Date since) {
+        String sql = "SELECT user_id AS id, NULL AS name, COUNT(*) AS cnt FROM loans WHERE loan_date >= ? GROUP BY user_id";
+        List<CirculationCount> parts = ShardRouter.gather(() -> getCirculationCounts(sql, since,
+                "Грешка при извличане на статистика по потребители"));
+        
+        Map<Integer, CirculationCount> byUser = new LinkedHashMap<>();
+        for (CirculationCount part : parts) {
+            CirculationCount total = byUser.putIfAbsent(part.getId(), part);
+            if (total != null) {
+                total.setCount(total.getCount() + part.getCount());
+            }
+        }
+        for (User user : userDAO.getAllUsers()) {
+            CirculationCount count = byUser.get(user.getUserId());
+            if (count != null) {
+                count.setName(user.getName());
+            }
+        }
+        return new ArrayList<>(byUser.values());
+    }
+    
+    /**
+     * Изпълнява агрегираща заявка за статистика
+     * @param sql заявка, връщаща колони id, name и cnt
+     * @param since начална дата на периода
+     * @param errorMessage съобщение при грешка
+     * @return списък с резултатите
+     */
+    private List<CirculationCount> getCirculationCounts(String sql, Date since, String errorMessage) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        List<CirculationCount> counts = new ArrayList<>();
+        
+        try {
+            conn = DatabaseConnection.getReadConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setTimestamp(1, new Timestamp(since.getTime()));
+            
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                counts.add(new CirculationCount(rs.getInt("id"), rs.getString("name"), rs.getLong("cnt")));
+            }
+        } catch (SQLException e) {
+            DaoLog.error(errorMessage, e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return counts;
+    }
+    
+    /**
+     * Обхожда всички заемания (активни и архивирани) ред по ред, без да ги зарежда
+     * в паметта, така че може да се използва и при милиони заемания
+     * @param visitor получава потребителя и книгата на всяко заемане
+     * @return true при успех, false при грешка
+     */
+    public boolean forEachBorrow(BorrowVisitor visitor) {
+        if (ShardRouter.scatters()) {
+            // Филиалите се обхождат последователно - посетителят не е нужно да е нишково безопасен
+            for (int branch = 0; branch < ShardRouter.getBranchCount(); branch++) {
+                if (!ShardRouter.on(branch, () -> forEachBorrow(visitor))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        String sql = "SELECT user_id, book_id FROM loans UNION ALL SELECT user_id, book_id FROM loans_archive";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getReadConnection();
+            pstmt = conn.prepareStatement(sql);
+            // MySQL драйверът предава редовете поточно само при този размер на порцията;
+            // другите драйвери (напр. H2) не приемат отрицателна стойност
+            boolean mysql = conn.getMetaData().getURL().startsWith("jdbc:mysql:");
+            pstmt.setFetchSize(mysql ? Integer.MIN_VALUE : STREAM_FETCH_SIZE);
+            
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                visitor.visit(rs.getInt(1), rs.getInt(2));
+            }
+            return true;
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при обхождане на историята на заеманията", e);
+            return false;
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Връща броя на връщанията от дадена дата насам
+     * @param since начална дата на периода
+     * @return брой върнати книги
+     */
+    public int getReturnCountSince(Date since) {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.sum(() -> getReturnCountSince(since));
+        }
+        String sql = "SELECT COUNT(*) FROM loans WHERE is_returned = TRUE AND return_date >= ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getReadConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setTimestamp(1, new Timestamp(since.getTime()));
+            
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при броене на връщания", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Връща общия брой активни (невърнати) заемания
+     * @return брой активни заемания
+     */
+    public int getActiveLoansCount() {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.sum(this::getActiveLoansCount);
+        }
+        String sql = "SELECT COUNT(*) FROM loans WHERE is_returned = FALSE";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getReadConnection();
+            pstmt = conn.prepareStatement(sql);
+            
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при броене на активни заемания", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Премества една партида върнати заемания, по-стари от зададена дата, в архивната таблица.
+     * Преместването е в една транзакция, за да не се губят или дублират редове.
+     * @param cutoff заемания, върнати преди тази дата, се архивират
+     * @param batchSize максимален брой заемания в партидата
+     * @return брой преместени заемания или -1 при неуспех
+     */
+    public int archiveReturnedLoans(Date cutoff, int batchSize) {
+        if (ShardRouter.scatters()) {
+            int moved = 0;
+            for (int branch = 0; branch < ShardRouter.getBranchCount(); branch++) {
+                int part = ShardRouter.on(branch, () -> archiveReturnedLoans(cutoff, batchSize));
+                if (part < 0) {
+                    return -1;
+                }
+                moved += part;
+            }
+            return moved;
+        }
+        String selectSql = "SELECT loan_id FROM loans WHERE is_returned = TRUE AND return_date < ? ORDER BY loan_id LIMIT ? FOR UPDATE";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            pstmt = conn.prepareStatement(selectSql);
+            pstmt.setTimestamp(1, new Timestamp(cutoff.getTime()));
+            pstmt.setInt(2, batchSize);
+            
+            List<Integer> loanIds = new ArrayList<>();
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                loanIds.add(rs.getInt(1));
+            }
+            
+            if (loanIds.isEmpty()) {
+                conn.commit();
+                return 0;
+            }
+            
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < loanIds.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            
+            String insertSql = "INSERT INTO loans_archive (" + LOAN_COLUMNS + ", archived_at) SELECT " + LOAN_COLUMNS +
+                    ", ? FROM loans WHERE loan_id IN (" + placeholders + ")";
+            try (PreparedStatement insert = conn.prepareStatement(insertSql)) {
+                insert.setTimestamp(1, new Timestamp(new Date().getTime()));
+                for (int i = 0; i < loanIds.size(); i++) {
+                    insert.setInt(i + 2, loanIds.get(i));
+                }
+                insert.executeUpdate();
+            }
+            
+            String deleteSql = "DELETE FROM loans WHERE loan_id IN (" + placeholders + ")";
+            int moved;
+            try (PreparedStatement delete = conn.prepareStatement(deleteSql)) {
+                for (int i = 0; i < loanIds.size(); i++) {
+                    delete.setInt(i + 1, loanIds.get(i));
+                }
+                moved = delete.executeUpdate();
+            }
+            
+            // За клиентите архивираните заемания изчезват от активната таблица
+            ChangeTracker.addTombstones(conn, ChangeTracker.LOANS, loanIds, ChangeTracker.nextVersion(conn));
+            
+            conn.commit();
+            return moved;
+        } catch (SQLException e) {
+            try {
+                if (conn != null) {
+                    conn.rollback();
+                }
+            } catch (SQLException ex) {
+                DaoLog.error("Грешка при rollback", ex);
+            }
+            DaoLog.error("Грешка при архивиране на заемания", e);
+            return -1;
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при възстановяване на autoCommit", e);
+            }
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Прилага операция, записана офлайн, точно веднъж. Идентификаторът на операцията
+     * се записва в applied_operations в същата транзакция, така че повторното
+     * прилагане се разпознава. Ако междувременно състоянието в базата е
+     * променено (книгата е заета, заемането е върнато), операцията се отбелязва
+     * като конфликт и не се прилага.
+     * @param opId уникален идентификатор на операцията
+     * @param type OPERATION_BORROW или OPERATION_RETURN
+     * @param bookId ID на книгата (при заемане или при връщане по сканирана книга)
+     * @param userId ID на потребителя (при заемане)
+     * @param loanId ID на заемането (при връщане) или 0 за връщане на активното заемане на книгата
+     * @param when моментът, в който операцията е извършена на гишето
+     * @return REPLAY_APPLIED, REPLAY_DUPLICATE, REPLAY_CONFLICT (включително при постоянна
+     *         грешка в базата) или REPLAY_FAILED при временна грешка, след която опитът се повтаря
+     */
+    public int replayOperation(String opId, char type, int bookId, int userId, int loanId, Date when) {
+        int routingId = type == OPERATION_BORROW || loanId == 0 ? bookId : loanId;
+        if (ShardRouter.routes(routingId)) {
+            return ShardRouter.on(ShardRouter.branchOf(routingId), () -> replayOperation(opId, type, bookId, userId, loanId, when));
+        }
+        String markSql = "INSERT INTO applied_operations (op_id, op_type, applied_at, outcome) VALUES (?, ?, ?, 'приложена')";
+        String conflictSql = "INSERT INTO applied_operations (op_id, op_type, applied_at, outcome, detail) VALUES (?, ?, ?, 'конфликт', ?)";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        
+        // Във филиалите потребителите са в основната база - проверяват се преди
+        // да вземем връзка към филиала, за да не държим две връзки едновременно
+        Boolean userKnown = null;
+        if (type == OPERATION_BORROW && ShardRouter.currentBranch() != ShardRouter.MAIN) {
+            Set<Integer> users = userDAO.findExistingIds(Collections.singleton(userId));
+            if (users == null) {
+                return REPLAY_FAILED;
+            }
+            userKnown = users.contains(userId);
+        }
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            pstmt = conn.prepareStatement(markSql);
+            pstmt.setString(1, opId);
+            pstmt.setString(2, String.valueOf(type));
+            pstmt.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            try {
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                // Нарушение на първичния ключ - операцията вече е приложена
+                if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                    conn.rollback();
+                    return REPLAY_DUPLICATE;
+                }
+                throw e;
+            }
+            pstmt.close();
+            pstmt = null;
+            
+            String conflict;
+            try {
+                conflict = type == OPERATION_BORROW
+                        ? replayBorrow(conn, bookId, userId, userKnown, when)
+                        : replayReturn(conn, loanId, bookId, when);
+            } catch (SQLException e) {
+                // Постоянна грешка (нарушено ограничение, невалидни данни) не изчезва при
+                // повторен опит - операцията се отбелязва като конфликт, за да не спира журнала
+                if (DatabaseConnection.isTransient(e)) {
+                    throw e;
+                }
+                DaoLog.warn("Офлайн операция " + opId + " е отхвърлена поради грешка в базата", e);
+                conflict = "Грешка в базата: " + e.getMessage();
+            }
+            
+            if (conflict != null) {
+                // Частично приложените промени се отменят, но отметката за операцията остава
+                conn.rollback();
+                pstmt = conn.prepareStatement(conflictSql);
+                pstmt.setString(1, opId);
+                pstmt.setString(2, String.valueOf(type));
+                pstmt.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+                pstmt.setString(4, conflict.length() > 255 ? conflict.substring(0, 255) : conflict);
+                pstmt.executeUpdate();
+            }
+            
+            conn.commit();
+            return conflict == null ? REPLAY_APPLIED : REPLAY_CONFLICT;
+        } catch (SQLException e) {
+            try {
+                if (conn != null) {
+                    conn.rollback();
+                }
+            } catch (SQLException ex) {
+                DaoLog.error("Грешка при rollback", ex);
+            }
+            DaoLog.error("Грешка при прилагане на офлайн операция", e);
+            return REPLAY_FAILED;
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при възстановяване на autoCommit", e);
+            }
+            closeResources(conn, pstmt, null);
+        }
+    }
+    
+    /**
+     * Прилага офлайн заемане в рамките на текуща транзакция със същите проверки
+     * като при заемане на гишето
+     * @param userKnown дали потребителят съществува, ако вече е проверено в
+     *                  основната база, или null за проверка в текущата транзакция
+     * @return описание на конфликта или null при успех
+     */
+    private String replayBorrow(Connection conn, int bookId, int userId, Boolean userKnown, Date when) throws SQLException {
+        if (userKnown == null) {
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT user_id FROM users WHERE user_id = ?")) {
+                pstmt.setInt(1, userId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    userKnown = rs.next();
+                }
+            }
+        }
+        if (!userKnown) {
+            return "Потребителят не съществува";
+        }
+        
+
+        String availability;
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT availability FROM books WHERE book_id = ? FOR UPDATE")) {
+            pstmt.setInt(1, bookId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return "Книгата не съществува";
+                }
+                availability = rs.getString("availability");
+            }
+        }
+        
+        boolean reservedForUser = "запазена".equals(availability) && holdDAO.isAssignedTo(conn, bookId, userId);
+        if (!"налична".equals(availability) && !reservedForUser) {
+            return "Книгата е " + availability;
+        }
+        
+        Calendar due = Calendar.getInstance();
+        due.setTime(when);
+        due.add(Calendar.DAY_OF_MONTH, 14);
+        
+        String sql = "INSERT INTO loans (book_id, user_id, loan_date, return_date, is_returned, row_version) VALUES (?, ?, ?, ?, FALSE, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, bookId);
+            pstmt.setInt(2, userId);
+            pstmt.setTimestamp(3, new Timestamp(when.getTime()));
+            pstmt.setTimestamp(4, new Timestamp(due.getTimeInMillis()));
+            pstmt.setLong(5, ChangeTracker.nextVersion(conn));
+            pstmt.executeUpdate();
+        }
+        
+        if (reservedForUser && !holdDAO.fulfillHold(conn, bookId, userId)) {
+            return "Запазването на книгата вече не е валидно";
+        }
+        bookDAO.updateBookAvailability(conn, bookId, "заета");
+        return null;
+    }
+    
+    /**
+     * Прилага офлайн връщане в рамките на текуща транзакция. Връщане, сканирано
+     * на гишето без връзка с базата, няма ID на заемане - тогава се връща
+     * активното заемане на книгата.
+     * @return описание на конфликта или null при успех
+     */
+    private String replayReturn(Connection conn, int loanId, int bookId, Date when) throws SQLException {
+        if (loanId == 0) {
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT loan_id FROM loans WHERE book_id = ? AND is_returned = FALSE FOR UPDATE")) {
+                pstmt.setInt(1, bookId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return "Книгата не е заета";
+                    }
+                    loanId = rs.getInt("loan_id");
+                }
+            }
+        } else {
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT book_id, is_returned FROM loans WHERE loan_id = ? FOR UPDATE")) {
+                pstmt.setInt(1, loanId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return "Заемането не съществува или е архивирано";
+                    }
+                    if (rs.getBoolean("is_returned")) {
+                        return "Заемането вече е върнато";
+                    }
+                    bookId = rs.getInt("book_id");
+                }
+            }
+        }
+        
+        try (PreparedStatement pstmt = conn.prepareStatement("UPDATE loans SET return_date = ?, is_returned = TRUE, row_version = ? WHERE loan_id = ?")) {
+            pstmt.setTimestamp(1, new Timestamp(when.getTime()));
+            pstmt.setLong(2, ChangeTracker.nextVersion(conn));
+            pstmt.setInt(3, loanId);
+            pstmt.executeUpdate();
+        }
+        
+        Hold next = holdDAO.assignNextHold(conn, bookId);
+        bookDAO.updateBookAvailability(conn, bookId, next != null ? "запазена" : "налична");
+        return null;
+    }
+    
+    /**
+     * Автоматично генерира подходяща дата за връщане на базата на текущата дата (обикновено +14 дни)
+     * @return препоръчителна дата на връщане
+     */
+    public Date generateReturnDate() {
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DAY_OF_MONTH, 14); // По подразбиране книгите се заемат за 14 дни
+        return cal.getTime();
+    }
+    
+    /**
+     * Зарежда книгата и потребителя на всяко заемане. Извиква се след затваряне на
+     * връзката, с която са прочетени заеманията, за да не държи един метод две
+     * връзки от пула едновременно (при изчерпан пул това води до взаимно блокиране).
+     * @param loans заеманията
+     */
+    private void hydrate(List<Loan> loans) {
+        Map<Integer, Book> books = new HashMap<>();
+        Map<Integer, User> users = new HashMap<>();
+        for (Loan loan : loans) {
+            loan.setBook(books.computeIfAbsent(loan.getBookId(), bookDAO::getBookById));
+            loan.setUser(users.computeIfAbsent(loan.getUserId(), userDAO::getUserById));
+        }
     }
     
     /**
@@ -592,7 +1777,7 @@ public class LoanDAO {
                 conn.close();
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при затваряне на ресурсите: " + e.getMessage());
+            DaoLog.error("Грешка при затваряне на ресурсите", e);
         }
     }
 }
\ No newline at end of file
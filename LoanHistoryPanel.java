@@ -1,11 +1,16 @@
 package library.ui.main.panels;
 
+import library.metrics.MetricsRegistry;
+import library.model.ChangeSet;
 import library.model.Loan;
+import library.model.LoanOutcome;
 import library.model.User;
 import library.service.AuthenticationService;
 import library.service.LoanService;
+import library.service.ServiceRegistry;
 import library.ui.main.MainFrame;
 import library.ui.main.dialogs.ReturnBookDialog;
+import library.ui.main.dialogs.ReturnDeskDialog;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableCellRenderer;
@@ -14,6 +19,7 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -24,6 +30,8 @@ public class LoanHistoryPanel extends JPanel {
     private MainFrame mainFrame;
     private AuthenticationService authService;
     private LoanService loanService;
+    private final MetricsRegistry.Timer refreshTimer = MetricsRegistry.getInstance()
+            .timer("library_ui_refresh_seconds", "Време за обновяване на панел", "panel", "loans");
     
     // Компоненти за показване на заеманията
     private JTabbedPane tabbedPane;
@@ -35,10 +43,15 @@ public class LoanHistoryPanel extends JPanel {
     // Компоненти за управление
     private JButton returnBookButton;
     private JButton refreshButton;
+    private JCheckBox showArchiveCheckBox;
     
     // Форматиране на дати
     private SimpleDateFormat dateFormat;
     
+    // Версии на показаните активни заемания; 0 означава, че таблицата трябва да се зареди изцяло
+    private long userLoansVersion;
+    private long allLoansVersion;
+    
     /**
      * Конструктор
      * @param mainFrame главният прозорец на приложението
@@ -47,7 +60,7 @@ public class LoanHistoryPanel extends JPanel {
     public LoanHistoryPanel(MainFrame mainFrame, AuthenticationService authService) {
         this.mainFrame = mainFrame;
         this.authService = authService;
-        this.loanService = new LoanService();
+        this.loanService = ServiceRegistry.getInstance().getLoanService();
         this.dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm");
         
         // Инициализация на компонентите
@@ -107,7 +120,8 @@ public class LoanHistoryPanel extends JPanel {
             };
             
             adminLoansTable = new JTable(adminLoansModel);
-            adminLoansTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            // Администраторът може да избере много заемания и да ги върне наведнъж
+            adminLoansTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
             adminLoansTable.setRowHeight(25);
             adminLoansTable.getTableHeader().setReorderingAllowed(false);
             
@@ -128,6 +142,9 @@ public class LoanHistoryPanel extends JPanel {
         
         refreshButton = new JButton("Обнови");
         refreshButton.setIcon(new ImageIcon(getClass().getResource("/icons/refresh.png")));
+        
+        // Архивът се чете само при изрично поискване
+        showArchiveCheckBox = new JCheckBox("Покажи архива");
     }
     
     /**
@@ -154,7 +171,7 @@ public class LoanHistoryPanel extends JPanel {
             adminLoansPanel.add(new JScrollPane(adminLoansTable), BorderLayout.CENTER);
             
             JPanel adminButtonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-            JButton adminReturnButton = new JButton("Върни избраната книга");
+            JButton adminReturnButton = new JButton("Върни избраните книги");
             adminReturnButton.addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
@@ -162,11 +179,26 @@ public class LoanHistoryPanel extends JPanel {
                 }
             });
             adminButtonPanel.add(adminReturnButton);
+            
+            JButton returnDeskButton = new JButton("Гише за връщане...");
+            returnDeskButton.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    new ReturnDeskDialog(SwingUtilities.getWindowAncestor(LoanHistoryPanel.this), loanService).setVisible(true);
+                    refreshData();
+                }
+            });
+            adminButtonPanel.add(returnDeskButton);
             adminLoansPanel.add(adminButtonPanel, BorderLayout.SOUTH);
             
             tabbedPane.addTab("Всички заемания", adminLoansPanel);
         }
         
+        // Панел с настройки, общи за двата таба
+        JPanel optionsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        optionsPanel.add(showArchiveCheckBox);
+        add(optionsPanel, BorderLayout.NORTH);
+        
         // Добавяне на tabbedPane към панела
         add(tabbedPane, BorderLayout.CENTER);
     }
@@ -190,61 +222,105 @@ public class LoanHistoryPanel extends JPanel {
                 refreshData();
             }
         });
+        
+        // Слушател за чекбокса "Покажи архива"
+        showArchiveCheckBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refreshData();
+            }
+        });
     }
     
     /**
      * Зарежда данните в таблиците
      */
     public void refreshData() {
-        // Изчистване на таблиците
-        userLoansModel.setRowCount(0);
-        if (adminLoansModel != null) {
-            adminLoansModel.setRowCount(0);
-        }
+        long start = refreshTimer.start();
         
         // Зареждане на заеманията на текущия потребител
         User currentUser = authService.getCurrentUser();
         if (currentUser != null) {
-            List<Loan> userLoans = loanService.getLoansByUser(currentUser.getUserId());
+            boolean includeHistory = showArchiveCheckBox.isSelected();
             
-            // Добавяне на заеманията в таблицата
-            for (Loan loan : userLoans) {
-                String returnDate = loan.getReturnDate() != null ? dateFormat.format(loan.getReturnDate()) : "Няма";
-                String status = loan.isReturned() ? "Върната" : "Заета";
-                
-                userLoansModel.addRow(new Object[] {
+            ChangeSet<Loan> userLoans = fetchLoans(userLoansVersion, currentUser.getUserId(), includeHistory);
+            List<Object[]> userRows = new ArrayList<>();
+            for (Loan loan : userLoans.getChanged()) {
+                userRows.add(new Object[] {
                         loan.getLoanId(),
                         loan.getBook().getTitle(),
                         loan.getBook().getAuthor(),
                         dateFormat.format(loan.getLoanDate()),
-                        returnDate,
-                        status
+                        formatReturnDate(loan),
+                        formatStatus(loan)
                 });
             }
+            TableDelta.apply(userLoansModel, userRows, userLoans.getDeletedIds(), userLoans.isFull(), true);
+            userLoansVersion = includeHistory ? 0 : userLoans.getVersion();
             
             // Зареждане на всички заемания (само за админи)
             if (authService.isAdmin() && adminLoansModel != null) {
-                List<Loan> allLoans = loanService.getAllLoans();
-                
-                // Добавяне на всички заемания в администраторската таблица
-                for (Loan loan : allLoans) {
-                    String returnDate = loan.getReturnDate() != null ? dateFormat.format(loan.getReturnDate()) : "Няма";
-                    String status = loan.isReturned() ? "Върната" : "Заета";
-                    
-                    adminLoansModel.addRow(new Object[] {
+                ChangeSet<Loan> allLoans = fetchLoans(allLoansVersion, 0, includeHistory);
+                List<Object[]> adminRows = new ArrayList<>();
+                for (Loan loan : allLoans.getChanged()) {
+                    adminRows.add(new Object[] {
                             loan.getLoanId(),
                             loan.getBook().getTitle(),
                             loan.getUser().getName(),
                             dateFormat.format(loan.getLoanDate()),
-                            returnDate,
-                            status
+                            formatReturnDate(loan),
+                            formatStatus(loan)
                     });
                 }
+                TableDelta.apply(adminLoansModel, adminRows, allLoans.getDeletedIds(), allLoans.isFull(), true);
+                allLoansVersion = includeHistory ? 0 : allLoans.getVersion();
             }
             
             // Обновяване на статус съобщението
-            mainFrame.setStatusMessage("Заредени " + userLoans.size() + " заемания");
+            mainFrame.setStatusMessage("Заредени " + userLoansModel.getRowCount() + " заемания");
+        }
+        
+        refreshTimer.stop(start);
+    }
+    
+    /**
+     * Изтегля заеманията за таблица. Активните заемания се изтеглят като промени след
+     * показаната версия; архивът няма версии и се зарежда винаги изцяло.
+     * @param since показаната версия (0 за пълно зареждане)
+     * @param userId ID на потребителя или 0 за всички потребители
+     * @param includeHistory дали да се включат и архивираните заемания
+     * @return промените или пълният списък
+     */
+    private ChangeSet<Loan> fetchLoans(long since, int userId, boolean includeHistory) {
+        if (!includeHistory) {
+            // Първото зареждане използва данните, изтеглени във фонов режим при входа
+            ChangeSet<Loan> changes = since == 0
+                    ? mainFrame.getStartup().take(userId > 0 ? "loans.user" : "loans.all",
+                            () -> loanService.getLoansChangedSince(0, userId))
+                    : loanService.getLoansChangedSince(since, userId);
+            if (changes != null) {
+                return changes;
+            }
         }
+        
+        List<Loan> loans = userId > 0
+                ? loanService.getLoansByUser(userId, includeHistory)
+                : loanService.getAllLoans(includeHistory);
+        return ChangeSet.full(loans, since);
+    }
+    
+    /**
+     * Форматира датата на връщане на заемането
+     */
+    private String formatReturnDate(Loan loan) {
+        return loan.getReturnDate() != null ? dateFormat.format(loan.getReturnDate()) : "Няма";
+    }
+    
+    /**
+     * Връща статуса на заемането за показване
+     */
+    private String formatStatus(Loan loan) {
+        return loan.isReturned() ? "Върната" : "Заета";
     }
     
     /**
@@ -288,6 +364,11 @@ public class LoanHistoryPanel extends JPanel {
             return;
         }
         
+        if (adminLoansTable.getSelectedRowCount() > 1) {
+            returnSelectedLoans();
+            return;
+        }
+        
         int selectedRow = adminLoansTable.getSelectedRow();
         if (selectedRow != -1) {
             // Извличане на ID-то на избраното заемане
@@ -316,4 +397,50 @@ public class LoanHistoryPanel extends JPanel {
                     JOptionPane.WARNING_MESSAGE);
         }
     }
+    
+    /**
+     * Връща всички избрани заемания наведнъж, в една транзакция
+     */
+    private void returnSelectedLoans() {
+        List<Integer> loanIds = new ArrayList<>();
+        for (int row : adminLoansTable.getSelectedRows()) {
+            if (!"Върната".equals(adminLoansTable.getValueAt(row, 5))) {
+                loanIds.add((Integer) adminLoansTable.getValueAt(row, 0));
+            }
+        }
+        
+        if (loanIds.isEmpty()) {
+            JOptionPane.showMessageDialog(this,
+                    "Избраните книги вече са върнати!",
+                    "Информация",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        
+        int choice = JOptionPane.showConfirmDialog(this,
+                "Искате ли да върнете " + loanIds.size() + " книги?",
+                "Потвърждение",
+                JOptionPane.YES_NO_OPTION);
+        if (choice != JOptionPane.YES_OPTION) {
+            return;
+        }
+        
+        mainFrame.setStatusMessage("Връщане на " + loanIds.size() + " книги...");
+        new SwingWorker<List<LoanOutcome>, Void>() {
+            @Override
+            protected List<LoanOutcome> doInBackground() {
+                return loanService.returnBooks(loanIds);
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    LoanOutcomeReport.show(LoanHistoryPanel.this, "Върнати", get());
+                } catch (Exception e) {
+                    mainFrame.setStatusMessage("Грешка при връщане на книгите");
+                }
+                refreshData();
+            }
+        }.execute();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,561 @@
+package library.service;
+
+import library.dao.BookDAO;
+import library.dao.LoanDAO;
+import library.dao.UserDAO;
+import library.metrics.MetricsRegistry;
+import library.model.Book;
+import library.model.Loan;
+import library.model.User;
+import library.utils.AsyncLogger;
+import library.utils.CircuitBreaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Локален журнал (write-ahead log) за заемания и връщания, направени докато
+ * базата данни е недостъпна. Записите се добавят в сегменти, картографирани
+ * в паметта, и всеки запис се синхронизира с диска (force) преди операцията
+ * да се потвърди на гишето. Когато връзката се възстанови, операциите се
+ * прилагат по реда на записване чрез LoanDAO.replayOperation, която
+ * разпознава вече приложените операции и конфликтите.
+ *
+ * Формат на записа: дължина (int), CRC32 (int), данни. Дължината се записва
+ * последна, така че недописан запис се разпознава като край на сегмента.
+ *
+ * Настройки (системни свойства):
+ * library.journal.dir - директория на журнала (по подразбиране ~/.library/journal)
+ * library.journal.segmentBytes - размер на сегмент (по подразбиране 1 MB)
+ */
+public class LoanJournal {
+    
+    private static final Path DIR = Paths.get(System.getProperty("library.journal.dir",
+            System.getProperty("user.home") + "/.library/journal"));
+    private static final int SEGMENT_BYTES = Integer.getInteger("library.journal.segmentBytes", 1024 * 1024);
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DONE_SUFFIX = ".done";
+    
+    // opId (16) + вид (1) + книга (4) + потребител (4) + заемане (4) + време (8)
+    private static final int PAYLOAD_BYTES = 37;
+    private static final int RECORD_BYTES = 8 + PAYLOAD_BYTES;
+    private static final long REPLAY_INTERVAL_SECONDS = 30;
+    
+    private static LoanJournal instance;
+    
+    private final LoanDAO loanDAO;
+    private final BookDAO bookDAO;
+    private final UserDAO userDAO;
+    private final Object replayLock = new Object();
+    private final AtomicBoolean replayScheduled = new AtomicBoolean(false);
+    private final AtomicInteger pending = new AtomicInteger();
+    private final List<String> conflicts = Collections.synchronizedList(new ArrayList<>());
+    private ScheduledExecutorService replayer;
+    private CircuitBreaker.Listener reconnectListener;
+    
+    private FileChannel activeChannel;
+    private MappedByteBuffer active;
+    private long activeIndex;
+    
+    private final MetricsRegistry.Counter queuedCounter = MetricsRegistry.getInstance()
+            .counter("library_offline_operations_total", "Операции, записани в офлайн журнала");
+    private final MetricsRegistry.Counter conflictCounter = MetricsRegistry.getInstance()
+            .counter("library_offline_conflicts_total", "Офлайн операции, отхвърлени поради конфликт");
+    
+    /**
+     * Операция, записана в журнала
+     */
+    public static class Entry {
+        private final UUID opId;
+        private final char type;
+        private final int bookId;
+        private final int userId;
+        private final int loanId;
+        private final Date time;
+        
+        private Entry(UUID opId, char type, int bookId, int userId, int loanId, Date time) {
+            this.opId = opId;
+            this.type = type;
+            this.bookId = bookId;
+            this.userId = userId;
+            this.loanId = loanId;
+            this.time = time;
+        }
+        
+        public UUID getOpId() {
+            return opId;
+        }
+        
+        public char getType() {
+            return type;
+        }
+        
+        public int getBookId() {
+            return bookId;
+        }
+        
+        public int getUserId() {
+            return userId;
+        }
+        
+        public int getLoanId() {
+            return loanId;
+        }
+        
+        public Date getTime() {
+            return time;
+        }
+        
+        @Override
+        public String toString() {
+            String description;
+            if (type == LoanDAO.OPERATION_BORROW) {
+                description = "Заемане на книга " + bookId + " от потребител " + userId;
+            } else if (loanId == 0) {
+                description = "Връщане на книга " + bookId;
+            } else {
+                description = "Връщане по заемане " + loanId;
+            }
+            return description + " (" + time + ")";
+        }
+    }
+    
+    private LoanJournal() {
+        ServiceRegistry registry = ServiceRegistry.getInstance();
+        this.loanDAO = registry.getLoanDAO();
+        this.bookDAO = registry.getBookDAO();
+        this.userDAO = registry.getUserDAO();
+        
+        MetricsRegistry.getInstance().gauge("library_offline_pending", "Офлайн операции, чакащи синхронизация", pending::get);
+    }
+    
+    /**
+     * Връща журнала, като при първо обръщение го отваря и брои чакащите операции
+     * @return журналът
+     */
+    public static synchronized LoanJournal getInstance() {
+        if (instance == null) {
+            instance = new LoanJournal();
+            instance.open();
+        }
+        return instance;
+    }
+    
+    /**
+     * Записва заемане, направено офлайн
+     * @param bookId ID на книгата
+     * @param userId ID на потребителя
+     * @return true ако записът е синхронизиран с диска
+     */
+    public boolean appendBorrow(int bookId, int userId) {
+        return append(LoanDAO.OPERATION_BORROW, bookId, userId, 0);
+    }
+    
+    /**
+     * Записва връщане, направено офлайн
+     * @param loanId ID на заемането
+     * @return true ако записът е синхронизиран с диска
+     */
+    public boolean appendReturn(int loanId) {
+        return append(LoanDAO.OPERATION_RETURN, 0, 0, loanId);
+    }
+    
+    /**
+     * Записва връщане на сканирана книга, направено офлайн. Заемането се
+     * определя при прилагането - активното заемане на книгата в този момент.
+     * @param bookId ID на книгата
+     * @return true ако записът е синхронизиран с диска
+     */
+    public boolean appendReturnByBook(int bookId) {
+        return append(LoanDAO.OPERATION_RETURN, bookId, 0, 0);
+    }
+    
+    /**
+     * Връща броя операции, чакащи синхронизация
+     * @return брой операции
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+    
+    /**
+     * Връща описанията на операциите, отхвърлени поради конфликт при синхронизацията
+     * @return списък с описания
+     */
+    public List<String> getConflicts() {
+        synchronized (conflicts) {
+            return new ArrayList<>(conflicts);
+        }
+    }
+    
+    /**
+     * Стартира фоновото прилагане на журнала: при възстановяване на базата и периодично
+     */
+    public synchronized void startReplay() {
+        if (replayer != null) {
+            return;
+        }
+        
+        replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "loan-journal-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        replayer.scheduleWithFixedDelay(this::replayIfPending, 5, REPLAY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        
+        ScheduledExecutorService executor = replayer;
+        reconnectListener = state -> {
+            if (!LastKnownCache.getInstance().isReadOnly() && replayScheduled.compareAndSet(false, true)) {
+                executor.execute(() -> {
+                    replayScheduled.set(false);
+                    replayIfPending();
+                });
+            }
+        };
+        LastKnownCache.getInstance().addReadOnlyListener(reconnectListener);
+    }
+    
+    /**
+     * Спира фоновото прилагане на журнала; записаните операции остават за следващото стартиране
+     */
+    public synchronized void stopReplay() {
+        if (replayer != null) {
+            LastKnownCache.getInstance().removeReadOnlyListener(reconnectListener);
+            reconnectListener = null;
+            replayer.shutdownNow();
+            replayer = null;
+            replayScheduled.set(false);
+        }
+    }
+    
+    private void replayIfPending() {
+        if (pending.get() > 0 && !LastKnownCache.getInstance().isReadOnly()) {
+            replay();
+        }
+    }
+    
+    /**
+     * Прилага чакащите операции по реда на записване. Спира при първата временна
+     * грешка в базата данни, за да запази реда - останалите се прилагат при
+     * следващия опит. Операциите с постоянна грешка се отчитат като конфликти.
+     * @return броя успешно обработени операции (приложени, вече приложени или в конфликт)
+     */
+    public int replay() {
+        synchronized (replayLock) {
+            List<Path> segments;
+            synchronized (this) {
+                // Активният сегмент се затваря, за да могат всички записи да се обработят
+                if (active != null && active.position() > 0) {
+                    rotate();
+                }
+                segments = closedSegments();
+            }
+            
+            int processed = 0;
+            for (Path segment : segments) {
+                Set<String> resolved = readResolved(segment);
+                for (Entry entry : readSegment(segment)) {
+                    if (resolved.contains(entry.opId.toString())) {
+                        continue;
+                    }
+                    
+                    int outcome = loanDAO.replayOperation(entry.opId.toString(), entry.type,
+                            entry.bookId, entry.userId, entry.loanId, entry.time);
+                    if (outcome == LoanDAO.REPLAY_FAILED) {
+                        return processed;
+                    }
+                    
+                    markResolved(segment, entry);
+                    processed++;
+                    pending.decrementAndGet();
+                    
+                    if (outcome == LoanDAO.REPLAY_APPLIED) {
+                        afterApplied(entry);
+                    } else if (outcome == LoanDAO.REPLAY_CONFLICT) {
+                        conflictCounter.increment();
+                        conflicts.add(entry.toString());
+                        AsyncLogger.log(AsyncLogger.Level.WARN, "Конфликт при прилагане на офлайн операция",
+                                "LoanJournal", "replay", null, -1, entry.opId + " " + entry);
+                    }
+                }
+                deleteSegment(segment);
+            }
+            return processed;
+        }
+    }
+    
+    /**
+     * Обновява споделените структури в паметта след приложена операция
+     */
+    private void afterApplied(Entry entry) {
+        if (entry.type == LoanDAO.OPERATION_BORROW) {
+            Book book = bookDAO.getBookById(entry.bookId);
+            User user = userDAO.getUserById(entry.userId);
+            if (book != null && user != null) {
+                CirculationStats.getInstance().recordBorrow(entry.bookId, book.getTitle(), entry.userId, user.getName());
+                AutocompleteService.getInstance().recordBorrow(entry.bookId);
+                RecommendationEngine.getInstance().recordBorrow(entry.userId, entry.bookId);
+            }
+            HoldQueue.getInstance().reload(entry.bookId);
+        } else {
+            CirculationStats.getInstance().recordReturn();
+            if (entry.loanId == 0) {
+                HoldQueue.getInstance().reload(entry.bookId);
+            } else {
+                Loan loan = loanDAO.getLoanById(entry.loanId);
+                if (loan != null) {
+                    HoldQueue.getInstance().reload(loan.getBookId());
+                }
+            }
+        }
+    }
+    
+    private synchronized boolean append(char type, int bookId, int userId, int loanId) {
+        if (active == null) {
+            return false;
+        }
+        
+        try {
+            if (active.remaining() < RECORD_BYTES) {
+                rotate();
+            }
+            
+            UUID opId = UUID.randomUUID();
+            ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_BYTES);
+            payload.putLong(opId.getMostSignificantBits());
+            payload.putLong(opId.getLeastSignificantBits());
+            payload.put((byte) type);
+            payload.putInt(bookId);
+            payload.putInt(userId);
+            payload.putInt(loanId);
+            payload.putLong(System.currentTimeMillis());
+            
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            
+            int start = active.position();
+            active.position(start + 4);
+            active.putInt((int) crc.getValue());
+            active.put(payload.array());
+            // Дължината се записва последна - недописаният запис остава с дължина 0
+            active.putInt(start, PAYLOAD_BYTES);
+            active.force(start, RECORD_BYTES);
+            
+            pending.incrementAndGet();
+            queuedCounter.increment();
+            return true;
+        } catch (RuntimeException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при запис в офлайн журнала",
+                    "LoanJournal", "append", null, -1, e.toString());
+            return false;
+        }
+    }
+    
+    /**
+     * Преброява чакащите операции, изтрива празните и напълно приложените
+     * сегменти и отваря за добавяне последния сегмент, ако в него има място
+     */
+    private synchronized void open() {
+        try {
+            Files.createDirectories(DIR);
+            
+            List<Path> segments = closedSegments();
+            int count = 0;
+            Path last = null;
+            int lastRecords = 0;
+            for (Path segment : segments) {
+                activeIndex = Math.max(activeIndex, segmentIndex(segment));
+                if (Files.exists(doneMarker(segment))) {
+                    deleteSegment(segment);
+                    continue;
+                }
+                
+                Set<String> resolved = readResolved(segment);
+                List<Entry> entries = readSegment(segment);
+                int unresolved = 0;
+                for (Entry entry : entries) {
+                    if (!resolved.contains(entry.opId.toString())) {
+                        unresolved++;
+                    }
+                }
+                if (unresolved == 0) {
+                    // Иначе всяко стартиране без офлайн работа оставя по един празен сегмент
+                    deleteSegment(segment);
+                    continue;
+                }
+                count += unresolved;
+                last = segment;
+                lastRecords = entries.size();
+            }
+            pending.set(count);
+            
+            if (last != null && segmentIndex(last) == activeIndex
+                    && (long) (lastRecords + 1) * RECORD_BYTES <= SEGMENT_BYTES) {
+                // Добавяме след последния валиден запис; недописан запис след него се презаписва
+                mapActive(false);
+                int position = lastRecords * RECORD_BYTES;
+                active.putInt(position, 0);
+                active.position(position);
+            } else {
+                activeIndex++;
+                mapActive(true);
+            }
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при отваряне на офлайн журнала",
+                    "LoanJournal", "open", null, -1, e.toString());
+            active = null;
+        }
+    }
+    
+    private void rotate() {
+        try {
+            active.force();
+            activeChannel.close();
+            activeIndex++;
+            mapActive(true);
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при смяна на сегмента на офлайн журнала",
+                    "LoanJournal", "rotate", null, -1, e.toString());
+            active = null;
+        }
+    }
+    
+    private void mapActive(boolean create) throws IOException {
+        Path path = segmentPath(activeIndex);
+        activeChannel = create
+                ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+    }
+    
+    /**
+     * Връща сегментите без активния, подредени по реда на създаване
+     */
+    private List<Path> closedSegments() {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(DIR, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                if (active == null || segmentIndex(path) != activeIndex) {
+                    segments.add(path);
+                }
+            }
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при четене на офлайн журнала",
+                    "LoanJournal", "closedSegments", null, -1, e.toString());
+        }
+        segments.sort((a, b) -> Long.compare(segmentIndex(a), segmentIndex(b)));
+        return segments;
+    }
+    
+    /**
+     * Прочита валидните записи от затворен сегмент
+     */
+    private List<Entry> readSegment(Path segment) {
+        List<Entry> entries = new ArrayList<>();
+        try {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+            while (data.remaining() >= 8) {
+                int length = data.getInt();
+                int crcValue = data.getInt();
+                if (length != PAYLOAD_BYTES || data.remaining() < length) {
+                    break;
+                }
+                
+                byte[] payload = new byte[length];
+                data.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != crcValue) {
+                    break;
+                }
+                
+                ByteBuffer p = ByteBuffer.wrap(payload);
+                UUID opId = new UUID(p.getLong(), p.getLong());
+                char type = (char) p.get();
+                entries.add(new Entry(opId, type, p.getInt(), p.getInt(), p.getInt(), new Date(p.getLong())));
+            }
+        } catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при четене на сегмент от офлайн журнала",
+                    "LoanJournal", "readSegment", null, -1, e.toString());
+        }
+        return entries;
+    }
+    
+    /**
+     * Обработените операции от сегмент се пазят във файл до него, за да не се
+     * прилагат отново след рестарт, ако сегментът не е изтрит
+     */
+    private Set<String> readResolved(Path segment) {
+        Path marker = resolvedMarker(segment);
+        try {
+            return Files.exists(marker) ? new HashSet<>(Files.readAllLines(marker)) : new HashSet<>();
+        } catch (IOException e) {
+            return new HashSet<>();
+        }
+    }
+    
+    private void markResolved(Path segment, Entry entry) {
+        try {
+            Files.write(resolvedMarker(segment), Collections.singletonList(entry.opId.toString()),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        } catch (IOException e) {
+            // Не е критично - повторното прилагане се разпознава от базата данни
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при отбелязване на офлайн операция",
+                    "LoanJournal", "markResolved", null, -1, e.toString());
+        }
+    }
+    
+    private void deleteSegment(Path segment) {
+        try {
+            Files.deleteIfExists(segment);
+            Files.deleteIfExists(resolvedMarker(segment));
+            Files.deleteIfExists(doneMarker(segment));
+        } catch (IOException e) {
+            // Под Windows картографиран файл не може да бъде изтрит до освобождаване на паметта
+            try {
+                Files.write(doneMarker(segment), new byte[0]);
+            } catch (IOException ex) {
+                AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при изтриване на сегмент от офлайн журнала",
+                        "LoanJournal", "deleteSegment", null, -1, ex.toString());
+            }
+        }
+    }
+    
+    private static Path segmentPath(long index) {
+        return DIR.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+    
+    private static long segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+    
+    private static Path resolvedMarker(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + ".applied");
+    }
+    
+    private static Path doneMarker(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + DONE_SUFFIX);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,106 @@
+package library.model;
+
+/**
+ * Клас, представящ резултата за едно заемане при масово заемане или връщане на книги
+ */
+public class LoanOutcome {
+    private int loanId;
+    private int bookId;
+    private int userId;
+    private String bookTitle;
+    private boolean success;
+    private String message;
+    private boolean holdChanged;
+    
+    /**
+     * Конструктор по подразбиране
+     */
+    public LoanOutcome() {
+    }
+    
+    /**
+     * Конструктор с параметри
+     */
+    public LoanOutcome(int loanId, int bookId, int userId) {
+        this.loanId = loanId;
+        this.bookId = bookId;
+        this.userId = userId;
+    }
+    
+    // Getters и Setters
+    public int getLoanId() {
+        return loanId;
+    }
+    
+    public void setLoanId(int loanId) {
+        this.loanId = loanId;
+    }
+    
+    public int getBookId() {
+        return bookId;
+    }
+    
+    public void setBookId(int bookId) {
+        this.bookId = bookId;
+    }
+    
+    public int getUserId() {
+        return userId;
+    }
+    
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+    
+    public String getBookTitle() {
+        return bookTitle;
+    }
+    
+    public void setBookTitle(String bookTitle) {
+        this.bookTitle = bookTitle;
+    }
+    
+    public boolean isSuccess() {
+        return success;
+    }
+    
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    public void setMessage(String message) {
+        this.message = message;
+    }
+    
+    /**
+     * Проверява дали операцията е променила опашката от запазвания за книгата
+     * (върнатата книга е назначена на чакащ или заетата книга е била запазена за потребителя)
+     * @return true, ако опашката е променена
+     */
+    public boolean isHoldChanged() {
+        return holdChanged;
+    }
+    
+    public void setHoldChanged(boolean holdChanged) {
+        this.holdChanged = holdChanged;
+    }
+    
+    /**
+     * Отбелязва неуспех с причина
+     * @param message причината
+     */
+    public void fail(String message) {
+        this.success = false;
+        this.message = message;
+    }
+    
+    @Override
+    public String toString() {
+        String title = bookTitle != null ? bookTitle : "Книга #" + bookId;
+        return title + ": " + (success ? (message != null ? message : "успешно") : message);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,51 @@
+package library.ui.main.panels;
+
+import library.model.LoanOutcome;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Показва обобщение на масово заемане или връщане - брой успешни и причините за неуспешните
+ */
+final class LoanOutcomeReport {
+    
+    // Максимален брой неуспешни редове, изброени в съобщението
+    private static final int MAX_LISTED = 20;
+    
+    private LoanOutcomeReport() {
+    }
+    
+    /**
+     * Показва обобщението
+     * @param parent родителският компонент
+     * @param action извършеното действие за заглавието (напр. "Върнати")
+     * @param outcomes резултатите
+     */
+    static void show(Component parent, String action, List<LoanOutcome> outcomes) {
+        int succeeded = 0;
+        StringBuilder failures = new StringBuilder();
+        int failed = 0;
+        
+        for (LoanOutcome outcome : outcomes) {
+            if (outcome.isSuccess()) {
+                succeeded++;
+            } else if (failed++ < MAX_LISTED) {
+                failures.append("\n").append(outcome);
+            }
+        }
+        if (failed > MAX_LISTED) {
+            failures.append("\n... и още ").append(failed - MAX_LISTED);
+        }
+        
+        String message = action + " " + succeeded + " от " + outcomes.size() + " книги.";
+        if (failed > 0) {
+            message += "\n\nНеуспешни:" + failures;
+        }
+        JOptionPane.showMessageDialog(parent,
+                message,
+                failed > 0 ? "Частичен успех" : "Успех",
+                failed > 0 ? JOptionPane.WARNING_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+    }
+}
\ No newline at end of file
@@ -1,31 +1,57 @@
 package library.service;
 
 import library.dao.BookDAO;
+import library.dao.DatabaseConnection;
 import library.dao.LoanDAO;
 import library.dao.UserDAO;
+import library.metrics.MetricsRegistry;
+import library.model.AuditEvent;
 import library.model.Book;
+import library.model.ChangeSet;
 import library.model.Loan;
+import library.model.LoanOutcome;
 import library.model.User;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Сервизен клас за управление на заемания на книги
  */
 public class LoanService {
     
+    // Резултат от borrowBook, когато базата е недостъпна и заемането е записано в офлайн журнала
+    public static final int QUEUED_OFFLINE = 0;
+    
     private LoanDAO loanDAO;
     private BookDAO bookDAO;
     private UserDAO userDAO;
+    private HoldService holdService;
+    
+    private static final MetricsRegistry.Counter BORROWED = MetricsRegistry.getInstance()
+            .counter("library_loans_borrowed_total", "Успешни заемания на книги");
+    private static final MetricsRegistry.Counter BORROW_REJECTED = MetricsRegistry.getInstance()
+            .counter("library_loans_borrow_rejected_total", "Отказани или неуспешни заемания");
+    private static final MetricsRegistry.Counter RETURNED = MetricsRegistry.getInstance()
+            .counter("library_loans_returned_total", "Върнати книги");
     
     /**
      * Конструктор
+     * @param loanDAO споделеното DAO за заемания
+     * @param bookDAO споделеното DAO за книги
+     * @param userDAO споделеното DAO за потребители
+     * @param holdService споделеният сервиз за запазвания
      */
-    public LoanService() {
-        this.loanDAO = new LoanDAO();
-        this.bookDAO = new BookDAO();
-        this.userDAO = new UserDAO();
+    LoanService(LoanDAO loanDAO, BookDAO bookDAO, UserDAO userDAO, HoldService holdService) {
+        this.loanDAO = loanDAO;
+        this.bookDAO = bookDAO;
+        this.userDAO = userDAO;
+        this.holdService = holdService;
     }
     
     /**
@@ -35,15 +61,26 @@ public class LoanService {
      * @return ID на заемането или -1 при неуспех
      */
     public int borrowBook(int bookId, int userId) {
-        // Проверяваме дали книгата съществува и е налична
+        // При недостъпна база заемането се записва локално и се прилага по-късно
+        if (DatabaseConnection.isReadOnly()) {
+            return queueBorrow(bookId, userId);
+        }
+        
+        // Проверяваме дали книгата съществува и е налична (или запазена за потребителя)
+        DatabaseConnection.clearFailure();
         Book book = bookDAO.getBookById(bookId);
-        if (book == null || !"налична".equals(book.getAvailability())) {
+        if (book == null && DatabaseConnection.consumeConnectionFailure()) {
+            return queueBorrow(bookId, userId);
+        }
+        if (!holdService.canBorrow(book, userId)) {
+            BORROW_REJECTED.increment();
             return -1;
         }
         
         // Проверяваме дали потребителят съществува
         User user = userDAO.getUserById(userId);
         if (user == null) {
+            BORROW_REJECTED.increment();
             return -1;
         }
         
@@ -59,7 +96,24 @@ public class LoanService {
         loan.setReturned(false);
         
         // Записваме заемането в базата данни
-        return loanDAO.addLoan(loan);
+        DatabaseConnection.clearFailure();
+        int loanId = loanDAO.addLoan(loan);
+        if (loanId <= 0 && DatabaseConnection.consumeConnectionFailure()) {
+            return queueBorrow(bookId, userId);
+        }
+        if (loanId > 0) {
+            BORROWED.increment();
+            AuditLog.record(AuditEvent.LOAN, loanId, "заемане", "книга #" + bookId + ", потребител #" + userId);
+            CirculationStats.getInstance().recordBorrow(bookId, book.getTitle(), userId, user.getName());
+            AutocompleteService.getInstance().recordBorrow(bookId);
+            RecommendationEngine.getInstance().recordBorrow(userId, bookId);
+            if ("запазена".equals(book.getAvailability())) {
+                holdService.onBookChanged(bookId);
+            }
+        } else {
+            BORROW_REJECTED.increment();
+        }
+        return loanId;
     }
     
     /**
@@ -68,14 +122,221 @@ public class LoanService {
      * @return true при успех, false при неуспех
      */
     public boolean returnBook(int loanId) {
+        // При недостъпна база връщането се записва локално и се прилага по-късно
+        if (DatabaseConnection.isReadOnly()) {
+            return queueReturn(loanId);
+        }
+        
         // Проверяваме дали заемането съществува
+        DatabaseConnection.clearFailure();
         Loan loan = loanDAO.getLoanById(loanId);
+        if (loan == null && DatabaseConnection.consumeConnectionFailure()) {
+            return queueReturn(loanId);
+        }
         if (loan == null || loan.isReturned()) {
             return false;
         }
         
-        // Връщаме книгата
-        return loanDAO.returnBook(loanId);
+        // Връщаме книгата; следващият в опашката се назначава в същата транзакция
+        DatabaseConnection.clearFailure();
+        if (!loanDAO.returnBook(loanId)) {
+            return DatabaseConnection.consumeConnectionFailure() && queueReturn(loanId);
+        }
+        
+        RETURNED.increment();
+        AuditLog.record(AuditEvent.LOAN, loanId, "връщане", "книга #" + loan.getBookId() + ", потребител #" + loan.getUserId());
+        CirculationStats.getInstance().recordReturn();
+        holdService.onBookChanged(loan.getBookId());
+        return true;
+    }
+    
+    /**
+     * Връща много книги наведнъж, в една транзакция
+     * @param loanIds ID-тата на заеманията
+     * @return резултатът за всяко заемане; при недостъпна база връщанията се записват в офлайн журнала
+     */
+    public List<LoanOutcome> returnBooks(Collection<Integer> loanIds) {
+        List<LoanOutcome> outcomes = null;
+        if (!DatabaseConnection.isReadOnly()) {
+            DatabaseConnection.clearFailure();
+            outcomes = loanDAO.returnBooks(loanIds);
+        }
+        if (outcomes == null) {
+            // Както при returnBook - без връзка с базата всяко връщане се записва локално
+            boolean offline = DatabaseConnection.isReadOnly() || DatabaseConnection.consumeConnectionFailure();
+            outcomes = new ArrayList<>();
+            for (int loanId : loanIds) {
+                LoanOutcome outcome = new LoanOutcome(loanId, 0, 0);
+                if (offline && queueReturn(loanId)) {
+                    queued(outcome);
+                } else {
+                    outcome.fail(offline ? "Грешка при запис в офлайн журнала" : "Грешка в базата данни");
+                }
+                outcomes.add(outcome);
+            }
+            return outcomes;
+        }
+        
+        for (LoanOutcome outcome : outcomes) {
+            if (outcome.isSuccess()) {
+                RETURNED.increment();
+                AuditLog.record(AuditEvent.LOAN, outcome.getLoanId(), "връщане",
+                        "книга #" + outcome.getBookId() + ", потребител #" + outcome.getUserId());
+                CirculationStats.getInstance().recordReturn();
+                if (outcome.isHoldChanged()) {
+                    holdService.onBookChanged(outcome.getBookId());
+                }
+            }
+        }
+        return outcomes;
+    }
+    
+    /**
+     * Връща много книги по ID на книгата (напр. сканирани на гишето), в една транзакция
+     * @param bookIds ID-тата на книгите
+     * @return резултатът за всяка книга в реда на подаване; незаетите книги са неуспешни,
+     *         а при недостъпна база връщанията се записват в офлайн журнала
+     */
+    public List<LoanOutcome> returnBooksByBook(List<Integer> bookIds) {
+        Map<Integer, Integer> loanIds = null;
+        if (!DatabaseConnection.isReadOnly()) {
+            DatabaseConnection.clearFailure();
+            loanIds = loanDAO.getActiveLoanIdsByBooks(bookIds);
+        }
+        if (loanIds == null && (DatabaseConnection.isReadOnly() || DatabaseConnection.consumeConnectionFailure())) {
+            // Заеманията не са известни - записва се връщане на книгата, а заемането се намира при прилагането
+            List<LoanOutcome> outcomes = new ArrayList<>();
+            for (int bookId : bookIds) {
+                LoanOutcome outcome = new LoanOutcome(0, bookId, 0);
+                if (queueReturnByBook(bookId)) {
+                    queued(outcome);
+                } else {
+                    outcome.fail("Грешка при запис в офлайн журнала");
+                }
+                outcomes.add(outcome);
+            }
+            return outcomes;
+        }
+        
+        Map<Integer, LoanOutcome> byLoan = new HashMap<>();
+        if (loanIds != null && !loanIds.isEmpty()) {
+            for (LoanOutcome outcome : returnBooks(new LinkedHashSet<>(loanIds.values()))) {
+                byLoan.put(outcome.getLoanId(), outcome);
+            }
+        }
+        
+        List<LoanOutcome> outcomes = new ArrayList<>();
+        for (int bookId : bookIds) {
+            Integer loanId = loanIds != null ? loanIds.get(bookId) : null;
+            LoanOutcome outcome = loanId != null ? byLoan.get(loanId) : null;
+            if (outcome == null) {
+                outcome = new LoanOutcome(0, bookId, 0);
+                outcome.fail(loanIds == null ? "Грешка в базата данни" : "Книгата не е заета");
+            }
+            outcomes.add(outcome);
+        }
+        return outcomes;
+    }
+    
+    /**
+     * Заема много книги на един потребител наведнъж, в една транзакция (напр. комплект за клас)
+     * @param bookIds ID-тата на книгите
+     * @param userId ID на потребителя
+     * @return резултатът за всяка книга; при недостъпна база всички са неуспешни
+     */
+    public List<LoanOutcome> borrowBooks(Collection<Integer> bookIds, int userId) {
+        List<Loan> loans = new ArrayList<>();
+        for (int bookId : bookIds) {
+            Loan loan = new Loan();
+            loan.setBookId(bookId);
+            loan.setUserId(userId);
+            loans.add(loan);
+        }
+        
+        List<LoanOutcome> outcomes = DatabaseConnection.isReadOnly() ? null : loanDAO.borrowBooks(loans);
+        if (outcomes == null) {
+            BORROW_REJECTED.add(loans.size());
+            outcomes = new ArrayList<>();
+            for (Loan loan : loans) {
+                LoanOutcome outcome = new LoanOutcome(0, loan.getBookId(), userId);
+                outcome.fail("Няма връзка с базата данни");
+                outcomes.add(outcome);
+            }
+            return outcomes;
+        }
+        
+        User user = userDAO.getUserById(userId);
+        String userName = user != null ? user.getName() : "";
+        for (LoanOutcome outcome : outcomes) {
+            if (!outcome.isSuccess()) {
+                BORROW_REJECTED.increment();
+                continue;
+            }
+            
+            BORROWED.increment();
+            AuditLog.record(AuditEvent.LOAN, outcome.getLoanId(), "заемане",
+                    "книга #" + outcome.getBookId() + ", потребител #" + userId);
+            CirculationStats.getInstance().recordBorrow(outcome.getBookId(), outcome.getBookTitle(), userId, userName);
+            AutocompleteService.getInstance().recordBorrow(outcome.getBookId());
+            RecommendationEngine.getInstance().recordBorrow(userId, outcome.getBookId());
+            if (outcome.isHoldChanged()) {
+                holdService.onBookChanged(outcome.getBookId());
+            }
+        }
+        return outcomes;
+    }
+    
+    /**
+     * Записва заемане в офлайн журнала
+     * @return QUEUED_OFFLINE при успешен запис или -1
+     */
+    private int queueBorrow(int bookId, int userId) {
+        if (!LoanJournal.getInstance().appendBorrow(bookId, userId)) {
+            BORROW_REJECTED.increment();
+            return -1;
+        }
+        AuditLog.record(AuditEvent.LOAN, 0, "заемане (офлайн)", "книга #" + bookId + ", потребител #" + userId);
+        return QUEUED_OFFLINE;
+    }
+    
+    /**
+     * Записва връщане в офлайн журнала
+     * @return true при успешен запис
+     */
+    private boolean queueReturn(int loanId) {
+        if (!LoanJournal.getInstance().appendReturn(loanId)) {
+            return false;
+        }
+        AuditLog.record(AuditEvent.LOAN, loanId, "връщане (офлайн)", null);
+        return true;
+    }
+    
+    /**
+     * Записва връщане на сканирана книга в офлайн журнала
+     * @return true при успешен запис
+     */
+    private boolean queueReturnByBook(int bookId) {
+        if (!LoanJournal.getInstance().appendReturnByBook(bookId)) {
+            return false;
+        }
+        AuditLog.record(AuditEvent.LOAN, 0, "връщане (офлайн)", "книга #" + bookId);
+        return true;
+    }
+    
+    /**
+     * Отбелязва резултат като успешен, но чакащ синхронизация с базата данни
+     */
+    private static void queued(LoanOutcome outcome) {
+        outcome.setSuccess(true);
+        outcome.setMessage("записано офлайн");
+    }
+    
+    /**
+     * Връща броя заемания и връщания, чакащи синхронизация с базата данни
+     * @return брой операции в офлайн журнала
+     */
+    public int getPendingOfflineCount() {
+        return LoanJournal.getInstance().getPendingCount();
     }
     
     /**
@@ -93,7 +354,18 @@ public class LoanService {
      * @return списък със заемания на потребителя
      */
     public List<Loan> getLoansByUser(int userId) {
-        return loanDAO.getLoansByUserId(userId);
+        return getLoansByUser(userId, false);
+    }
+    
+    /**
+     * Връща всички заемания за даден потребител, по желание заедно с архива
+     * @param userId ID на потребителя
+     * @param includeHistory дали да се включат и архивираните заемания
+     * @return списък със заемания на потребителя
+     */
+    public List<Loan> getLoansByUser(int userId, boolean includeHistory) {
+        return LastKnownCache.getInstance().read("loans:user:" + userId + ":" + includeHistory,
+                () -> loanDAO.getLoansByUserId(userId, includeHistory));
     }
     
     /**
@@ -101,7 +373,7 @@ public class LoanService {
      * @return списък с активни заемания
      */
     public List<Loan> getActiveLoans() {
-        return loanDAO.getActiveLoans();
+        return LastKnownCache.getInstance().read("loans:active", () -> loanDAO.getActiveLoans());
     }
     
     /**
@@ -109,7 +381,26 @@ public class LoanService {
      * @return списък с всички заемания
      */
     public List<Loan> getAllLoans() {
-        return loanDAO.getAllLoans();
+        return getAllLoans(false);
+    }
+    
+    /**
+     * Връща списък с всички заемания, по желание заедно с архива
+     * @param includeHistory дали да се включат и архивираните заемания
+     * @return списък с всички заемания
+     */
+    public List<Loan> getAllLoans(boolean includeHistory) {
+        return LastKnownCache.getInstance().read("loans:all:" + includeHistory, () -> loanDAO.getAllLoans(includeHistory));
+    }
+    
+    /**
+     * Връща промените в активните заемания след дадена версия
+     * @param since последната известна версия (0 за всички активни заемания)
+     * @param userId ID на потребителя или 0 за всички потребители
+     * @return промените или null, ако базата е недостъпна
+     */
+    public ChangeSet<Loan> getLoansChangedSince(long since, int userId) {
+        return loanDAO.getLoansChangedSince(since, userId);
     }
     
     /**
@@ -127,7 +418,7 @@ public class LoanService {
      * @return брой активни заемания
      */
     public int getActiveLoansCountByUser(int userId) {
-        return loanDAO.getActiveLoansCountByUser(userId);
+        return LastKnownCache.getInstance().read("loans:activeCount:" + userId, () -> loanDAO.getActiveLoansCountByUser(userId));
     }
     
     /**
@@ -139,6 +430,17 @@ public class LoanService {
         return loanDAO.getLoanCountByUser(userId);
     }
     
+    /**
+     * Връща общия брой на заеманията на потребител, по желание заедно с архива
+     * @param userId ID на потребителя
+     * @param includeHistory дали да се включат и архивираните заемания
+     * @return общ брой заемания
+     */
+    public int getLoanCountByUser(int userId, boolean includeHistory) {
+        return LastKnownCache.getInstance().read("loans:count:" + userId + ":" + includeHistory,
+                () -> loanDAO.getLoanCountByUser(userId, includeHistory));
+    }
+    
     /**
      * Проверява дали потребител е длъжник (има просрочени заемания)
      * @param userId ID на потребителя
@@ -179,6 +481,16 @@ public class LoanService {
      * @return true при успех, false при неуспех
      */
     public boolean deleteLoan(int loanId) {
-        return loanDAO.deleteLoan(loanId);
+        Loan loan = loanDAO.getLoanById(loanId);
+        if (loan == null || !loanDAO.deleteLoan(loanId)) {
+            return false;
+        }
+        AuditLog.record(AuditEvent.LOAN, loanId, "изтриване", "книга #" + loan.getBookId() + ", потребител #" + loan.getUserId());
+        
+        if (!loan.isReturned()) {
+            CirculationStats.getInstance().recordActiveLoanRemoved();
+            holdService.onBookChanged(loan.getBookId());
+        }
+        return true;
     }
 }
\ No newline at end of file
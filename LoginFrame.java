@@ -1,6 +1,7 @@
 package library.ui;
 
 import library.service.AuthenticationService;
+import library.service.ServiceRegistry;
 import library.ui.main.MainFrame;
 import library.utils.ValidationUtils;
 
@@ -8,6 +9,8 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Прозорец за вход в системата
@@ -26,7 +29,7 @@ public class LoginFrame extends JFrame {
      * Конструктор
      */
     public LoginFrame() {
-        authService = new AuthenticationService();
+        authService = ServiceRegistry.getInstance().createAuthenticationService();
         
         // Настройки на прозореца
         setTitle("Вход в библиотечната система");
@@ -43,6 +46,43 @@ public class LoginFrame extends JFrame {
         
         // Добавяне на слушатели за събития
         addEventListeners();
+        
+        // Миграциите на схемата се прилагат във фонов режим, докато потребителят въвежда данните си
+        prepareDatabase();
+    }
+    
+    /**
+     * Подготвя базата данни във фонов режим. Грешка в миграция на схемата спира
+     * входа - работата със схема, която не съответства на приложението, би повредила данните.
+     */
+    private void prepareDatabase() {
+        new SwingWorker<Boolean, Void>() {
+            @Override
+            protected Boolean doInBackground() throws SQLException {
+                return ServiceRegistry.getInstance().prepareDatabase();
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    if (!get()) {
+                        statusLabel.setText("Няма връзка с базата данни");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    loginButton.setEnabled(false);
+                    registerButton.setEnabled(false);
+                    passwordField.setEnabled(false);
+                    statusLabel.setText("Грешка в схемата на базата данни");
+                    JOptionPane.showMessageDialog(LoginFrame.this,
+                            "Схемата на базата данни не може да бъде обновена:\n" + e.getCause().getMessage()
+                                    + "\n\nПриложението не може да работи, докато грешката не бъде отстранена.",
+                            "Грешка при стартиране",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
     }
     
     /**
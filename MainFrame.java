@@ -2,16 +2,24 @@ package library.ui.main;
 
 import library.model.User;
 import library.service.AuthenticationService;
+import library.service.CirculationStats;
+import library.service.LastKnownCache;
+import library.service.LoanJournal;
+import library.service.LoanArchiver;
+import library.service.ServiceRegistry;
 import library.ui.LoginFrame;
 import library.ui.main.panels.AdminPanel;
 import library.ui.main.panels.BookListPanel;
 import library.ui.main.panels.LoanHistoryPanel;
 import library.ui.main.panels.UserProfilePanel;
+import library.utils.CircuitBreaker;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 /**
  * Главен прозорец на приложението след вход в системата
@@ -20,8 +28,9 @@ public class MainFrame extends JFrame {
     
     private AuthenticationService authService;
     private User currentUser;
+    private StartupOrchestrator startup;
     
-    // Панели за различните секции на приложението
+    // Панели за различните секции на приложението; създават се при първото показване
     private JPanel contentPanel;
     private BookListPanel bookListPanel;
     private LoanHistoryPanel loanHistoryPanel;
@@ -38,6 +47,8 @@ public class MainFrame extends JFrame {
     // Компоненти на статус лентата
     private JLabel statusLabel;
     private JLabel userLabel;
+    private JLabel readOnlyLabel;
+    private CircuitBreaker.Listener readOnlyListener;
     
     /**
      * Конструктор
@@ -58,6 +69,10 @@ public class MainFrame extends JFrame {
             return;
         }
         
+        // Данните за панелите започват да се зареждат веднага, паралелно със създаването на прозореца
+        startup = new StartupOrchestrator();
+        prefetchPanelData();
+        
         // Настройки на прозореца
         setTitle("Библиотечна система - " + currentUser.getName());
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -74,24 +89,52 @@ public class MainFrame extends JFrame {
         // Добавяне на слушатели за събития
         addEventListeners();
         
+        // Сървърът за метрики и прилагането на офлайн журнала
+        ServiceRegistry.getInstance().start();
+        
+        // Администраторските клиенти поддържат активната таблица със заемания малка
+        if (authService.isAdmin()) {
+            LoanArchiver.getInstance().start();
+        }
+        
         // По подразбиране показваме списъка с книги
         showPanel("books");
+        startup.mark("прозорецът е създаден");
     }
     
     /**
-     * Инициализира компонентите на прозореца
+     * Стартира фоновото зареждане на данните, които панелите показват при създаването си
      */
-    private void initComponents() {
-        // Инициализация на панелите
-        contentPanel = new JPanel(new CardLayout());
-        bookListPanel = new BookListPanel(this, authService);
-        loanHistoryPanel = new LoanHistoryPanel(this, authService);
-        userProfilePanel = new UserProfilePanel(this, authService);
+    private void prefetchPanelData() {
+        ServiceRegistry services = ServiceRegistry.getInstance();
+        int userId = currentUser.getUserId();
+        
+        startup.prefetch("loans.user", () -> services.getLoanService().getLoansChangedSince(0, userId));
+        startup.prefetch("profile.loanCount", () -> services.getLoanService().getLoanCountByUser(userId, true));
+        startup.prefetch("profile.activeLoans", () -> services.getLoanService().getActiveLoansCountByUser(userId));
         
-        // Ако потребителят е администратор, създаваме и административен панел
         if (authService.isAdmin()) {
-            adminPanel = new AdminPanel(this, authService);
+            startup.prefetch("loans.all", () -> services.getLoanService().getLoansChangedSince(0, 0));
+            startup.prefetch("admin.users", () -> services.getUserService().getUsersChangedSince(0));
+            startup.prefetch("admin.books", () -> services.getBookService().getBooksChangedSince(0));
+            startup.prefetch("admin.stats", CirculationStats::getInstance);
         }
+    }
+    
+    /**
+     * Връща управлението на стартирането, от което панелите вземат предварително заредените данни
+     * @return управлението на стартирането
+     */
+    public StartupOrchestrator getStartup() {
+        return startup;
+    }
+    
+    /**
+     * Инициализира компонентите на прозореца
+     */
+    private void initComponents() {
+        // Панелите се добавят в contentPanel при първото им показване (ensurePanel)
+        contentPanel = new JPanel(new CardLayout());
         
         // Инициализация на навигационните бутони
         booksButton = new JButton("Книги");
@@ -115,6 +158,11 @@ public class MainFrame extends JFrame {
         statusLabel = new JLabel("Добре дошли в библиотечната система!");
         userLabel = new JLabel("Потребител: " + currentUser.getName() + 
                 " (" + (authService.isAdmin() ? "Администратор" : "Потребител") + ")");
+        
+        readOnlyLabel = new JLabel("Само за четене - базата данни е недостъпна, показват се последните заредени данни");
+        readOnlyLabel.setForeground(Color.RED);
+        readOnlyLabel.setHorizontalAlignment(SwingConstants.CENTER);
+        readOnlyLabel.setVisible(LastKnownCache.getInstance().isReadOnly());
     }
     
     /**
@@ -124,15 +172,6 @@ public class MainFrame extends JFrame {
         // Разположение на прозореца с BorderLayout
         setLayout(new BorderLayout());
         
-        // Добавяне на панелите към contentPanel
-        contentPanel.add(bookListPanel, "books");
-        contentPanel.add(loanHistoryPanel, "loans");
-        contentPanel.add(userProfilePanel, "profile");
-        
-        if (authService.isAdmin()) {
-            contentPanel.add(adminPanel, "admin");
-        }
-        
         // Създаване на навигационен панел
         JPanel navPanel = new JPanel();
         navPanel.setLayout(new BoxLayout(navPanel, BoxLayout.Y_AXIS));
@@ -157,6 +196,7 @@ public class MainFrame extends JFrame {
         JPanel statusPanel = new JPanel(new BorderLayout());
         statusPanel.setBorder(BorderFactory.createEtchedBorder());
         statusPanel.add(statusLabel, BorderLayout.WEST);
+        statusPanel.add(readOnlyLabel, BorderLayout.CENTER);
         statusPanel.add(userLabel, BorderLayout.EAST);
         
         // Добавяне на панелите към основния прозорец
@@ -169,6 +209,28 @@ public class MainFrame extends JFrame {
      * Добавя слушатели за събития към компонентите
      */
     private void addEventListeners() {
+        // Слушател за достъпността на базата данни - показва режима само за четене
+        readOnlyListener = new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(CircuitBreaker.State state) {
+                SwingUtilities.invokeLater(() -> {
+                    readOnlyLabel.setVisible(state != CircuitBreaker.State.CLOSED);
+                    if (state == CircuitBreaker.State.CLOSED) {
+                        refreshCurrentPanel();
+                    }
+                });
+            }
+        };
+        LastKnownCache.getInstance().addReadOnlyListener(readOnlyListener);
+        
+        // Отбелязване на момента, в който прозорецът е видим за потребителя
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                startup.windowShown();
+            }
+        });
+        
         // Слушател за бутона "Книги"
         booksButton.addActionListener(new ActionListener() {
             @Override
@@ -217,6 +279,10 @@ public class MainFrame extends JFrame {
      * @param panelName име на панела
      */
     public void showPanel(String panelName) {
+        if (!ensurePanel(panelName)) {
+            return;
+        }
+        
         CardLayout cl = (CardLayout)(contentPanel.getLayout());
         cl.show(contentPanel, panelName);
         
@@ -237,6 +303,50 @@ public class MainFrame extends JFrame {
         }
     }
     
+    /**
+     * Създава панела при първото му показване
+     * @param panelName име на панела
+     * @return true, ако панелът съществува
+     */
+    private boolean ensurePanel(String panelName) {
+        JPanel panel;
+        switch (panelName) {
+            case "books":
+                if (bookListPanel != null) {
+                    return true;
+                }
+                panel = bookListPanel = new BookListPanel(this, authService);
+                break;
+            case "loans":
+                if (loanHistoryPanel != null) {
+                    return true;
+                }
+                panel = loanHistoryPanel = new LoanHistoryPanel(this, authService);
+                break;
+            case "profile":
+                if (userProfilePanel != null) {
+                    return true;
+                }
+                panel = userProfilePanel = new UserProfilePanel(this, authService);
+                break;
+            case "admin":
+                if (!authService.isAdmin()) {
+                    return false;
+                }
+                if (adminPanel != null) {
+                    return true;
+                }
+                panel = adminPanel = new AdminPanel(this, authService);
+                break;
+            default:
+                return false;
+        }
+        
+        contentPanel.add(panel, panelName);
+        startup.mark("панел: " + panelName);
+        return true;
+    }
+    
     /**
      * Обновява данните на текущия панел
      */
@@ -292,6 +402,8 @@ public class MainFrame extends JFrame {
         
         if (choice == JOptionPane.YES_OPTION) {
             authService.logout();
+            startup.shutdown();
+            LastKnownCache.getInstance().removeReadOnlyListener(readOnlyListener);
             dispose(); // Затваряне на главния прозорец
             
             // Отваряне на прозореца за вход
@@ -306,6 +418,14 @@ public class MainFrame extends JFrame {
      * @param message съобщение за показване
      */
     public void setStatusMessage(String message) {
+        if (LastKnownCache.getInstance().hasStaleData()) {
+            message += " (кеширани данни)";
+        }
+        int pending = LoanJournal.getInstance().getPendingCount();
+        if (pending > 0) {
+            message += " - " + pending + " операции чакат синхронизация";
+        }
         statusLabel.setText(message);
+        readOnlyLabel.setVisible(LastKnownCache.getInstance().isReadOnly());
     }
 }
\ No newline at end of file
@@ -0,0 +1,287 @@
+package library.metrics;
+
+import library.utils.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Регистър на оперативните метрики на приложението - броячи, измерители (gauge)
+ * и таймери с хистограми. Метриките се идентифицират по име и етикети и се
+ * извеждат в текстовия формат на Prometheus от MetricsServer.
+ */
+public class MetricsRegistry {
+    
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    
+    private static MetricsRegistry instance;
+    
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Вид на метриката
+     */
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+        
+        private final String text;
+        
+        Type(String text) {
+            this.text = text;
+        }
+    }
+    
+    /**
+     * Код, който регистрира или обновява метрики непосредствено преди извеждането им
+     */
+    public interface Collector {
+        void collect(MetricsRegistry registry);
+    }
+    
+    /**
+     * Брояч, който само нараства
+     */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+        
+        public void increment() {
+            value.increment();
+        }
+        
+        public void add(long amount) {
+            value.add(amount);
+        }
+        
+        public long get() {
+            return value.sum();
+        }
+    }
+    
+    /**
+     * Таймер - хистограма на продължителностите в микросекунди
+     */
+    public static class Timer {
+        private final LatencyHistogram histogram;
+        
+        private Timer(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+        
+        /**
+         * Започва измерване
+         * @return началния момент, който се подава на stop
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+        
+        /**
+         * Приключва измерване, започнато със start
+         * @param startNanos стойността, върната от start
+         */
+        public void stop(long startNanos) {
+            histogram.record((System.nanoTime() - startNanos) / 1000);
+        }
+        
+        public void record(long duration, TimeUnit unit) {
+            histogram.record(unit.toMicros(duration));
+        }
+        
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+    
+    /**
+     * Всички метрики с едно и също име
+     */
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final Map<String, Object> series = new ConcurrentHashMap<>();
+        
+        private Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+    
+    private MetricsRegistry() {
+    }
+    
+    /**
+     * Връща единствената инстанция на регистъра
+     * @return регистърът на метриките
+     */
+    public static synchronized MetricsRegistry getInstance() {
+        if (instance == null) {
+            instance = new MetricsRegistry();
+        }
+        return instance;
+    }
+    
+    /**
+     * Връща (и при нужда създава) брояч
+     * @param name име на метриката, напр. "library_loans_borrowed_total"
+     * @param help описание
+     * @param labels двойки етикет, стойност
+     * @return броячът
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series
+                .computeIfAbsent(labelKey(labels), k -> new Counter());
+    }
+    
+    /**
+     * Регистрира брояч, чиято стойност се води другаде (напр. в JdbcStats) и се
+     * прочита при всяко извеждане. Източникът трябва само да нараства.
+     * @param name име на метриката, завършващо на "_total"
+     * @param help описание
+     * @param supplier източник на текущата стойност
+     * @param labels двойки етикет, стойност
+     */
+    public void counter(String name, String help, DoubleSupplier supplier, String... labels) {
+        family(name, help, Type.COUNTER).series.put(labelKey(labels), supplier);
+    }
+    
+    /**
+     * Регистрира измерител, чиято стойност се изчислява при всяко извеждане
+     * @param name име на метриката
+     * @param help описание
+     * @param supplier източник на текущата стойност
+     * @param labels двойки етикет, стойност
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        family(name, help, Type.GAUGE).series.put(labelKey(labels), supplier);
+    }
+    
+    /**
+     * Връща (и при нужда създава) таймер
+     * @param name име на метриката, напр. "library_ui_refresh_seconds"
+     * @param help описание
+     * @param labels двойки етикет, стойност
+     * @return таймерът
+     */
+    public Timer timer(String name, String help, String... labels) {
+        return (Timer) family(name, help, Type.SUMMARY).series
+                .computeIfAbsent(labelKey(labels), k -> new Timer(new LatencyHistogram()));
+    }
+    
+    /**
+     * Регистрира като таймер вече съществуваща хистограма (напр. от JdbcStats)
+     * @param name име на метриката
+     * @param help описание
+     * @param histogram хистограма в микросекунди
+     * @param labels двойки етикет, стойност
+     */
+    public void timer(String name, String help, LatencyHistogram histogram, String... labels) {
+        family(name, help, Type.SUMMARY).series.computeIfAbsent(labelKey(labels), k -> new Timer(histogram));
+    }
+    
+    /**
+     * Добавя код, който се изпълнява преди всяко извеждане на метриките
+     * @param collector събирачът
+     */
+    public void addCollector(Collector collector) {
+        collectors.add(collector);
+    }
+    
+    /**
+     * Извежда всички метрики в текстовия формат на Prometheus
+     * @return текстът за извеждане
+     */
+    public String scrape() {
+        for (Collector collector : collectors) {
+            try {
+                collector.collect(this);
+            } catch (RuntimeException e) {
+                System.err.println("Грешка при събиране на метрики: " + e.getMessage());
+            }
+        }
+        
+        List<Family> sorted = new ArrayList<>(families.values());
+        sorted.sort((a, b) -> a.name.compareTo(b.name));
+        
+        StringBuilder out = new StringBuilder();
+        for (Family family : sorted) {
+            out.append("# HELP ").append(family.name).append(' ').append(escapeHelp(family.help)).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type.text).append('\n');
+            
+            for (Map.Entry<String, Object> entry : family.series.entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                
+                if (metric instanceof Counter) {
+                    sample(out, family.name, labels, ((Counter) metric).get());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(out, family.name, labels, ((DoubleSupplier) metric).getAsDouble());
+                } else if (metric instanceof Timer) {
+                    LatencyHistogram h = ((Timer) metric).histogram;
+                    for (double q : QUANTILES) {
+                        String quantile = "quantile=\"" + q + "\"";
+                        sample(out, family.name, labels.isEmpty() ? quantile : labels + "," + quantile,
+                                h.percentile(q * 100) / 1e6);
+                    }
+                    sample(out, family.name + "_sum", labels, h.getSum() / 1e6);
+                    sample(out, family.name + "_count", labels, h.getCount());
+                }
+            }
+        }
+        return out.toString();
+    }
+    
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Метриката " + name + " вече е регистрирана като " + family.type.text);
+        }
+        return family;
+    }
+    
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(String.format(Locale.ROOT, "%.6f", value));
+        }
+        out.append('\n');
+    }
+    
+    private static String labelKey(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Етикетите трябва да са двойки име, стойност");
+        }
+        
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (key.length() > 0) {
+                key.append(',');
+            }
+            key.append(labels[i]).append("=\"").append(escapeLabel(labels[i + 1])).append('"');
+        }
+        return key.toString();
+    }
+    
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    private static String escapeHelp(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
\ No newline at end of file
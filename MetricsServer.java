@@ -0,0 +1,114 @@
+package library.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import library.dao.DatabaseConnection;
+import library.dao.JdbcStats;
+import library.utils.AsyncLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Локален HTTP адрес (/metrics), от който системата за наблюдение чете метриките
+ * в текстовия формат на Prometheus. Слуша само на 127.0.0.1, освен ако не е
+ * зададен друг адрес.
+ *
+ * Настройки (системни свойства):
+ * library.metrics.port - порт (по подразбиране 9464, 0 изключва сървъра)
+ * library.metrics.host - адрес за слушане (по подразбиране 127.0.0.1)
+ */
+public class MetricsServer {
+    
+    private static final int PORT = Integer.getInteger("library.metrics.port", 9464);
+    private static final String HOST = System.getProperty("library.metrics.host", "127.0.0.1");
+    
+    private static HttpServer server;
+    
+    private MetricsServer() {
+    }
+    
+    /**
+     * Стартира сървъра, ако не е стартиран и не е изключен
+     */
+    public static synchronized void start() {
+        if (server != null || PORT <= 0) {
+            return;
+        }
+        
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registerDefaults(registry);
+        
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(HOST), PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-server");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Грешка при стартиране на сървъра за метрики: " + e.getMessage());
+            server = null;
+        }
+    }
+    
+    /**
+     * Спира сървъра
+     */
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+    
+    /**
+     * Регистрира метриките за базата данни и JVM
+     */
+    private static void registerDefaults(MetricsRegistry registry) {
+        registry.gauge("library_db_connections_open", "Отворени в момента връзки с базата данни",
+                JdbcStats::getOpenConnections);
+        registry.counter("library_db_connections_opened_total", "Общ брой отворени връзки с базата данни",
+                JdbcStats::getConnectionsOpened);
+        registry.gauge("library_db_read_only", "1 когато прекъсвачът е отворен и приложението е в режим само за четене",
+                () -> DatabaseConnection.isReadOnly() ? 1 : 0);
+        registry.timer("library_db_connection_wait_seconds", "Време за получаване на връзка с базата данни",
+                JdbcStats.getConnectionWait());
+        
+        // Хистограмите на DAO методите се създават при първото им извикване
+        registry.addCollector(r -> {
+            for (JdbcStats.Stat stat : JdbcStats.getMethodStats()) {
+                r.timer("library_dao_query_seconds", "Време за изпълнение на заявките по DAO метод",
+                        stat.getLatency(), "method", stat.getName());
+                r.counter("library_dao_query_errors_total", "Неуспешни заявки по DAO метод",
+                        stat::getErrors, "method", stat.getName());
+                r.counter("library_dao_rows_total", "Прочетени или променени редове по DAO метод",
+                        stat::getRows, "method", stat.getName());
+            }
+        });
+        
+        registry.counter("library_log_dropped_total", "Записи в дневника, отхвърлени поради препълнен буфер",
+                AsyncLogger::getDroppedCount);
+        registry.counter("library_log_suppressed_total", "Потиснати повтарящи се записи в дневника",
+                AsyncLogger::getSuppressedCount);
+        
+        Runtime runtime = Runtime.getRuntime();
+        registry.gauge("library_jvm_memory_used_bytes", "Използвана heap памет",
+                () -> runtime.totalMemory() - runtime.freeMemory());
+        registry.gauge("library_jvm_threads", "Брой живи нишки",
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package library.dao;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Самопроверка при стартиране: изпълнява EXPLAIN за основните заявки от DAO
+ * класовете и предупреждава, когато някоя от тях би обходила цялата таблица.
+ * Поддържа MySQL (type = ALL) и H2 (tableScan в плана).
+ */
+public class QueryPlanChecker {
+    
+    // Под този брой редове MySQL често избира пълно обхождане нарочно - не предупреждаваме
+    private static final long MIN_ROWS_TO_WARN = 1000;
+    
+    // Представителни заявки с примерни стойности вместо параметрите
+    private static final String[][] QUERIES = {
+            {"UserDAO.getUserByEmail", "SELECT * FROM users WHERE email = 'a@b.c'"},
+            {"LoanDAO.getLoansByUserId", "SELECT * FROM loans WHERE user_id = 1 ORDER BY loan_date DESC"},
+            {"LoanDAO.getActiveLoansCountByUser", "SELECT COUNT(*) FROM loans WHERE user_id = 1 AND is_returned = FALSE"},
+            {"LoanDAO.isBookLoaned", "SELECT COUNT(*) FROM loans WHERE book_id = 1 AND is_returned = FALSE"},
+            {"LoanDAO.getOverdueLoans", "SELECT * FROM loans WHERE is_returned = FALSE AND loan_date < CURRENT_TIMESTAMP ORDER BY loan_date"},
+            {"LoanDAO.archiveReturnedLoans", "SELECT loan_id FROM loans WHERE is_returned = TRUE AND return_date < CURRENT_TIMESTAMP ORDER BY loan_id"},
+            {"HoldDAO.getActiveHoldsByBook", "SELECT * FROM holds WHERE book_id = 1 AND status IN ('чакаща', 'назначена') ORDER BY created_at, hold_id"}
+    };
+    
+    /**
+     * Проверява плановете на заявките и извежда предупреждения
+     * @param conn връзка с базата данни
+     * @return брой заявки с пълно обхождане
+     */
+    public static int check(Connection conn) {
+        int warnings = 0;
+        
+        try {
+            String url = conn.getMetaData().getURL();
+            boolean mysql = url.startsWith("jdbc:mysql:");
+            boolean h2 = url.startsWith("jdbc:h2:");
+            if (!mysql && !h2) {
+                return 0;
+            }
+            
+            for (String[] query : QUERIES) {
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery("EXPLAIN " + query[1])) {
+                    boolean fullScan = mysql ? isMySqlFullScan(rs) : isH2FullScan(rs);
+                    if (fullScan) {
+                        DaoLog.warn(query[0] + " обхожда цялата таблица - проверете индексите");
+                        warnings++;
+                    }
+                } catch (SQLException e) {
+                    DaoLog.warn("Грешка при EXPLAIN за " + query[0], e);
+                }
+            }
+        } catch (SQLException e) {
+            DaoLog.warn("Грешка при проверка на плановете на заявките", e);
+        }
+        
+        return warnings;
+    }
+    
+    private static boolean isMySqlFullScan(ResultSet rs) throws SQLException {
+        while (rs.next()) {
+            if ("ALL".equalsIgnoreCase(rs.getString("type")) && rs.getLong("rows") >= MIN_ROWS_TO_WARN) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean isH2FullScan(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        while (rs.next()) {
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                String plan = rs.getString(i);
+                if (plan != null && plan.contains(".tableScan")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,356 @@
+package library.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Компресирано префиксно дърво (radix trie), в което всеки ключ сочи към една
+ * или няколко стойности с тегло. Всеки възел пази най-голямото тегло в своето
+ * поддърво, така че K-те най-тежки допълвания на префикс се намират чрез
+ * обхождане "най-доброто първо", без да се преглежда цялото поддърво.
+ * Класът не е синхронизиран.
+ *
+ * @param <V> типът на стойностите
+ */
+public class RadixTrie<V> {
+    
+    private final Node<V> root = new Node<>("");
+    private int size;
+    
+    /**
+     * Добавя стойност към ключ или променя теглото ѝ, ако вече е там
+     * @param key ключът
+     * @param value стойността
+     * @param weight теглото
+     */
+    public void put(String key, V value, long weight) {
+        List<Node<V>> path = new ArrayList<>();
+        Node<V> node = root;
+        path.add(node);
+        int i = 0;
+        
+        while (i < key.length()) {
+            Node<V> child = node.child(key.charAt(i));
+            if (child == null) {
+                child = new Node<>(key.substring(i));
+                node.addChild(child);
+                path.add(child);
+                node = child;
+                break;
+            }
+            
+            int common = commonPrefix(child.label, key, i);
+            if (common < child.label.length()) {
+                // Разделяне на ребро: общата част става нов междинен възел
+                Node<V> middle = new Node<>(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                node.replaceChild(child, middle);
+                middle.addChild(child);
+                middle.maxWeight = child.maxWeight;
+                child = middle;
+            }
+            
+            path.add(child);
+            node = child;
+            i += common;
+        }
+        
+        if (node.setWeight(value, weight)) {
+            size++;
+        }
+        updateWeights(path);
+    }
+    
+    /**
+     * Премахва стойност от ключ
+     * @param key ключът
+     * @param value стойността
+     * @return true, ако стойността е била там
+     */
+    public boolean remove(String key, V value) {
+        List<Node<V>> path = findPath(key);
+        if (path == null || !path.get(path.size() - 1).removeValue(value)) {
+            return false;
+        }
+        size--;
+        
+        // Изчистване на празните възли и сливане на тези с едно дете
+        for (int i = path.size() - 1; i > 0; i--) {
+            Node<V> node = path.get(i);
+            if (node.valueCount == 0 && node.childCount == 0) {
+                path.get(i - 1).removeChild(node);
+            } else if (node.valueCount == 0 && node.childCount == 1) {
+                node.absorbChild();
+            }
+        }
+        updateWeights(path);
+        return true;
+    }
+    
+    /**
+     * Връща броя на двойките ключ-стойност
+     * @return броят
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Връща най-тежките различни стойности, чиито ключове започват с префикса
+     * @param prefix префиксът
+     * @param limit максимален брой стойности
+     * @return стойностите, подредени по намаляващо тегло
+     */
+    public List<V> complete(String prefix, int limit) {
+        Node<V> start = locate(prefix);
+        if (start == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        
+        // Опашката съдържа както възли (с най-голямото тегло в поддървото), така и готови стойности;
+        // стойност излиза от нея едва когато никой неразгледан възел не може да я надмине
+        PriorityQueue<Candidate<V>> queue = new PriorityQueue<>();
+        queue.add(new Candidate<>(start.maxWeight, start, null));
+        Set<V> result = new LinkedHashSet<>();
+        
+        while (!queue.isEmpty() && result.size() < limit) {
+            Candidate<V> candidate = queue.poll();
+            if (candidate.node == null) {
+                result.add(candidate.value);
+                continue;
+            }
+            
+            Node<V> node = candidate.node;
+            for (int i = 0; i < node.valueCount; i++) {
+                queue.add(new Candidate<>(node.weights[i], null, node.value(i)));
+            }
+            for (int i = 0; i < node.childCount; i++) {
+                queue.add(new Candidate<>(node.children[i].maxWeight, node.children[i], null));
+            }
+        }
+        
+        return new ArrayList<>(result);
+    }
+    
+    /**
+     * Намира възела, под който са всички ключове с дадения префикс
+     */
+    private Node<V> locate(String prefix) {
+        Node<V> node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            Node<V> child = node.child(prefix.charAt(i));
+            if (child == null) {
+                return null;
+            }
+            
+            int common = commonPrefix(child.label, prefix, i);
+            if (i + common == prefix.length()) {
+                // Префиксът свършва на или по средата на реброто
+                return child;
+            }
+            if (common < child.label.length()) {
+                return null;
+            }
+            node = child;
+            i += common;
+        }
+        return node;
+    }
+    
+    /**
+     * Връща пътя от корена до възела с точно този ключ или null
+     */
+    private List<Node<V>> findPath(String key) {
+        List<Node<V>> path = new ArrayList<>();
+        Node<V> node = root;
+        path.add(node);
+        int i = 0;
+        while (i < key.length()) {
+            Node<V> child = node.child(key.charAt(i));
+            if (child == null || !key.startsWith(child.label, i)) {
+                return null;
+            }
+            path.add(child);
+            node = child;
+            i += child.label.length();
+        }
+        return path;
+    }
+    
+    /**
+     * Преизчислява най-голямото тегло по пътя, от листото към корена
+     */
+    private static <V> void updateWeights(List<Node<V>> path) {
+        for (int i = path.size() - 1; i >= 0; i--) {
+            path.get(i).recomputeMaxWeight();
+        }
+    }
+    
+    private static int commonPrefix(String label, String key, int offset) {
+        int max = Math.min(label.length(), key.length() - offset);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+    
+    /**
+     * Възел на дървото; децата и стойностите са в масиви, а не в колекции,
+     * за да остане дървото компактно при стотици хиляди ключове
+     */
+    private static final class Node<V> {
+        private String label;
+        private Node<V>[] children;
+        private int childCount;
+        private Object[] values;
+        private long[] weights;
+        private int valueCount;
+        private long maxWeight = Long.MIN_VALUE;
+        
+        Node(String label) {
+            this.label = label;
+        }
+        
+        Node<V> child(char first) {
+            for (int i = 0; i < childCount; i++) {
+                if (children[i].label.charAt(0) == first) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+        
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void addChild(Node<V> child) {
+            if (children == null) {
+                children = new Node[2];
+            } else if (childCount == children.length) {
+                Node<V>[] grown = new Node[childCount * 2];
+                System.arraycopy(children, 0, grown, 0, childCount);
+                children = grown;
+            }
+            children[childCount++] = child;
+        }
+        
+        void replaceChild(Node<V> oldChild, Node<V> newChild) {
+            for (int i = 0; i < childCount; i++) {
+                if (children[i] == oldChild) {
+                    children[i] = newChild;
+                    return;
+                }
+            }
+        }
+        
+        void removeChild(Node<V> child) {
+            for (int i = 0; i < childCount; i++) {
+                if (children[i] == child) {
+                    children[i] = children[--childCount];
+                    children[childCount] = null;
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Слива единственото дете във възела (възелът няма стойности)
+         */
+        void absorbChild() {
+            Node<V> child = children[0];
+            label = label + child.label;
+            children = child.children;
+            childCount = child.childCount;
+            values = child.values;
+            weights = child.weights;
+            valueCount = child.valueCount;
+            maxWeight = child.maxWeight;
+        }
+        
+        @SuppressWarnings("unchecked")
+        V value(int index) {
+            return (V) values[index];
+        }
+        
+        /**
+         * @return true, ако стойността е нова за възела
+         */
+        boolean setWeight(V value, long weight) {
+            for (int i = 0; i < valueCount; i++) {
+                if (values[i].equals(value)) {
+                    weights[i] = weight;
+                    return false;
+                }
+            }
+            if (values == null) {
+                values = new Object[1];
+                weights = new long[1];
+            } else if (valueCount == values.length) {
+                int capacity = valueCount * 2;
+                Object[] grownValues = new Object[capacity];
+                long[] grownWeights = new long[capacity];
+                System.arraycopy(values, 0, grownValues, 0, valueCount);
+                System.arraycopy(weights, 0, grownWeights, 0, valueCount);
+                values = grownValues;
+                weights = grownWeights;
+            }
+            values[valueCount] = value;
+            weights[valueCount] = weight;
+            valueCount++;
+            return true;
+        }
+        
+        boolean removeValue(V value) {
+            for (int i = 0; i < valueCount; i++) {
+                if (values[i].equals(value)) {
+                    valueCount--;
+                    values[i] = values[valueCount];
+                    weights[i] = weights[valueCount];
+                    values[valueCount] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        void recomputeMaxWeight() {
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < valueCount; i++) {
+                max = Math.max(max, weights[i]);
+            }
+            for (int i = 0; i < childCount; i++) {
+                max = Math.max(max, children[i].maxWeight);
+            }
+            maxWeight = max;
+        }
+    }
+    
+    /**
+     * Елемент от опашката при търсене на допълнения - възел или стойност
+     */
+    private static final class Candidate<V> implements Comparable<Candidate<V>> {
+        private final long weight;
+        private final Node<V> node;
+        private final V value;
+        
+        Candidate(long weight, Node<V> node, V value) {
+            this.weight = weight;
+            this.node = node;
+            this.value = value;
+        }
+        
+        @Override
+        public int compareTo(Candidate<V> other) {
+            int byWeight = Long.compare(other.weight, weight);
+            if (byWeight != 0) {
+                return byWeight;
+            }
+            // При равно тегло стойностите преди възлите, за да приключи търсенето по-рано
+            return Boolean.compare(node != null, other.node != null);
+        }
+    }
+}
\ No newline at end of file
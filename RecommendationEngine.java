@@ -0,0 +1,316 @@
+package library.service;
+
+import library.dao.BookDAO;
+import library.dao.LoanDAO;
+import library.model.Book;
+import library.model.CirculationCount;
+import library.utils.AsyncLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Препоръки "Читателите на тази книга заеха и..." от разредена матрица
+ * книга x книга, в която клетката (A, B) е броят на читателите, заели и двете.
+ * Матрицата се построява веднъж във фонов режим - историята се чете поточно,
+ * а двойките се броят паралелно по читатели - и след това се обновява при
+ * всяко заемане, така че препоръките се връщат от паметта.
+ */
+public class RecommendationEngine {
+    
+    // Читателите с повече различни книги се отчитат само с първите толкова, за да не доминират
+    private static final int MAX_BASKET = Math.max(2, Integer.getInteger("library.recommend.maxBasket", 500));
+    
+    private static final RecommendationEngine INSTANCE = new RecommendationEngine();
+    
+    private final LoanDAO loanDAO;
+    private final BookDAO bookDAO;
+    
+    // Различните книги, заети от всеки читател, и редовете на матрицата по книги
+    private final Map<Integer, Basket> baskets = new ConcurrentHashMap<>();
+    private final Map<Integer, Row> rows = new ConcurrentHashMap<>();
+    
+    private volatile boolean ready;
+    private boolean bootstrapping;
+    // Заеманията по време на построяването; прилагат се след него
+    private List<int[]> pending = new ArrayList<>();
+    
+    /**
+     * Конструктор
+     */
+    private RecommendationEngine() {
+        this.loanDAO = ServiceRegistry.getInstance().getLoanDAO();
+        this.bookDAO = ServiceRegistry.getInstance().getBookDAO();
+    }
+    
+    /**
+     * Връща споделения сервиз за препоръки
+     * @return инстанцията на сервиза
+     */
+    public static RecommendationEngine getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Стартира построяването на матрицата във фонова нишка; повторното извикване няма ефект
+     */
+    public synchronized void bootstrap() {
+        if (ready || bootstrapping) {
+            return;
+        }
+        bootstrapping = true;
+        
+        Thread thread = new Thread(this::build, "recommendation-bootstrap");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Проверява дали препоръките са готови
+     * @return true, ако матрицата е построена
+     */
+    public boolean isReady() {
+        return ready;
+    }
+    
+    /**
+     * Отчита ново заемане
+     * @param userId ID на потребителя
+     * @param bookId ID на заетата книга
+     */
+    public void recordBorrow(int userId, int bookId) {
+        if (!ready) {
+            synchronized (this) {
+                if (bootstrapping) {
+                    pending.add(new int[] {userId, bookId});
+                    return;
+                }
+                if (!ready) {
+                    return;
+                }
+            }
+        }
+        addBorrow(userId, bookId);
+    }
+    
+    /**
+     * Връща книгите, заемани най-често от читателите на дадена книга
+     * @param bookId ID на книгата
+     * @param limit максимален брой препоръки
+     * @return препоръките (ID, заглавие и брой общи читатели), подредени по намаляващ брой
+     */
+    public List<CirculationCount> getRelated(int bookId, int limit) {
+        Row row = ready ? rows.get(bookId) : null;
+        if (row == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        
+        // Малко повече кандидати - някои може вече да са изтрити
+        long[] top;
+        synchronized (row) {
+            top = row.top(limit * 2);
+        }
+        
+        List<CirculationCount> related = new ArrayList<>();
+        for (long entry : top) {
+            int relatedId = (int) entry;
+            Book book = bookDAO.getBookById(relatedId);
+            if (book != null) {
+                related.add(new CirculationCount(relatedId, book.getTitle(), entry >>> 32));
+                if (related.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return related;
+    }
+    
+    /**
+     * Построява матрицата: поточно четене на историята по читатели, след това
+     * паралелно преброяване на двойките
+     */
+    private void build() {
+        long start = System.currentTimeMillis();
+        
+        boolean loaded = loanDAO.forEachBorrow((userId, bookId) ->
+                baskets.computeIfAbsent(userId, k -> new Basket()).add(bookId));
+        
+        if (loaded) {
+            baskets.values().parallelStream().forEach(this::countBasket);
+        }
+        
+        synchronized (this) {
+            bootstrapping = false;
+            if (!loaded) {
+                baskets.clear();
+                rows.clear();
+                pending.clear();
+                AsyncLogger.log(AsyncLogger.Level.WARN, "Препоръките не са налични - историята на заеманията не може да бъде прочетена");
+                return;
+            }
+            
+            for (int[] borrow : pending) {
+                addBorrow(borrow[0], borrow[1]);
+            }
+            pending = new ArrayList<>();
+            ready = true;
+        }
+        
+        AsyncLogger.log(AsyncLogger.Level.INFO, "Препоръките са построени за " + (System.currentTimeMillis() - start)
+                + " ms (" + baskets.size() + " читатели, " + rows.size() + " книги)");
+    }
+    
+    /**
+     * Добавя всички двойки книги на един читател към матрицата
+     */
+    private void countBasket(Basket basket) {
+        int[] books = basket.snapshot();
+        for (int book : books) {
+            Row row = rows.computeIfAbsent(book, k -> new Row());
+            synchronized (row) {
+                for (int other : books) {
+                    if (other != book) {
+                        row.increment(other);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Отразява заемане в матрицата; повторно заемане на същата книга не променя нищо
+     */
+    private void addBorrow(int userId, int bookId) {
+        Basket basket = baskets.computeIfAbsent(userId, k -> new Basket());
+        int[] others;
+        synchronized (basket) {
+            others = basket.snapshot();
+            if (!basket.add(bookId)) {
+                return;
+            }
+        }
+        
+        Row row = rows.computeIfAbsent(bookId, k -> new Row());
+        synchronized (row) {
+            for (int other : others) {
+                row.increment(other);
+            }
+        }
+        for (int other : others) {
+            Row otherRow = rows.computeIfAbsent(other, k -> new Row());
+            synchronized (otherRow) {
+                otherRow.increment(bookId);
+            }
+        }
+    }
+    
+    /**
+     * Различните книги на един читател (подреден масив)
+     */
+    private static final class Basket {
+        private int[] books = new int[4];
+        private int size;
+        
+        /**
+         * @return true, ако книгата е нова за читателя и е добавена
+         */
+        synchronized boolean add(int bookId) {
+            int pos = Arrays.binarySearch(books, 0, size, bookId);
+            if (pos >= 0 || size >= MAX_BASKET) {
+                return false;
+            }
+            pos = -pos - 1;
+            if (size == books.length) {
+                books = Arrays.copyOf(books, size * 2);
+            }
+            System.arraycopy(books, pos, books, pos + 1, size - pos);
+            books[pos] = bookId;
+            size++;
+            return true;
+        }
+        
+        synchronized int[] snapshot() {
+            return Arrays.copyOf(books, size);
+        }
+    }
+    
+    /**
+     * Ред на матрицата - броячи по книги в хеш-таблица с отворено адресиране,
+     * без обект за всяка клетка
+     */
+    private static final class Row {
+        private int[] keys = new int[8];
+        private int[] counts = new int[8];
+        private int size;
+        
+        void increment(int bookId) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int pos = mix(bookId) & mask;
+            // ID-тата на книгите са положителни, затова 0 означава празна клетка
+            while (keys[pos] != 0 && keys[pos] != bookId) {
+                pos = (pos + 1) & mask;
+            }
+            if (keys[pos] == 0) {
+                keys[pos] = bookId;
+                size++;
+            }
+            counts[pos]++;
+        }
+        
+        /**
+         * Връща най-големите броячи, кодирани като (брой << 32 | ID), в намаляващ ред
+         */
+        long[] top(int limit) {
+            PriorityQueue<Long> best = new PriorityQueue<>(limit + 1);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == 0) {
+                    continue;
+                }
+                long entry = ((long) counts[i] << 32) | keys[i];
+                if (best.size() < limit) {
+                    best.add(entry);
+                } else if (entry > best.peek()) {
+                    best.poll();
+                    best.add(entry);
+                }
+            }
+            
+            long[] result = new long[best.size()];
+            for (int i = result.length - 1; i >= 0; i--) {
+                result[i] = best.poll();
+            }
+            return result;
+        }
+        
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new int[oldKeys.length * 2];
+            counts = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int pos = mix(oldKeys[i]) & mask;
+                    while (keys[pos] != 0) {
+                        pos = (pos + 1) & mask;
+                    }
+                    keys[pos] = oldKeys[i];
+                    counts[pos] = oldCounts[i];
+                }
+            }
+        }
+        
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package library.ui;
 
 import library.service.AuthenticationService;
+import library.service.ServiceRegistry;
 import library.utils.ValidationUtils;
 
 import javax.swing.*;
@@ -32,7 +33,7 @@ public class RegistrationFrame extends JFrame {
      */
     public RegistrationFrame(JFrame parentFrame) {
         this.parentFrame = parentFrame;
-        this.authService = new AuthenticationService();
+        this.authService = ServiceRegistry.getInstance().createAuthenticationService();
         
         // Настройки на прозореца
         setTitle("Регистрация в библиотечната система");
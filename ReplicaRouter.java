@@ -0,0 +1,260 @@
+package library.dao;
+
+import library.metrics.MetricsRegistry;
+import library.utils.AsyncLogger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Разпределя заявките само за четене между репликите на базата данни.
+ * Репликите се редуват (round-robin); реплика, която откаже връзка, се изключва
+ * и фонова проверка я връща, когато отново отговаря. Когато няма здрава
+ * реплика, четенето отива към основната база.
+ *
+ * За да вижда приложението собствените си промени (read-your-writes), след
+ * всеки запис през основната база четенията се насочват към нея за кратък
+ * период. Запис се разпознава по подготвена заявка, която не е SELECT.
+ */
+class ReplicaRouter {
+    
+    private static final long CHECK_MILLIS = Long.getLong("library.db.replicaCheckMillis", 5000L);
+    private static final int VALIDATE_SECONDS = 2;
+    
+    private static final MetricsRegistry.Counter REPLICA_READS = MetricsRegistry.getInstance()
+            .counter("library_db_reads_total", "Връзки за четене по вид на базата", "target", "replica");
+    private static final MetricsRegistry.Counter PRIMARY_READS = MetricsRegistry.getInstance()
+            .counter("library_db_reads_total", "Връзки за четене по вид на базата", "target", "primary");
+    private static final MetricsRegistry.Counter REPLICA_FAILURES = MetricsRegistry.getInstance()
+            .counter("library_db_replica_failures_total", "Реплики, изключени поради грешка във връзката");
+    
+    /**
+     * Една реплика с нейния пул от връзки
+     */
+    private static final class Replica {
+        final String url;
+        final ConnectionPool.ConnectionFactory factory;
+        final ConnectionPool pool;
+        volatile boolean healthy = true;
+        
+        Replica(String url, ConnectionPool.ConnectionFactory factory, ConnectionPool pool) {
+            this.url = url;
+            this.factory = factory;
+            this.pool = pool;
+        }
+        
+        Connection open() throws SQLException {
+            return pool != null ? pool.borrow() : factory.open();
+        }
+    }
+    
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final long readYourWritesNanos;
+    private volatile long lastWriteNanos;
+    private volatile boolean written;
+    private ScheduledExecutorService checker;
+    
+    /**
+     * Конструктор
+     * @param urls адресите на репликите (празен списък изключва разпределянето)
+     * @param factories източник на физически връзки за всеки адрес
+     * @param poolSize размер на пула на всяка реплика (0 изключва пула)
+     * @param poolWaitMillis максимално изчакване на свободна връзка
+     * @param statementCacheSize брой кеширани заявки на връзка
+     * @param readYourWritesMillis колко дълго след запис четенията отиват към основната база
+     */
+    ReplicaRouter(List<String> urls, List<ConnectionPool.ConnectionFactory> factories, int poolSize,
+                  long poolWaitMillis, int statementCacheSize, long readYourWritesMillis) {
+        this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+        for (int i = 0; i < urls.size(); i++) {
+            ConnectionPool pool = poolSize > 0
+                    ? new ConnectionPool(factories.get(i), poolSize, poolWaitMillis, statementCacheSize, "pool", "replica" + (i + 1))
+                    : null;
+            replicas.add(new Replica(urls.get(i), factories.get(i), pool));
+        }
+        if (replicas.isEmpty()) {
+            return;
+        }
+        
+        MetricsRegistry.getInstance().gauge("library_db_replicas_healthy", "Здрави реплики на базата данни",
+                this::getHealthyCount);
+        
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-health");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(this::checkReplicas, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "replica-router-shutdown"));
+    }
+    
+    /**
+     * Проверява дали има конфигурирани реплики
+     * @return true, ако четенията могат да се разпределят
+     */
+    boolean isEnabled() {
+        return !replicas.isEmpty();
+    }
+    
+    /**
+     * Взема връзка към следващата здрава реплика
+     * @return връзката или null, ако четенето трябва да отиде към основната база
+     *         (скорошен запис, няма здрава реплика или всички откажат връзка)
+     */
+    Connection acquire() {
+        if (replicas.isEmpty() || isPinned()) {
+            PRIMARY_READS.increment();
+            return null;
+        }
+        
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (!replica.healthy) {
+                continue;
+            }
+            try {
+                Connection conn = replica.open();
+                REPLICA_READS.increment();
+                return conn;
+            } catch (SQLException e) {
+                // Изчерпан пул не означава повреда - опитваме следващата реплика
+                if (DatabaseConnection.isConnectionFailure(e)) {
+                    markDown(replica, e);
+                }
+            }
+        }
+        
+        PRIMARY_READS.increment();
+        return null;
+    }
+    
+    /**
+     * Проверява дали четенията са насочени към основната база заради скорошен запис
+     * @return true в периода след последния запис
+     */
+    boolean isPinned() {
+        return written && System.nanoTime() - lastWriteNanos < readYourWritesNanos;
+    }
+    
+    /**
+     * Отбелязва запис през основната база
+     */
+    void markWrite() {
+        lastWriteNanos = System.nanoTime();
+        written = true;
+    }
+    
+    /**
+     * Обвива връзка към основната база така, че записите през нея да насочват
+     * следващите четения към основната база
+     * @param conn връзката
+     * @return обвитата връзка
+     */
+    Connection trackWrites(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new WriteTracker(conn));
+    }
+    
+    /**
+     * Връща броя здрави реплики
+     * @return брой реплики
+     */
+    int getHealthyCount() {
+        int count = 0;
+        for (Replica replica : replicas) {
+            if (replica.healthy) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    private void markDown(Replica replica, SQLException e) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            REPLICA_FAILURES.increment();
+            AsyncLogger.log(AsyncLogger.Level.WARN, "Репликата е изключена: " + replica.url,
+                    "ReplicaRouter", "acquire", e.getSQLState(), -1, e.getMessage());
+        }
+    }
+    
+    /**
+     * Връща изключените реплики, които отново приемат връзки
+     */
+    private void checkReplicas() {
+        for (Replica replica : replicas) {
+            if (replica.healthy) {
+                continue;
+            }
+            try (Connection conn = replica.factory.open()) {
+                if (conn.isValid(VALIDATE_SECONDS)) {
+                    replica.healthy = true;
+                    AsyncLogger.log(AsyncLogger.Level.INFO, "Репликата е отново достъпна: " + replica.url);
+                }
+            } catch (SQLException | RuntimeException e) {
+                // Остава изключена до следващата проверка
+            }
+        }
+    }
+    
+    private void shutdown() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            if (replica.pool != null) {
+                replica.pool.shutdown();
+            }
+        }
+    }
+    
+    /**
+     * Обвивка на връзка към основната база, която разпознава записите
+     */
+    private class WriteTracker implements InvocationHandler {
+        private final Connection target;
+        private boolean wrote;
+        
+        private WriteTracker(Connection target) {
+            this.target = target;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("prepareStatement".equals(name) && !isSelect((String) args[0])) {
+                wrote = true;
+                markWrite();
+            } else if ("close".equals(name) && wrote) {
+                // Периодът започва отново след края на транзакцията
+                markWrite();
+            }
+            
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+    
+    private static boolean isSelect(String sql) {
+        int i = 0;
+        while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        return sql.regionMatches(true, i, "SELECT", 0, 6);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+package library.ui.main.dialogs;
+
+import library.model.LoanOutcome;
+import library.service.LoanService;
+import library.service.ReturnDeskPipeline;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+/**
+ * Диалог за връщане на книги на гишето със скенер. Всяко сканиране се нарежда
+ * веднага, полето се изчиства за следващото, а резултатът се попълва в
+ * таблицата, когато конвейерът запише пакета, в който е попаднало.
+ */
+public class ReturnDeskDialog extends JDialog {
+    
+    private static final String PENDING = "обработва се...";
+    
+    private ReturnDeskPipeline pipeline;
+    private int returned;
+    private int failed;
+    
+    // Компоненти на диалога
+    private JTextField scanField;
+    private JLabel summaryLabel;
+    private DefaultTableModel scansModel;
+    private JTable scansTable;
+    private JButton closeButton;
+    
+    /**
+     * Конструктор
+     * @param parent родителският компонент
+     * @param loanService сервиз за заемания
+     */
+    public ReturnDeskDialog(Window parent, LoanService loanService) {
+        super(parent, "Гише за връщане", ModalityType.APPLICATION_MODAL);
+        
+        // Настройки на диалога
+        setSize(700, 500);
+        setLocationRelativeTo(parent);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        
+        // Инициализация на компонентите
+        initComponents();
+        
+        // Разположение на компонентите
+        layoutComponents();
+        
+        // Добавяне на слушатели за събития
+        addEventListeners();
+        
+        // Резултатите идват от нишката на конвейера и се прехвърлят към EDT
+        pipeline = new ReturnDeskPipeline(loanService, (sequence, outcome) ->
+                SwingUtilities.invokeLater(() -> showResult(sequence, outcome)));
+    }
+    
+    /**
+     * Инициализира компонентите на диалога
+     */
+    private void initComponents() {
+        scanField = new JTextField(20);
+        summaryLabel = new JLabel(" ");
+        
+        String[] columns = {"№", "ID на книгата", "Заглавие", "Резултат"};
+        scansModel = new DefaultTableModel(columns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        scansTable = new JTable(scansModel);
+        scansTable.getColumnModel().getColumn(0).setMaxWidth(60);
+        scansTable.getColumnModel().getColumn(1).setMaxWidth(120);
+        
+        closeButton = new JButton("Затвори");
+    }
+    
+    /**
+     * Разполага компонентите в диалога
+     */
+    private void layoutComponents() {
+        JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
+        mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        
+        JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        topPanel.add(new JLabel("Сканирайте книга:"));
+        topPanel.add(scanField);
+        mainPanel.add(topPanel, BorderLayout.NORTH);
+        
+        mainPanel.add(new JScrollPane(scansTable), BorderLayout.CENTER);
+        
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(summaryLabel, BorderLayout.CENTER);
+        bottomPanel.add(closeButton, BorderLayout.EAST);
+        mainPanel.add(bottomPanel, BorderLayout.SOUTH);
+        
+        getContentPane().add(mainPanel);
+    }
+    
+    /**
+     * Добавя слушатели за събития към компонентите
+     */
+    private void addEventListeners() {
+        // Скенерът изпраща Enter след всеки код
+        scanField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                submitScan();
+            }
+        });
+        
+        // Слушател за бутона "Затвори"
+        closeButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        
+        // Вече нарежданите сканирания се записват и след затваряне на диалога
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                pipeline.close();
+            }
+        });
+    }
+    
+    /**
+     * Нарежда сканирания код и изчиства полето за следващия
+     */
+    private void submitScan() {
+        String code = scanField.getText().trim();
+        scanField.setText("");
+        if (code.isEmpty()) {
+            return;
+        }
+        
+        int bookId;
+        try {
+            bookId = Integer.parseInt(code);
+        } catch (NumberFormatException e) {
+            Toolkit.getDefaultToolkit().beep();
+            summaryLabel.setText("Невалиден код: " + code);
+            return;
+        }
+        
+        long sequence = pipeline.submit(bookId);
+        if (sequence > 0) {
+            scansModel.addRow(new Object[] {sequence, bookId, "", PENDING});
+            scansTable.scrollRectToVisible(scansTable.getCellRect(scansModel.getRowCount() - 1, 0, true));
+            updateSummary();
+        }
+    }
+    
+    /**
+     * Попълва резултата от сканиране в таблицата
+     * @param sequence поредният номер на сканирането (от 1, съвпада с реда в таблицата)
+     * @param outcome резултатът от връщането
+     */
+    private void showResult(long sequence, LoanOutcome outcome) {
+        int row = (int) sequence - 1;
+        if (row < 0 || row >= scansModel.getRowCount()) {
+            return;
+        }
+        
+        if (outcome.isSuccess()) {
+            returned++;
+        } else {
+            failed++;
+            Toolkit.getDefaultToolkit().beep();
+        }
+        scansModel.setValueAt(outcome.getBookTitle() != null ? outcome.getBookTitle() : "", row, 2);
+        scansModel.setValueAt(outcome.isSuccess() ? "върната" : outcome.getMessage(), row, 3);
+        updateSummary();
+    }
+    
+    private void updateSummary() {
+        summaryLabel.setText("Върнати: " + returned + ", неуспешни: " + failed
+                + ", чакащи: " + pipeline.getPendingCount());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+package library.service;
+
+import library.metrics.MetricsRegistry;
+import library.model.LoanOutcome;
+import library.utils.AsyncLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Конвейер за връщане на книги на гишето. Сканиранията само се нареждат в опашка
+ * и методът submit връща веднага; фонова нишка ги групира на малки пакети и ги
+ * записва с LoanService.returnBooksByBook - по една транзакция на пакет. Докато
+ * пакетът се записва, следващите сканирания се натрупват за следващия, така че
+ * скоростта на сканиране не зависи от забавянето на базата данни. Резултатите
+ * се подават на слушателя в реда на сканиране, по един за всяко сканиране.
+ *
+ * Настройки (системни свойства):
+ * library.returnDesk.maxBatch - максимален брой сканирания в пакет (по подразбиране 50)
+ * library.returnDesk.lingerMillis - колко се изчакват още сканирания след първото (по подразбиране 20)
+ */
+public class ReturnDeskPipeline {
+    
+    private static final int MAX_BATCH = Math.max(1, Integer.getInteger("library.returnDesk.maxBatch", 50));
+    private static final long LINGER_MILLIS = Math.max(0, Integer.getInteger("library.returnDesk.lingerMillis", 20));
+    
+    private static final MetricsRegistry.Counter SCANS = MetricsRegistry.getInstance()
+            .counter("library_return_desk_scans_total", "Сканирания на гишето за връщане");
+    private static final MetricsRegistry.Counter BATCHES = MetricsRegistry.getInstance()
+            .counter("library_return_desk_batches_total", "Записани пакети от сканирания");
+    private static final MetricsRegistry.Timer BATCH_TIMER = MetricsRegistry.getInstance()
+            .timer("library_return_desk_batch_seconds", "Време за запис на пакет от сканирания");
+    
+    /**
+     * Получава резултата от всяко сканиране. Извиква се от фоновата нишка,
+     * в реда на сканиране.
+     */
+    public interface Listener {
+        /**
+         * @param sequence поредният номер, върнат от submit
+         * @param outcome резултатът от връщането
+         */
+        void onResult(long sequence, LoanOutcome outcome);
+    }
+    
+    /**
+     * Едно сканиране в опашката
+     */
+    private static final class Scan {
+        final long sequence;
+        final int bookId;
+        
+        Scan(long sequence, int bookId) {
+            this.sequence = sequence;
+            this.bookId = bookId;
+        }
+    }
+    
+    private final LoanService loanService;
+    private final Listener listener;
+    private final BlockingQueue<Scan> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Thread worker;
+    private volatile boolean running = true;
+    
+    /**
+     * Конструктор; стартира фоновата нишка
+     * @param loanService сервизът за заемания
+     * @param listener получател на резултатите
+     */
+    public ReturnDeskPipeline(LoanService loanService, Listener listener) {
+        this.loanService = loanService;
+        this.listener = listener;
+        
+        worker = new Thread(this::run, "return-desk");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    /**
+     * Нарежда сканирана книга за връщане. Не блокира.
+     * @param bookId ID на книгата
+     * @return пореден номер на сканирането (от 1) или -1, ако конвейерът е затворен
+     */
+    public long submit(int bookId) {
+        if (!running) {
+            return -1;
+        }
+        long seq = sequence.incrementAndGet();
+        queue.add(new Scan(seq, bookId));
+        SCANS.increment();
+        return seq;
+    }
+    
+    /**
+     * Връща броя сканирания, за които още няма резултат
+     * @return брой чакащи сканирания
+     */
+    public int getPendingCount() {
+        return queue.size() + inFlight.get();
+    }
+    
+    /**
+     * Спира приемането на сканирания; вече нарежданите се записват преди нишката да приключи
+     */
+    public void close() {
+        running = false;
+    }
+    
+    private void run() {
+        List<Scan> batch = new ArrayList<>(MAX_BATCH);
+        while (running || !queue.isEmpty()) {
+            try {
+                Scan first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                
+                // Кратко изчакване за още сканирания, за да се запишат в същата транзакция
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+                while (batch.size() < MAX_BATCH) {
+                    long remaining = deadline - System.nanoTime();
+                    Scan next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                
+                inFlight.set(batch.size());
+                process(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка в конвейера за връщане на книги",
+                        "ReturnDeskPipeline", "run", null, -1, e.toString());
+                for (Scan scan : batch) {
+                    LoanOutcome outcome = new LoanOutcome(0, scan.bookId, 0);
+                    outcome.fail("Вътрешна грешка при връщането");
+                    deliver(scan, outcome);
+                }
+            } finally {
+                batch.clear();
+                inFlight.set(0);
+            }
+        }
+    }
+    
+    /**
+     * Записва пакет сканирания в една транзакция и подава резултатите в реда на сканиране.
+     * Повторно сканиране на книга в същия пакет се отчита като неуспешно.
+     */
+    private void process(List<Scan> batch) {
+        LinkedHashSet<Integer> bookIds = new LinkedHashSet<>();
+        for (Scan scan : batch) {
+            bookIds.add(scan.bookId);
+        }
+        
+        long start = BATCH_TIMER.start();
+        List<LoanOutcome> outcomes = loanService.returnBooksByBook(new ArrayList<>(bookIds));
+        BATCH_TIMER.stop(start);
+        BATCHES.increment();
+        
+        Map<Integer, LoanOutcome> byBook = new HashMap<>();
+        for (LoanOutcome outcome : outcomes) {
+            byBook.put(outcome.getBookId(), outcome);
+        }
+        
+        for (Scan scan : batch) {
+            LoanOutcome outcome = byBook.remove(scan.bookId);
+            if (outcome == null) {
+                outcome = new LoanOutcome(0, scan.bookId, 0);
+                outcome.fail("Книгата вече е сканирана");
+            }
+            deliver(scan, outcome);
+        }
+    }
+    
+    private void deliver(Scan scan, LoanOutcome outcome) {
+        try {
+            listener.onResult(scan.sequence, outcome);
+        } catch (RuntimeException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, "Грешка в слушателя на конвейера за връщане",
+                    "ReturnDeskPipeline", "deliver", null, -1, e.toString());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,348 @@
+package library.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Прилага подредени, версионирани DDL скриптове от /db/migration при стартиране.
+ * Всеки приложен скрипт се записва в schema_version заедно с контролна сума;
+ * ако вече приложен скрипт бъде променен, миграциите спират с грешка, вместо
+ * базата тихо да се разминава със скриптовете.
+ */
+public class SchemaMigrator {
+    
+    // Скриптовете се прилагат в този ред; нови миграции се добавят само в края
+    private static final String[] MIGRATIONS = {
+            "V1__base_schema.sql",
+            "V2__dao_indexes.sql",
+            "V3__foreign_keys.sql",
+            "V4__applied_operations.sql",
+            "V5__change_versions.sql",
+            "V6__branch_transfers.sql",
+            "V7__job_leases.sql"
+    };
+    
+    // Заявки, които се пропускат, ако обектът вече съществува - MySQL няма
+    // CREATE INDEX IF NOT EXISTS, а базата може да е създадена на ръка (виж V1)
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "CREATE\\s+(UNIQUE\\s+)?INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ADD_FOREIGN_KEY = Pattern.compile(
+            "ALTER\\s+TABLE\\s+(\\w+)\\s+ADD\\s+CONSTRAINT\\s+(\\w+)\\s+FOREIGN\\s+KEY", Pattern.CASE_INSENSITIVE);
+    
+    // Колко дублирани стойности се изброяват в грешката при уникален индекс
+    private static final int MAX_LISTED_DUPLICATES = 10;
+    
+    private static final String LOCATION = "/db/migration/";
+    private static final String LOCK_NAME = "library_schema_migration";
+    
+    /**
+     * Прилага всички неприложени миграции
+     * @param conn връзка с базата данни
+     * @return брой приложени в момента миграции
+     * @throws SQLException при грешка в миграция или разминаване в контролна сума
+     */
+    public static int migrate(Connection conn) throws SQLException {
+        boolean mysql = conn.getMetaData().getURL().startsWith("jdbc:mysql:");
+        
+        // Няколко клиента могат да стартират едновременно - само един прилага миграциите
+        if (mysql) {
+            acquireLock(conn);
+        }
+        
+        try {
+            createVersionTable(conn);
+            Map<Integer, Long> applied = getAppliedVersions(conn);
+            
+            int count = 0;
+            for (String name : MIGRATIONS) {
+                int version = parseVersion(name);
+                String script = loadScript(name);
+                long checksum = checksum(script);
+                
+                Long appliedChecksum = applied.get(version);
+                if (appliedChecksum != null) {
+                    if (appliedChecksum != checksum) {
+                        throw new SQLException("Миграция " + name + " е променена след прилагането ѝ (контролна сума " +
+                                appliedChecksum + " != " + checksum + ")");
+                    }
+                    continue;
+                }
+                
+                applyMigration(conn, version, name, script, checksum);
+                DaoLog.info("Приложена миграция на схемата: " + name);
+                count++;
+            }
+            return count;
+        } finally {
+            if (mysql) {
+                releaseLock(conn);
+            }
+        }
+    }
+    
+    /**
+     * Подготвя базата на филиал: новите книги, заемания и запазвания получават
+     * ID-та от диапазона на филиала, а външните ключове към потребителите се
+     * премахват, тъй като потребителите са в основната база.
+     * @param conn връзка с базата на филиала
+     * @param branch номерът на филиала
+     * @throws SQLException при грешка в базата данни
+     */
+    public static void prepareBranch(Connection conn, int branch) throws SQLException {
+        boolean mysql = conn.getMetaData().getURL().startsWith("jdbc:mysql:");
+        long base = (long) branch * ShardRouter.ID_STRIDE;
+        
+        String[][] tables = {{"books", "book_id"}, {"loans", "loan_id"}, {"holds", "hold_id"}};
+        try (Statement stmt = conn.createStatement()) {
+            for (String[] table : tables) {
+                long max;
+                try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(" + table[1] + "), 0) FROM " + table[0])) {
+                    max = rs.next() ? rs.getLong(1) : 0;
+                }
+                if (max < base) {
+                    stmt.executeUpdate(mysql
+                            ? "ALTER TABLE " + table[0] + " AUTO_INCREMENT = " + (base + 1)
+                            : "ALTER TABLE " + table[0] + " ALTER COLUMN " + table[1] + " RESTART WITH " + (base + 1));
+                }
+            }
+            
+            for (String[] foreignKey : new String[][] {{"loans", "fk_loans_user"}, {"holds", "fk_holds_user"}}) {
+                if (hasForeignKey(conn, foreignKey[0], foreignKey[1])) {
+                    stmt.executeUpdate("ALTER TABLE " + foreignKey[0] + (mysql ? " DROP FOREIGN KEY " : " DROP CONSTRAINT ") + foreignKey[1]);
+                }
+            }
+        }
+    }
+    
+    private static boolean hasForeignKey(Connection conn, String table, String name) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String candidate : new String[] {table, table.toUpperCase()}) {
+            try (ResultSet rs = meta.getImportedKeys(conn.getCatalog(), null, candidate)) {
+                while (rs.next()) {
+                    if (name.equalsIgnoreCase(rs.getString("FK_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Създава таблицата с версиите на схемата, ако не съществува
+     */
+    private static void createVersionTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "version INT PRIMARY KEY, " +
+                    "description VARCHAR(200) NOT NULL, " +
+                    "checksum BIGINT NOT NULL, " +
+                    "applied_at TIMESTAMP NOT NULL)");
+        }
+    }
+    
+    /**
+     * Връща вече приложените версии и техните контролни суми
+     */
+    private static Map<Integer, Long> getAppliedVersions(Connection conn) throws SQLException {
+        Map<Integer, Long> applied = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version, checksum FROM schema_version")) {
+            while (rs.next()) {
+                applied.put(rs.getInt("version"), rs.getLong("checksum"));
+            }
+        }
+        return applied;
+    }
+    
+    /**
+     * Изпълнява скрипта на миграцията и записва версията ѝ.
+     * MySQL извършва неявен commit след всеки DDL, затова записът във
+     * schema_version е последен - при прекъсване миграцията се повтаря.
+     */
+    private static void applyMigration(Connection conn, int version, String name, String script, long checksum) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : splitStatements(script)) {
+                if (alreadyExists(conn, sql)) {
+                    continue;
+                }
+                checkUniqueValues(conn, sql);
+                stmt.execute(sql);
+            }
+        } catch (SQLException e) {
+            throw new SQLException("Грешка при прилагане на миграция " + name + ": " + e.getMessage(), e.getSQLState(), e);
+        }
+        
+        String sql = "INSERT INTO schema_version (version, description, checksum, applied_at) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, version);
+            pstmt.setString(2, name);
+            pstmt.setLong(3, checksum);
+            pstmt.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            pstmt.executeUpdate();
+        }
+    }
+    
+    /**
+     * Проверява дали индексът или външният ключ, който заявката създава, вече съществува.
+     * Така V2 и V3 могат да се приложат и върху база, в която част от тях са добавени на ръка.
+     */
+    private static boolean alreadyExists(Connection conn, String sql) throws SQLException {
+        Matcher index = CREATE_INDEX.matcher(sql);
+        if (index.lookingAt()) {
+            return hasIndex(conn, index.group(3), index.group(2));
+        }
+        Matcher foreignKey = ADD_FOREIGN_KEY.matcher(sql);
+        if (foreignKey.lookingAt()) {
+            return hasForeignKey(conn, foreignKey.group(1), foreignKey.group(2));
+        }
+        return false;
+    }
+    
+    private static boolean hasIndex(Connection conn, String table, String name) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String candidate : new String[] {table, table.toUpperCase()}) {
+            try (ResultSet rs = meta.getIndexInfo(conn.getCatalog(), null, candidate, false, true)) {
+                while (rs.next()) {
+                    if (name.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Преди уникален индекс проверява за дублирани стойности, за да откаже миграцията
+     * с описание какво да се поправи, вместо с общата грешка на базата
+     * @throws SQLException със списък на дублираните стойности, ако има такива
+     */
+    private static void checkUniqueValues(Connection conn, String sql) throws SQLException {
+        Matcher index = CREATE_INDEX.matcher(sql);
+        if (!index.lookingAt() || index.group(1) == null) {
+            return;
+        }
+        String table = index.group(3);
+        String columns = index.group(4).trim();
+        
+        StringBuilder duplicates = new StringBuilder();
+        int count = 0;
+        String query = "SELECT " + columns + ", COUNT(*) FROM " + table + " GROUP BY " + columns + " HAVING COUNT(*) > 1";
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            int columnCount = rs.getMetaData().getColumnCount() - 1;
+            while (rs.next()) {
+                if (count++ < MAX_LISTED_DUPLICATES) {
+                    duplicates.append("\n  ");
+                    for (int i = 1; i <= columnCount; i++) {
+                        duplicates.append(i > 1 ? ", " : "").append(rs.getString(i));
+                    }
+                    duplicates.append(" (").append(rs.getLong(columnCount + 1)).append(" записа)");
+                }
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (count > MAX_LISTED_DUPLICATES) {
+            duplicates.append("\n  ... и още ").append(count - MAX_LISTED_DUPLICATES);
+        }
+        throw new SQLException("Уникалният индекс " + index.group(2) + " не може да бъде създаден - в " + table
+                + " има повтарящи се стойности на (" + columns + "):" + duplicates
+                + "\nОбединете или поправете тези записи и стартирайте приложението отново; миграцията ще продължи оттук.",
+                "23000");
+    }
+    
+    /**
+     * Разделя скрипта на отделни заявки по ';' в края на ред, като пропуска коментарите
+     */
+    static List<String> splitStatements(String script) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        
+        for (String line : script.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+                continue;
+            }
+            
+            if (trimmed.endsWith(";")) {
+                current.append(trimmed, 0, trimmed.length() - 1);
+                statements.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(trimmed).append(' ');
+            }
+        }
+        
+        if (current.toString().trim().length() > 0) {
+            statements.add(current.toString().trim());
+        }
+        return statements;
+    }
+    
+    /**
+     * Зарежда скрипт от classpath
+     */
+    private static String loadScript(String name) throws SQLException {
+        try (InputStream in = SchemaMigrator.class.getResourceAsStream(LOCATION + name)) {
+            if (in == null) {
+                throw new SQLException("Липсва скрипт за миграция: " + LOCATION + name);
+            }
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new SQLException("Грешка при четене на скрипт за миграция " + name, e);
+        }
+    }
+    
+    /**
+     * Изчислява контролна сума на скрипта, независима от вида на новите редове
+     */
+    private static long checksum(String script) {
+        CRC32 crc = new CRC32();
+        crc.update(script.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+    
+    private static int parseVersion(String name) {
+        return Integer.parseInt(name.substring(1, name.indexOf("__")));
+    }
+    
+    private static void acquireLock(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT GET_LOCK(?, 60)")) {
+            pstmt.setString(1, LOCK_NAME);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    throw new SQLException("Неуспешно заключване за миграция на схемата");
+                }
+            }
+        }
+    }
+    
+    private static void releaseLock(Connection conn) {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            pstmt.setString(1, LOCK_NAME);
+            pstmt.executeQuery().close();
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при освобождаване на заключването за миграция", e);
+        }
+    }
+}
\ No newline at end of file
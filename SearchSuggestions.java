@@ -0,0 +1,191 @@
+package library.ui.main.panels;
+
+import library.service.AutocompleteService;
+import library.service.AutocompleteService.Suggestion;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Падащ списък с подсказки под поле за търсене. Подсказките се обновяват при
+ * всяка промяна на текста; стрелките избират, Enter или двойно кликване приема,
+ * а Escape затваря списъка. Фокусът остава в полето през цялото време.
+ */
+final class SearchSuggestions {
+    
+    private final JTextField field;
+    private final int limit;
+    private final Consumer<Suggestion> onAccept;
+    
+    private final JPopupMenu popup = new JPopupMenu();
+    private final DefaultListModel<Suggestion> model = new DefaultListModel<>();
+    private final JList<Suggestion> list = new JList<>(model);
+    
+    // Текстът се сменя от самия списък - подсказките не се показват отново
+    private boolean accepting;
+    
+    private SearchSuggestions(JTextField field, int limit, Consumer<Suggestion> onAccept) {
+        this.field = field;
+        this.limit = limit;
+        this.onAccept = onAccept;
+        
+        list.setFocusable(false);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                Suggestion suggestion = (Suggestion) value;
+                return super.getListCellRendererComponent(list,
+                        suggestion.getText() + " (" + suggestion.getKind() + ")", index, isSelected, cellHasFocus);
+            }
+        });
+        
+        popup.setFocusable(false);
+        popup.setLayout(new BorderLayout());
+        popup.add(list, BorderLayout.CENTER);
+    }
+    
+    /**
+     * Добавя подсказки към поле за търсене
+     * @param field полето
+     * @param limit максимален брой показани подсказки
+     * @param onAccept действие при избор на подсказка (след като текстът ѝ е поставен в полето)
+     * @return създадените подсказки
+     */
+    static SearchSuggestions attach(JTextField field, int limit, Consumer<Suggestion> onAccept) {
+        SearchSuggestions suggestions = new SearchSuggestions(field, limit, onAccept);
+        suggestions.addListeners();
+        return suggestions;
+    }
+    
+    private void addListeners() {
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                scheduleUpdate();
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                scheduleUpdate();
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                scheduleUpdate();
+            }
+        });
+        
+        field.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (!popup.isVisible()) {
+                    return;
+                }
+                
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_DOWN:
+                        select(list.getSelectedIndex() + 1);
+                        e.consume();
+                        break;
+                    case KeyEvent.VK_UP:
+                        select(list.getSelectedIndex() - 1);
+                        e.consume();
+                        break;
+                    case KeyEvent.VK_ENTER:
+                        if (list.getSelectedValue() != null) {
+                            accept(list.getSelectedValue());
+                            e.consume();
+                        }
+                        break;
+                    case KeyEvent.VK_ESCAPE:
+                        popup.setVisible(false);
+                        e.consume();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+        
+        field.addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusLost(FocusEvent e) {
+                popup.setVisible(false);
+            }
+        });
+        
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int index = list.locationToIndex(e.getPoint());
+                if (index >= 0) {
+                    accept(model.get(index));
+                }
+            }
+        });
+    }
+    
+    /**
+     * Подсказките се обновяват след обработката на промяната в документа
+     */
+    private void scheduleUpdate() {
+        if (!accepting) {
+            SwingUtilities.invokeLater(this::update);
+        }
+    }
+    
+    private void update() {
+        List<Suggestion> suggestions = AutocompleteService.getInstance().suggest(field.getText(), limit);
+        if (suggestions.isEmpty() || !field.isShowing() || !field.isFocusOwner()) {
+            popup.setVisible(false);
+            return;
+        }
+        
+        model.clear();
+        for (Suggestion suggestion : suggestions) {
+            model.addElement(suggestion);
+        }
+        list.clearSelection();
+        list.setVisibleRowCount(suggestions.size());
+        
+        popup.setPopupSize(Math.max(field.getWidth(), list.getPreferredSize().width + 8),
+                list.getPreferredSize().height + 4);
+        if (popup.isVisible()) {
+            popup.pack();
+        } else {
+            popup.show(field, 0, field.getHeight());
+        }
+    }
+    
+    private void select(int index) {
+        if (model.isEmpty()) {
+            return;
+        }
+        int bounded = Math.max(0, Math.min(model.size() - 1, index));
+        list.setSelectedIndex(bounded);
+        list.ensureIndexIsVisible(bounded);
+    }
+    
+    private void accept(Suggestion suggestion) {
+        popup.setVisible(false);
+        accepting = true;
+        try {
+            field.setText(suggestion.getText());
+        } finally {
+            accepting = false;
+        }
+        onAccept.accept(suggestion);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+package library.service;
+
+import library.dao.BookDAO;
+import library.dao.DatabaseConnection;
+import library.dao.HoldDAO;
+import library.dao.JobLeaseDAO;
+import library.dao.LoanDAO;
+import library.dao.TransferDAO;
+import library.dao.UserDAO;
+import library.metrics.MetricsServer;
+
+import java.sql.SQLException;
+
+/**
+ * Контекст на приложението - притежава единствените инстанции на DAO класовете
+ * и сервизите, така че кешовете, връзките и метриките в тях са общи за целия
+ * потребителски интерфейс. DAO класовете и сервизите не пазят състояние на
+ * отделна заявка и могат да се използват от няколко нишки едновременно.
+ *
+ * DAO обектите се създават заедно с контекста, а сервизите - при първо поискване,
+ * за да не се отваря връзка с базата преди входа. Фоновите задачи (сървърът за
+ * метрики, прилагането на офлайн журнала, построяването на препоръките,
+ * доставянето на прехвърлянията между филиали) се
+ * стартират със start и спират със stop, който се изпълнява и при затваряне
+ * на приложението.
+ */
+public class ServiceRegistry {
+    
+    private static ServiceRegistry instance;
+    
+    private final BookDAO bookDAO;
+    private final UserDAO userDAO;
+    private final HoldDAO holdDAO;
+    private final LoanDAO loanDAO;
+    private final TransferDAO transferDAO;
+    private final JobLeaseDAO jobLeaseDAO;
+    
+    private BookService bookService;
+    private UserService userService;
+    private HoldService holdService;
+    private LoanService loanService;
+    
+    private boolean started;
+    private Thread shutdownHook;
+    
+    private ServiceRegistry() {
+        this.bookDAO = new BookDAO();
+        this.userDAO = new UserDAO();
+        this.holdDAO = new HoldDAO(bookDAO);
+        this.loanDAO = new LoanDAO(bookDAO, userDAO, holdDAO);
+        this.transferDAO = new TransferDAO(bookDAO, holdDAO);
+        this.jobLeaseDAO = new JobLeaseDAO();
+    }
+    
+    /**
+     * Връща контекста на приложението
+     * @return инстанцията
+     */
+    public static synchronized ServiceRegistry getInstance() {
+        if (instance == null) {
+            instance = new ServiceRegistry();
+        }
+        return instance;
+    }
+    
+    // DAO
+    public BookDAO getBookDAO() {
+        return bookDAO;
+    }
+    
+    public UserDAO getUserDAO() {
+        return userDAO;
+    }
+    
+    public HoldDAO getHoldDAO() {
+        return holdDAO;
+    }
+    
+    public LoanDAO getLoanDAO() {
+        return loanDAO;
+    }
+    
+    public TransferDAO getTransferDAO() {
+        return transferDAO;
+    }
+    
+    public JobLeaseDAO getJobLeaseDAO() {
+        return jobLeaseDAO;
+    }
+    
+    // Сервизи
+    public synchronized BookService getBookService() {
+        if (bookService == null) {
+            bookService = new BookService(bookDAO, loanDAO, transferDAO);
+        }
+        return bookService;
+    }
+    
+    public synchronized UserService getUserService() {
+        if (userService == null) {
+            userService = new UserService(userDAO, loanDAO, getHoldService());
+        }
+        return userService;
+    }
+    
+    public synchronized HoldService getHoldService() {
+        if (holdService == null) {
+            holdService = new HoldService(holdDAO, bookDAO, loanDAO, HoldQueue.getInstance());
+        }
+        return holdService;
+    }
+    
+    public synchronized LoanService getLoanService() {
+        if (loanService == null) {
+            loanService = new LoanService(loanDAO, bookDAO, userDAO, getHoldService());
+        }
+        return loanService;
+    }
+    
+    /**
+     * Създава сервиз за автентикация. Той пази влезлия потребител, затова всеки
+     * прозорец за вход или регистрация получава собствена инстанция.
+     * @return нов сервиз за автентикация
+     */
+    public AuthenticationService createAuthenticationService() {
+        return new AuthenticationService(userDAO);
+    }
+    
+    /**
+     * Прилага миграциите на схемата на базата данни. Извиква се във фонов режим при
+     * показване на прозореца за вход, а не при първата заявка от интерфейса.
+     * @return true, ако схемата е актуална; false, ако базата е недостъпна
+     * @throws SQLException при грешка в миграция - приложението не може да работи
+     */
+    public boolean prepareDatabase() throws SQLException {
+        return DatabaseConnection.prepareSchema();
+    }
+    
+    /**
+     * Стартира фоновите задачи на приложението; повторното извикване няма ефект
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        
+        // Метриките се четат от системата за наблюдение през локален порт
+        MetricsServer.start();
+        
+        // Операциите, направени без връзка с базата, се прилагат при възстановяването ѝ
+        LoanJournal.getInstance().startReplay();
+        
+        // Матрицата за препоръки се строи от историята на заеманията във фонов режим
+        RecommendationEngine.getInstance().bootstrap();
+        
+        // Прехвърлянията между филиали се довършват и след прекъсване
+        TransferRelay.getInstance().start();
+        
+        shutdownHook = new Thread(this::stop, "service-registry-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+    
+    /**
+     * Спира фоновите задачи на приложението
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        
+        LoanArchiver.getInstance().stop();
+        TransferRelay.getInstance().stop();
+        LoanJournal.getInstance().stopReplay();
+        MetricsServer.stop();
+        
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Приложението вече се затваря
+            }
+        }
+        shutdownHook = null;
+    }
+    
+    /**
+     * Проверява дали фоновите задачи са стартирани
+     * @return true, ако start е извикан и stop още не е
+     */
+    public synchronized boolean isStarted() {
+        return started;
+    }
+}
\ No newline at end of file
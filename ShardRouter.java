@@ -0,0 +1,390 @@
+package library.dao;
+
+import library.metrics.MetricsRegistry;
+import library.model.ChangeSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * Разпределя книгите, заеманията и запазванията между базите на филиалите.
+ * Всеки филиал държи собствените си книги и техните заемания и запазвания;
+ * потребителите са общи и остават в основната база (филиал 0).
+ *
+ * Филиалът се разпознава по ID: базата на филиал N раздава ID-та от
+ * N * ID_STRIDE нагоре, затова заявка по ID на книга, заемане или запазване
+ * отива директно в нужната база. Списъците и търсенията се изпълняват
+ * паралелно във всички филиали и резултатите се обединяват.
+ *
+ * Филиалите се задават със системните свойства library.branch.N.url,
+ * library.branch.N.user, library.branch.N.password и library.branch.N.name
+ * за N = 1, 2, ... (до първия липсващ адрес); името на основния филиал е в
+ * library.branch.0.name. Без зададени филиали всичко остава в основната база.
+ */
+public final class ShardRouter {
+    
+    public static final int MAIN = 0;
+    public static final int ID_STRIDE = 100_000_000;
+    
+    private static final int CURSOR_CACHE_SIZE = 1024;
+    
+    /**
+     * Настройките на един филиал; адресът на основния е null
+     */
+    private static final class Branch {
+        final String name;
+        final String url;
+        final String user;
+        final String password;
+        
+        Branch(String name, String url, String user, String password) {
+            this.name = name;
+            this.url = url;
+            this.user = user;
+            this.password = password;
+        }
+    }
+    
+    private static final List<Branch> BRANCHES = loadBranches();
+    
+    // Филиалът, към който са насочени заявките на текущата нишка (null - според ID)
+    private static final ThreadLocal<Integer> BOUND = new ThreadLocal<>();
+    
+    private static final MetricsRegistry.Counter SCATTERS = MetricsRegistry.getInstance()
+            .counter("library_shard_scatters_total", "Заявки, изпълнени във всички филиали");
+    private static final MetricsRegistry.Timer SCATTER_TIME = MetricsRegistry.getInstance()
+            .timer("library_shard_scatter_seconds", "Време за заявка към всички филиали");
+    
+    // Версиите на промените по филиали зад всеки върнат на клиент общ курсор
+    private static final AtomicLong NEXT_CURSOR = new AtomicLong(System.currentTimeMillis() * 1000);
+    private static final Map<Long, long[]> CURSORS = new LinkedHashMap<Long, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+            return size() > CURSOR_CACHE_SIZE;
+        }
+    };
+    
+    private static ExecutorService executor;
+    
+    private ShardRouter() {
+    }
+    
+    /**
+     * Проверява дали са зададени филиали освен основния
+     * @return true при повече от една база
+     */
+    public static boolean isSharded() {
+        return BRANCHES.size() > 1;
+    }
+    
+    /**
+     * Връща броя на филиалите, включително основния
+     * @return броят на филиалите
+     */
+    public static int getBranchCount() {
+        return BRANCHES.size();
+    }
+    
+    /**
+     * Връща името на филиал
+     * @param branch номерът на филиала
+     * @return името
+     */
+    public static String getBranchName(int branch) {
+        return BRANCHES.get(branch).name;
+    }
+    
+    /**
+     * Определя филиала, в чиято база е обект с дадено ID
+     * @param id ID на книга, заемане или запазване
+     * @return номерът на филиала (основният за непознат диапазон)
+     */
+    public static int branchOf(int id) {
+        int branch = id / ID_STRIDE;
+        return branch > 0 && branch < BRANCHES.size() ? branch : MAIN;
+    }
+    
+    /**
+     * Връща филиала, към който са насочени заявките на текущата нишка
+     * @return номерът на филиала (основният, ако нишката не е насочена)
+     */
+    static int currentBranch() {
+        Integer branch = BOUND.get();
+        return branch != null ? branch : MAIN;
+    }
+    
+    /**
+     * Проверява дали заявка по ID трябва да се пренасочи към друг филиал
+     * @param id ID на книга, заемане или запазване
+     * @return true, ако обектът не е в базата на текущия филиал
+     */
+    static boolean routes(int id) {
+        return isSharded() && branchOf(id) != currentBranch();
+    }
+    
+    /**
+     * Проверява дали списъчна заявка трябва да се изпълни във всички филиали
+     * @return true, ако има филиали и нишката не е насочена към конкретен
+     */
+    static boolean scatters() {
+        return isSharded() && BOUND.get() == null;
+    }
+    
+    /**
+     * Изпълнява действие с връзки към базата на даден филиал
+     * @param branch номерът на филиала
+     * @param action действието
+     * @return резултатът от действието
+     */
+    static <T> T on(int branch, Supplier<T> action) {
+        Integer previous = BOUND.get();
+        BOUND.set(branch);
+        try {
+            return action.get();
+        } finally {
+            if (previous != null) {
+                BOUND.set(previous);
+            } else {
+                BOUND.remove();
+            }
+        }
+    }
+    
+    /**
+     * Изпълнява заявка паралелно във всички филиали. Отметката за грешка в
+     * базата данни от всеки филиал се пренася в извикващата нишка.
+     * @param action заявката; получава номера на филиала
+     * @return резултатите, подредени по номер на филиала
+     */
+    static <T> List<T> scatter(IntFunction<T> action) {
+        int count = BRANCHES.size();
+        List<T> results = new ArrayList<>(count);
+        if (count == 1) {
+            results.add(on(MAIN, () -> action.apply(MAIN)));
+            return results;
+        }
+        
+        SCATTERS.increment();
+        long start = SCATTER_TIME.start();
+        try {
+            List<Future<Object[]>> futures = new ArrayList<>(count);
+            for (int branch = 1; branch < count; branch++) {
+                int b = branch;
+                futures.add(getExecutor().submit(() -> runOn(b, action)));
+            }
+            
+            // Основният филиал се обслужва от текущата нишка
+            Object[] main = runOn(MAIN, action);
+            collect(results, main);
+            for (Future<Object[]> future : futures) {
+                try {
+                    collect(results, future.get());
+                } catch (ExecutionException e) {
+                    DaoLog.warn("Грешка при заявка към филиал: " + e.getCause());
+                    DatabaseConnection.mergeFailure(1);
+                    results.add(null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    DatabaseConnection.mergeFailure(1);
+                    results.add(null);
+                }
+            }
+            return results;
+        } finally {
+            SCATTER_TIME.stop(start);
+        }
+    }
+    
+    /**
+     * Изпълнява списъчна заявка във всички филиали и обединява резултатите
+     * @param query заявката за текущия филиал
+     * @return обединеният списък
+     */
+    static <T> List<T> gather(Supplier<List<T>> query) {
+        return gather(query, null);
+    }
+    
+    /**
+     * Изпълнява списъчна заявка във всички филиали и обединява резултатите
+     * @param query заявката за текущия филиал
+     * @param order подредба на обединения списък (null - по филиали)
+     * @return обединеният списък
+     */
+    static <T> List<T> gather(Supplier<List<T>> query, Comparator<? super T> order) {
+        List<T> merged = new ArrayList<>();
+        for (List<T> part : scatter(branch -> query.get())) {
+            if (part != null) {
+                merged.addAll(part);
+            }
+        }
+        if (order != null) {
+            merged.sort(order);
+        }
+        return merged;
+    }
+    
+    /**
+     * Изпълнява броене във всички филиали и сумира резултатите.
+     * Филиал с грешка не се включва, а грешката остава отбелязана в нишката.
+     * @param query броенето за текущия филиал
+     * @return сумата
+     */
+    static int sum(Supplier<Integer> query) {
+        int total = 0;
+        for (Integer part : scatter(branch -> query.get())) {
+            if (part != null) {
+                total += part;
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Разделя ID-та по филиали, като запазва реда им
+     * @param ids ID-тата
+     * @return ID-тата на всеки филиал, подредени по номер на филиала
+     */
+    static Map<Integer, List<Integer>> groupByBranch(Collection<Integer> ids) {
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int id : ids) {
+            groups.computeIfAbsent(branchOf(id), b -> new ArrayList<>()).add(id);
+        }
+        return groups;
+    }
+    
+    /**
+     * Събира промените от всички филиали. Версията на клиента е общ курсор,
+     * зад който стоят версиите на всеки филиал; непознат курсор (напр. от
+     * предишно стартиране) води до пълно зареждане.
+     * @param since общият курсор, известен на клиента (0 за всичко)
+     * @param query заявката за промените след версия на текущия филиал
+     * @return обединените промени или null при грешка в някой филиал
+     */
+    static <T> ChangeSet<T> gatherChanges(long since, LongFunction<ChangeSet<T>> query) {
+        long[] from = since > 0 ? lookupCursor(since) : null;
+        boolean full = from == null;
+        long[] known = full ? new long[BRANCHES.size()] : from;
+        
+        List<ChangeSet<T>> parts = scatter(branch -> query.apply(known[branch]));
+        if (parts.contains(null)) {
+            return null;
+        }
+        
+        if (!full) {
+            for (ChangeSet<T> part : parts) {
+                if (part.isFull()) {
+                    // Някой филиал не познава версията си - клиентът презарежда всичко
+                    return gatherChanges(0, query);
+                }
+            }
+        }
+        
+        List<T> changed = new ArrayList<>();
+        List<Integer> deletedIds = new ArrayList<>();
+        long[] versions = new long[parts.size()];
+        boolean empty = true;
+        for (int branch = 0; branch < parts.size(); branch++) {
+            ChangeSet<T> part = parts.get(branch);
+            changed.addAll(part.getChanged());
+            deletedIds.addAll(part.getDeletedIds());
+            versions[branch] = part.getVersion();
+            empty &= part.isEmpty();
+        }
+        
+        if (full) {
+            return ChangeSet.full(changed, registerCursor(versions));
+        }
+        if (empty) {
+            return ChangeSet.empty(since);
+        }
+        return new ChangeSet<>(changed, deletedIds, registerCursor(versions));
+    }
+    
+    /**
+     * Връща URL на базата на филиал
+     * @param branch номерът на филиала
+     * @return адресът или null за основната база
+     */
+    static String getUrl(int branch) {
+        return BRANCHES.get(branch).url;
+    }
+    
+    static String getUser(int branch) {
+        return BRANCHES.get(branch).user;
+    }
+    
+    static String getPassword(int branch) {
+        return BRANCHES.get(branch).password;
+    }
+    
+    private static Object[] runOn(int branch, IntFunction<?> action) {
+        return on(branch, () -> {
+            int previous = DatabaseConnection.takeFailure();
+            Object result = action.apply(branch);
+            int failure = DatabaseConnection.takeFailure();
+            DatabaseConnection.mergeFailure(previous);
+            return new Object[] {result, failure};
+        });
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> void collect(List<T> results, Object[] outcome) {
+        results.add((T) outcome[0]);
+        DatabaseConnection.mergeFailure((Integer) outcome[1]);
+    }
+    
+    private static long registerCursor(long[] versions) {
+        long cursor = NEXT_CURSOR.incrementAndGet();
+        synchronized (CURSORS) {
+            CURSORS.put(cursor, versions);
+        }
+        return cursor;
+    }
+    
+    private static long[] lookupCursor(long cursor) {
+        synchronized (CURSORS) {
+            long[] versions = CURSORS.get(cursor);
+            return versions != null && versions.length == BRANCHES.size() ? versions : null;
+        }
+    }
+    
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(BRANCHES.size() - 1, r -> {
+                Thread t = new Thread(r, "shard-scatter");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+    
+    private static List<Branch> loadBranches() {
+        List<Branch> branches = new ArrayList<>();
+        branches.add(new Branch(System.getProperty("library.branch.0.name", "Централна"), null, null, null));
+        
+        for (int branch = 1; ; branch++) {
+            String prefix = "library.branch." + branch + ".";
+            String url = System.getProperty(prefix + "url");
+            if (url == null || url.trim().isEmpty()) {
+                break;
+            }
+            branches.add(new Branch(System.getProperty(prefix + "name", "Филиал " + branch), url.trim(),
+                    System.getProperty(prefix + "user", System.getProperty("library.db.user", "root")),
+                    System.getProperty(prefix + "password", System.getProperty("library.db.password", "password"))));
+        }
+        return branches;
+    }
+}
@@ -0,0 +1,172 @@
+package library.ui.main;
+
+import library.metrics.MetricsRegistry;
+import library.utils.AsyncLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Управлява стартирането на главния прозорец след вход. Данните, нужни на
+ * панелите, се зареждат паралелно във фонов режим веднага след входа, а самите
+ * панели се създават едва при първото им показване и вземат готовите данни
+ * с take. Етапите на стартирането се записват във времева линия, която се
+ * извежда в лога и като метрика library_startup_seconds.
+ *
+ * Настройки (системни свойства):
+ * library.startup.threads - брой нишки за предварително зареждане (по подразбиране 4)
+ * library.startup.prefetchMaxAgeMillis - след колко време предварително заредените
+ * данни се смятат за остарели и се зареждат наново (по подразбиране 30000)
+ */
+public class StartupOrchestrator {
+    
+    private static final int THREADS = Integer.getInteger("library.startup.threads", 4);
+    private static final long MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("library.startup.prefetchMaxAgeMillis", 30_000));
+    
+    private final long startNanos = System.nanoTime();
+    private final ExecutorService executor;
+    private final Map<String, Prefetch<?>> prefetched = new ConcurrentHashMap<>();
+    private final List<String> timeline = new ArrayList<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean windowShown;
+    private volatile boolean reported;
+    
+    /**
+     * Предварително зареждане и момента, в който е завършило
+     */
+    private static class Prefetch<T> {
+        final CompletableFuture<T> future;
+        volatile long completedNanos;
+        
+        Prefetch(CompletableFuture<T> future) {
+            this.future = future;
+        }
+    }
+    
+    /**
+     * Конструктор; началото на времевата линия е моментът на създаване
+     */
+    public StartupOrchestrator() {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "startup-prefetch-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Стартира зареждане на данни във фонов режим
+     * @param name име, под което данните се вземат с take
+     * @param loader зарежда данните
+     */
+    public <T> void prefetch(String name, Supplier<T> loader) {
+        pending.incrementAndGet();
+        Prefetch<T> prefetch = new Prefetch<>(new CompletableFuture<>());
+        prefetched.put(name, prefetch);
+        
+        executor.execute(() -> {
+            try {
+                prefetch.future.complete(loader.get());
+                mark("данни: " + name);
+            } catch (RuntimeException e) {
+                prefetch.future.completeExceptionally(e);
+            } finally {
+                prefetch.completedNanos = System.nanoTime();
+                if (pending.decrementAndGet() == 0) {
+                    mark("предварителното зареждане завърши");
+                    reportIfComplete();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Връща предварително заредените данни, като изчаква зареждането, ако още не е
+     * завършило. Данните се използват веднъж; ако не са заредени предварително,
+     * зареждането е неуспешно или данните са остарели, се извиква loader.
+     * @param name името на данните
+     * @param loader зарежда данните, ако няма готови
+     * @return данните
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T take(String name, Supplier<T> loader) {
+        Prefetch<?> prefetch = prefetched.remove(name);
+        if (prefetch != null) {
+            try {
+                Object value = prefetch.future.get();
+                if (System.nanoTime() - prefetch.completedNanos <= MAX_AGE_NANOS) {
+                    return (T) value;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                AsyncLogger.log(AsyncLogger.Level.WARN, "Неуспешно предварително зареждане на " + name,
+                        "StartupOrchestrator", "take", null, -1, String.valueOf(e.getCause()));
+            }
+        }
+        return loader.get();
+    }
+    
+    /**
+     * Записва етап от стартирането във времевата линия
+     * @param phase описание на етапа
+     */
+    public void mark(String phase) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        synchronized (timeline) {
+            timeline.add(String.format("+%d ms %s", TimeUnit.NANOSECONDS.toMillis(elapsedNanos), phase));
+        }
+        MetricsRegistry.getInstance()
+                .timer("library_startup_seconds", "Време от входа до етап на стартирането", "phase", phase)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Отбелязва, че главният прозорец е показан
+     */
+    public void windowShown() {
+        mark("прозорецът е показан");
+        windowShown = true;
+        reportIfComplete();
+    }
+    
+    /**
+     * Връща записаните етапи на стартирането
+     * @return етапите по реда на записване
+     */
+    public List<String> getTimeline() {
+        synchronized (timeline) {
+            return new ArrayList<>(timeline);
+        }
+    }
+    
+    /**
+     * Спира фоновите нишки; незавършените зареждания се прекъсват
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        prefetched.clear();
+    }
+    
+    /**
+     * Извежда времевата линия в лога, след като прозорецът е показан и всички данни са заредени
+     */
+    private synchronized void reportIfComplete() {
+        if (reported || !windowShown || pending.get() > 0) {
+            return;
+        }
+        reported = true;
+        AsyncLogger.log(AsyncLogger.Level.INFO, "Стартиране: " + String.join("; ", getTimeline()));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,83 @@
+package library.ui.main.panels;
+
+import javax.swing.table.DefaultTableModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Прилага промени (ChangeSet) към таблица, чиято първа колона е ID на реда.
+ * Променят се само засегнатите клетки, така че избраният ред, сортирането
+ * и позицията на превъртане се запазват.
+ */
+final class TableDelta {
+    
+    private TableDelta() {
+    }
+    
+    /**
+     * Прилага промените към модела на таблицата
+     * @param model моделът на таблицата
+     * @param rows добавените или променените редове; първата стойност е ID
+     * @param deletedIds ID-та на изтритите редове
+     * @param reload true, ако редовете заменят изцяло съдържанието на таблицата
+     * @param prepend true, ако новите редове се добавят в началото (най-новите отгоре)
+     */
+    static void apply(DefaultTableModel model, List<Object[]> rows, Collection<Integer> deletedIds,
+                      boolean reload, boolean prepend) {
+        if (reload) {
+            model.setRowCount(0);
+            for (Object[] values : rows) {
+                model.addRow(values);
+            }
+            return;
+        }
+        
+        // Премахване на изтритите редове
+        if (!deletedIds.isEmpty()) {
+            Set<Integer> deleted = new HashSet<>(deletedIds);
+            for (int row = model.getRowCount() - 1; row >= 0; row--) {
+                if (deleted.contains((Integer) model.getValueAt(row, 0))) {
+                    model.removeRow(row);
+                }
+            }
+        }
+        
+        Map<Integer, Integer> rowById = new HashMap<>();
+        for (int row = 0; row < model.getRowCount(); row++) {
+            rowById.put((Integer) model.getValueAt(row, 0), row);
+        }
+        
+        // Обновяване на съществуващите редове
+        List<Object[]> added = new ArrayList<>();
+        for (Object[] values : rows) {
+            Integer row = rowById.get((Integer) values[0]);
+            if (row == null) {
+                added.add(values);
+                continue;
+            }
+            
+            for (int column = 1; column < values.length; column++) {
+                Object current = model.getValueAt(row, column);
+                if (current == null ? values[column] != null : !current.equals(values[column])) {
+                    model.setValueAt(values[column], row, column);
+                }
+            }
+        }
+        
+        // Добавяне на новите редове, като се запазва подредбата им
+        if (prepend) {
+            for (int i = added.size() - 1; i >= 0; i--) {
+                model.insertRow(0, added.get(i));
+            }
+        } else {
+            for (Object[] values : added) {
+                model.addRow(values);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,73 @@
+package library.utils;
+
+import java.text.Normalizer;
+
+/**
+ * Привежда текст до вид, удобен за търсене: малки латински букви и цифри,
+ * разделени с по един интервал. Кирилицата се транслитерира по обтекаемата
+ * система (както в закона за транслитерацията), а диакритичните знаци на
+ * латинските букви се премахват, така че "Вазов", "Vazov" и "VÁZOV" имат
+ * еднакъв вид.
+ */
+public class TextNormalizer {
+    
+    // Транслитерация на малките кирилски букви от 'а' (U+0430) до 'я' (U+044F)
+    private static final String[] CYRILLIC = {
+            "a", "b", "v", "g", "d", "e", "zh", "z", "i", "y", "k", "l", "m", "n", "o", "p",
+            "r", "s", "t", "u", "f", "h", "ts", "ch", "sh", "sht", "a", "y", "y", "e", "yu", "ya"
+    };
+    
+    private TextNormalizer() {
+    }
+    
+    /**
+     * Нормализира текст за търсене
+     * @param text текстът
+     * @return нормализираният текст (празен низ за null)
+     */
+    public static String normalize(String text) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+        
+        StringBuilder result = new StringBuilder(text.length() + 8);
+        boolean separator = true;
+        
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            int before = result.length();
+            
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                result.append(c);
+            } else if (c >= 'а' && c <= 'я') {
+                // Кирилицата се транслитерира преди разлагането, за да не стане 'й' на 'и'
+                result.append(CYRILLIC[c - 'а']);
+            } else if (c == 'ё') {
+                result.append('e');
+            } else if (c > 0x7F && Character.isLetter(c)) {
+                // Латинска буква с диакритичен знак (é -> e + ´) - запазва се само основата
+                String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+                for (int j = 0; j < decomposed.length(); j++) {
+                    char base = decomposed.charAt(j);
+                    if (base >= 'a' && base <= 'z') {
+                        result.append(base);
+                    }
+                }
+            }
+            
+            if (result.length() > before) {
+                separator = false;
+            } else if (!separator) {
+                // Всичко останало (интервали, препинателни знаци) разделя думите
+                result.append(' ');
+                separator = true;
+            }
+        }
+        
+        int length = result.length();
+        if (length > 0 && result.charAt(length - 1) == ' ') {
+            result.setLength(length - 1);
+        }
+        return result.toString();
+    }
+}
\ No newline at end of file
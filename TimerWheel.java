@@ -0,0 +1,121 @@
+package library.utils;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Хеширано колело от таймери (hashed timer wheel) за голям брой отложени задачи
+ * с груба точност - напр. изтичане на запазвания. Добавянето и отмяната са O(1),
+ * а на всеки тик се обхожда само един слот от колелото.
+ */
+public class TimerWheel {
+    
+    private final long tickMillis;
+    private final ConcurrentLinkedQueue<Timeout>[] wheel;
+    private final ScheduledExecutorService ticker;
+    private volatile long tick;
+    private final long startTime;
+    
+    /**
+     * Конструктор; тиковете започват веднага, така че номерът на тика
+     * съответства на изминалото време от създаването на колелото
+     * @param tickDuration продължителност на един тик
+     * @param unit мерна единица на продължителността
+     * @param slots брой слотове в колелото
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickDuration, TimeUnit unit, int slots) {
+        this.tickMillis = Math.max(1, unit.toMillis(tickDuration));
+        this.wheel = new ConcurrentLinkedQueue[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "timer-wheel");
+            t.setDaemon(true);
+            return t;
+        });
+        this.startTime = System.currentTimeMillis();
+        ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Планира изпълнение на задача след зададено време
+     * @param task задачата за изпълнение
+     * @param delay забавяне
+     * @param unit мерна единица на забавянето
+     * @return обект, чрез който задачата може да бъде отменена
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.currentTimeMillis() + Math.max(0, unit.toMillis(delay));
+        long current = tick;
+        // Слотът на текущия тик може вече да е обходен - най-рано следващият тик,
+        // иначе задачата би чакала цяла обиколка на колелото
+        long targetTick = Math.max(current + 1, (deadline - startTime + tickMillis - 1) / tickMillis);
+        long ticksAhead = targetTick - current;
+        
+        Timeout timeout = new Timeout(task, ticksAhead / wheel.length);
+        wheel[(int) (targetTick % wheel.length)].add(timeout);
+        return timeout;
+    }
+    
+    /**
+     * Спира колелото; неизпълнените задачи се изоставят
+     */
+    public void stop() {
+        ticker.shutdownNow();
+    }
+    
+    /**
+     * Обработва текущия слот и придвижва колелото с един тик
+     */
+    private void advance() {
+        ConcurrentLinkedQueue<Timeout> slot = wheel[(int) (tick % wheel.length)];
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    AsyncLogger.log(AsyncLogger.Level.ERROR, "Грешка при изпълнение на отложена задача",
+                            "TimerWheel", "advance", null, -1, e.toString());
+                }
+            }
+        }
+        tick++;
+    }
+    
+    /**
+     * Планирана задача в колелото
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+        
+        private Timeout(Runnable task, long remainingRounds) {
+            this.task = task;
+            this.remainingRounds = remainingRounds;
+        }
+        
+        /**
+         * Отменя задачата, ако все още не е изпълнена
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
\ No newline at end of file
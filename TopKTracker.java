@@ -0,0 +1,91 @@
+package library.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ограничена структура, която поддържа K-те идентификатора с най-голям брояч.
+ * Броячите само нарастват, затова при всяко увеличение е достатъчно да се
+ * провери дали елементът влиза в топ K - O(K) на операция без пълно сортиране.
+ */
+public class TopKTracker {
+    
+    private final int capacity;
+    private final int[] ids;
+    private final long[] counts;
+    private int size;
+    
+    /**
+     * Конструктор
+     * @param capacity максимален брой елементи (K)
+     */
+    public TopKTracker(int capacity) {
+        this.capacity = capacity;
+        this.ids = new int[capacity];
+        this.counts = new long[capacity];
+    }
+    
+    /**
+     * Отразява новата стойност на брояча за даден идентификатор
+     * @param id идентификатор
+     * @param count новата (увеличена) стойност на брояча
+     */
+    public synchronized void update(int id, long count) {
+        int pos = indexOf(id);
+        
+        if (pos < 0) {
+            if (size < capacity) {
+                pos = size++;
+            } else if (count > counts[size - 1]) {
+                pos = size - 1;
+            } else {
+                return;
+            }
+            ids[pos] = id;
+        }
+        counts[pos] = count;
+        
+        // Придвижване нагоре, докато масивът е подреден низходящо
+        while (pos > 0 && counts[pos - 1] < counts[pos]) {
+            swap(pos - 1, pos);
+            pos--;
+        }
+    }
+    
+    /**
+     * Изчиства всички елементи
+     */
+    public synchronized void clear() {
+        size = 0;
+    }
+    
+    /**
+     * Връща елементите, подредени по брояч в низходящ ред
+     * @return списък от двойки {id, брой}
+     */
+    public synchronized List<long[]> snapshot() {
+        List<long[]> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new long[] {ids[i], counts[i]});
+        }
+        return result;
+    }
+    
+    private int indexOf(int id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        long count = counts[a];
+        counts[a] = counts[b];
+        counts[b] = count;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,367 @@
+package library.dao;
+
+import library.model.BookTransfer;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DAO клас за прехвърляне на книги между филиали чрез изходяща опашка (outbox).
+ * Прехвърлянето минава през три локални транзакции, всяка в една база:
+ * изпращащият филиал маркира книгата "в транзит" и записва прехвърлянето в
+ * transfer_outbox; приемащият добавя книгата (и запазване за читателя) заедно с
+ * отметка в transfer_inbox, която прави повторната доставка безопасна; накрая
+ * изпращащият премахва своето копие и отбелязва прехвърлянето като доставено.
+ * Прекъсване между стъпките само забавя прехвърлянето - следващото изпълнение
+ * на TransferRelay го довършва. Таблиците се създават от V6__branch_transfers.sql.
+ */
+public class TransferDAO {
+    
+    private BookDAO bookDAO;
+    private HoldDAO holdDAO;
+    
+    /**
+     * Конструктор
+     * @param bookDAO DAO за книги, чрез което се променя наличността
+     * @param holdDAO DAO за запазвания
+     */
+    public TransferDAO(BookDAO bookDAO, HoldDAO holdDAO) {
+        this.bookDAO = bookDAO;
+        this.holdDAO = holdDAO;
+    }
+    
+    /**
+     * Започва прехвърляне: книгата става "в транзит" и прехвърлянето се записва
+     * в изходящата опашка на нейния филиал в една транзакция
+     * @param transfer книгата, приемащият филиал и читателят (по желание)
+     * @return ID на прехвърлянето или -1 при неуспех
+     */
+    public int requestTransfer(BookTransfer transfer) {
+        if (ShardRouter.routes(transfer.getBookId())) {
+            return ShardRouter.on(ShardRouter.branchOf(transfer.getBookId()), () -> requestTransfer(transfer));
+        }
+        String selectSql = "SELECT title, author, genre, availability FROM books WHERE book_id = ? FOR UPDATE";
+        String insertSql = "INSERT INTO transfer_outbox (book_id, target_branch, user_id, title, author, genre, created_at, status) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, 'изчаква')";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            pstmt = conn.prepareStatement(selectSql);
+            pstmt.setInt(1, transfer.getBookId());
+            rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                conn.rollback();
+                DaoLog.warn("Книгата за прехвърляне не съществува");
+                return -1;
+            }
+            transfer.setTitle(rs.getString("title"));
+            transfer.setAuthor(rs.getString("author"));
+            transfer.setGenre(rs.getString("genre"));
+            String availability = rs.getString("availability");
+            rs.close();
+            rs = null;
+            pstmt.close();
+            pstmt = null;
+            
+            // Само налична книга без чакащи читатели напуска филиала
+            if (!"налична".equals(availability)
+                    || !holdDAO.getBooksWithWaitingHolds(conn, Collections.singletonList(transfer.getBookId())).isEmpty()) {
+                conn.rollback();
+                DaoLog.warn("Книгата не е налична за прехвърляне");
+                return -1;
+            }
+            
+            bookDAO.updateBookAvailability(conn, transfer.getBookId(), "в транзит");
+            
+            pstmt = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS);
+            pstmt.setInt(1, transfer.getBookId());
+            pstmt.setInt(2, transfer.getTargetBranch());
+            if (transfer.getUserId() > 0) {
+                pstmt.setInt(3, transfer.getUserId());
+            } else {
+                pstmt.setNull(3, Types.INTEGER);
+            }
+            pstmt.setString(4, transfer.getTitle());
+            pstmt.setString(5, transfer.getAuthor());
+            pstmt.setString(6, transfer.getGenre());
+            pstmt.setTimestamp(7, new Timestamp(transfer.getCreatedAt().getTime()));
+            pstmt.executeUpdate();
+            
+            rs = pstmt.getGeneratedKeys();
+            if (!rs.next()) {
+                throw new SQLException("Записването на прехвърляне не бе успешно, не е генериран ID");
+            }
+            int transferId = rs.getInt(1);
+            
+            conn.commit();
+            transfer.setTransferId(transferId);
+            transfer.setSourceBranch(ShardRouter.currentBranch());
+            return transferId;
+        } catch (SQLException e) {
+            rollback(conn);
+            DaoLog.error("Грешка при започване на прехвърляне на книга", e);
+            return -1;
+        } finally {
+            restoreAutoCommit(conn);
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Връща недоставените прехвърляния от изходящите опашки на всички филиали
+     * @return списък с прехвърляния, подреден по филиал и ID
+     */
+    public List<BookTransfer> getPendingTransfers() {
+        if (ShardRouter.scatters()) {
+            return ShardRouter.gather(this::getPendingTransfers);
+        }
+        String sql = "SELECT * FROM transfer_outbox WHERE status = 'изчаква' ORDER BY transfer_id";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        List<BookTransfer> transfers = new ArrayList<>();
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                transfers.add(extractTransferFromResultSet(rs));
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при извличане на недоставените прехвърляния", e);
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+        
+        return transfers;
+    }
+    
+    /**
+     * Доставя прехвърляне в приемащия филиал: добавя книгата и, ако е за читател,
+     * запазване, назначено на него. Повторната доставка връща вече добавената книга.
+     * @param transfer прехвърлянето
+     * @return ID на книгата в приемащия филиал или -1 при неуспех
+     */
+    public int deliverTransfer(BookTransfer transfer) {
+        if (ShardRouter.currentBranch() != transfer.getTargetBranch()) {
+            return ShardRouter.on(transfer.getTargetBranch(), () -> deliverTransfer(transfer));
+        }
+        String inboxSql = "SELECT book_id FROM transfer_inbox WHERE source_branch = ? AND transfer_id = ?";
+        String bookSql = "INSERT INTO books (title, author, genre, availability, row_version) VALUES (?, ?, ?, 'налична', ?)";
+        String holdSql = "INSERT INTO holds (book_id, user_id, created_at, expires_at, status) VALUES (?, ?, ?, NULL, 'чакаща')";
+        String receivedSql = "INSERT INTO transfer_inbox (source_branch, transfer_id, book_id, received_at) VALUES (?, ?, ?, ?)";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            pstmt = conn.prepareStatement(inboxSql);
+            pstmt.setInt(1, transfer.getSourceBranch());
+            pstmt.setInt(2, transfer.getTransferId());
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                // Вече доставено - изпращащият филиал не е успял да го отбележи
+                int bookId = rs.getInt(1);
+                conn.commit();
+                return bookId;
+            }
+            rs.close();
+            rs = null;
+            pstmt.close();
+            
+            pstmt = conn.prepareStatement(bookSql, Statement.RETURN_GENERATED_KEYS);
+            pstmt.setString(1, transfer.getTitle());
+            pstmt.setString(2, transfer.getAuthor());
+            pstmt.setString(3, transfer.getGenre());
+            pstmt.setLong(4, ChangeTracker.nextVersion(conn));
+            pstmt.executeUpdate();
+            rs = pstmt.getGeneratedKeys();
+            if (!rs.next()) {
+                throw new SQLException("Добавянето на прехвърлена книга не бе успешно, не е генериран ID");
+            }
+            int bookId = rs.getInt(1);
+            rs.close();
+            rs = null;
+            pstmt.close();
+            
+            if (transfer.getUserId() > 0) {
+                pstmt = conn.prepareStatement(holdSql);
+                pstmt.setInt(1, bookId);
+                pstmt.setInt(2, transfer.getUserId());
+                pstmt.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+                pstmt.executeUpdate();
+                pstmt.close();
+                
+                holdDAO.assignNextHold(conn, bookId);
+                bookDAO.updateBookAvailability(conn, bookId, "запазена");
+            }
+            
+            pstmt = conn.prepareStatement(receivedSql);
+            pstmt.setInt(1, transfer.getSourceBranch());
+            pstmt.setInt(2, transfer.getTransferId());
+            pstmt.setInt(3, bookId);
+            pstmt.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            pstmt.executeUpdate();
+            
+            conn.commit();
+            return bookId;
+        } catch (SQLException e) {
+            rollback(conn);
+            DaoLog.error("Грешка при доставяне на прехвърлена книга", e);
+            return -1;
+        } finally {
+            restoreAutoCommit(conn);
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Завършва доставено прехвърляне в изпращащия филиал: книгата се изтрива, а ако
+     * има история на заемания, остава със статус "прехвърлена" - тогава за каталога
+     * тя е изтрита (надгробен запис) и не се показва в списъците и търсенето
+     * @param transfer прехвърлянето
+     * @param deliveredBookId ID на книгата в приемащия филиал
+     * @return true при успех (и ако прехвърлянето вече е завършено), false при неуспех
+     */
+    public boolean completeTransfer(BookTransfer transfer, int deliveredBookId) {
+        if (ShardRouter.currentBranch() != transfer.getSourceBranch()) {
+            return ShardRouter.on(transfer.getSourceBranch(), () -> completeTransfer(transfer, deliveredBookId));
+        }
+        String outboxSql = "UPDATE transfer_outbox SET status = 'доставена', delivered_book_id = ? WHERE transfer_id = ? AND status = 'изчаква'";
+        String historySql = "SELECT (SELECT COUNT(*) FROM loans WHERE book_id = ?) + (SELECT COUNT(*) FROM loans_archive WHERE book_id = ?)";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection();
+            conn.setAutoCommit(false);
+            
+            pstmt = conn.prepareStatement(outboxSql);
+            pstmt.setInt(1, deliveredBookId);
+            pstmt.setInt(2, transfer.getTransferId());
+            if (pstmt.executeUpdate() == 0) {
+                conn.commit();
+                return true;
+            }
+            pstmt.close();
+            
+            pstmt = conn.prepareStatement(historySql);
+            pstmt.setInt(1, transfer.getBookId());
+            pstmt.setInt(2, transfer.getBookId());
+            rs = pstmt.executeQuery();
+            boolean hasHistory = rs.next() && rs.getInt(1) > 0;
+            rs.close();
+            rs = null;
+            pstmt.close();
+            
+            if (hasHistory) {
+                bookDAO.updateBookAvailability(conn, transfer.getBookId(), BookDAO.TRANSFERRED);
+                ChangeTracker.addTombstones(conn, ChangeTracker.BOOKS, Collections.singletonList(transfer.getBookId()),
+                        ChangeTracker.nextVersion(conn));
+            } else {
+                pstmt = conn.prepareStatement("DELETE FROM books WHERE book_id = ?");
+                pstmt.setInt(1, transfer.getBookId());
+                if (pstmt.executeUpdate() > 0) {
+                    ChangeTracker.addTombstones(conn, ChangeTracker.BOOKS, Collections.singletonList(transfer.getBookId()),
+                            ChangeTracker.nextVersion(conn));
+                }
+            }
+            
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            rollback(conn);
+            DaoLog.error("Грешка при завършване на прехвърляне на книга", e);
+            return false;
+        } finally {
+            restoreAutoCommit(conn);
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Извлича прехвърляне от ResultSet обект; изпращащият филиал е текущият
+     * @param rs ResultSet обект
+     * @return извлеченото прехвърляне
+     * @throws SQLException при грешка в извличането
+     */
+    private BookTransfer extractTransferFromResultSet(ResultSet rs) throws SQLException {
+        BookTransfer transfer = new BookTransfer();
+        transfer.setTransferId(rs.getInt("transfer_id"));
+        transfer.setSourceBranch(ShardRouter.currentBranch());
+        transfer.setBookId(rs.getInt("book_id"));
+        transfer.setTargetBranch(rs.getInt("target_branch"));
+        transfer.setUserId(rs.getInt("user_id"));
+        transfer.setTitle(rs.getString("title"));
+        transfer.setAuthor(rs.getString("author"));
+        transfer.setGenre(rs.getString("genre"));
+        transfer.setCreatedAt(rs.getTimestamp("created_at"));
+        transfer.setStatus(rs.getString("status"));
+        transfer.setDeliveredBookId(rs.getInt("delivered_book_id"));
+        return transfer;
+    }
+    
+    /**
+     * Отменя текущата транзакция, ако има такава
+     * @param conn Connection обект
+     */
+    private void rollback(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.rollback();
+            }
+        } catch (SQLException ex) {
+            DaoLog.error("Грешка при rollback", ex);
+        }
+    }
+    
+    /**
+     * Възстановява autoCommit режима на връзката
+     * @param conn Connection обект
+     */
+    private void restoreAutoCommit(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при възстановяване на autoCommit", e);
+        }
+    }
+    
+    /**
+     * Затваря ресурсите за връзка с базата данни
+     * @param conn Connection обект
+     * @param pstmt PreparedStatement обект
+     * @param rs ResultSet обект
+     */
+    private void closeResources(Connection conn, PreparedStatement pstmt, ResultSet rs) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при затваряне на ресурсите", e);
+        }
+    }
+}
\ No newline at end of file
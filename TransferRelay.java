@@ -0,0 +1,114 @@
+package library.service;
+
+import library.dao.ShardRouter;
+import library.dao.TransferDAO;
+import library.metrics.MetricsRegistry;
+import library.model.AuditEvent;
+import library.model.Book;
+import library.model.BookTransfer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Доставя прехвърлянията на книги между филиали от изходящите опашки
+ * (transfer_outbox) на всички филиали. Всяка стъпка е идемпотентна, затова
+ * прехвърляне, прекъснато от грешка или спиране на приложението, просто се
+ * довършва при следващото изпълнение. Работи само при зададени филиали.
+ *
+ * Настройки (системни свойства):
+ * library.transfer.relayMillis - интервал между проверките (по подразбиране 5000)
+ */
+public class TransferRelay {
+    
+    private static final MetricsRegistry.Counter DELIVERED = MetricsRegistry.getInstance()
+            .counter("library_branch_transfers_total", "Доставени прехвърляния на книги между филиали");
+    private static final MetricsRegistry.Counter FAILED = MetricsRegistry.getInstance()
+            .counter("library_branch_transfer_failures_total", "Неуспешни опити за доставяне на прехвърляне");
+    
+    private static final TransferRelay INSTANCE = new TransferRelay();
+    
+    private final TransferDAO transferDAO;
+    private final long relayMillis;
+    private ScheduledExecutorService scheduler;
+    
+    /**
+     * Конструктор
+     */
+    private TransferRelay() {
+        this.transferDAO = ServiceRegistry.getInstance().getTransferDAO();
+        this.relayMillis = Math.max(100, Long.getLong("library.transfer.relayMillis", 5000L));
+    }
+    
+    /**
+     * Връща споделения доставчик на прехвърляния
+     * @return инстанцията
+     */
+    public static TransferRelay getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Стартира периодичното доставяне във фонов режим
+     */
+    public synchronized void start() {
+        if (scheduler != null || !ShardRouter.isSharded()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "branch-transfers");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::relayNow, relayMillis, relayMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Спира периодичното доставяне
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    /**
+     * Поръчва доставяне веднага (напр. след ново прехвърляне), без да чака интервала
+     */
+    public synchronized void wakeUp() {
+        if (scheduler != null) {
+            scheduler.execute(this::relayNow);
+        }
+    }
+    
+    /**
+     * Доставя всички чакащи прехвърляния
+     * @return брой доставени прехвърляния
+     */
+    public int relayNow() {
+        int delivered = 0;
+        for (BookTransfer transfer : transferDAO.getPendingTransfers()) {
+            int bookId = transferDAO.deliverTransfer(transfer);
+            if (bookId <= 0 || !transferDAO.completeTransfer(transfer, bookId)) {
+                FAILED.increment();
+                continue;
+            }
+            
+            delivered++;
+            DELIVERED.increment();
+            AutocompleteService.getInstance().remove(transfer.getBookId());
+            AutocompleteService.getInstance().put(new Book(bookId, transfer.getTitle(), transfer.getAuthor(),
+                    transfer.getGenre(), transfer.getUserId() > 0 ? "запазена" : "налична"));
+            AuditLog.record(AuditEvent.BOOK, transfer.getBookId(), "прехвърляне",
+                    ShardRouter.getBranchName(transfer.getSourceBranch()) + " -> "
+                            + ShardRouter.getBranchName(transfer.getTargetBranch()) + ", нов ID " + bookId);
+            if (transfer.getUserId() > 0) {
+                // Запазването за читателя е назначено - пускаме таймера за изтичането му
+                HoldQueue.getInstance().reload(bookId);
+            }
+        }
+        return delivered;
+    }
+}
\ No newline at end of file
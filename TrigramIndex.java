@@ -0,0 +1,311 @@
+package library.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Неизменим индекс по триграми за размито търсене. Текстовете се нормализират
+ * с {@link TextNormalizer}, така че "Vazov" намира "Вазов", а правописна грешка
+ * засяга само няколко от триграмите на заявката.
+ * Списъците с документи за всяка триграма са в два плоски масива (отмествания и
+ * номера на документи във възходящ ред), без обект за всеки запис, което позволява
+ * индекс за милион заглавия да заема няколко десетки мегабайта.
+ */
+public class TrigramIndex {
+    
+    // Интервал, a-z и 0-9 - всичко, което остава след нормализирането
+    private static final int ALPHABET = 37;
+    private static final int TRIGRAMS = ALPHABET * ALPHABET * ALPHABET;
+    
+    private static final Comparator<Match> RANKING = Comparator
+            .comparingDouble(Match::getScore)
+            .thenComparingDouble(Match::getSimilarity)
+            .thenComparing(Comparator.comparingInt(Match::getId).reversed());
+    
+    private final int[] ids;
+    private final short[] docTrigrams;
+    private final int[] offsets;
+    private final int[] postings;
+    
+    // Работни масиви за търсенето, по един комплект за всяка нишка
+    private final ThreadLocal<Scratch> scratch;
+    
+    private TrigramIndex(int[] ids, short[] docTrigrams, int[] offsets, int[] postings) {
+        this.ids = ids;
+        this.docTrigrams = docTrigrams;
+        this.offsets = offsets;
+        this.postings = postings;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(ids.length));
+    }
+    
+    /**
+     * Построява индекс
+     * @param ids идентификаторите на документите
+     * @param texts текстовете им (в същия ред)
+     * @return индексът
+     */
+    public static TrigramIndex build(int[] ids, String[] texts) {
+        int count = ids.length;
+        
+        // Нормализирането е най-скъпата част и се извършва паралелно
+        String[] normalized = new String[count];
+        IntStream.range(0, count).parallel()
+                .forEach(i -> normalized[i] = " " + TextNormalizer.normalize(texts[i]) + " ");
+        
+        // Първо преминаване - брой документи за всяка триграма
+        short[] docTrigrams = new short[count];
+        int[] offsets = new int[TRIGRAMS + 1];
+        int[] buffer = new int[64];
+        for (int doc = 0; doc < count; doc++) {
+            buffer = trigrams(normalized[doc], buffer);
+            int distinct = distinct(buffer, normalized[doc].length() - 2);
+            docTrigrams[doc] = (short) Math.min(distinct, Short.MAX_VALUE);
+            for (int i = 0; i < distinct; i++) {
+                offsets[buffer[i] + 1]++;
+            }
+        }
+        for (int t = 0; t < TRIGRAMS; t++) {
+            offsets[t + 1] += offsets[t];
+        }
+        
+        // Второ преминаване - попълване; документите се добавят по ред, затова списъците са подредени
+        int[] postings = new int[offsets[TRIGRAMS]];
+        int[] next = Arrays.copyOf(offsets, TRIGRAMS);
+        for (int doc = 0; doc < count; doc++) {
+            buffer = trigrams(normalized[doc], buffer);
+            int distinct = distinct(buffer, normalized[doc].length() - 2);
+            for (int i = 0; i < distinct; i++) {
+                postings[next[buffer[i]]++] = doc;
+            }
+        }
+        
+        return new TrigramIndex(ids.clone(), docTrigrams, offsets, postings);
+    }
+    
+    /**
+     * Връща броя на документите в индекса
+     * @return брой документи
+     */
+    public int size() {
+        return ids.length;
+    }
+    
+    /**
+     * Търси документите, които съдържат поне половината от триграмите на заявката
+     * @param query заявката
+     * @param limit максимален брой резултати
+     * @return най-добрите съвпадения, подредени по намаляваща прилика
+     */
+    public List<Match> search(String query, int limit) {
+        return search(query, limit, 0.5);
+    }
+    
+    /**
+     * Търси документите, които съдържат поне дадена част от триграмите на заявката.
+     * Заявката се допълва с интервал само отпред, така че недописаната последна дума
+     * съвпада с началото на думите в текста.
+     * @param query заявката
+     * @param limit максимален брой резултати
+     * @param minScore минималната част от триграмите на заявката (от 0 до 1)
+     * @return най-добрите съвпадения, подредени по намаляваща прилика
+     */
+    public List<Match> search(String query, int limit, double minScore) {
+        String text = " " + TextNormalizer.normalize(query);
+        if (text.length() < 3 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        
+        int[] grams = trigrams(text, new int[text.length()]);
+        int queryTrigrams = distinct(grams, text.length() - 2);
+        int required = Math.max(1, (int) Math.ceil(minScore * queryTrigrams - 1e-9));
+        
+        // Най-редките триграми първо - те дават най-малко кандидати
+        Integer[] order = new Integer[queryTrigrams];
+        for (int i = 0; i < queryTrigrams; i++) {
+            order[i] = grams[i];
+        }
+        Arrays.sort(order, Comparator.comparingInt(this::postingCount));
+        
+        Scratch work = scratch.get();
+        int[] hits = work.hits;
+        int[] touched = work.touched;
+        int touchedCount = 0;
+        
+        try {
+            // Документ с поне required съвпадения присъства в някой от първите
+            // (queryTrigrams - required + 1) списъка, затова само те пораждат кандидати
+            int generating = queryTrigrams - required + 1;
+            for (int k = 0; k < generating; k++) {
+                int gram = order[k];
+                for (int p = offsets[gram]; p < offsets[gram + 1]; p++) {
+                    int doc = postings[p];
+                    if (hits[doc]++ == 0) {
+                        touched[touchedCount++] = doc;
+                    }
+                }
+            }
+            
+            // Останалите (по-чести) триграми само добавят съвпадения на вече намерените кандидати
+            for (int k = generating; k < queryTrigrams; k++) {
+                int gram = order[k];
+                int from = offsets[gram];
+                int to = offsets[gram + 1];
+                int remaining = queryTrigrams - k;
+                
+                if ((long) touchedCount * 20 < to - from) {
+                    for (int i = 0; i < touchedCount; i++) {
+                        int doc = touched[i];
+                        if (hits[doc] + remaining >= required
+                                && Arrays.binarySearch(postings, from, to, doc) >= 0) {
+                            hits[doc]++;
+                        }
+                    }
+                } else {
+                    for (int p = from; p < to; p++) {
+                        int doc = postings[p];
+                        if (hits[doc] > 0) {
+                            hits[doc]++;
+                        }
+                    }
+                }
+            }
+            
+            // Ограничена опашка с най-добрите limit съвпадения (най-слабото е на върха)
+            PriorityQueue<Match> best = new PriorityQueue<>(Math.min(limit, touchedCount) + 1, RANKING);
+            for (int i = 0; i < touchedCount; i++) {
+                int doc = touched[i];
+                int matched = hits[doc];
+                if (matched < required) {
+                    continue;
+                }
+                
+                double score = (double) matched / queryTrigrams;
+                double similarity = (double) matched / (queryTrigrams + docTrigrams[doc] - matched);
+                if (best.size() < limit) {
+                    best.add(new Match(ids[doc], score, similarity));
+                } else {
+                    Match weakest = best.peek();
+                    if (score > weakest.score || (score == weakest.score && similarity > weakest.similarity)) {
+                        best.poll();
+                        best.add(new Match(ids[doc], score, similarity));
+                    }
+                }
+            }
+            
+            List<Match> result = new ArrayList<>(best);
+            result.sort(RANKING.reversed());
+            return result;
+        } finally {
+            for (int i = 0; i < touchedCount; i++) {
+                hits[touched[i]] = 0;
+            }
+        }
+    }
+    
+    /**
+     * Връща броя на документите, съдържащи дадена триграма
+     */
+    private int postingCount(int gram) {
+        return offsets[gram + 1] - offsets[gram];
+    }
+    
+    /**
+     * Кодира триграмите на нормализиран текст
+     * @param text текстът
+     * @param buffer буфер за резултата (разширява се при нужда)
+     * @return буферът с кодовете на триграмите в началото
+     */
+    private static int[] trigrams(String text, int[] buffer) {
+        int count = Math.max(0, text.length() - 2);
+        if (buffer.length < count) {
+            buffer = new int[count * 2];
+        }
+        for (int i = 0; i < count; i++) {
+            buffer[i] = (symbol(text.charAt(i)) * ALPHABET + symbol(text.charAt(i + 1))) * ALPHABET
+                    + symbol(text.charAt(i + 2));
+        }
+        return buffer;
+    }
+    
+    /**
+     * Подрежда първите count кода и премахва повторенията
+     * @return броят на различните кодове
+     */
+    private static int distinct(int[] buffer, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        Arrays.sort(buffer, 0, count);
+        int distinct = 1;
+        for (int i = 1; i < count; i++) {
+            if (buffer[i] != buffer[distinct - 1]) {
+                buffer[distinct++] = buffer[i];
+            }
+        }
+        return distinct;
+    }
+    
+    private static int symbol(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 1;
+        }
+        if (c >= '0' && c <= '9') {
+            return c - '0' + 27;
+        }
+        return 0;
+    }
+    
+    /**
+     * Работни масиви за едно търсене
+     */
+    private static final class Scratch {
+        final int[] hits;
+        final int[] touched;
+        
+        Scratch(int size) {
+            hits = new int[size];
+            touched = new int[size];
+        }
+    }
+    
+    /**
+     * Резултат от търсенето
+     */
+    public static final class Match {
+        private final int id;
+        private final double score;
+        private final double similarity;
+        
+        Match(int id, double score, double similarity) {
+            this.id = id;
+            this.score = score;
+            this.similarity = similarity;
+        }
+        
+        /**
+         * @return идентификаторът на документа
+         */
+        public int getId() {
+            return id;
+        }
+        
+        /**
+         * @return частта от триграмите на заявката, които се срещат в документа
+         */
+        public double getScore() {
+            return score;
+        }
+        
+        /**
+         * @return приликата на Жакар между триграмите на заявката и на документа
+         */
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+}
\ No newline at end of file
@@ -9,6 +9,7 @@ public class User {
     private String email;
     private String password;
     private String role; // "потребител" или "администратор"
+    private long rowVersion; // версия на реда при зареждане, 0 ако не е известна
     
     /**
      * Конструктор по подразбиране
@@ -78,6 +79,14 @@ public class User {
         this.role = role;
     }
     
+    public long getRowVersion() {
+        return rowVersion;
+    }
+    
+    public void setRowVersion(long rowVersion) {
+        this.rowVersion = rowVersion;
+    }
+    
     @Override
     public String toString() {
         return "Потребител{" +
@@ -1,24 +1,40 @@
 package library.dao;
 
+import library.model.ChangeSet;
 import library.model.User;
 import library.utils.PasswordEncryptor;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
- * DAO клас за операции с потребители в базата данни
+ * DAO клас за операции с потребители в базата данни.
+ * Потребителите са общи за всички филиали и винаги са в основната база.
  */
 public class UserDAO {
     
+    // Максимален брой имейли или ID-та в една заявка с IN (...)
+    private static final int EMAIL_LOOKUP_CHUNK = 1000;
+    
+    // Резултати от обновяване с проверка на версията (updateUser)
+    public static final int UPDATE_FAILED = -1;
+    public static final int UPDATE_MISSING = 0;
+    public static final int UPDATE_APPLIED = 1;
+    public static final int UPDATE_CONFLICT = 2;
+    
     /**
      * Добавя нов потребител в базата данни
      * @param user потребителят, който трябва да бъде добавен
      * @return ID на добавения потребител или -1 при неуспех
      */
     public int addUser(User user) {
-        String sql = "INSERT INTO users (name, email, password, role) VALUES (?, ?, ?, ?)";
+        String sql = "INSERT INTO users (name, email, password, role, row_version) VALUES (?, ?, ?, ?, ?)";
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -27,12 +43,15 @@ public class UserDAO {
             // Хеширане на паролата преди съхранение
             String hashedPassword = PasswordEncryptor.encryptPassword(user.getPassword());
             
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+            conn.setAutoCommit(false);
+            
             pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
             pstmt.setString(1, user.getName());
             pstmt.setString(2, user.getEmail());
             pstmt.setString(3, hashedPassword);
             pstmt.setString(4, user.getRole());
+            pstmt.setLong(5, ChangeTracker.nextVersion(conn));
             
             int affectedRows = pstmt.executeUpdate();
             if (affectedRows == 0) {
@@ -41,42 +60,148 @@ public class UserDAO {
             
             rs = pstmt.getGeneratedKeys();
             if (rs.next()) {
-                return rs.getInt(1);
+                int userId = rs.getInt(1);
+                conn.commit();
+                return userId;
             } else {
                 throw new SQLException("Добавянето на потребител не бе успешно, не е генериран ID");
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при добавяне на потребител: " + e.getMessage());
+            rollback(conn);
+            DaoLog.error("Грешка при добавяне на потребител", e);
             return -1;
         } finally {
+            restoreAutoCommit(conn);
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
+    /**
+     * Добавя много потребители с пакетни заявки - по една транзакция на всеки
+     * batchSize потребители. Паролите трябва вече да са хеширани. Ако пакет се
+     * провали (напр. имейл, регистриран междувременно), потребителите от него
+     * се добавят поотделно, за да се открият само проблемните редове.
+     * @param users потребителите с хеширани пароли
+     * @param batchSize брой потребители в една транзакция
+     * @return ID на всеки добавен потребител (в същия ред) или -1 за неуспешните
+     */
+    public int[] addUsers(List<User> users, int batchSize) {
+        String sql = "INSERT INTO users (name, email, password, role, row_version) VALUES (?, ?, ?, ?, ?)";
+        int[] ids = new int[users.size()];
+        Arrays.fill(ids, -1);
+        
+        for (int from = 0; from < users.size(); from += batchSize) {
+            int to = Math.min(users.size(), from + batchSize);
+            if (!addUserBatch(sql, users, from, to, ids)) {
+                for (int i = from; i < to; i++) {
+                    addUserBatch(sql, users, i, i + 1, ids);
+                }
+            }
+        }
+        return ids;
+    }
+    
+    /**
+     * Добавя потребителите от from до to в една транзакция
+     * @return true при успех; при неуспех транзакцията е отменена
+     */
+    private boolean addUserBatch(String sql, List<User> users, int from, int to, int[] ids) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+            conn.setAutoCommit(false);
+            
+            // Всички редове от пакета получават една и съща версия
+            long version = ChangeTracker.nextVersion(conn);
+            pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            for (int i = from; i < to; i++) {
+                User user = users.get(i);
+                pstmt.setString(1, user.getName());
+                pstmt.setString(2, user.getEmail());
+                pstmt.setString(3, user.getPassword());
+                pstmt.setString(4, user.getRole());
+                pstmt.setLong(5, version);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            
+            rs = pstmt.getGeneratedKeys();
+            int i = from;
+            while (rs.next() && i < to) {
+                ids[i++] = rs.getInt(1);
+            }
+            if (i < to) {
+                throw new SQLException("Добавянето на потребители не бе успешно, не са генерирани всички ID");
+            }
+            
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            rollback(conn);
+            for (int i = from; i < to; i++) {
+                ids[i] = -1;
+            }
+            if (to - from == 1) {
+                DaoLog.error("Грешка при добавяне на потребител", e);
+            } else {
+                DaoLog.error("Грешка при пакетно добавяне на потребители", e);
+            }
+            return false;
+        } finally {
+            restoreAutoCommit(conn);
             closeResources(conn, pstmt, rs);
         }
     }
     
     /**
-     * Обновява информация за потребител в базата данни
+     * Обновява информация за потребител в базата данни.
+     * Ако потребителят носи версия (row_version от зареждането си), редът се
+     * обновява само докато версията в базата съвпада с нея; иначе се връща
+     * UPDATE_CONFLICT, без да се записва нищо. При успех се задава новата версия.
      * @param user потребителят с обновената информация
-     * @return true при успех, false при неуспех
+     * @return UPDATE_APPLIED, UPDATE_CONFLICT, UPDATE_MISSING или UPDATE_FAILED при грешка в базата
      */
-    public boolean updateUser(User user) {
-        String sql = "UPDATE users SET name = ?, email = ?, role = ? WHERE user_id = ?";
+    public int updateUser(User user) {
+        boolean versioned = user.getRowVersion() > 0;
+        String sql = "UPDATE users SET name = ?, email = ?, role = ?, row_version = ? WHERE user_id = ?"
+                + (versioned ? " AND row_version = ?" : "");
         Connection conn = null;
         PreparedStatement pstmt = null;
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+            conn.setAutoCommit(false);
+            
+            long version = ChangeTracker.nextVersion(conn);
             pstmt = conn.prepareStatement(sql);
             pstmt.setString(1, user.getName());
             pstmt.setString(2, user.getEmail());
             pstmt.setString(3, user.getRole());
-            pstmt.setInt(4, user.getUserId());
+            pstmt.setLong(4, version);
+            pstmt.setInt(5, user.getUserId());
+            if (versioned) {
+                pstmt.setLong(6, user.getRowVersion());
+            }
             
             int affectedRows = pstmt.executeUpdate();
-            return affectedRows > 0;
+            if (affectedRows == 0) {
+                // Различаваме изтрит потребител от потребител с по-нова версия
+                int result = versioned && userExists(conn, user.getUserId()) ? UPDATE_CONFLICT : UPDATE_MISSING;
+                conn.rollback();
+                return result;
+            }
+            conn.commit();
+            user.setRowVersion(version);
+            return UPDATE_APPLIED;
         } catch (SQLException e) {
-            System.err.println("Грешка при обновяване на потребител: " + e.getMessage());
-            return false;
+            rollback(conn);
+            DaoLog.error("Грешка при обновяване на потребител", e);
+            return UPDATE_FAILED;
         } finally {
+            restoreAutoCommit(conn);
             closeResources(conn, pstmt, null);
         }
     }
@@ -96,7 +221,7 @@ public class UserDAO {
             // Хеширане на новата парола преди съхранение
             String hashedPassword = PasswordEncryptor.encryptPassword(newPassword);
             
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
             pstmt = conn.prepareStatement(sql);
             pstmt.setString(1, hashedPassword);
             pstmt.setInt(2, userId);
@@ -104,7 +229,7 @@ public class UserDAO {
             int affectedRows = pstmt.executeUpdate();
             return affectedRows > 0;
         } catch (SQLException e) {
-            System.err.println("Грешка при обновяване на парола: " + e.getMessage());
+            DaoLog.error("Грешка при обновяване на парола", e);
             return false;
         } finally {
             closeResources(conn, pstmt, null);
@@ -112,7 +237,9 @@ public class UserDAO {
     }
     
     /**
-     * Изтрива потребител от базата данни
+     * Изтрива потребител от основната база. Заеманията и запазванията във
+     * филиалите не се изтриват каскадно - те се проверяват и премахват от
+     * UserService преди извикването.
      * @param userId ID на потребителя, който трябва да бъде изтрит
      * @return true при успех, false при неуспех
      */
@@ -122,16 +249,24 @@ public class UserDAO {
         PreparedStatement pstmt = null;
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+            conn.setAutoCommit(false);
+            
             pstmt = conn.prepareStatement(sql);
             pstmt.setInt(1, userId);
             
             int affectedRows = pstmt.executeUpdate();
+            if (affectedRows > 0) {
+                ChangeTracker.addTombstones(conn, ChangeTracker.USERS, Collections.singletonList(userId), ChangeTracker.nextVersion(conn));
+            }
+            conn.commit();
             return affectedRows > 0;
         } catch (SQLException e) {
-            System.err.println("Грешка при изтриване на потребител: " + e.getMessage());
+            rollback(conn);
+            DaoLog.error("Грешка при изтриване на потребител", e);
             return false;
         } finally {
+            restoreAutoCommit(conn);
             closeResources(conn, pstmt, null);
         }
     }
@@ -148,7 +283,7 @@ public class UserDAO {
         ResultSet rs = null;
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
             pstmt = conn.prepareStatement(sql);
             pstmt.setInt(1, userId);
             
@@ -157,7 +292,7 @@ public class UserDAO {
                 return extractUserFromResultSet(rs);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при търсене на потребител по ID: " + e.getMessage());
+            DaoLog.error("Грешка при търсене на потребител по ID", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -177,7 +312,7 @@ public class UserDAO {
         ResultSet rs = null;
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
             pstmt = conn.prepareStatement(sql);
             pstmt.setString(1, email);
             
@@ -186,7 +321,7 @@ public class UserDAO {
                 return extractUserFromResultSet(rs);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при търсене на потребител по email: " + e.getMessage());
+            DaoLog.error("Грешка при търсене на потребител по email", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -207,7 +342,7 @@ public class UserDAO {
         ResultSet rs = null;
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
             pstmt = conn.prepareStatement(sql);
             pstmt.setString(1, email);
             
@@ -220,7 +355,7 @@ public class UserDAO {
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при вход в системата: " + e.getMessage());
+            DaoLog.error("Грешка при вход в системата", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -241,7 +376,7 @@ public class UserDAO {
         List<User> users = new ArrayList<>();
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getReadConnection(ShardRouter.MAIN);
             pstmt = conn.prepareStatement(sql);
             
             rs = pstmt.executeQuery();
@@ -249,7 +384,7 @@ public class UserDAO {
                 users.add(extractUserFromResultSet(rs));
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при извличане на всички потребители: " + e.getMessage());
+            DaoLog.error("Грешка при извличане на всички потребители", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -257,6 +392,50 @@ public class UserDAO {
         return users;
     }
     
+    /**
+     * Връща потребителите, добавени, променени или изтрити след дадена версия
+     * @param since последната версия, известна на клиента (0 за всички потребители)
+     * @return промените или null при грешка
+     */
+    public ChangeSet<User> getUsersChangedSince(long since) {
+        String sql = "SELECT * FROM users WHERE row_version > ? AND row_version <= ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        
+        try {
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+            long upTo = ChangeTracker.currentVersion(conn);
+            if (upTo == since) {
+                return ChangeSet.empty(since);
+            }
+            if (upTo < since) {
+                // Версията на клиента е от друга база (напр. възстановена от архив) - зарежда се всичко
+                since = 0;
+            }
+            
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setLong(1, since);
+            pstmt.setLong(2, upTo);
+            
+            List<User> users = new ArrayList<>();
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                users.add(extractUserFromResultSet(rs));
+            }
+            
+            if (since <= 0) {
+                return ChangeSet.full(users, upTo);
+            }
+            return new ChangeSet<>(users, ChangeTracker.getDeletedIds(conn, ChangeTracker.USERS, since, upTo), upTo);
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при извличане на променените потребители", e);
+            return null;
+        } finally {
+            closeResources(conn, pstmt, rs);
+        }
+    }
+    
     /**
      * Проверява дали даден email вече съществува
      * @param email email за проверка
@@ -269,7 +448,7 @@ public class UserDAO {
         ResultSet rs = null;
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
             pstmt = conn.prepareStatement(sql);
             pstmt.setString(1, email);
             
@@ -278,7 +457,7 @@ public class UserDAO {
                 return rs.getInt(1) > 0;
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при проверка за съществуващ email: " + e.getMessage());
+            DaoLog.error("Грешка при проверка за съществуващ email", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -286,6 +465,82 @@ public class UserDAO {
         return false;
     }
     
+    /**
+     * Връща кои от дадените имейли вече са регистрирани (с няколко заявки IN (...) вместо по една за имейл)
+     * @param emails имейлите за проверка
+     * @return регистрираните имейли с малки букви или null при грешка
+     */
+    public Set<String> findExistingEmails(Collection<String> emails) {
+        Set<String> existing = new HashSet<>();
+        List<String> all = new ArrayList<>(emails);
+        
+        for (int from = 0; from < all.size(); from += EMAIL_LOOKUP_CHUNK) {
+            List<String> chunk = all.subList(from, Math.min(all.size(), from + EMAIL_LOOKUP_CHUNK));
+            String sql = "SELECT email FROM users WHERE email IN (" + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            
+            try {
+                conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+                pstmt = conn.prepareStatement(sql);
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setString(i + 1, chunk.get(i));
+                }
+                
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    existing.add(rs.getString("email").toLowerCase());
+                }
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при проверка за съществуващи email адреси", e);
+                return null;
+            } finally {
+                closeResources(conn, pstmt, rs);
+            }
+        }
+        
+        return existing;
+    }
+    
+    /**
+     * Връща кои от дадените ID-та на потребители съществуват
+     * @param userIds ID-тата за проверка
+     * @return съществуващите ID-та или null при грешка
+     */
+    public Set<Integer> findExistingIds(Collection<Integer> userIds) {
+        Set<Integer> existing = new HashSet<>();
+        List<Integer> all = new ArrayList<>(userIds);
+        
+        for (int from = 0; from < all.size(); from += EMAIL_LOOKUP_CHUNK) {
+            List<Integer> chunk = all.subList(from, Math.min(all.size(), from + EMAIL_LOOKUP_CHUNK));
+            String sql = "SELECT user_id FROM users WHERE user_id IN (" + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            
+            try {
+                conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
+                pstmt = conn.prepareStatement(sql);
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setInt(i + 1, chunk.get(i));
+                }
+                
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    existing.add(rs.getInt("user_id"));
+                }
+            } catch (SQLException e) {
+                DaoLog.error("Грешка при проверка за съществуващи потребители", e);
+                return null;
+            } finally {
+                closeResources(conn, pstmt, rs);
+            }
+        }
+        
+        return existing;
+    }
+    
     /**
      * Намира броя на потребителите с администраторски права
      * @return брой администратори
@@ -297,7 +552,7 @@ public class UserDAO {
         ResultSet rs = null;
         
         try {
-            conn = DatabaseConnection.getConnection();
+            conn = DatabaseConnection.getConnection(ShardRouter.MAIN);
             pstmt = conn.prepareStatement(sql);
             
             rs = pstmt.executeQuery();
@@ -305,7 +560,7 @@ public class UserDAO {
                 return rs.getInt(1);
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при броене на администратори: " + e.getMessage());
+            DaoLog.error("Грешка при броене на администратори", e);
         } finally {
             closeResources(conn, pstmt, rs);
         }
@@ -313,6 +568,26 @@ public class UserDAO {
         return 0;
     }
     
+    /**
+     * Проверява дали потребител съществува
+     * @param conn връзката на текущата транзакция
+     * @param userId ID на потребителя
+     * @return true, ако потребителят съществува
+     * @throws SQLException при грешка в базата
+     */
+    private boolean userExists(Connection conn, int userId) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement("SELECT 1 FROM users WHERE user_id = ?");
+            pstmt.setInt(1, userId);
+            rs = pstmt.executeQuery();
+            return rs.next();
+        } finally {
+            closeResources(null, pstmt, rs);
+        }
+    }
+    
     /**
      * Извлича потребител от ResultSet обект
      * @param rs ResultSet обект
@@ -326,9 +601,38 @@ public class UserDAO {
         user.setEmail(rs.getString("email"));
         user.setPassword(rs.getString("password"));
         user.setRole(rs.getString("role"));
+        user.setRowVersion(rs.getLong("row_version"));
         return user;
     }
     
+    /**
+     * Отменя текущата транзакция, ако има такава
+     * @param conn Connection обект
+     */
+    private void rollback(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.rollback();
+            }
+        } catch (SQLException ex) {
+            DaoLog.error("Грешка при rollback", ex);
+        }
+    }
+    
+    /**
+     * Възстановява autoCommit режима на връзката
+     * @param conn Connection обект
+     */
+    private void restoreAutoCommit(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            DaoLog.error("Грешка при възстановяване на autoCommit", e);
+        }
+    }
+    
     /**
      * Затваря ресурсите за връзка с базата данни
      * @param conn Connection обект
@@ -347,7 +651,7 @@ public class UserDAO {
                 conn.close();
             }
         } catch (SQLException e) {
-            System.err.println("Грешка при затваряне на ресурсите: " + e.getMessage());
+            DaoLog.error("Грешка при затваряне на ресурсите", e);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package library.model;
+
+/**
+ * Клас, представящ резултата от импортирането на един ред при масово добавяне на потребители
+ */
+public class UserImportResult {
+    
+    // Възможни резултати
+    public static final String CREATED = "добавен";
+    public static final String INVALID = "невалиден";
+    public static final String DUPLICATE = "повторен във файла";
+    public static final String EXISTS = "вече регистриран";
+    public static final String FAILED = "грешка";
+    
+    private int rowNumber;
+    private String email;
+    private String status;
+    private String message;
+    private int userId;
+    
+    /**
+     * Конструктор по подразбиране
+     */
+    public UserImportResult() {
+    }
+    
+    /**
+     * Конструктор с параметри
+     */
+    public UserImportResult(int rowNumber, String email, String status, String message) {
+        this.rowNumber = rowNumber;
+        this.email = email;
+        this.status = status;
+        this.message = message;
+        this.userId = -1;
+    }
+    
+    // Getters и Setters
+    public int getRowNumber() {
+        return rowNumber;
+    }
+    
+    public void setRowNumber(int rowNumber) {
+        this.rowNumber = rowNumber;
+    }
+    
+    public String getEmail() {
+        return email;
+    }
+    
+    public void setEmail(String email) {
+        this.email = email;
+    }
+    
+    public String getStatus() {
+        return status;
+    }
+    
+    public void setStatus(String status) {
+        this.status = status;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    public void setMessage(String message) {
+        this.message = message;
+    }
+    
+    public int getUserId() {
+        return userId;
+    }
+    
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+    
+    /**
+     * Проверява дали потребителят е добавен
+     * @return true, ако редът е импортиран успешно
+     */
+    public boolean isCreated() {
+        return CREATED.equals(status);
+    }
+    
+    @Override
+    public String toString() {
+        return "Ред " + rowNumber + " (" + email + "): " + status + (message != null ? " - " + message : "");
+    }
+}
\ No newline at end of file
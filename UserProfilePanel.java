@@ -1,10 +1,13 @@
 package library.ui.main.panels;
 
+import library.metrics.MetricsRegistry;
 import library.model.User;
 import library.service.AuthenticationService;
 import library.service.LoanService;
+import library.service.ServiceRegistry;
 import library.service.UserService;
 import library.ui.main.MainFrame;
+import library.ui.main.dialogs.EditConflictPrompt;
 import library.utils.ValidationUtils;
 
 import javax.swing.*;
@@ -21,6 +24,8 @@ public class UserProfilePanel extends JPanel {
     private AuthenticationService authService;
     private UserService userService;
     private LoanService loanService;
+    private final MetricsRegistry.Timer refreshTimer = MetricsRegistry.getInstance()
+            .timer("library_ui_refresh_seconds", "Време за обновяване на панел", "panel", "profile");
     private User currentUser;
     
     // Компоненти за информация за профила
@@ -59,8 +64,8 @@ public class UserProfilePanel extends JPanel {
     public UserProfilePanel(MainFrame mainFrame, AuthenticationService authService) {
         this.mainFrame = mainFrame;
         this.authService = authService;
-        this.userService = new UserService();
-        this.loanService = new LoanService();
+        this.userService = ServiceRegistry.getInstance().getUserService();
+        this.loanService = ServiceRegistry.getInstance().getLoanService();
         this.currentUser = authService.getCurrentUser();
         
         // Инициализация на компонентите
@@ -264,6 +269,8 @@ public class UserProfilePanel extends JPanel {
      * Зарежда данните в компонентите
      */
     public void refreshData() {
+        long start = refreshTimer.start();
+        
         // Презареждане на текущия потребител
         currentUser = authService.getCurrentUser();
         
@@ -280,12 +287,17 @@ public class UserProfilePanel extends JPanel {
             confirmPasswordField.setText("");
             
             // Попълване на статистиката
-            int totalLoans = loanService.getLoanCountByUser(currentUser.getUserId());
-            int activeLoans = loanService.getActiveLoansCountByUser(currentUser.getUserId());
+            int userId = currentUser.getUserId();
+            int totalLoans = mainFrame.getStartup().take("profile.loanCount",
+                    () -> loanService.getLoanCountByUser(userId, true));
+            int activeLoans = mainFrame.getStartup().take("profile.activeLoans",
+                    () -> loanService.getActiveLoansCountByUser(userId));
             
             loanCountValueLabel.setText(String.valueOf(totalLoans));
             activeLoansValueLabel.setText(String.valueOf(activeLoans));
         }
+        
+        refreshTimer.stop(start);
     }
     
     /**
@@ -322,14 +334,37 @@ public class UserProfilePanel extends JPanel {
             return;
         }
         
-        // Обновяване на профила
-        boolean success = userService.updateUser(
-                currentUser.getUserId(),
-                name,
-                email,
-                currentUser.getRole());
+        // Обновяване на профила спрямо версията, заредена при влизане или последното обновяване
+        int result = userService.updateUser(currentUser, name, email, currentUser.getRole());
+        
+        // Профилът е променен междувременно (напр. от администратор) - потребителят решава
+        if (result == UserService.UPDATE_CONFLICT) {
+            User latest = userService.getUserById(currentUser.getUserId());
+            if (latest == null) {
+                result = UserService.UPDATE_FAILED;
+            } else {
+                int choice = EditConflictPrompt.ask(this, "профила",
+                        new String[] {"Име", "Имейл"},
+                        new String[] {name, email},
+                        new String[] {latest.getName(), latest.getEmail()});
+                if (choice == EditConflictPrompt.CANCEL) {
+                    return;
+                }
+                
+                // И в двата случая текущите стойности стават основа на профила
+                currentUser.setName(latest.getName());
+                currentUser.setEmail(latest.getEmail());
+                currentUser.setRole(latest.getRole());
+                currentUser.setRowVersion(latest.getRowVersion());
+                if (choice == EditConflictPrompt.RELOAD) {
+                    refreshData();
+                    return;
+                }
+                result = userService.updateUser(currentUser, name, email, currentUser.getRole());
+            }
+        }
         
-        if (success) {
+        if (result == UserService.UPDATE_APPLIED) {
             JOptionPane.showMessageDialog(this,
                     "Профилът е обновен успешно!",
                     "Успех",
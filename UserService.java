@@ -1,23 +1,62 @@
 package library.service;
 
+import library.dao.DatabaseConnection;
+import library.dao.LoanDAO;
 import library.dao.UserDAO;
+import library.model.AuditEvent;
+import library.model.ChangeSet;
 import library.model.User;
+import library.model.UserImportResult;
+import library.utils.AsyncLogger;
+import library.utils.CsvParser;
+import library.utils.FieldMerge;
+import library.utils.PasswordEncryptor;
 import library.utils.ValidationUtils;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Сервизен клас за управление на потребители
  */
 public class UserService {
     
+    // Масово добавяне: брой потребители в една транзакция и нишки за хеширане на паролите
+    private static final int IMPORT_BATCH_SIZE = Math.max(1, Integer.getInteger("library.import.batchSize", 500));
+    private static final int IMPORT_THREADS = Math.max(1, Integer.getInteger("library.import.threads",
+            Runtime.getRuntime().availableProcessors()));
+    
+    // Резултати от updateUser
+    public static final int UPDATE_FAILED = UserDAO.UPDATE_FAILED;
+    public static final int UPDATE_APPLIED = UserDAO.UPDATE_APPLIED;
+    public static final int UPDATE_CONFLICT = UserDAO.UPDATE_CONFLICT;
+    
+    // Колко пъти се слива наново, ако потребителят се промени между четенето и записа
+    private static final int MERGE_ATTEMPTS = 3;
+    
     private UserDAO userDAO;
+    private LoanDAO loanDAO;
+    private HoldService holdService;
     
     /**
      * Конструктор
+     * @param userDAO споделеното DAO за потребители
+     * @param loanDAO споделеното DAO за заемания
+     * @param holdService сервизът за запазвания
      */
-    public UserService() {
-        this.userDAO = new UserDAO();
+    UserService(UserDAO userDAO, LoanDAO loanDAO, HoldService holdService) {
+        this.userDAO = userDAO;
+        this.loanDAO = loanDAO;
+        this.holdService = holdService;
     }
     
     /**
@@ -60,37 +99,176 @@ public class UserService {
         user.setRole(role);
         
         // Запазване на потребителя в базата данни
-        return userDAO.addUser(user);
+        int userId = userDAO.addUser(user);
+        if (userId > 0) {
+            AuditLog.record(AuditEvent.USER, userId, "добавяне", name + " <" + email + ">, " + role);
+        }
+        return userId;
     }
     
     /**
-     * Обновява информация за потребител
-     * @param userId ID на потребителя
+     * Добавя потребители от CSV файл с колони име, имейл, парола и (по желание) роля.
+     * Заглавен ред се разпознава и пропуска. Вместо по една заявка за всеки ред
+     * съществуващите имейли се проверяват наведнъж, паролите се хешират паралелно,
+     * а потребителите се записват с пакетни заявки.
+     * @param csv съдържанието на файла
+     * @return резултатът за всеки ред от файла
+     * @throws IOException при грешка при четене на файла
+     */
+    public List<UserImportResult> importUsers(Reader csv) throws IOException {
+        long start = System.currentTimeMillis();
+        List<String[]> records = CsvParser.parse(csv);
+        
+        List<UserImportResult> results = new ArrayList<>();
+        List<User> candidates = new ArrayList<>();
+        List<UserImportResult> candidateResults = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        
+        for (int i = 0; i < records.size(); i++) {
+            String[] fields = records.get(i);
+            int rowNumber = i + 1;
+            String email = fields.length > 1 ? fields[1] : "";
+            
+            // Заглавен ред
+            if (i == 0 && !ValidationUtils.isValidEmail(email)
+                    && ("email".equalsIgnoreCase(email) || "имейл".equalsIgnoreCase(email))) {
+                continue;
+            }
+            
+            UserImportResult result = new UserImportResult(rowNumber, email, UserImportResult.INVALID, null);
+            results.add(result);
+            
+            String name = fields[0];
+            String password = fields.length > 2 ? fields[2] : "";
+            String role = fields.length > 3 && !fields[3].isEmpty() ? fields[3] : "потребител";
+            
+            // Валидация на реда (същата като при създаване на един потребител)
+            if (!ValidationUtils.areNotEmpty(name, email, password)) {
+                result.setMessage("Липсва име, имейл или парола");
+            } else if (!ValidationUtils.isValidEmail(email)) {
+                result.setMessage("Невалиден имейл");
+            } else if (!ValidationUtils.isStrongPassword(password)) {
+                result.setMessage("Слаба парола");
+            } else if (!seen.add(email.toLowerCase())) {
+                result.setStatus(UserImportResult.DUPLICATE);
+            } else {
+                if (!"потребител".equals(role) && !"администратор".equals(role)) {
+                    role = "потребител"; // По подразбиране потребител
+                }
+                candidates.add(new User(0, name, email, password, role));
+                candidateResults.add(result);
+            }
+        }
+        
+        // Проверка за регистрирани имейли - една заявка за много имейли
+        List<String> emails = new ArrayList<>();
+        for (User user : candidates) {
+            emails.add(user.getEmail());
+        }
+        Set<String> existing = candidates.isEmpty() ? new HashSet<>() : userDAO.findExistingEmails(emails);
+        if (existing == null) {
+            for (UserImportResult result : candidateResults) {
+                result.setStatus(UserImportResult.FAILED);
+                result.setMessage("Няма връзка с базата данни");
+            }
+            return results;
+        }
+        
+        List<User> toAdd = new ArrayList<>();
+        List<UserImportResult> toAddResults = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (existing.contains(candidates.get(i).getEmail().toLowerCase())) {
+                candidateResults.get(i).setStatus(UserImportResult.EXISTS);
+            } else {
+                toAdd.add(candidates.get(i));
+                toAddResults.add(candidateResults.get(i));
+            }
+        }
+        
+        hashPasswords(toAdd);
+        
+        // Пакетно записване
+        int[] ids = toAdd.isEmpty() ? new int[0] : userDAO.addUsers(toAdd, IMPORT_BATCH_SIZE);
+        int created = 0;
+        for (int i = 0; i < ids.length; i++) {
+            UserImportResult result = toAddResults.get(i);
+            if (ids[i] > 0) {
+                result.setStatus(UserImportResult.CREATED);
+                result.setUserId(ids[i]);
+                created++;
+                AuditLog.record(AuditEvent.USER, ids[i], "добавяне", "импорт от CSV: " + result.getEmail());
+            } else {
+                result.setStatus(UserImportResult.FAILED);
+                result.setMessage("Грешка при записване в базата данни");
+            }
+        }
+        
+        AsyncLogger.log(AsyncLogger.Level.INFO, "Импортирани " + created + " от " + results.size()
+                + " потребители за " + (System.currentTimeMillis() - start) + " ms");
+        return results;
+    }
+    
+    /**
+     * Заменя паролите на потребителите с техния хеш, като разпределя работата между няколко нишки
+     * @param users потребителите с пароли в явен вид
+     */
+    private void hashPasswords(List<User> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+        
+        ExecutorService pool = Executors.newFixedThreadPool(IMPORT_THREADS, r -> {
+            Thread t = new Thread(r, "password-hashing");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            int chunk = (users.size() + IMPORT_THREADS - 1) / IMPORT_THREADS;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int from = 0; from < users.size(); from += chunk) {
+                List<User> part = users.subList(from, Math.min(users.size(), from + chunk));
+                tasks.add(() -> {
+                    for (User user : part) {
+                        user.setPassword(PasswordEncryptor.encryptPassword(user.getPassword()));
+                    }
+                    return null;
+                });
+            }
+            
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Хеширането на паролите беше прекъснато", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Грешка при хеширане на парола", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Обновява информация за потребител, без да презаписва чужди промени.
+     * Редакцията тръгва от original - потребителят такъв, какъвто е бил зареден във формата.
+     * Ако междувременно някой друг го е променил, промените се сливат по полета, както
+     * в BookService.updateBook; при различна промяна на едно и също поле се връща
+     * UPDATE_CONFLICT и нищо не се записва. При успех original получава записаните
+     * стойности и новата версия.
+     * @param original потребителят, от който е започнала редакцията
      * @param name ново име
      * @param email нов имейл
      * @param role нова роля
-     * @return true при успех, false при неуспех
+     * @return UPDATE_APPLIED, UPDATE_CONFLICT или UPDATE_FAILED
      */
-    public boolean updateUser(int userId, String name, String email, String role) {
+    public int updateUser(User original, String name, String email, String role) {
         // Валидация на входните данни
         if (!ValidationUtils.areNotEmpty(name, email, role)) {
-            return false;
+            return UPDATE_FAILED;
         }
         
         if (!ValidationUtils.isValidEmail(email)) {
-            return false;
-        }
-        
-        // Взимаме текущия потребител
-        User user = userDAO.getUserById(userId);
-        if (user == null) {
-            return false;
-        }
-        
-        // Проверка дали новият имейл вече се използва от друг потребител
-        User existingUser = userDAO.getUserByEmail(email);
-        if (existingUser != null && existingUser.getUserId() != userId) {
-            return false;
+            return UPDATE_FAILED;
         }
         
         // Валидация на ролята
@@ -98,13 +276,85 @@ public class UserService {
             role = "потребител"; // По подразбиране потребител
         }
         
-        // Обновяване на потребителя
-        user.setName(name);
-        user.setEmail(email);
-        user.setRole(role);
+        for (int attempt = 0; attempt < MERGE_ATTEMPTS; attempt++) {
+            // Взимаме текущия потребител
+            User user = userDAO.getUserById(original.getUserId());
+            if (user == null) {
+                return UPDATE_FAILED;
+            }
+            
+            // Без известна версия редакцията тръгва от текущия потребител (последният записал печели)
+            User base = original.getRowVersion() > 0 ? original : user;
+            String newName = FieldMerge.merge(base.getName(), name, user.getName());
+            String newEmail = FieldMerge.merge(base.getEmail(), email, user.getEmail());
+            String newRole = FieldMerge.merge(base.getRole(), role, user.getRole());
+            if (newName == null || newEmail == null || newRole == null) {
+                return UPDATE_CONFLICT;
+            }
+            
+            // Проверка дали новият имейл вече се използва от друг потребител
+            User existingUser = userDAO.getUserByEmail(newEmail);
+            if (existingUser != null && existingUser.getUserId() != user.getUserId()) {
+                return UPDATE_FAILED;
+            }
+            
+            String changes = AuditLog.change("име", user.getName(), newName)
+                    + AuditLog.change("имейл", user.getEmail(), newEmail)
+                    + AuditLog.change("роля", user.getRole(), newRole);
+            
+            // Обновяване на потребителя
+            user.setName(newName);
+            user.setEmail(newEmail);
+            user.setRole(newRole);
+            
+            // Записване на промените само ако версията в базата още е тази, която сме прочели
+            int result = userDAO.updateUser(user);
+            if (result == UserDAO.UPDATE_CONFLICT) {
+                continue;
+            }
+            if (result != UserDAO.UPDATE_APPLIED) {
+                return UPDATE_FAILED;
+            }
+            AuditLog.record(AuditEvent.USER, user.getUserId(), "промяна", changes);
+            
+            original.setName(newName);
+            original.setEmail(newEmail);
+            original.setRole(newRole);
+            original.setRowVersion(user.getRowVersion());
+            return UPDATE_APPLIED;
+        }
+        return UPDATE_CONFLICT;
+    }
+    
+    /**
+     * Проверява дали потребителят може да бъде изтрит. Заеманията в активната таблица
+     * сочат към потребителя с външен ключ (V3__foreign_keys.sql), затова потребител,
+     * чиято история още не е архивирана от LoanArchiver, не се изтрива.
+     * @param userId ID на потребителя
+     * @return причината за отказ, подходяща за показване, или null, ако потребителят може да бъде изтрит
+     */
+    public String getDeleteBlocker(int userId) {
+        DatabaseConnection.clearFailure();
+        User user = userDAO.getUserById(userId);
+        int activeLoans = user == null ? 0 : loanDAO.getActiveLoansCountByUser(userId);
+        int loanCount = user == null ? 0 : loanDAO.getLoanCountByUser(userId);
+        if (DatabaseConnection.consumeFailure()) {
+            return "Няма връзка с базата данни. Опитайте отново по-късно.";
+        }
         
-        // Записване на промените
-        return userDAO.updateUser(user);
+        if (user == null) {
+            return "Потребителят не е намерен.";
+        }
+        if ("администратор".equals(user.getRole()) && userDAO.getAdminCount() <= 1) {
+            return "Не можете да изтриете последния администратор!";
+        }
+        if (activeLoans > 0) {
+            return "Потребителят има невърнати книги и не може да бъде изтрит.";
+        }
+        if (loanCount > 0) {
+            return "Потребителят има история на заемания, която още не е архивирана, и не може да бъде изтрит.";
+        }
+        return null;
     }
     
     /**
@@ -113,19 +363,28 @@ public class UserService {
      * @return true при успех, false при неуспех
      */
     public boolean deleteUser(int userId) {
-        // Проверка дали потребителят съществува
+        // Последният администратор и потребител с неархивирана история не се изтриват
+        if (getDeleteBlocker(userId) != null) {
+            return false;
+        }
+        
         User user = userDAO.getUserById(userId);
         if (user == null) {
             return false;
         }
         
-        // Проверка дали това е последният администратор
-        if ("администратор".equals(user.getRole()) && userDAO.getAdminCount() <= 1) {
-            return false; // Не можем да изтрием последния администратор
+        // Запазванията във филиалите не се изтриват каскадно - премахват се първо,
+        // а при недостъпен филиал потребителят не се изтрива
+        if (!holdService.removeUserHolds(userId)) {
+            return false;
         }
         
         // Изтриване на потребителя
-        return userDAO.deleteUser(userId);
+        if (!userDAO.deleteUser(userId)) {
+            return false;
+        }
+        AuditLog.record(AuditEvent.USER, userId, "изтриване", user.getName() + " <" + user.getEmail() + ">");
+        return true;
     }
     
     /**
@@ -145,7 +404,11 @@ public class UserService {
         }
         
         // Промяна на паролата
-        return userDAO.updatePassword(userId, newPassword);
+        if (!userDAO.updatePassword(userId, newPassword)) {
+            return false;
+        }
+        AuditLog.record(AuditEvent.USER, userId, "смяна на парола", null);
+        return true;
     }
     
     /**
@@ -154,7 +417,7 @@ public class UserService {
      * @return потребителят или null, ако не е намерен
      */
     public User getUserById(int userId) {
-        return userDAO.getUserById(userId);
+        return LastKnownCache.getInstance().read("user:" + userId, () -> userDAO.getUserById(userId));
     }
     
     /**
@@ -175,7 +438,16 @@ public class UserService {
      * @return списък с всички потребители
      */
     public List<User> getAllUsers() {
-        return userDAO.getAllUsers();
+        return LastKnownCache.getInstance().read("users:all", () -> userDAO.getAllUsers());
+    }
+    
+    /**
+     * Връща промените в потребителите след дадена версия
+     * @param since последната известна версия (0 за всички потребители)
+     * @return промените или null, ако базата е недостъпна
+     */
+    public ChangeSet<User> getUsersChangedSince(long since) {
+        return userDAO.getUsersChangedSince(since);
     }
     
     /**
@@ -0,0 +1,46 @@
+-- Базова схема на библиотечната система.
+-- IF NOT EXISTS позволява прилагане върху съществуваща база, създадена на ръка.
+
+CREATE TABLE IF NOT EXISTS users (
+    user_id INT AUTO_INCREMENT PRIMARY KEY,
+    name VARCHAR(100) NOT NULL,
+    email VARCHAR(255) NOT NULL,
+    password VARCHAR(255) NOT NULL,
+    role VARCHAR(20) NOT NULL DEFAULT 'потребител'
+);
+
+CREATE TABLE IF NOT EXISTS books (
+    book_id INT AUTO_INCREMENT PRIMARY KEY,
+    title VARCHAR(255) NOT NULL,
+    author VARCHAR(255) NOT NULL,
+    genre VARCHAR(100) NOT NULL,
+    availability VARCHAR(20) NOT NULL DEFAULT 'налична'
+);
+
+CREATE TABLE IF NOT EXISTS loans (
+    loan_id INT AUTO_INCREMENT PRIMARY KEY,
+    book_id INT NOT NULL,
+    user_id INT NOT NULL,
+    loan_date TIMESTAMP NOT NULL,
+    return_date TIMESTAMP NULL,
+    is_returned BOOLEAN NOT NULL DEFAULT FALSE
+);
+
+CREATE TABLE IF NOT EXISTS holds (
+    hold_id INT AUTO_INCREMENT PRIMARY KEY,
+    book_id INT NOT NULL,
+    user_id INT NOT NULL,
+    created_at TIMESTAMP NOT NULL,
+    expires_at TIMESTAMP NULL,
+    status VARCHAR(20) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS loans_archive (
+    loan_id INT PRIMARY KEY,
+    book_id INT NOT NULL,
+    user_id INT NOT NULL,
+    loan_date TIMESTAMP NOT NULL,
+    return_date TIMESTAMP NULL,
+    is_returned BOOLEAN NOT NULL,
+    archived_at TIMESTAMP NOT NULL
+);
@@ -0,0 +1,29 @@
+-- Индекси, на които разчитат заявките в DAO класовете.
+
+-- UserDAO.getUserByEmail, login, emailExists; забранява дублирани имейли
+CREATE UNIQUE INDEX ux_users_email ON users (email);
+
+-- LoanDAO.getLoansByUserId, getActiveLoansCountByUser, getLoanCountByUser
+CREATE INDEX ix_loans_user_returned ON loans (user_id, is_returned);
+
+-- LoanDAO.isBookLoaned, isBookLoanedBy
+CREATE INDEX ix_loans_book_returned ON loans (book_id, is_returned);
+
+-- LoanDAO.getActiveLoans, getOverdueLoans
+CREATE INDEX ix_loans_returned_date ON loans (is_returned, loan_date);
+
+-- LoanDAO.archiveReturnedLoans, getReturnCountSince
+CREATE INDEX ix_loans_returned_return_date ON loans (is_returned, return_date);
+
+-- LoanDAO.getBorrowCountsByBookSince, getBorrowCountsByUserSince
+CREATE INDEX ix_loans_loan_date ON loans (loan_date);
+
+-- Филтриране на каталога по жанр
+CREATE INDEX ix_books_genre ON books (genre);
+
+-- HoldDAO: опашката за книга и запазванията на потребител
+CREATE INDEX ix_holds_book_status ON holds (book_id, status, created_at);
+CREATE INDEX ix_holds_user_status ON holds (user_id, status);
+
+-- LoanDAO.getLoansByUserId с включен архив
+CREATE INDEX ix_loans_archive_user ON loans_archive (user_id, loan_date);
@@ -0,0 +1,9 @@
+-- Външни ключове. Заемане не може да сочи към несъществуваща книга или потребител;
+-- потребител или книга с история на заемания не се изтриват, докато историята не бъде архивирана.
+
+ALTER TABLE loans ADD CONSTRAINT fk_loans_book FOREIGN KEY (book_id) REFERENCES books (book_id);
+ALTER TABLE loans ADD CONSTRAINT fk_loans_user FOREIGN KEY (user_id) REFERENCES users (user_id);
+
+-- Запазванията нямат стойност без книгата или потребителя
+ALTER TABLE holds ADD CONSTRAINT fk_holds_book FOREIGN KEY (book_id) REFERENCES books (book_id) ON DELETE CASCADE;
+ALTER TABLE holds ADD CONSTRAINT fk_holds_user FOREIGN KEY (user_id) REFERENCES users (user_id) ON DELETE CASCADE;
@@ -0,0 +1,10 @@
+-- Операции по заемане и връщане, записани офлайн в локалния журнал и приложени при
+-- възстановяване на връзката. Уникалният op_id прави повторното прилагане безопасно.
+
+CREATE TABLE IF NOT EXISTS applied_operations (
+    op_id CHAR(36) PRIMARY KEY,
+    op_type CHAR(1) NOT NULL,
+    applied_at TIMESTAMP NOT NULL,
+    outcome VARCHAR(20) NOT NULL,
+    detail VARCHAR(255) NULL
+);
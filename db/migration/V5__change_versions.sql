@@ -0,0 +1,29 @@
+-- Проследяване на промените за частично обновяване на клиентите.
+-- Всяка промяна на книга, потребител или заемане получава следваща стойност от
+-- change_sequence в колоната row_version; изтритите редове оставят запис в tombstones.
+-- Съществуващите редове получават версия 1, така че заявка "от версия 0" връща всичко.
+
+CREATE TABLE IF NOT EXISTS change_sequence (
+    id INT PRIMARY KEY,
+    version BIGINT NOT NULL
+);
+
+INSERT INTO change_sequence (id, version) VALUES (1, 1);
+
+ALTER TABLE books ADD COLUMN row_version BIGINT NOT NULL DEFAULT 1;
+ALTER TABLE users ADD COLUMN row_version BIGINT NOT NULL DEFAULT 1;
+ALTER TABLE loans ADD COLUMN row_version BIGINT NOT NULL DEFAULT 1;
+
+-- BookDAO.getBooksChangedSince, UserDAO.getUsersChangedSince, LoanDAO.getLoansChangedSince
+CREATE INDEX ix_books_row_version ON books (row_version);
+CREATE INDEX ix_users_row_version ON users (row_version);
+CREATE INDEX ix_loans_row_version ON loans (row_version);
+
+CREATE TABLE IF NOT EXISTS tombstones (
+    entity VARCHAR(20) NOT NULL,
+    entity_id INT NOT NULL,
+    row_version BIGINT NOT NULL,
+    PRIMARY KEY (entity, entity_id)
+);
+
+CREATE INDEX ix_tombstones_version ON tombstones (entity, row_version);
@@ -0,0 +1,27 @@
+-- Прехвърляне на книги между филиали (виж TransferDAO).
+-- Изпращащият филиал записва прехвърлянето в transfer_outbox в същата транзакция, в
+-- която книгата става "в транзит"; приемащият филиал отбелязва всяко получено
+-- прехвърляне в transfer_inbox, така че повторната доставка не създава втора книга.
+
+CREATE TABLE IF NOT EXISTS transfer_outbox (
+    transfer_id INT AUTO_INCREMENT PRIMARY KEY,
+    book_id INT NOT NULL,
+    target_branch INT NOT NULL,
+    user_id INT NULL,
+    title VARCHAR(255) NOT NULL,
+    author VARCHAR(255) NOT NULL,
+    genre VARCHAR(100) NOT NULL,
+    created_at TIMESTAMP NOT NULL,
+    status VARCHAR(20) NOT NULL,
+    delivered_book_id INT NULL
+);
+
+CREATE INDEX ix_transfer_outbox_status ON transfer_outbox (status, transfer_id);
+
+CREATE TABLE IF NOT EXISTS transfer_inbox (
+    source_branch INT NOT NULL,
+    transfer_id INT NOT NULL,
+    book_id INT NOT NULL,
+    received_at TIMESTAMP NOT NULL,
+    PRIMARY KEY (source_branch, transfer_id)
+);
@@ -0,0 +1,8 @@
+-- Краткотрайни права (lease) за фонови задачи, които трябва да вървят само на
+-- една работна станция наведнъж (напр. ежедневното архивиране на заемания).
+
+CREATE TABLE IF NOT EXISTS job_leases (
+    job_name VARCHAR(64) PRIMARY KEY,
+    owner VARCHAR(128) NOT NULL,
+    expires_at TIMESTAMP NOT NULL
+);